@@ -9,9 +9,6 @@ package com.bad_elf.gpssample;
 import android.graphics.LightingColorFilter;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.text.Editable;
-import android.text.Layout;
-import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
@@ -19,15 +16,16 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
 
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
 import com.bad_elf.badelfgps.BadElfDevice;
+import com.bad_elf.badelfgps.BadElfGpsChunkObserver;
 import com.bad_elf.badelfgps.BadElfRemoteController;
 import com.bad_elf.badelfgps.BadElfService.State;
 import com.bad_elf.badelfgps.BadElfGpsConnection;
 import com.bad_elf.badelfgps.BadElfGpsConnectionObserver;
+import com.bad_elf.badelfgps.GpsDataChunk;
 
 /**
  * This Activity lets the user connect to and disconnect from a Bad Elf Device. The data received
@@ -37,15 +35,26 @@ import com.bad_elf.badelfgps.BadElfGpsConnectionObserver;
  * This activity communicates with the Device using the BadElfGpsConnection class and through
  * callbacks by implementing the BadElfGpsConnectionObserver interface.
  *
+ * The received data is kept by a ReceivedDataConsole on the observer's delivery thread. The UI
+ * thread builds the text of the lines that fit and redraws it at most once per frame, however
+ * fast the data arrives. The view doesn't wrap lines, so each line is one row of it.
+ *
  */
-public class BadElfDeviceDataActivity extends AppCompatActivity implements BadElfGpsConnectionObserver {
+public class BadElfDeviceDataActivity extends AppCompatActivity
+        implements BadElfGpsConnectionObserver, BadElfGpsChunkObserver {
 
     private static final String TAG = "BadElfDeviceDataActvty";
 
+    // How long received data waits to be drawn, so that everything received in one frame is drawn at once
+    private static final long RENDER_DELAY_MS = 16;
+
     private Button connectDisconnectButton;
     private TextView stateView;
     private List<Button> requestButtons; // The 10 request buttons
     private TextView receivedDataView;
+    private ReceivedDataConsole console;  // Kept across orientation changes
+    private final StringBuilder visibleText = new StringBuilder(); // Only used on the UI thread
+    private byte[] chunkBuffer = new byte[0]; // Only used on the delivery thread
 
     private BadElfDevice badElfDevice;  // The Bad Elf device we will communicate with
     private BadElfGpsConnection badElfConnection;
@@ -81,7 +90,11 @@ public class BadElfDeviceDataActivity extends AppCompatActivity implements BadEl
         if (requestButtons.size() != BadElfGpsConnection.Request.values().length) throw new AssertionError();
 
         receivedDataView = (TextView)findViewById(R.id.receivedData);
-        receivedDataView.setMovementMethod(new ScrollingMovementMethod());
+        console = (ReceivedDataConsole) getLastCustomNonConfigurationInstance();
+        if (console == null) {
+            console = new ReceivedDataConsole();
+        }
+        receivedDataView.post(renderConsole); // once the view has its size
 
         // Create a BadElfGpsConnection instance. This will cause our implementation of
         // BadElfGpsConnectionObserver.onReady to be called.
@@ -95,6 +108,7 @@ public class BadElfDeviceDataActivity extends AppCompatActivity implements BadEl
     protected void onDestroy() {
         Log.d(TAG, "onDestroy");
         super.onDestroy();
+        receivedDataView.removeCallbacks(renderConsole);
         badElfConnection.onDestroy();  // Destroy our link to the connection service.
                                        // NOTE: If there is an active connection to the Bad Elf
                                        // Device this does not cause that to disconnect. To
@@ -105,6 +119,14 @@ public class BadElfDeviceDataActivity extends AppCompatActivity implements BadEl
                                        // orientation changes.
     }
 
+    /**
+     * Keep the received lines when the activity is recreated for an orientation change
+     */
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return console;
+    }
+
     // This is the index in requestButtons of the last request button pressed
     private int lastRequestIndex = -1;
     private static final String LAST_REQUEST_INDEX="LAST_REQUEST_INDEX";
@@ -162,7 +184,9 @@ public class BadElfDeviceDataActivity extends AppCompatActivity implements BadEl
         public void onClick(View button) {
             if(badElfConnection.getState() == State.IDLE) {
                 // if not connected, Connect to the Bad Elf Device
-                receivedDataView.setText(""); // clear old received data
+                if (console.clear()) { // clear old received data
+                    receivedDataView.post(renderConsole);
+                }
                 badElfConnection.connect();
             }else{
                 // if connected, disconnect
@@ -273,40 +297,49 @@ public class BadElfDeviceDataActivity extends AppCompatActivity implements BadEl
     }
 
     /**
-     * Called when ever we receive data from the Bad Elf Device
+     * Called when ever we receive data from the Bad Elf Device, instead of onDataReceived
+     *
+     * @param chunk the received data
+     */
+    @Override // this is a method of the BadElfGpsChunkObserver
+    public void onChunkReceived(final GpsDataChunk chunk){
+        int length = chunk.length();
+        if (chunkBuffer.length < length) {
+            chunkBuffer = new byte[length];
+        }
+        chunk.copyTo(0, chunkBuffer, 0, length);
+        if (console.append(chunkBuffer, 0, length)) {
+            receivedDataView.postDelayed(renderConsole, RENDER_DELAY_MS);
+        }
+    }
+
+    /**
+     * Not called, because onChunkReceived is implemented. Kept for BadElfGpsConnectionObserver.
      *
      * @param data the received data
      */
     @Override // this is a method of the BadElfGpsConnectionObserver
     public void onDataReceived(final byte[] data){
-
-        Log.d(TAG, String.format("RX bytes: %d", data.length));
-
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                receivedDataView.append(new String(data, Charset.forName("ISO-8859-1")));
-                // Just keep the last 100 lines
-                int linesToRemove = receivedDataView.getLineCount() - 100;
-                if (linesToRemove > 0) {
-                    for (int i = 0; i < linesToRemove; i++) {
-                        Editable text = receivedDataView.getEditableText();
-                        int lineStart = receivedDataView.getLayout().getLineStart(0);
-                        int lineEnd = receivedDataView.getLayout().getLineEnd(0);
-                        text.delete(lineStart, lineEnd);
-                    }
-                }
-                final Layout layout = receivedDataView.getLayout();
-                if(layout != null){
-                    int scrollDelta = layout.getLineBottom(receivedDataView.getLineCount() - 1)
-                            - receivedDataView.getScrollY() - receivedDataView.getHeight();
-                    if(scrollDelta > 0)
-                        receivedDataView.scrollBy(0, scrollDelta);
-                }
-
-
-            }
-        });
+        if (console.append(data, 0, data.length)) {
+            receivedDataView.postDelayed(renderConsole, RENDER_DELAY_MS);
+        }
     }
 
+    /**
+     * Show the newest received lines that fit in the view, replacing its text in one go. The
+     * view is bottom aligned, so the newest line is always at the bottom.
+     */
+    private final Runnable renderConsole = new Runnable() {
+        @Override
+        public void run() {
+            int textHeight = receivedDataView.getHeight() - receivedDataView.getTotalPaddingTop()
+                    - receivedDataView.getTotalPaddingBottom();
+            int lineHeight = receivedDataView.getLineHeight();
+            int visibleLines = lineHeight > 0 && textHeight > 0 ? textHeight / lineHeight
+                    : ReceivedDataConsole.DEFAULT_MAX_LINES;
+            console.render(visibleText, visibleLines);
+            receivedDataView.setText(visibleText);
+        }
+    };
+
 }
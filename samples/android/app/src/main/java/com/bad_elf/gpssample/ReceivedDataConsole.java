@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.gpssample;
+
+/**
+ * The last lines of received data, for display.
+ *
+ * Received bytes are kept as they arrive in a ring of bytes, along with where each of the last
+ * lines starts and how long it is. The thread that receives them only copies bytes and counts
+ * lines. The text is built on the UI thread, and only for the lines that fit on the screen.
+ *
+ * append reports when a render has to be scheduled: only the first append after a render does,
+ * so any number of chunks received between two frames cost one render.
+ *
+ */
+public class ReceivedDataConsole {
+
+    public static final int DEFAULT_MAX_LINES = 100;
+
+    // Longer lines, for example from binary data, are broken up
+    private static final int MAX_LINE_LENGTH = 256;
+
+    // Holds the kept lines and the partial line, whatever their lengths
+    private final byte[] data;
+    private long written; // the number of bytes ever written to data
+
+    // Where in the data the kept lines start, and their lengths
+    private final long[] lineStarts;
+    private final int[] lineLengths;
+    private int firstLine; // index in lineStarts of the oldest line
+    private int lineCount;
+    private long partialLineStart;
+    private boolean renderPending;
+
+    /**
+     * Construct a ReceivedDataConsole that keeps DEFAULT_MAX_LINES lines
+     */
+    public ReceivedDataConsole() {
+        this(DEFAULT_MAX_LINES);
+    }
+
+    /**
+     * Construct a ReceivedDataConsole
+     *
+     * @param maxLines the number of lines kept
+     */
+    public ReceivedDataConsole(int maxLines) {
+        if (maxLines <= 0) throw new IllegalArgumentException("maxLines <= 0");
+        data = new byte[(maxLines + 1) * MAX_LINE_LENGTH];
+        lineStarts = new long[maxLines];
+        lineLengths = new int[maxLines];
+    }
+
+    /**
+     * Add received data. Bytes are shown as ISO-8859-1 characters.
+     *
+     * @param bytes the data
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @return true if a line was completed and no render was pending, so the caller must
+     * schedule one
+     */
+    public synchronized boolean append(byte[] bytes, int offset, int length) {
+        boolean changed = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b == '\n' || written - partialLineStart == MAX_LINE_LENGTH) {
+                endLine();
+                changed = true;
+                if (b == '\n') continue;
+            }
+            if (b != '\r') data[(int) (written++ % data.length)] = b;
+        }
+        if (!changed || renderPending) return false;
+        renderPending = true;
+        return true;
+    }
+
+    private void endLine() {
+        int index;
+        if (lineCount < lineStarts.length) {
+            index = (firstLine + lineCount++) % lineStarts.length;
+        } else {
+            index = firstLine; // replace the oldest
+            firstLine = (firstLine + 1) % lineStarts.length;
+        }
+        lineStarts[index] = partialLineStart;
+        lineLengths[index] = (int) (written - partialLineStart);
+        partialLineStart = written;
+    }
+
+    /**
+     * Forget everything
+     *
+     * @return true if no render was pending, so the caller must schedule one
+     */
+    public synchronized boolean clear() {
+        firstLine = 0;
+        lineCount = 0;
+        partialLineStart = written;
+        if (renderPending) return false;
+        renderPending = true;
+        return true;
+    }
+
+    /**
+     * Build the text of the newest lines for display. Appends after this schedule the next
+     * render.
+     *
+     * @param out receives the lines, separated by '\n'. It is cleared first.
+     * @param maxLines the number of lines that fit
+     */
+    public synchronized void render(StringBuilder out, int maxLines) {
+        renderPending = false;
+        out.setLength(0);
+        int count = Math.min(lineCount, Math.max(maxLines, 0));
+        for (int i = lineCount - count; i < lineCount; i++) {
+            if (i > lineCount - count) out.append('\n');
+            int index = (firstLine + i) % lineStarts.length;
+            long start = lineStarts[index];
+            for (long p = start; p < start + lineLengths[index]; p++) {
+                out.append((char) (data[(int) (p % data.length)] & 0xff));
+            }
+        }
+    }
+
+    /** @return the number of complete lines kept */
+    public synchronized int getLineCount() {
+        return lineCount;
+    }
+}
@@ -90,11 +90,12 @@ public class BadElfDevice implements Parcelable {
     /**
      * Construct a BadElfDevice
      *
-     * The constructor is private so only the static method getPairedDevices can call it.
+     * The constructor is package-private so only the static method getPairedDevices, and the
+     * tests, can call it.
      *
      * @param device A paired Bad Elf BluetoothDevice
      */
-    private BadElfDevice(BluetoothDevice device){
+    BadElfDevice(BluetoothDevice device){
         this.device = device;
     }
 
@@ -0,0 +1,851 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.bad_elf.badelfgps.BadElfService.ObserverEntry;
+import com.bad_elf.badelfgps.BadElfService.State;
+
+import java.io.IOException;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.NotYetConnectedException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The connection to one Bad Elf Device.
+ *
+ * Each session has its own state, its own reader thread, its own send path and its own
+ * observers, and shares no lock with the other sessions, so several receivers can be logged side
+ * by side. BadElfService creates the sessions, see BadElfService.openSession. The methods of
+ * BadElfService that don't take a session act on its first session.
+ *
+ * Received data is tagged with the session's device ID, see GpsDataChunk.getDeviceId, so that it
+ * can also be delivered to BadElfService's merged observers.
+ *
+ */
+public class BadElfDeviceSession {
+
+    private static final String TAG = "BadElfDeviceSession";
+
+    /**
+     *  The default keepalive interval, a workaround for an Android bug
+     *
+     *  https://code.google.com/p/android/issues/detail?id=66177
+     *
+     *  Android sends sniff mode request on a busy rfcomm connection
+     *
+     *  Suspected cause:
+     *     Android only monitors the tx channel to determine if a connection is busy. Since we
+     *     mostly only receive data from the Bad Elf Device, but rarely send any data, Android
+     *     makes the wrong conclusion.
+     *
+     *  Workaround:
+     *     Send junk data to the Bad Elf device whenever nothing else was sent for ~500ms to
+     *     prevent Android Device from commanding sniff mode.
+     */
+    public static final long KEEPALIVE_INTERVAL_MS = 500;
+
+    static final byte[] pingJunk = {0};
+
+    private final BadElfService service;
+    private final int deviceId;
+    private volatile BluetoothDevice device;
+    private volatile GpsTransport transport;
+    private volatile String name;
+    private final Object deviceSync = new Object(); // Guards changing the device and connect
+    private volatile Thread readerThread;
+
+    /**
+     * One state of the connection. Every successful transition links the next one to the
+     * previous one, so that the observers can be told about each transition in order without a
+     * lock.
+     */
+    private static final class Transition {
+        final State state;
+        volatile Transition next;
+
+        Transition(State state) {
+            this.state = state;
+        }
+    }
+
+    private final AtomicReference<Transition> current = new AtomicReference<>(new Transition(State.IDLE));
+    private Transition notified = current.get(); // the last transition the observers were told about
+    private final AtomicInteger notifyRequests = new AtomicInteger(); // non-zero while a thread notifies
+
+    private volatile GpsTransportWriter writer; // null while not connected
+    private volatile long keepaliveIntervalMs = KEEPALIVE_INTERVAL_MS;
+
+    private volatile GpsReconnectPolicy reconnectPolicy; // null to go Idle when the link drops
+    private final Random reconnectRandom = new Random();
+    private volatile int reconnectCount;
+    private volatile long lastReconnectGapMs = -1;
+    private long lastReceivedNanos; // Only used on the reader thread
+    private long dropNanos;         // Only used on the reader thread
+
+    private final GpsReceiveMetrics receiveMetrics; // Only used on the reader thread
+
+    // Copy on write arrays of observers, like BadElfService's merged observers
+    private volatile ObserverEntry[] observers = new ObserverEntry[0];
+    private ObserverEntry[] fixObservers = new ObserverEntry[0];
+    private final Object observerSync = new Object();
+
+    /**
+     * Construct a BadElfDeviceSession
+     *
+     * @param service the service that owns the session
+     * @param deviceId the ID received data is tagged with
+     */
+    BadElfDeviceSession(BadElfService service, int deviceId) {
+        this.service = service;
+        this.deviceId = deviceId;
+        this.name = "#" + deviceId;
+        fixDispatcher.setDeviceId(deviceId);
+        receiveMetrics = new GpsReceiveMetrics(service.getMetrics());
+    }
+
+    /** @return the ID the session's data is tagged with */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /** @return the name of the Bad Elf Device or transport */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * Set the Bad Elf Device.
+     *
+     * The Bad Elf Device can only be changed when the session state is Idle
+     *
+     * @param badElfDevice the Bad Elf Device
+     */
+    public void setBadElfDevice(BadElfDevice badElfDevice) {
+        synchronized (deviceSync) {
+            if( ! badElfDevice.getDevice().equals(device)) {
+                // setting a new device
+                if (getState() != State.IDLE) throw new AlreadyConnectedException();
+                device = badElfDevice.getDevice();
+                transport = new RfcommTransport(device);
+                name = badElfDevice.toString();
+            }
+        }
+    }
+
+    /**
+     * Set the transport used to talk to the Bad Elf Device, instead of the RfcommTransport
+     * setBadElfDevice sets. The transport can only be changed when the session state is Idle.
+     *
+     * @param newTransport the transport
+     */
+    public void setTransport(GpsTransport newTransport) {
+        synchronized (deviceSync) {
+            if (getState() != State.IDLE) throw new AlreadyConnectedException();
+            transport = newTransport;
+            device = null;
+            name = newTransport.toString();
+        }
+    }
+
+    /**
+     * Check whether a device or transport has been set
+     *
+     * @return true if connect can be called
+     */
+    boolean hasTransport() {
+        return transport != null;
+    }
+
+    /**
+     * Check whether this session talks to a device
+     *
+     * @param badElfDevice the Bad Elf Device
+     * @return true if the device was set with setBadElfDevice
+     */
+    boolean isFor(BadElfDevice badElfDevice) {
+        return badElfDevice.getDevice().equals(device);
+    }
+
+    /**
+     * Add an observer of this session, delivering to it through a DROP_OLDEST queue of the
+     * default capacity
+     *
+     * @param observer an instance that implements BadElfGpsConnectionObserver
+     */
+    public void addObserver(BadElfGpsConnectionObserver observer){
+        addObserver(observer, GpsObserverQueue.OverflowPolicy.DROP_OLDEST, BadElfService.DEFAULT_OBSERVER_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Add an observer of this session
+     *
+     * @param observer an instance that implements BadElfGpsConnectionObserver
+     * @param policy what to do with received data when the observer falls behind
+     * @param capacity the number of received chunks that can be waiting for the observer
+     */
+    public void addObserver(final BadElfGpsConnectionObserver observer,
+                            GpsObserverQueue.OverflowPolicy policy, int capacity){
+        BadElfGpsChunkObserver chunkTarget;
+        if (observer instanceof BadElfGpsChunkObserver) {
+            chunkTarget = (BadElfGpsChunkObserver) observer;
+        } else {
+            chunkTarget = new BadElfGpsChunkObserver() {
+                @Override
+                public void onChunkReceived(GpsDataChunk chunk) {
+                    observer.onDataReceived(chunk.toByteArray());
+                }
+            };
+        }
+        GpsObserverQueue queue = service.newQueue(observer, policy, capacity, chunkTarget, null);
+        synchronized (observerSync) {
+            if (BadElfService.indexOf(observers, observer) >= 0) return;
+            observers = BadElfService.append(observers, new ObserverEntry(observer, queue));
+            queue.start();
+        }
+    }
+
+    /**
+     * Remove an observer. Anything still queued for the observer is discarded.
+     *
+     * @param observer an instance that implements BadElfGpsConnectionObserver
+     */
+    public void removeObserver(BadElfGpsConnectionObserver observer){
+        GpsObserverQueue queue;
+        synchronized (observerSync) {
+            int index = BadElfService.indexOf(observers, observer);
+            if (index < 0) return;
+            queue = observers[index].queue;
+            observers = BadElfService.remove(observers, index);
+        }
+        queue.stop();
+    }
+
+    /**
+     * Get the queue that delivers to an observer, for its counters
+     *
+     * @param observer an observer that was added
+     * @return the queue, or null if the observer was not added
+     */
+    public GpsObserverQueue getObserverQueue(BadElfGpsConnectionObserver observer){
+        ObserverEntry[] entries = observers;
+        int index = BadElfService.indexOf(entries, observer);
+        return index < 0 ? null : entries[index].queue;
+    }
+
+    // Parses the received data once for all BadElfGpsFixObservers of this session and the merged
+    // fix observers
+    final GpsFixDispatcher fixDispatcher = new GpsFixDispatcher() {
+        @Override
+        protected void onObserverError(RuntimeException e) {
+            // don't let observer errors stop us
+            Log.d(TAG, "fixObserver", e);
+        }
+    };
+
+    /**
+     * Add an observer of this session's decoded NMEA sentences, or change the sentence types of
+     * an observer that was already added. A new observer gets a COALESCE_LATEST_FIX queue of the
+     * default capacity.
+     *
+     * @param observer an instance that implements BadElfGpsFixObserver
+     * @param sentenceTypes a combination of the NmeaParser.TYPE_ values to receive
+     */
+    public void addFixObserver(BadElfGpsFixObserver observer, int sentenceTypes){
+        addFixObserver(observer, sentenceTypes, GpsObserverQueue.OverflowPolicy.COALESCE_LATEST_FIX,
+                BadElfService.DEFAULT_FIX_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Add an observer of this session's decoded NMEA sentences, or change the sentence types of
+     * an observer that was already added. The policy and capacity of an observer that was
+     * already added are not changed.
+     *
+     * @param observer an instance that implements BadElfGpsFixObserver
+     * @param sentenceTypes a combination of the NmeaParser.TYPE_ values to receive
+     * @param policy what to do with decoded sentences when the observer falls behind
+     * @param capacity the number of sentences and epochs that can be waiting for the observer
+     */
+    public void addFixObserver(BadElfGpsFixObserver observer, int sentenceTypes,
+                               GpsObserverQueue.OverflowPolicy policy, int capacity){
+        synchronized (observerSync) {
+            GpsObserverQueue queue;
+            int index = BadElfService.indexOf(fixObservers, observer);
+            if (index >= 0) {
+                queue = fixObservers[index].queue;
+            } else {
+                queue = service.newQueue(observer, policy, capacity, null, observer);
+                fixObservers = BadElfService.append(fixObservers, new ObserverEntry(observer, queue));
+                queue.start();
+            }
+            fixDispatcher.addObserver(queue, sentenceTypes);
+        }
+    }
+
+    /**
+     * Remove an observer of decoded NMEA sentences
+     *
+     * @param observer an instance that implements BadElfGpsFixObserver
+     */
+    public void removeFixObserver(BadElfGpsFixObserver observer){
+        GpsObserverQueue queue;
+        synchronized (observerSync) {
+            int index = BadElfService.indexOf(fixObservers, observer);
+            if (index < 0) return;
+            queue = fixObservers[index].queue;
+            fixObservers = BadElfService.remove(fixObservers, index);
+            fixDispatcher.removeObserver(queue);
+        }
+        queue.stop();
+    }
+
+    /**
+     * Get the queue that delivers to a fix observer, for its counters
+     *
+     * @param observer a fix observer that was added
+     * @return the queue, or null if the observer was not added
+     */
+    public GpsObserverQueue getFixObserverQueue(BadElfGpsFixObserver observer){
+        synchronized (observerSync) {
+            int index = BadElfService.indexOf(fixObservers, observer);
+            return index < 0 ? null : fixObservers[index].queue;
+        }
+    }
+
+    /**
+     * Remove every observer of this session
+     */
+    void removeAllObservers() {
+        ObserverEntry[] oldObservers;
+        ObserverEntry[] oldFixObservers;
+        synchronized (observerSync) {
+            oldObservers = observers;
+            oldFixObservers = fixObservers;
+            observers = new ObserverEntry[0];
+            fixObservers = new ObserverEntry[0];
+            for (ObserverEntry entry : oldFixObservers) {
+                fixDispatcher.removeObserver(entry.queue);
+            }
+        }
+        for (ObserverEntry entry : oldObservers) {
+            entry.queue.stop();
+        }
+        for (ObserverEntry entry : oldFixObservers) {
+            entry.queue.stop();
+        }
+    }
+
+    /**
+     * Set how long an epoch waits for missing sentences before it is passed to onEpoch
+     *
+     * @param timeoutMs the timeout in milliseconds
+     */
+    public void setEpochTimeout(long timeoutMs){
+        fixDispatcher.getAssembler().setTimeoutMillis(timeoutMs);
+    }
+
+    /**
+     * Set how hard the receiver may accelerate, which sets how much onSmoothedFix smooths
+     *
+     * @param horizontal the standard deviation of the horizontal acceleration in m/s^2
+     * @param vertical the standard deviation of the vertical acceleration in m/s^2
+     */
+    public void setSmoothing(double horizontal, double vertical){
+        fixDispatcher.getSmoother().setAccelerationNoise(horizontal, vertical);
+    }
+
+    /**
+     * Change the connection state, if it hasn't changed since it was read
+     *
+     * The state is only ever changed by compare and set, so getState and sendData never wait,
+     * and two threads can't both make a transition out of the same state.
+     *
+     * @param from the transition read from current
+     * @param newState the state to change to
+     * @return true if the state was changed, false if another thread changed it first
+     */
+    private boolean setState(Transition from, State newState){
+        Transition to = new Transition(newState);
+        if (!current.compareAndSet(from, to)) return false;
+        from.next = to;
+        Log.d(TAG, name + " setState("+newState+")");
+        notifyObservers();
+        return true;
+    }
+
+    /**
+     * Tell the observers about the transitions they haven't been told about yet, in order.
+     *
+     * Only one thread at a time does this. A thread that finds another one already doing it
+     * leaves its transition to that thread. Each observer is notified on its own thread, so this
+     * only queues the notifications.
+     */
+    private void notifyObservers(){
+        if (notifyRequests.getAndIncrement() != 0) return;
+        int requests = 1;
+        do {
+            Transition next;
+            while ((next = notified.next) != null) {
+                notified = next;
+                postState(next.state);
+            }
+            requests = notifyRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    private void postState(final State newState){
+        for(ObserverEntry entry:observers){
+            final BadElfGpsConnectionObserver observer = (BadElfGpsConnectionObserver) entry.observer;
+            entry.queue.post(new Runnable() {
+                @Override
+                public void run() {
+                    observer.onStateChanged(newState);
+                }
+            });
+        }
+        for(ObserverEntry entry:service.mergedObservers){
+            if (!(entry.observer instanceof BadElfGpsSessionObserver)) continue;
+            final BadElfGpsSessionObserver observer = (BadElfGpsSessionObserver) entry.observer;
+            entry.queue.post(new Runnable() {
+                @Override
+                public void run() {
+                    observer.onSessionStateChanged(BadElfDeviceSession.this, newState);
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the state of the connection.
+     *
+     * @return the state of the connection
+     */
+    public State getState() {
+        return current.get().state;
+    }
+
+    /**
+     * Connect to the Bad Elf Device
+     *
+     * The session's reader thread runs until disconnect is called or until there is an error.
+     */
+    public void connect() {
+        synchronized (deviceSync) {
+            if(transport == null) throw new IllegalStateException("No Bad Elf Device has been Set");
+            Transition from = current.get();
+            if (from.state != State.IDLE) throw new AlreadyConnectedException();
+            Thread thread = new Thread(runnable, TAG + "-" + name);
+            readerThread = thread; // before the state changes, so that disconnect finds it
+            if (!setState(from, State.CONNECTING)) throw new AlreadyConnectedException();
+            thread.start();
+        }
+        service.onSessionStarted(this);
+    }
+
+    /**
+     * Disconnect from the Bad Elf Device
+     */
+    public void disconnect() {
+        Transition from;
+        do {
+            from = current.get();
+            if (from.state == State.IDLE) throw new NotYetConnectedException();
+            if (from.state == State.DISCONNECTING) return;
+        } while (!setState(from, State.DISCONNECTING));
+
+        try {
+            transport.close(); // This will cause the reader thread to exit
+        } catch (IOException | NullPointerException ignore){
+            // these exception can be safely ignored because we are trying to disconnect
+        }
+        try {
+            readerThread.interrupt(); // This will also cause the reader thread to exit
+        }catch(NullPointerException ignore){
+            // this exception can be safely ignored because we are trying to disconnect
+        }
+    }
+
+    /**
+     * Wait for the reader thread to exit
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void join() throws InterruptedException {
+        Thread thread = readerThread;
+        if (thread != null) thread.join();
+    }
+
+    /**
+     * Send data to the Bad Elf Device
+     *
+     * @param data the data to send
+     */
+    public void sendData(final byte[] data) {
+        sendData(data, 0, data == null ? 0 : data.length);
+    }
+
+    /**
+     * Send part of an array to the Bad Elf Device
+     *
+     * The data is copied to the session's writer, which sends everything that is waiting in one
+     * write, see GpsTransportWriter. This only blocks while the writer's buffer is full. A
+     * configuration request replaces one that hasn't been sent yet.
+     *
+     * @param data the data to send
+     * @param offset the index of the first byte to send
+     * @param length the number of bytes to send
+     */
+    public void sendData(final byte[] data, int offset, int length) {
+        GpsTransportWriter activeWriter = writer;
+        if (getState() != State.CONNECTED || activeWriter == null) throw new NotYetConnectedException();
+        if(data == null || length == 0)
+            return;
+        // Write errors close the link. We will not propagate them here. The calls to
+        // onStateChanged will be the notification of the error.
+        if (rememberConfiguration(data, offset, length)) {
+            activeWriter.writeConfiguration(data, offset, length);
+        } else {
+            activeWriter.write(data, offset, length);
+        }
+    }
+
+    // The last configuration packet sent, sent again after a reconnect. Guarded by itself.
+    private final BadElfPacket lastConfiguration = new BadElfPacket();
+    private byte[] lastConfigurationData;
+
+    /**
+     * Keep a copy of the data if it is a configuration packet, whether it was built by
+     * requestConfiguration or is a BadElfGpsConnection.Request
+     *
+     * @return true if it is one
+     */
+    private boolean rememberConfiguration(byte[] data, int offset, int length) {
+        if (length < BadElfPacket.MIN_LENGTH || data[offset + 1] != BadElfPacket.MARKER) return false;
+        synchronized (lastConfiguration) {
+            if (lastConfiguration.decode(data, offset, length)
+                    && lastConfiguration.length() == length
+                    && lastConfiguration.getMessageClass() == BadElfPacket.CLASS_CONFIGURATION
+                    && lastConfiguration.getMessageId() == BadElfPacket.ID_CONFIGURATION) {
+                lastConfigurationData = Arrays.copyOfRange(data, offset, offset + length);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Send the last configuration packet again, after a reconnect
+     */
+    private void resendConfiguration() {
+        byte[] data;
+        synchronized (lastConfiguration) {
+            data = lastConfigurationData;
+        }
+        if (data == null) return;
+        try {
+            sendData(data);
+        } catch (NotYetConnectedException ignore) {
+            // The link dropped again, it will be sent after the next reconnect
+        }
+    }
+
+    /**
+     * Set what to do when the link drops while connected.
+     *
+     * With a policy the session goes to Reconnecting instead of Idle, re-opens the link with the
+     * policy's backoff until it succeeds, the policy gives up or disconnect is called, and then
+     * sends the last configuration request again. Without one, the default, it goes to Idle.
+     * A failed connect always goes to Idle.
+     *
+     * @param policy the policy, for example GpsReconnectPolicy.DEFAULT, or null
+     */
+    public void setReconnectPolicy(GpsReconnectPolicy policy) {
+        reconnectPolicy = policy;
+    }
+
+    /**
+     * Set how long the link may go without anything being sent before a keepalive byte is sent.
+     * Takes effect on the next connection.
+     *
+     * @param intervalMs the interval, KEEPALIVE_INTERVAL_MS by default, or 0 for no keepalive
+     */
+    public void setKeepaliveInterval(long intervalMs) {
+        if (intervalMs < 0) throw new IllegalArgumentException("intervalMs < 0");
+        keepaliveIntervalMs = intervalMs;
+    }
+
+    /**
+     * Get the writer that sends data to the Bad Elf Device, for its counters
+     *
+     * @return the writer, or null while not connected
+     */
+    public GpsTransportWriter getWriter() {
+        return writer;
+    }
+
+    /** @return the reconnect policy, or null */
+    public GpsReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /** @return the number of times the link was re-opened after dropping */
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * Get how long the last reconnect interrupted the data
+     *
+     * @return the milliseconds from the last byte received before the link dropped to the first
+     * GGA with a fix after it was re-opened, or -1 if there hasn't been one yet
+     */
+    public long getLastReconnectGapMillis() {
+        return lastReconnectGapMs;
+    }
+
+    // Builds configuration requests. Guarded by itself.
+    private final BadElfPacketEncoder requestEncoder = new BadElfPacketEncoder();
+    private int requestSequence;
+
+    /**
+     * Ask the Bad Elf Device for a data rate and whether to include satellite data
+     *
+     * Unlike BadElfGpsConnection.Request this works for any rate the device supports.
+     *
+     * @param rate the number of fixes per second, 1 to 255
+     * @param includeSatellites if true the device will send satellite data
+     */
+    public void requestConfiguration(int rate, boolean includeSatellites) {
+        synchronized (requestEncoder) {
+            requestSequence = (requestSequence + 1) & 0xff;
+            int length = requestEncoder.encodeConfiguration(requestSequence, rate,
+                    BadElfPacket.OPTIONS_DEFAULT, includeSatellites);
+            sendData(requestEncoder.getBuffer(), 0, length);
+        }
+    }
+
+    /**
+     * This is the runnable for the session's reader thread.
+     *
+     * connect starts it. It attempts to connect to the device and then runs until disconnect, or
+     * while there is a reconnect policy, until the policy gives up. It then cleans up and exits.
+     */
+    private final Runnable runnable = new Runnable() {
+        @Override
+        public void run() {
+
+            Log.d(TAG, "Reader Thread Starting");
+            PowerManager.WakeLock wakeLock = null;
+            GpsTransport activeTransport = transport;
+
+            try {
+                // Keep the CPU on while we are connected to the Bad Elf Device
+                PowerManager powerManager = (PowerManager) service.getSystemService(Context.POWER_SERVICE);
+                if (powerManager != null) { // there is none in a JVM unit test
+                    wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+                    wakeLock.acquire();
+                }
+
+                fixDispatcher.setPacketListener(packetListener);
+                int attempt = 0;
+                while (readUntilDropped(activeTransport)) {
+                    // The link dropped. Wait and try again, unless disconnect was called.
+                    GpsReconnectPolicy policy = reconnectPolicy;
+                    Transition from = current.get();
+                    if (from.state == State.CONNECTED) attempt = 0; // dropped again after reconnecting
+                    if (policy == null || !policy.shouldRetry(attempt)
+                            || (from.state != State.CONNECTED && from.state != State.RECONNECTING)) {
+                        break;
+                    }
+                    if (from.state == State.CONNECTED) {
+                        dropNanos = lastReceivedNanos != 0 ? lastReceivedNanos : System.nanoTime();
+                        if (!setState(from, State.RECONNECTING)) break; // disconnect was called
+                    }
+                    long delayMs = policy.getDelayMillis(attempt++, reconnectRandom);
+                    Log.d(TAG, name + " reconnect attempt " + attempt + " in " + delayMs + " ms");
+                    Thread.sleep(delayMs); // disconnect interrupts this
+                    if (getState() != State.RECONNECTING) break;
+                }
+
+            } catch (InterruptedException ignore) {
+                // disconnect was called while waiting to reconnect
+
+            } finally {
+                Log.d(TAG, "Reader Thread finally");
+                // Disconnected (or failed to connect)- Shut Everything Down
+
+                Transition from;
+                do {
+                    from = current.get();
+                    if(from.state == State.CONNECTING){
+                        Log.d(TAG, "Failed to connect.");
+                    }
+                } while (!setState(from, State.IDLE));
+
+                if(wakeLock != null){
+                    wakeLock.release(); // let the CPU sleep
+                }
+                service.onSessionEnded(BadElfDeviceSession.this);
+                Log.d(TAG,"Reader Thread Exiting");
+            }
+        }
+    };
+
+    /**
+     * Open the link and read until it drops or disconnect is called. Called on the reader thread.
+     *
+     * @param activeTransport the transport
+     * @return true if the link was open, so reconnecting may be worthwhile
+     */
+    private boolean readUntilDropped(final GpsTransport activeTransport) {
+        boolean reconnected;
+        try {
+            // Attempt connect to the Device
+            activeTransport.open(); // This blocks until it succeeds or throws an exception
+            // Connection succeeded
+            fixDispatcher.reset();
+            GpsTransportWriter newWriter = new GpsTransportWriter(TAG + "-writer-" + name, activeTransport,
+                    GpsTransportWriter.DEFAULT_CAPACITY, pingJunk, keepaliveIntervalMs) {
+                @Override
+                protected void onWriteError(IOException e) {
+                    Log.d(TAG, name + " write failed", e);
+                    try {
+                        activeTransport.close(); // the reader sees the link drop
+                    } catch (IOException ignore) {
+                        // This exception can be safely ignored because the link is broken anyway
+                    }
+                }
+            };
+            newWriter.start();
+            writer = newWriter;
+
+            Transition from = current.get();
+            if (from.state != State.CONNECTING && from.state != State.RECONNECTING) { // this happens if disconnect is called while connecting
+                return false;
+            }
+            reconnected = from.state == State.RECONNECTING;
+            if (!setState(from, State.CONNECTED)) return false; // disconnect was called just now
+
+            if (reconnected) {
+                reconnectCount++;
+                fixDispatcher.addObserver(firstFixWatcher, NmeaParser.TYPE_GGA);
+                resendConfiguration();
+            }
+
+            // read until an exception occurs, the end of the stream or until the thread is
+            // interrupted.
+            new GpsStreamReader(streamListener, getRetainableChunkCount()).run(activeTransport);
+            return true;
+
+        } catch (IOException ignore) {
+            // Dropped, or failed to re-open, rather than failed to connect
+            State now = getState();
+            return now == State.CONNECTED || now == State.RECONNECTING;
+
+        } finally {
+            fixDispatcher.flush(); // deliver the last epoch
+            receiveMetrics.flush(fixDispatcher.getParser());
+            fixDispatcher.removeObserver(firstFixWatcher);
+
+            try {
+                activeTransport.close();
+            } catch (IOException ignore) {
+                // This exception can be safely ignored because we just we are done with the transport
+            }
+            GpsTransportWriter oldWriter = writer;
+            writer = null;
+            if (oldWriter != null) {
+                oldWriter.stop(); // after closing, so that a blocked write returns
+            }
+        }
+    }
+
+    /**
+     * Get the number of chunks that can be held at once by the queues of this session's
+     * observers, the merged observers and the recorder, each with one more being delivered, and
+     * by the reader. The reader's pool keeps that many, so that a queue filling and draining
+     * doesn't make it allocate new chunks. Observers added once connected are counted from the
+     * next connect.
+     *
+     * @return the number of chunks
+     */
+    private int getRetainableChunkCount() {
+        int chunks = BadElfService.RECORDER_QUEUE_CAPACITY + 1 + 1; // and the chunk being read
+        for (ObserverEntry entry : observers) {
+            chunks += entry.queue.getCapacity() + 1;
+        }
+        for (ObserverEntry entry : service.mergedObservers) {
+            chunks += entry.queue.getCapacity() + 1;
+        }
+        return chunks;
+    }
+
+    /**
+     * Measures the gap in the data after a reconnect. Subscribed to the session's own fix
+     * dispatcher, and so called on the reader thread, only until the first fix arrives.
+     */
+    private final BadElfGpsFixObserver firstFixWatcher = new BadElfGpsFixAdapter() {
+        @Override
+        public void onFix(NmeaGga gga) {
+            if (!gga.hasFix()) return;
+            lastReconnectGapMs = (System.nanoTime() - dropNanos) / 1000000;
+            Log.d(TAG, name + " reconnected, no data for " + lastReconnectGapMs + " ms");
+            fixDispatcher.removeObserver(this);
+        }
+    };
+
+    /**
+     * Sends the data read by the reader thread to the observers.
+     *
+     * The pooled chunk is retained by each observer's queue, so nothing is copied here and the
+     * reader thread never waits for an observer (unless one was added with the BLOCK policy).
+     */
+    private final GpsStreamReader.Listener streamListener = new GpsStreamReader.Listener() {
+        @Override
+        public void onDataReceived(GpsDataChunk chunk) {
+            chunk.deviceId = deviceId;
+            lastReceivedNanos = chunk.receivedNanos;
+            // Record and re-broadcast, if this is the session they follow
+            service.onSessionData(BadElfDeviceSession.this, chunk);
+            // Send The received data to any observers of this session
+            for (ObserverEntry entry : observers) {
+                entry.queue.onChunkReceived(chunk);
+            }
+            // and to the merged observers
+            for (ObserverEntry entry : service.mergedObservers) {
+                entry.queue.onChunkReceived(chunk);
+            }
+            // Decode once for all fix observers
+            fixDispatcher.parse(chunk);
+            receiveMetrics.onParsed(chunk, fixDispatcher.getParser());
+        }
+    };
+
+    /**
+     * Logs the Bad Elf packets, such as acknowledgements of configuration requests, found in the
+     * received data.
+     */
+    private final NmeaParser.PacketListener packetListener = new NmeaParser.PacketListener() {
+        @Override
+        public void onPacket(BadElfPacket packet) {
+            Log.d(TAG, name + " packet seq=" + packet.getSequence() + " class=" + packet.getMessageClass()
+                    + " id=" + packet.getMessageId() + " payload=" + packet.getPayloadLength());
+        }
+    };
+}
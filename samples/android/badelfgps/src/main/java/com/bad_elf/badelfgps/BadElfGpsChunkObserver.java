@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Implement this interface in addition to BadElfGpsConnectionObserver to receive data without
+ * a copy being made for every chunk.
+ *
+ * BadElfService calls onChunkReceived instead of onDataReceived for observers that implement
+ * this interface.
+ */
+public interface BadElfGpsChunkObserver {
+
+    /**
+     * This is called by BadElfService when data is received from the Bad Elf Device
+     *
+     * It is called on the observer's own delivery thread, see GpsObserverQueue. The chunk is
+     * reused once this returns. To keep it call chunk.retain(), and call
+     * chunk.release() when done with it.
+     *
+     * @param chunk a read-only view of the received data
+     */
+    void onChunkReceived(final GpsDataChunk chunk);
+}
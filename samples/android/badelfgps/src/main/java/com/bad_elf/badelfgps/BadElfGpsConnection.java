@@ -15,6 +15,11 @@ import android.util.Log;
 
 import com.bad_elf.badelfgps.BadElfService.State;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This class controls the connection to a Bad Elf Device.
  *
@@ -30,6 +35,11 @@ public class BadElfGpsConnection {
     private static String TAG = "BadElfGpsConnection";
 
     private final BadElfGpsConnectionObserver observer;
+    private final GpsObserverQueue.OverflowPolicy observerPolicy;
+    private final int observerQueueCapacity;
+    private final List<BadElfGpsFixObserver> fixObservers = new ArrayList<>();
+    private final List<BadElfGpsChunkObserver> mergedObservers = new ArrayList<>();
+    private final List<BadElfGpsFixObserver> mergedFixObservers = new ArrayList<>();
     private final Context appContext;
     private BadElfService badElfService;
 
@@ -40,7 +50,23 @@ public class BadElfGpsConnection {
      * @param context used to grab the application context that will be used to bind and unbind the Service
      */
     public BadElfGpsConnection(final BadElfGpsConnectionObserver observer, final Context context){
+        this(observer, context, GpsObserverQueue.OverflowPolicy.DROP_OLDEST,
+                BadElfService.DEFAULT_OBSERVER_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Create a BadElfGpsConnection instance
+     *
+     * @param observer A class that implements BadElfGpsConnectionObserver
+     * @param context used to grab the application context that will be used to bind and unbind the Service
+     * @param policy what to do with received data when the observer falls behind
+     * @param queueCapacity the number of received chunks that can be waiting for the observer
+     */
+    public BadElfGpsConnection(final BadElfGpsConnectionObserver observer, final Context context,
+                               GpsObserverQueue.OverflowPolicy policy, int queueCapacity){
         this.observer = observer;
+        this.observerPolicy = policy;
+        this.observerQueueCapacity = queueCapacity;
         appContext = context.getApplicationContext(); // get an application context so we don't hold the Activity context
 
         // Bind To the Service.
@@ -60,7 +86,7 @@ public class BadElfGpsConnection {
         public void onServiceConnected(ComponentName name, IBinder binder) {
             Log.d(TAG, "onServiceConnected");
             badElfService =  ((BadElfService.BadElfBinder)binder).getServiceInstance(); // get the service instance
-            badElfService.addObserver(observer); // add the observer to the service
+            badElfService.addObserver(observer, observerPolicy, observerQueueCapacity); // add the observer to the service
             observer.onReady(); // tell the observer that we are ready to go
         }
 
@@ -86,7 +112,20 @@ public class BadElfGpsConnection {
     public void onDestroy(){
         Log.d(TAG, "onDestroy");
         try {
-            ifBadElfServiceIsBound().removeObserver(observer);  // Tell the service the observer is not interested in hearing from it anymore.
+            BadElfService service = ifBadElfServiceIsBound();
+            service.removeObserver(observer);  // Tell the service the observer is not interested in hearing from it anymore.
+            for (BadElfGpsFixObserver fixObserver : fixObservers) {
+                service.removeFixObserver(fixObserver);
+            }
+            fixObservers.clear();
+            for (BadElfGpsChunkObserver mergedObserver : mergedObservers) {
+                service.removeMergedObserver(mergedObserver);
+            }
+            mergedObservers.clear();
+            for (BadElfGpsFixObserver mergedFixObserver : mergedFixObservers) {
+                service.removeMergedFixObserver(mergedFixObserver);
+            }
+            mergedFixObservers.clear();
             badElfService = null;
             appContext.unbindService(serviceConnection); // We don't need to talk to the service anymore.
         }catch (NotBoundToServiceException | IllegalArgumentException e){
@@ -117,38 +156,161 @@ public class BadElfGpsConnection {
     }
 
     /**
-     * The following five methods are wrappers around the methods in BadElfService
+     * The following methods are wrappers around the methods in BadElfService
      *
      * If called when not bound to the BadElfService, NotBoundToServiceException will be thrown.
      *
      */
 
     public void  setBadElfDevice(BadElfDevice badElfDevice) {        ifBadElfServiceIsBound().setBadElfDevice((badElfDevice)); }
+    public void  setTransport(GpsTransport transport)       {        ifBadElfServiceIsBound().setTransport(transport);         }
+    public void  setEpochTimeout(long timeoutMs)            {        ifBadElfServiceIsBound().setEpochTimeout(timeoutMs);      }
+    public void  setSmoothing(double horizontal, double vertical) {  ifBadElfServiceIsBound().setSmoothing(horizontal, vertical); }
+    public void  setReconnectPolicy(GpsReconnectPolicy policy) {     ifBadElfServiceIsBound().setReconnectPolicy(policy);      }
+    public void  setKeepaliveInterval(long intervalMs)      {        ifBadElfServiceIsBound().setKeepaliveInterval(intervalMs); }
+    public GpsMetrics getMetrics()                          { return ifBadElfServiceIsBound().getMetrics();                    }
+    public void  setMetricsDumpInterval(long intervalMs)    {        ifBadElfServiceIsBound().setMetricsDumpInterval(intervalMs); }
+    public void  startRecording(File directory, String sessionName) { ifBadElfServiceIsBound().startRecording(directory, sessionName); }
+    public void  stopRecording()                            {        ifBadElfServiceIsBound().stopRecording();                 }
+    public GpsSessionRecorder getRecorder()                 { return ifBadElfServiceIsBound().getRecorder();                   }
+    public int   startStreamServer(int port) throws IOException { return ifBadElfServiceIsBound().startStreamServer(port);   }
+    public void  stopStreamServer()                         {        ifBadElfServiceIsBound().stopStreamServer();              }
+    public GpsStreamServer getStreamServer()                { return ifBadElfServiceIsBound().getStreamServer();               }
     public void  setBadElfRemoteController(BadElfRemoteController remoteController) {        ifBadElfServiceIsBound().setBadElfRemoteController((remoteController)); }
     public void  connect()                                  {        ifBadElfServiceIsBound().connect();                       }
     public void  sendData(final byte[] data)                {        ifBadElfServiceIsBound().sendData(data);                  }
+    public void  requestConfiguration(int rate, boolean includeSatellites) { ifBadElfServiceIsBound().requestConfiguration(rate, includeSatellites); }
     public void  disconnect()                               {        ifBadElfServiceIsBound().disconnect();                    }
     public State getState()                                 { return ifBadElfServiceIsBound().getState();                      }
+    public GpsObserverQueue getObserverQueue()              { return ifBadElfServiceIsBound().getObserverQueue(observer);      }
+    public BadElfDeviceSession openSession(BadElfDevice badElfDevice) { return ifBadElfServiceIsBound().openSession(badElfDevice); }
+    public BadElfDeviceSession openSession(GpsTransport transport)    { return ifBadElfServiceIsBound().openSession(transport);    }
+    public void  closeSession(BadElfDeviceSession session)  {        ifBadElfServiceIsBound().closeSession(session);           }
+    public BadElfDeviceSession[] getSessions()              { return ifBadElfServiceIsBound().getSessions();                   }
+
+
+    /**
+     * Add an observer of decoded NMEA sentences.
+     *
+     * The service parses the received data once and calls every fix observer for the sentence
+     * types it subscribed to, on the observer's own thread. While the observer is busy only the
+     * latest sentence of each type is kept, except for GSV. Calling this again for the same observer changes its types. Fix
+     * observers added through this connection are removed by onDestroy.
+     *
+     * @param fixObserver the observer
+     * @param sentenceTypes a combination of the NmeaParser.TYPE_ values to receive
+     */
+    public void addFixObserver(BadElfGpsFixObserver fixObserver, int sentenceTypes) {
+        ifBadElfServiceIsBound().addFixObserver(fixObserver, sentenceTypes);
+        if (!fixObservers.contains(fixObserver)) fixObservers.add(fixObserver);
+    }
+
+    /**
+     * Add an observer of decoded NMEA sentences with its own queue settings.
+     *
+     * The policy and capacity only apply when the observer is first added.
+     *
+     * @param fixObserver the observer
+     * @param sentenceTypes a combination of the NmeaParser.TYPE_ values to receive
+     * @param policy what to do with decoded sentences when the observer falls behind
+     * @param queueCapacity the number of sentences and epochs that can be waiting for the observer
+     */
+    public void addFixObserver(BadElfGpsFixObserver fixObserver, int sentenceTypes,
+                               GpsObserverQueue.OverflowPolicy policy, int queueCapacity) {
+        ifBadElfServiceIsBound().addFixObserver(fixObserver, sentenceTypes, policy, queueCapacity);
+        if (!fixObservers.contains(fixObserver)) fixObservers.add(fixObserver);
+    }
+
+    /**
+     * Get the queue that delivers to a fix observer, for its dropped and coalesced counters
+     *
+     * @param fixObserver the observer
+     * @return the queue, or null if the observer was not added
+     */
+    public GpsObserverQueue getFixObserverQueue(BadElfGpsFixObserver fixObserver) {
+        return ifBadElfServiceIsBound().getFixObserverQueue(fixObserver);
+    }
+
+    /**
+     * Remove an observer of decoded NMEA sentences
+     *
+     * @param fixObserver the observer
+     */
+    public void removeFixObserver(BadElfGpsFixObserver fixObserver) {
+        ifBadElfServiceIsBound().removeFixObserver(fixObserver);
+        fixObservers.remove(fixObserver);
+    }
+
+    /**
+     * Add an observer of the data received from every session, for talking to several Bad Elf
+     * Devices at once. Each chunk's getDeviceId tells which session it came from, and an observer
+     * that also implements BadElfGpsSessionObserver is told about the state of every session.
+     * Merged observers added through this connection are removed by onDestroy.
+     *
+     * @param chunkObserver the observer
+     * @param policy what to do with received data when the observer falls behind
+     * @param queueCapacity the number of received chunks that can be waiting for the observer
+     */
+    public void addMergedObserver(BadElfGpsChunkObserver chunkObserver,
+                                  GpsObserverQueue.OverflowPolicy policy, int queueCapacity) {
+        ifBadElfServiceIsBound().addMergedObserver(chunkObserver, policy, queueCapacity);
+        if (!mergedObservers.contains(chunkObserver)) mergedObservers.add(chunkObserver);
+    }
+
+    /**
+     * Remove an observer of the data received from every session
+     *
+     * @param chunkObserver the observer
+     */
+    public void removeMergedObserver(BadElfGpsChunkObserver chunkObserver) {
+        ifBadElfServiceIsBound().removeMergedObserver(chunkObserver);
+        mergedObservers.remove(chunkObserver);
+    }
+
+    /**
+     * Add an observer of the sentences decoded from every session. Each record's getDeviceId
+     * tells which session it came from. Calling this again for the same observer changes its
+     * types.
+     *
+     * @param fixObserver the observer
+     * @param sentenceTypes a combination of the NmeaParser.TYPE_ values to receive
+     * @param policy what to do with decoded sentences when the observer falls behind
+     * @param queueCapacity the number of sentences and epochs that can be waiting for the observer
+     */
+    public void addMergedFixObserver(BadElfGpsFixObserver fixObserver, int sentenceTypes,
+                                     GpsObserverQueue.OverflowPolicy policy, int queueCapacity) {
+        ifBadElfServiceIsBound().addMergedFixObserver(fixObserver, sentenceTypes, policy, queueCapacity);
+        if (!mergedFixObservers.contains(fixObserver)) mergedFixObservers.add(fixObserver);
+    }
 
+    /**
+     * Remove an observer of the sentences decoded from every session
+     *
+     * @param fixObserver the observer
+     */
+    public void removeMergedFixObserver(BadElfGpsFixObserver fixObserver) {
+        ifBadElfServiceIsBound().removeMergedFixObserver(fixObserver);
+        mergedFixObservers.remove(fixObserver);
+    }
 
     /**
      * Request Enum
      *
      * This enum is used to send data to the device to request a change in data rate and whether to
-     * include satellite data.
+     * include satellite data. Use requestConfiguration for other combinations.
      */
     public enum Request {
-        ONE_HZ_INCLUDE_SATELLITES ( 1, true, "24be001105010205310132043301640d0a"),
-        TWO_HZ_INCLUDE_SATELLITES ( 2, true, "24be001104010206310232043301630d0a"),
-        FOUR_HZ_INCLUDE_SATELLITES( 4, true, "24be001107010203310432113301540d0a"),
-        FIVE_HZ_INCLUDE_SATELLITES( 5, true, "24be001106010204310532043301600d0a"),
-        TEN_HZ_INCLUDE_SATELLITES (10, true, "24be001108010202310a320433015b0d0a"),
-
-        ONE_HZ_NO_SATELLITES      ( 1, false, "24be00110b0102ff310132043302630d0a"),
-        TWO_HZ_NO_SATELLITES      ( 2, false, "24be0011100102fa310232043302620d0a"),
-        FOUR_HZ_NO_SATELLITES     ( 4, false, "24be0011120102f8310432043302600d0a"),
-        FIVE_HZ_NO_SATELLITES     ( 5, false, "24be0011130102f73105320433025f0d0a"),
-        TEN_HZ_NO_SATELLITES      (10, false, "24be0011160102f4310a320433025a0d0a");
+        ONE_HZ_INCLUDE_SATELLITES (0x05,  1, BadElfPacket.OPTIONS_DEFAULT, true),
+        TWO_HZ_INCLUDE_SATELLITES (0x04,  2, BadElfPacket.OPTIONS_DEFAULT, true),
+        FOUR_HZ_INCLUDE_SATELLITES(0x07,  4, 0x11,                         true),
+        FIVE_HZ_INCLUDE_SATELLITES(0x06,  5, BadElfPacket.OPTIONS_DEFAULT, true),
+        TEN_HZ_INCLUDE_SATELLITES (0x08, 10, BadElfPacket.OPTIONS_DEFAULT, true),
+
+        ONE_HZ_NO_SATELLITES      (0x0b,  1, BadElfPacket.OPTIONS_DEFAULT, false),
+        TWO_HZ_NO_SATELLITES      (0x10,  2, BadElfPacket.OPTIONS_DEFAULT, false),
+        FOUR_HZ_NO_SATELLITES     (0x12,  4, BadElfPacket.OPTIONS_DEFAULT, false),
+        FIVE_HZ_NO_SATELLITES     (0x13,  5, BadElfPacket.OPTIONS_DEFAULT, false),
+        TEN_HZ_NO_SATELLITES      (0x16, 10, BadElfPacket.OPTIONS_DEFAULT, false);
 
         public final byte[] data;
         public final int rate;
@@ -157,21 +319,17 @@ public class BadElfGpsConnection {
         /**
          * Construct a Request enum
          *
+         * @param sequence the packet sequence number
          * @param rate requested data rate
+         * @param options the value of the options field
          * @param includeSatellites if true request will include satellites
-         * @param messageString The data to send to the device encoded as a hex string.
          */
-        Request(int rate, boolean includeSatellites, String messageString) {
+        Request(int sequence, int rate, int options, boolean includeSatellites) {
             this.rate = rate;
             this.includeSatellites = includeSatellites;
-            // convert the hex string to an Array of Bytes
-            int len = messageString.length();
-            byte[] temp = new byte[len / 2];
-            for (int i = 0; i < len; i += 2) {
-                temp[i / 2] = (byte) ((Character.digit(messageString.charAt(i), 16) << 4)
-                        + Character.digit(messageString.charAt(i + 1), 16));
-            }
-            this.data=temp;
+            BadElfPacketEncoder encoder = new BadElfPacketEncoder();
+            encoder.encodeConfiguration(sequence, rate, options, includeSatellites);
+            this.data = encoder.toByteArray();
         }
     }
 
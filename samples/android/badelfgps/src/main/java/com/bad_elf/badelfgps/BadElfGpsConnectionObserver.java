@@ -8,6 +8,10 @@ package com.bad_elf.badelfgps;
 
 /**
  * Implement this interface to receive callbacks from BadElfGpsConnection and BadElfGpsService
+ *
+ * onStateChanged and onDataReceived are called on a delivery thread of this observer's own, in
+ * the order the events happened. If the observer falls behind, the oldest received data is
+ * dropped rather than holding up the connection. See GpsObserverQueue.
  */
 public interface BadElfGpsConnectionObserver {
 
@@ -28,6 +32,9 @@ public interface BadElfGpsConnectionObserver {
     /**
      * This is called by BadElfService when data is received from the Bad Elf Device
      *
+     * A copy of the data is made for this call. Implement BadElfGpsChunkObserver as well to
+     * receive the data without the copy.
+     *
      * @param data the received data
      */
     void onDataReceived(final byte[] data);
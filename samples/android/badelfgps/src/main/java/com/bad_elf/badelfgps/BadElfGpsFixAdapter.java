@@ -0,0 +1,22 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A BadElfGpsFixObserver that ignores everything. Extend it and override the methods for the
+ * sentence types you subscribe to.
+ */
+public abstract class BadElfGpsFixAdapter implements BadElfGpsFixObserver {
+    @Override public void onFix(final NmeaGga gga)                 {}
+    @Override public void onNavigation(final NmeaRmc rmc)          {}
+    @Override public void onActiveSatellites(final NmeaGsa gsa)    {}
+    @Override public void onSatellites(final NmeaGsv gsv)          {}
+    @Override public void onErrorEstimate(final NmeaGst gst)       {}
+    @Override public void onCourse(final NmeaVtg vtg)              {}
+    @Override public void onEpoch(final GpsFix fix)                {}
+    @Override public void onSmoothedFix(final GpsFix fix)          {}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Implement this interface to receive decoded NMEA data from BadElfService.
+ *
+ * The service parses the received data once and passes the decoded sentences to every
+ * BadElfGpsFixObserver, so any number of observers cost a single parse. An observer is only
+ * called for the sentence types it subscribed to when it was added, and types no observer
+ * subscribed to are not decoded at all.
+ *
+ * All methods are called on a delivery thread of the observer's own, so a slow observer does not
+ * hold up the connection. By default only the latest of each sentence type is kept while the
+ * observer is busy, see GpsObserverQueue. The records are reused, so copy any values needed after
+ * the method returns.
+ *
+ * Extend BadElfGpsFixAdapter to implement only some of the methods.
+ */
+public interface BadElfGpsFixObserver {
+
+    /**
+     * Subscribe to onEpoch. Combine it with the NmeaParser.TYPE_ values passed to addFixObserver.
+     */
+    int TYPE_EPOCH = 1 << 16;
+
+    /**
+     * Subscribe to onSmoothedFix. Combine it with the other types passed to addFixObserver.
+     */
+    int TYPE_SMOOTHED = 1 << 17;
+
+    /**
+     * Called for every GGA sentence (NmeaParser.TYPE_GGA)
+     *
+     * @param gga time, position and fix quality
+     */
+    void onFix(final NmeaGga gga);
+
+    /**
+     * Called for every RMC sentence (NmeaParser.TYPE_RMC)
+     *
+     * @param rmc date, time, position, speed and course
+     */
+    void onNavigation(final NmeaRmc rmc);
+
+    /**
+     * Called for every GSA sentence (NmeaParser.TYPE_GSA)
+     *
+     * @param gsa DOP and the satellites used in the fix
+     */
+    void onActiveSatellites(final NmeaGsa gsa);
+
+    /**
+     * Called for every GSV sentence (NmeaParser.TYPE_GSV)
+     *
+     * @param gsv part of the list of satellites in view
+     */
+    void onSatellites(final NmeaGsv gsv);
+
+    /**
+     * Called for every GST sentence (NmeaParser.TYPE_GST)
+     *
+     * @param gst position error estimates
+     */
+    void onErrorEstimate(final NmeaGst gst);
+
+    /**
+     * Called for every VTG sentence (NmeaParser.TYPE_VTG)
+     *
+     * @param vtg course and speed over ground
+     */
+    void onCourse(final NmeaVtg vtg);
+
+    /**
+     * Called once per measurement epoch with the GGA, RMC and GST of that epoch merged
+     * (TYPE_EPOCH)
+     *
+     * The fix is reused after this returns. Call fix.retain() to keep it, and fix.release()
+     * when done with it.
+     *
+     * @param fix the consolidated fix
+     */
+    void onEpoch(final GpsFix fix);
+
+    /**
+     * Called once per measurement epoch with a position, after onEpoch, with the fix smoothed by
+     * the session's GpsKalmanFilter (TYPE_SMOOTHED)
+     *
+     * The fix is reused after this returns. Call fix.retain() to keep it, and fix.release()
+     * when done with it.
+     *
+     * @param fix the epoch's fix with the filtered position, errors, speed and course
+     */
+    void onSmoothedFix(final GpsFix fix);
+}
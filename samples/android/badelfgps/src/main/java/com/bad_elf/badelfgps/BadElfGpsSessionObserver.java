@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Implement this interface, as well as BadElfGpsChunkObserver, to be told about the state of every
+ * session when added with BadElfService.addMergedObserver.
+ *
+ * The merged observer receives the data of all the sessions, tagged with GpsDataChunk.getDeviceId,
+ * so this is how it learns which devices come and go. The method is called on the observer's own
+ * delivery thread, in order with the data.
+ *
+ */
+public interface BadElfGpsSessionObserver {
+
+    /**
+     * Called when the connection state of a session changes
+     *
+     * @param session the session, see BadElfDeviceSession.getDeviceId
+     * @param newState the new connection state
+     */
+    void onSessionStateChanged(BadElfDeviceSession session, BadElfService.State newState);
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A view of one checksum-validated Bad Elf binary packet.
+ *
+ * Bad Elf packets share the '$' of NMEA sentences but are binary and framed by length:
+ *
+ *   0      '$'
+ *   1      0xBE
+ *   2-3    total packet length, big endian
+ *   4      sequence number
+ *   5      message class
+ *   6      message id
+ *   7      header checksum, making bytes 0-7 sum to 0 modulo 256
+ *   8...   payload of tag and value byte pairs
+ *   n-3    payload checksum, making the payload and checksum sum to 0 modulo 256
+ *   n-2    '\r'
+ *   n-1    '\n'
+ *
+ * A packet without payload has no payload checksum and is 10 bytes long. BadElfPacketEncoder
+ * builds packets, NmeaParser finds them in the received data. The packet is only valid until
+ * the buffer it was decoded from is reused.
+ *
+ */
+public final class BadElfPacket {
+
+    /** The byte following the '$' that marks a Bad Elf packet */
+    public static final byte MARKER = (byte) 0xBE;
+
+    /** The length of the header, including the header checksum */
+    public static final int HEADER_LENGTH = 8;
+    /** The length of the shortest packet, one without payload */
+    public static final int MIN_LENGTH = HEADER_LENGTH + 2;
+
+    /** The message class of configuration requests */
+    public static final int CLASS_CONFIGURATION = 0x01;
+    /** The message id of configuration requests */
+    public static final int ID_CONFIGURATION = 0x02;
+
+    /** Configuration tag: the number of fixes per second */
+    public static final int TAG_RATE = 0x31;
+    /**
+     * Configuration tag: output options. Every standard Request sends OPTIONS_DEFAULT except
+     * 4 Hz with satellites, which sends 0x11.
+     */
+    public static final int TAG_OPTIONS = 0x32;
+    /** Configuration tag: SATELLITES_INCLUDE or SATELLITES_NONE */
+    public static final int TAG_SATELLITES = 0x33;
+
+    public static final int OPTIONS_DEFAULT = 0x04;
+    public static final int SATELLITES_INCLUDE = 0x01;
+    public static final int SATELLITES_NONE = 0x02;
+
+    private byte[] data;
+    private int offset;
+    private int length;
+    private int payloadLength;
+
+    /**
+     * Decode a packet. The packet keeps a reference to data.
+     *
+     * @param data the bytes holding the packet
+     * @param offset the index of the '$'
+     * @param length the number of bytes available
+     * @return true if data holds a complete packet with valid checksums
+     */
+    public boolean decode(byte[] data, int offset, int length) {
+        if (length < MIN_LENGTH || data[offset] != '$' || data[offset + 1] != MARKER) return false;
+        int packetLength = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        if (packetLength < MIN_LENGTH || packetLength > length) return false;
+        if (data[offset + packetLength - 2] != '\r' || data[offset + packetLength - 1] != '\n') return false;
+        if (sum(data, offset, HEADER_LENGTH) != 0) return false;
+        int payload = packetLength - MIN_LENGTH; // including its checksum
+        if (payload > 0 && sum(data, offset + HEADER_LENGTH, payload) != 0) return false;
+        this.data = data;
+        this.offset = offset;
+        this.length = packetLength;
+        this.payloadLength = payload > 0 ? payload - 1 : 0;
+        return true;
+    }
+
+    /**
+     * Add up bytes modulo 256
+     *
+     * @param data the bytes
+     * @param offset the index of the first byte
+     * @param count the number of bytes
+     * @return the sum modulo 256
+     */
+    static int sum(byte[] data, int offset, int count) {
+        int sum = 0;
+        for (int i = offset; i < offset + count; i++) {
+            sum += data[i];
+        }
+        return sum & 0xff;
+    }
+
+    /**
+     * Get the length of the packet including the '\r\n'
+     *
+     * @return the length in bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /** @return the sequence number, 0 to 255 */
+    public int getSequence()     { return data[offset + 4] & 0xff; }
+    /** @return the message class, for example CLASS_CONFIGURATION */
+    public int getMessageClass() { return data[offset + 5] & 0xff; }
+    /** @return the message id, for example ID_CONFIGURATION */
+    public int getMessageId()    { return data[offset + 6] & 0xff; }
+
+    /**
+     * Get the length of the payload, not counting its checksum
+     *
+     * @return the payload length in bytes
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Get one byte of the payload
+     *
+     * @param index 0 is the first byte after the header
+     * @return the byte, 0 to 255
+     */
+    public int getPayloadByte(int index) {
+        if (index < 0 || index >= payloadLength) throw new IndexOutOfBoundsException();
+        return data[offset + HEADER_LENGTH + index] & 0xff;
+    }
+
+    /**
+     * Get the number of tag and value pairs in the payload
+     *
+     * @return the field count
+     */
+    public int getFieldCount() {
+        return payloadLength / 2;
+    }
+
+    /**
+     * Get the tag of a field
+     *
+     * @param field the field number, from 0 to getFieldCount() - 1
+     * @return the tag, for example TAG_RATE
+     */
+    public int getTag(int field) {
+        return getPayloadByte(field * 2);
+    }
+
+    /**
+     * Get the value of a field
+     *
+     * @param field the field number, from 0 to getFieldCount() - 1
+     * @return the value, 0 to 255
+     */
+    public int getValue(int field) {
+        return getPayloadByte(field * 2 + 1);
+    }
+
+    /**
+     * Find the value of the first field with a tag
+     *
+     * @param tag the tag
+     * @param defaultValue returned if no field has the tag
+     * @return the value
+     */
+    public int findValue(int tag, int defaultValue) {
+        int fields = getFieldCount();
+        for (int i = 0; i < fields; i++) {
+            if (getTag(i) == tag) return getValue(i);
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Copy the packet into an array
+     *
+     * @param dst the destination
+     * @param dstOffset the index in dst to copy to
+     */
+    public void copyTo(byte[] dst, int dstOffset) {
+        System.arraycopy(data, offset, dst, dstOffset, length);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Builds Bad Elf binary packets into a reusable buffer. See BadElfPacket for the format.
+ *
+ * Call begin, add the fields and call finish. The packet is then in getBuffer() from index 0 to
+ * length(), until begin is called again. Nothing is allocated after construction.
+ *
+ * An encoder is not thread safe.
+ *
+ */
+public final class BadElfPacketEncoder {
+
+    // The length field allows more, but NmeaParser only accepts packets up to this length
+    public static final int MAX_PACKET_LENGTH = 256;
+
+    private final byte[] buffer = new byte[MAX_PACKET_LENGTH];
+    private int length;
+    private boolean finished;
+
+    /**
+     * Start a new packet
+     *
+     * @param sequence the sequence number, 0 to 255
+     * @param messageClass the message class, for example BadElfPacket.CLASS_CONFIGURATION
+     * @param messageId the message id, for example BadElfPacket.ID_CONFIGURATION
+     * @return this encoder
+     */
+    public BadElfPacketEncoder begin(int sequence, int messageClass, int messageId) {
+        buffer[0] = '$';
+        buffer[1] = BadElfPacket.MARKER;
+        buffer[4] = (byte) sequence;
+        buffer[5] = (byte) messageClass;
+        buffer[6] = (byte) messageId;
+        length = BadElfPacket.HEADER_LENGTH;
+        finished = false;
+        return this;
+    }
+
+    /**
+     * Add a tag and value pair to the payload
+     *
+     * @param tag the tag, for example BadElfPacket.TAG_RATE
+     * @param value the value, 0 to 255
+     * @return this encoder
+     */
+    public BadElfPacketEncoder addField(int tag, int value) {
+        if (finished || length == 0) throw new IllegalStateException("begin has not been called");
+        if (length + 2 + 3 > MAX_PACKET_LENGTH) throw new IllegalStateException("packet too long");
+        buffer[length++] = (byte) tag;
+        buffer[length++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Complete the packet by filling in the length, the checksums and the line terminator
+     *
+     * @return the length of the packet
+     */
+    public int finish() {
+        if (finished || length == 0) throw new IllegalStateException("begin has not been called");
+        boolean hasPayload = length > BadElfPacket.HEADER_LENGTH;
+        if (hasPayload) {
+            int payload = BadElfPacket.sum(buffer, BadElfPacket.HEADER_LENGTH, length - BadElfPacket.HEADER_LENGTH);
+            buffer[length++] = (byte) -payload;
+        }
+        buffer[length++] = '\r';
+        buffer[length++] = '\n';
+        buffer[2] = (byte) (length >> 8);
+        buffer[3] = (byte) length;
+        buffer[7] = (byte) -BadElfPacket.sum(buffer, 0, BadElfPacket.HEADER_LENGTH - 1);
+        finished = true;
+        return length;
+    }
+
+    /**
+     * Build a configuration request
+     *
+     * @param sequence the sequence number, 0 to 255
+     * @param rate the number of fixes per second, 1 to 255
+     * @param options the value of the BadElfPacket.TAG_OPTIONS field, usually OPTIONS_DEFAULT
+     * @param includeSatellites if true the device will send satellite data
+     * @return the length of the packet
+     */
+    public int encodeConfiguration(int sequence, int rate, int options, boolean includeSatellites) {
+        if (rate < 1 || rate > 255) throw new IllegalArgumentException("rate " + rate);
+        begin(sequence, BadElfPacket.CLASS_CONFIGURATION, BadElfPacket.ID_CONFIGURATION);
+        addField(BadElfPacket.TAG_RATE, rate);
+        addField(BadElfPacket.TAG_OPTIONS, options);
+        addField(BadElfPacket.TAG_SATELLITES,
+                includeSatellites ? BadElfPacket.SATELLITES_INCLUDE : BadElfPacket.SATELLITES_NONE);
+        return finish();
+    }
+
+    /**
+     * Get the buffer holding the packet
+     *
+     * @return the buffer, valid from index 0 to length()
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the length of the finished packet
+     *
+     * @return the length in bytes
+     */
+    public int length() {
+        if (!finished) throw new IllegalStateException("finish has not been called");
+        return length;
+    }
+
+    /**
+     * Copy the finished packet into a new array
+     *
+     * @return a new array holding the packet
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[length()];
+        System.arraycopy(buffer, 0, copy, 0, length);
+        return copy;
+    }
+}
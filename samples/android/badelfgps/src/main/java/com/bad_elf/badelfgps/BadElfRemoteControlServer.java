@@ -3,136 +3,608 @@ package com.bad_elf.badelfgps;
 import android.util.Log;
 
 import java.io.IOException;
-        import java.io.OutputStream;
-        import java.io.PrintStream;
-        import java.net.InetAddress;
-        import java.net.NetworkInterface;
-        import java.net.ServerSocket;
-        import java.net.Socket;
-        import java.net.SocketException;
-        import java.util.Enumeration;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * TCP server for remote control of the app.
+ *
+ * One thread multiplexes every client with a Selector, so a slow client never holds up the
+ * others. Each client has a fixed size write buffer. Data sent to a client is copied into it and
+ * written as the client's socket accepts it. When it doesn't fit the client is too slow to keep
+ * up, and onWriteOverflow closes it.
+ *
+ * A client can also be subscribed to a GpsStreamRing to receive the live data from the Bad Elf
+ * Device. It is written to the socket straight out of the ring. A subscriber that falls more than
+ * three quarters of the ring behind skips ahead to the newest data, so the stream stays live and
+ * the writer is never held up. A sentence cut short by the skip fails its checksum.
+ *
+ * Subclasses handle the clients by overriding onClientConnected, onClientData and
+ * onClientClosed, which are called on the server thread. The Client methods may be called from
+ * any thread.
+ *
+ */
 public class BadElfRemoteControlServer {
 
     public static final String TAG = "BadElfRemoteControlServer";
 
-    //MainActivity activity;
-    ServerSocket serverSocket;
-    String message = "";
     static final int socketServerPORT = 8080;
 
-    public BadElfRemoteControlServer() {
-        //this.activity = activity;
-        Thread socketServerThread = new Thread(new SocketServerThread());
-        socketServerThread.start();
-    }
+    public static final int DEFAULT_WRITE_BUFFER_BYTES = 64 * 1024;
+    public static final int READ_BUFFER_BYTES = 4 * 1024;
+    public static final int ACCEPT_BACKLOG = 512; // connections waiting to be accepted
+
+    static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final int requestedPort;
+    private final int writeBufferBytes;
+    private volatile Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread serverThread;
+    private volatile boolean running;
+    private final ConcurrentLinkedQueue<Client> pending = new ConcurrentLinkedQueue<Client>();
+    private volatile Client[] clients = new Client[0]; // changed only by the server thread
+    private final List<GpsStreamRing> streams = new ArrayList<GpsStreamRing>(); // rings listened to
+    private volatile boolean streamWritten;
+    private int count = 0;
+
+    // Run by a GpsStreamRing after each write
+    private final Runnable streamListener = new Runnable() {
+        @Override
+        public void run() {
+            streamWritten = true;
+            Selector s = selector;
+            if (s != null) s.wakeup();
+        }
+    };
+
+    /**
+     * A connected client
+     */
+    public static final class Client {
+
+        private final BadElfRemoteControlServer server;
+        private final SocketChannel channel;
+        private final int number;
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private final ByteBuffer out; // in write mode, guarded by this
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private SelectionKey key;
+        private volatile boolean closing;
+        private volatile boolean closeAfterWrite;
+        private volatile long bytesRead;
+        private volatile long bytesWritten;
+        private volatile long overflowCount;
+
+        private volatile GpsStreamRing requestedStream;
+        private volatile GpsStreamRing stream; // set by the server thread
+        private ByteBuffer streamView;
+        private volatile long streamPosition;
+        private volatile long subscribedNanos;
+        private volatile long streamBytesSent;
+        private volatile long streamSkippedBytes;
+        private volatile long streamSkipCount;
+        private volatile long maxStreamLag;
+
+        Client(BadElfRemoteControlServer server, SocketChannel channel, int number, int writeBufferBytes) {
+            this.server = server;
+            this.channel = channel;
+            this.number = number;
+            this.out = ByteBuffer.allocate(writeBufferBytes);
+        }
 
-    public int getPort() {
-        return socketServerPORT;
-    }
+        /**
+         * Queue data to be written to the client
+         *
+         * @param data the data
+         * @param offset the index of the first byte
+         * @param length the number of bytes
+         * @return false if the client has been closed or its write buffer is full. A full buffer
+         * is passed to onWriteOverflow.
+         */
+        public boolean send(byte[] data, int offset, int length) {
+            boolean fits;
+            synchronized (this) {
+                if (closing || closeAfterWrite) return false;
+                fits = out.remaining() >= length;
+                if (fits) out.put(data, offset, length);
+            }
+            if (!fits) {
+                overflowCount++;
+                server.onWriteOverflow(this);
+                return false;
+            }
+            server.schedule(this);
+            return true;
+        }
 
-    public void onDestroy() {
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        /**
+         * Queue a string to be written to the client as US-ASCII
+         *
+         * @param text the text
+         * @return false if the client has been closed or its write buffer is full
+         */
+        public boolean send(String text) {
+            byte[] data = text.getBytes(US_ASCII);
+            return send(data, 0, data.length);
+        }
+
+        /**
+         * Close the connection, discarding anything not yet written
+         */
+        public void close() {
+            closing = true;
+            server.schedule(this);
+        }
+
+        /**
+         * Close the connection once everything queued has been written
+         */
+        public void closeAfterWrite() {
+            synchronized (this) {
+                closeAfterWrite = true; // nothing more can be sent once this is seen
             }
+            server.schedule(this);
         }
-    }
 
-    private class SocketServerThread extends Thread {
+        /**
+         * Send the data written to a ring to the client, starting with the next write
+         *
+         * @param ring the ring
+         */
+        public void subscribe(GpsStreamRing ring) {
+            requestedStream = ring;
+            server.schedule(this);
+        }
 
-        public static final String TAG = "BadElfRemoteControlServer.SocketServerThread";
+        /**
+         * Stop sending stream data to the client
+         */
+        public void unsubscribe() {
+            requestedStream = null;
+            server.schedule(this);
+        }
 
-        int count = 0;
+        /** @return the number of the client, counting from 1 since the server was started */
+        public int getNumber()                  { return number;         }
+        /** @return the number of bytes received from the client */
+        public long getBytesRead()              { return bytesRead;      }
+        /** @return the number of bytes written to the client */
+        public long getBytesWritten()           { return bytesWritten;   }
+        /** @return the number of sends that didn't fit in the write buffer */
+        public long getOverflowCount()          { return overflowCount;  }
+        /** @return true once the client is closed or closing */
+        public boolean isClosed()               { return closing;        }
+        /** @return the number of stream bytes written to the client */
+        public long getStreamBytesSent()        { return streamBytesSent;    }
+        /** @return the number of stream bytes skipped because the client fell behind */
+        public long getStreamSkippedBytes()     { return streamSkippedBytes; }
+        /** @return the number of times the client skipped ahead in the stream */
+        public long getStreamSkipCount()        { return streamSkipCount;    }
+        /** @return the most stream bytes the client has been behind */
+        public long getMaxStreamLag()           { return maxStreamLag;       }
+
+        /** @return the number of stream bytes written to the ring but not yet to the client */
+        public long getStreamLag() {
+            GpsStreamRing ring = stream;
+            return ring == null ? 0 : ring.getWritePosition() - streamPosition;
+        }
 
-        @Override
-        public void run() {
-            try {
-                // create ServerSocket using specified port
-                serverSocket = new ServerSocket(socketServerPORT);
-                Log.d(TAG, String.format(Locale.US,"Starting ServerSocket on %s port %d...",getIpAddress(), socketServerPORT));
+        /** @return the average rate stream bytes have been written to the client since it subscribed */
+        public double getStreamBytesPerSecond() {
+            long nanos = System.nanoTime() - subscribedNanos;
+            return stream == null || nanos <= 0 ? 0 : streamBytesSent * 1e9 / nanos;
+        }
 
-                while (true) {
-                    // block the call until connection is created and return
-                    // Socket object
-                    Socket socket = serverSocket.accept();
-                    count++;
-                    Log.d(TAG, "Got connection from: " + socket.getInetAddress() + ":" + socket.getPort());
+        /** @return the number of bytes waiting to be written */
+        public synchronized int getPendingBytes() {
+            return out.position();
+        }
 
-                    SocketServerReplyThread socketServerReplyThread =
-                            new SocketServerReplyThread(socket, count);
-                    socketServerReplyThread.run();
+        /** @return the address of the client, or null if it has disconnected */
+        public SocketAddress getRemoteAddress() {
+            return channel.socket().getRemoteSocketAddress();
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number + " " + getRemoteAddress();
+        }
 
+        /**
+         * Write as much of the buffer as the socket will take
+         *
+         * @return true if everything was written
+         */
+        private boolean flush() throws IOException {
+            synchronized (this) {
+                out.flip();
+                try {
+                    bytesWritten += channel.write(out);
+                } finally {
+                    out.compact();
                 }
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                return out.position() == 0;
             }
         }
+
+        /**
+         * Write as much of the stream as the socket will take, skipping ahead if the client has
+         * fallen too far behind
+         *
+         * @return true if the client has caught up
+         */
+        private boolean flushStream() throws IOException {
+            GpsStreamRing ring = stream;
+            long end = ring.getWritePosition();
+            long position = streamPosition;
+            long lag = end - position;
+            if (lag > ring.buffer.length - ring.buffer.length / 4) {
+                streamSkippedBytes += lag;
+                streamSkipCount++;
+                position = end;
+            } else if (lag > maxStreamLag) {
+                maxStreamLag = lag;
+            }
+            try {
+                while (position < end) {
+                    int index = (int) (position & ring.mask);
+                    int length = (int) Math.min(end - position, ring.buffer.length - index);
+                    streamView.limit(index + length).position(index);
+                    int written = channel.write(streamView);
+                    if (ring.isOverwritten(position)) {
+                        throw new IOException("stream overwritten while writing");
+                    }
+                    position += written;
+                    streamBytesSent += written;
+                    if (written < length) break;
+                }
+            } finally {
+                streamPosition = position;
+            }
+            return position == end;
+        }
     }
 
-    private class SocketServerReplyThread extends Thread {
+    /**
+     * Construct a server on the default port
+     */
+    public BadElfRemoteControlServer() {
+        this(socketServerPORT, DEFAULT_WRITE_BUFFER_BYTES);
+    }
 
-        private Socket hostThreadSocket;
-        int cnt;
+    /**
+     * Construct a server
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @param writeBufferBytes the size of each client's write buffer
+     */
+    public BadElfRemoteControlServer(int port, int writeBufferBytes) {
+        if (writeBufferBytes <= 0) throw new IllegalArgumentException("writeBufferBytes <= 0");
+        this.requestedPort = port;
+        this.writeBufferBytes = writeBufferBytes;
+    }
 
-        SocketServerReplyThread(Socket socket, int c) {
-            hostThreadSocket = socket;
-            cnt = c;
+    /**
+     * Start listening and serving clients on a new thread
+     *
+     * @throws IOException if the port can't be opened
+     */
+    public synchronized void start() throws IOException {
+        if (serverThread != null) throw new IllegalStateException("Already started");
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(requestedPort), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
         }
+        Log.d(TAG, String.format(Locale.US, "Starting server on %s port %d...", getIpAddress(), getPort()));
+        running = true;
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, TAG);
+        serverThread.start();
+    }
 
-        @Override
-        public void run() {
-            OutputStream outputStream;
-            String msgReply = "Hello from Server, you are #" + cnt;
-
+    /**
+     * Close every client and stop listening. Waits for the server thread to finish.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = serverThread;
+            serverThread = null;
+            running = false;
+        }
+        if (thread == null) return;
+        selector.wakeup();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
             try {
-                outputStream = hostThreadSocket.getOutputStream();
-                PrintStream printStream = new PrintStream(outputStream);
-                printStream.print(msgReply);
-                printStream.close();
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt(); // Restore the interrupted status
+    }
+
+    /**
+     * Close every client and stop listening
+     */
+    public void onDestroy() {
+        stop();
+    }
+
+    /**
+     * Get the port the server listens on
+     *
+     * @return the port, which is the one it is listening on once started
+     */
+    public int getPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel != null && channel.socket().isBound() ? channel.socket().getLocalPort() : requestedPort;
+    }
 
+    /** @return the number of connected clients */
+    public int getClientCount() {
+        return clients.length;
+    }
+
+    /**
+     * Get the connected clients, for their counters
+     *
+     * @return a snapshot of the clients
+     */
+    public Client[] getClients() {
+        return clients.clone();
+    }
 
+    /**
+     * Called on the server thread when a client connects
+     *
+     * @param client the client
+     */
+    protected void onClientConnected(Client client) {
+        client.send("Hello from Server, you are #" + client.getNumber() + "\r\n");
+    }
 
+    /**
+     * Called on the server thread when data is received from a client. Consume as much of it as
+     * can be handled. Anything left is passed again, ahead of the next data received. A client
+     * that fills its read buffer without any of it being consumed is closed.
+     *
+     * @param client the client
+     * @param data the received data, positioned at the first unconsumed byte
+     */
+    protected void onClientData(Client client, ByteBuffer data) {
+        data.position(data.limit()); // nothing to do with it
+    }
 
+    /**
+     * Called on the server thread when a client's connection has been closed
+     *
+     * @param client the client
+     */
+    protected void onClientClosed(Client client) {
+    }
 
-                message += "replayed: " + msgReply + "\n";
+    /**
+     * Called on the sending thread when data doesn't fit in a client's write buffer. Closes the
+     * client, override to handle slow clients another way.
+     *
+     * @param client the client
+     */
+    protected void onWriteOverflow(Client client) {
+        Log.d(TAG, "Closing slow client " + client);
+        client.close();
+    }
 
-//                activity.runOnUiThread(new Runnable() {
-//
-//                    @Override
-//                    public void run() {
-//                        activity.msg.setText(message);
-//                    }
-//                });
+    /**
+     * Have the server thread look at a client's writes or close it
+     */
+    private void schedule(Client client) {
+        if (client.queued.compareAndSet(false, true)) {
+            pending.add(client);
+            Selector s = selector;
+            if (s != null) s.wakeup();
+        }
+    }
 
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-                message += "Something wrong! " + e.toString() + "\n";
+    private void serve() {
+        try {
+            while (running) {
+                selector.select();
+                Client client;
+                while ((client = pending.poll()) != null) {
+                    client.queued.set(false);
+                    update(client);
+                }
+                if (streamWritten) {
+                    streamWritten = false;
+                    for (Client subscriber : clients) {
+                        if (subscriber.stream != null) update(subscriber);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        client = (Client) key.attachment();
+                        if (key.isReadable()) read(client);
+                        if (key.isValid() && key.isWritable()) update(client);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Server failed", e);
+        } catch (ClosedSelectorException e) {
+            Log.d(TAG, "Server failed", e);
+        } finally {
+            for (Client client : clients) {
+                closeClient(client);
+            }
+            for (GpsStreamRing ring : streams) {
+                ring.removeListener(streamListener);
             }
+            streams.clear();
+            closeQuietly();
+            Log.d(TAG, "Server stopped");
+        }
+    }
 
-//            activity.runOnUiThread(new Runnable() {
-//
-//                @Override
-//                public void run() {
-//                    activity.msg.setText(message);
-//                }
-//            });
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(this, channel, ++count, writeBufferBytes);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            Client[] newClients = new Client[clients.length + 1];
+            System.arraycopy(clients, 0, newClients, 0, clients.length);
+            newClients[clients.length] = client;
+            clients = newClients;
+            Log.d(TAG, "Got connection from: " + client);
+            onClientConnected(client);
         }
+    }
 
+    private void read(Client client) {
+        try {
+            int n = client.channel.read(client.in);
+            if (n < 0) {
+                closeClient(client);
+                return;
+            }
+            client.bytesRead += n;
+            client.in.flip();
+            try {
+                onClientData(client, client.in);
+            } finally {
+                client.in.compact();
+            }
+            if (!client.in.hasRemaining()) {
+                Log.d(TAG, "Closing client " + client + ", read buffer full");
+                closeClient(client);
+            }
+        } catch (IOException e) {
+            closeClient(client);
+        }
+    }
+
+    /**
+     * Write what is pending for a client and set what the selector waits for
+     */
+    private void update(Client client) {
+        if (client.key == null || !client.key.isValid()) return;
+        if (client.closing) {
+            closeClient(client);
+            return;
+        }
+        if (client.requestedStream != client.stream) {
+            subscribe(client, client.requestedStream);
+        }
+        // read before flushing, so a send that came after the flush can't be closed on
+        boolean closeAfterWrite = client.closeAfterWrite;
+        try {
+            boolean done = client.flush();
+            if (done && client.stream != null) {
+                done = client.flushStream();
+            }
+            if (done && closeAfterWrite) {
+                closeClient(client);
+            } else {
+                client.key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            closeClient(client);
+        }
+    }
+
+    private void closeClient(Client client) {
+        if (client.key == null) return;
+        client.closing = true;
+        client.key.cancel();
+        client.key = null;
+        try {
+            client.channel.close();
+        } catch (IOException ignore) {
+            // closed anyway
+        }
+        Client[] current = clients;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == client) {
+                Client[] newClients = new Client[current.length - 1];
+                System.arraycopy(current, 0, newClients, 0, i);
+                System.arraycopy(current, i + 1, newClients, i, current.length - i - 1);
+                clients = newClients;
+                break;
+            }
+        }
+        onClientClosed(client);
+    }
+
+    private void subscribe(Client client, GpsStreamRing ring) {
+        if (ring != null && !streams.contains(ring)) {
+            ring.addListener(streamListener);
+            streams.add(ring);
+        }
+        client.stream = null;
+        client.streamView = ring == null ? null : ByteBuffer.wrap(ring.buffer);
+        client.streamPosition = ring == null ? 0 : ring.getWritePosition();
+        client.subscribedNanos = System.nanoTime();
+        client.streamBytesSent = 0;
+        client.stream = ring;
+    }
+
+    private void closeQuietly() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignore) {
+            // closed anyway
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+            // closed anyway
+        }
     }
 
     public String getIpAddress() {
-        String ip = "";
+        StringBuilder ip = new StringBuilder();
         try {
             Enumeration<NetworkInterface> enumNetworkInterfaces = NetworkInterface
                     .getNetworkInterfaces();
-            while (enumNetworkInterfaces.hasMoreElements()) {
+            while (enumNetworkInterfaces != null && enumNetworkInterfaces.hasMoreElements()) {
                 NetworkInterface networkInterface = enumNetworkInterfaces
                         .nextElement();
                 Enumeration<InetAddress> enumInetAddress = networkInterface
@@ -142,17 +614,15 @@ public class BadElfRemoteControlServer {
                             .nextElement();
 
                     if (inetAddress.isSiteLocalAddress()) {
-                        ip += "Server running at : "
-                                + inetAddress.getHostAddress();
+                        if (ip.length() > 0) ip.append(", ");
+                        ip.append(inetAddress.getHostAddress());
                     }
                 }
             }
 
         } catch (SocketException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            ip += "Something Wrong! " + e.toString() + "\n";
+            Log.d(TAG, "Can't list the network interfaces", e);
         }
-        return ip;
+        return ip.toString();
     }
-}
\ No newline at end of file
+}
@@ -1,23 +1,91 @@
 package com.bad_elf.badelfgps;
 
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
-import com.bad_elf.badelfgps.BadElfRemoteControlServer;
+import java.util.Locale;
 
+/**
+ * Lets a remote client, such as an automation harness, drive the Bad Elf Device over TCP.
+ *
+ * Commands are lines of US-ASCII text, ended by LF or CRLF, with case-insensitive names:
+ *
+ *   LIST                  list the devices: a DEVICE index name line for each, then OK count
+ *   SELECT index          select the device to connect to
+ *   CONNECT               connect to the selected device
+ *   DISCONNECT            disconnect
+ *   RATE hz [SATS|NOSATS] request a fix rate, with or without satellite data (the default)
+ *   STATE                 OK followed by the connection state
+ *   PING                  OK
+ *   QUIT                  OK, then close the connection
+ *
+ * Every command is answered with a line starting OK, or ERR followed by the reason, in the order
+ * the commands were received. Commands may be pipelined: everything received in one read is
+ * executed before the responses are sent back together.
+ *
+ * The commands are carried out by the Target, which BadElfService sets when it is given the
+ * controller with setBadElfRemoteController.
+ *
+ */
 public class BadElfRemoteController {
 
     public static final String TAG = "BadElfRemoteController";
 
-    private List<BadElfDevice> badElfDevices;
+    /**
+     * What the commands act on
+     */
+    public interface Target {
+        void setBadElfDevice(BadElfDevice badElfDevice);
+        void connect();
+        void disconnect();
+        void requestConfiguration(int rate, boolean includeSatellites);
+        BadElfService.State getState();
+    }
+
+    private volatile List<BadElfDevice> badElfDevices;
     private BadElfRemoteControlServer server;
-    private BadElfDevice selectedDevice;
+    private volatile BadElfDevice selectedDevice;
+    private volatile Target target;
 
+    // The responses to the commands in one read. Only used on the server thread.
+    private final StringBuilder responses = new StringBuilder();
 
     public void start() {
-        server = new BadElfRemoteControlServer();
+        start(BadElfRemoteControlServer.socketServerPORT);
     }
 
-    public void stop() {
+    /**
+     * Start the server
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @return the port the server is listening on, or -1 if it couldn't be started
+     */
+    public synchronized int start(int port) {
+        if (server != null) return server.getPort();
+        BadElfRemoteControlServer newServer = new BadElfRemoteControlServer(port,
+                BadElfRemoteControlServer.DEFAULT_WRITE_BUFFER_BYTES) {
+            @Override
+            protected void onClientData(Client client, ByteBuffer data) {
+                execute(client, data);
+            }
+        };
+        try {
+            newServer.start();
+            server = newServer;
+            return newServer.getPort();
+        } catch (IOException e) {
+            Log.e(TAG, "Can't start the remote control server", e);
+            return -1;
+        }
+    }
 
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
     }
 
     public void setDeviceList(List<BadElfDevice> badElfDevices) {
@@ -28,4 +96,115 @@ public class BadElfRemoteController {
         this.selectedDevice = device;
     }
 
+    void setTarget(Target target) {
+        this.target = target;
+    }
+
+    /**
+     * Execute the complete lines in the received data and send the responses in one write
+     */
+    private void execute(BadElfRemoteControlServer.Client client, ByteBuffer data) {
+        responses.setLength(0);
+        boolean quit = false;
+        int start = data.position();
+        for (int i = start; i < data.limit() && !quit; i++) {
+            if (data.get(i) != '\n') continue;
+            int end = i > start && data.get(i - 1) == '\r' ? i - 1 : i;
+            quit = execute(new String(data.array(), data.arrayOffset() + start, end - start,
+                    BadElfRemoteControlServer.US_ASCII));
+            start = i + 1;
+        }
+        data.position(quit ? data.limit() : start);
+        if (responses.length() > 0) {
+            client.send(responses.toString());
+        }
+        if (quit) {
+            client.closeAfterWrite();
+        }
+    }
+
+    /**
+     * Execute one command, adding its response to responses
+     *
+     * @return true if the client asked to close the connection
+     */
+    boolean execute(String line) {
+        String trimmed = line.trim();
+        if (trimmed.length() == 0) return false;
+        String[] words = trimmed.split("\\s+");
+        String command = words[0].toUpperCase(Locale.US);
+        try {
+            if (command.equals("PING")) {
+                ok("");
+            } else if (command.equals("QUIT")) {
+                ok("");
+                return true;
+            } else if (command.equals("LIST")) {
+                List<BadElfDevice> devices = badElfDevices;
+                int count = devices == null ? 0 : devices.size();
+                for (int i = 0; i < count; i++) {
+                    responses.append("DEVICE ").append(i).append(' ').append(devices.get(i)).append("\r\n");
+                }
+                ok(Integer.toString(count));
+            } else if (command.equals("SELECT")) {
+                List<BadElfDevice> devices = badElfDevices;
+                int index = argument(words, 1);
+                if (devices == null || index < 0 || index >= devices.size()) {
+                    error("no device " + index);
+                } else {
+                    BadElfDevice device = devices.get(index);
+                    getTarget().setBadElfDevice(device);
+                    selectedDevice = device;
+                    ok(device.toString());
+                }
+            } else if (command.equals("CONNECT")) {
+                BadElfDevice device = selectedDevice;
+                if (device != null) {
+                    getTarget().setBadElfDevice(device);
+                }
+                getTarget().connect();
+                ok("");
+            } else if (command.equals("DISCONNECT")) {
+                getTarget().disconnect();
+                ok("");
+            } else if (command.equals("RATE")) {
+                int rate = argument(words, 1);
+                boolean includeSatellites = words.length > 2 && words[2].equalsIgnoreCase("SATS");
+                if (words.length > 2 && !includeSatellites && !words[2].equalsIgnoreCase("NOSATS")) {
+                    throw new IllegalArgumentException(words[2]);
+                }
+                getTarget().requestConfiguration(rate, includeSatellites);
+                ok("");
+            } else if (command.equals("STATE")) {
+                ok(getTarget().getState().name());
+            } else {
+                error("unknown command " + words[0]);
+            }
+        } catch (RuntimeException e) {
+            // Bad arguments, or the service is in the wrong state for the command
+            error(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        }
+        return false;
+    }
+
+    private Target getTarget() {
+        Target current = target;
+        if (current == null) throw new IllegalStateException("no service");
+        return current;
+    }
+
+    private static int argument(String[] words, int index) {
+        if (words.length <= index) throw new IllegalArgumentException("missing argument");
+        return Integer.parseInt(words[index]);
+    }
+
+    private void ok(String result) {
+        responses.append("OK");
+        if (result.length() > 0) responses.append(' ').append(result);
+        responses.append("\r\n");
+    }
+
+    private void error(String reason) {
+        responses.append("ERR ").append(reason.replace('\r', ' ').replace('\n', ' ')).append("\r\n");
+    }
 }
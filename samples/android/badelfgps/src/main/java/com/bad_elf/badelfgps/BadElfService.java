@@ -7,29 +7,17 @@
 package com.bad_elf.badelfgps;
 
 import android.app.Service;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.nio.channels.AlreadyConnectedException;
 import java.nio.channels.NotYetConnectedException;
-import java.util.List;
-import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
 
 /**
  * This class is an Android Local Service that connects to and disconnects from a Bad Elf Device.
@@ -38,6 +26,14 @@ import java.util.concurrent.TimeUnit;
  * The class BadElfGpsConnection is a helper class that should be used for all interactions with
  * this Service.
  *
+ * All traffic goes through a GpsTransport. For a paired Bad Elf Device that is an
+ * RfcommTransport, but any other transport can be set to run the service without Bluetooth.
+ *
+ * Several Bad Elf Devices can be connected at once. Each has a BadElfDeviceSession with its own
+ * state, reader thread and observers, see openSession. The methods that don't take a session act
+ * on the first session, which also feeds the session recorder and the stream server. Merged
+ * observers receive the data of every session, tagged with its device ID.
+ *
  */
 public class BadElfService extends Service {
 
@@ -51,6 +47,7 @@ public class BadElfService extends Service {
         IDLE         (R.string.badElfGpsServiceStateIdle          ) ,
         CONNECTING   (R.string.badElfGpsServiceStateConnecting    ),
         CONNECTED    (R.string.badElfGpsServiceStateConnected     ),
+        RECONNECTING (R.string.badElfGpsServiceStateReconnecting  ),
         DISCONNECTING(R.string.badElfGpsServiceStateDisconnecting );
 
         private final int resID;
@@ -64,28 +61,52 @@ public class BadElfService extends Service {
         }
     }
 
-    private State state = State.IDLE;
-    private BluetoothDevice device;
-    private BluetoothSocket socket;
-    private OutputStream outStream;
-    private final Object stateSync = new Object();
-    private Thread serviceThread;
     private BadElfRemoteController remoteController;
 
+    /** Gauge: the number of sessions that are connected */
+    public static final String METRIC_SESSIONS_CONNECTED = "sessions.connected";
+
+    // Shared by all sessions, so created before them
+    private final GpsMetrics metrics = new GpsMetrics() {
+        @Override
+        protected void onDump(Snapshot snapshot, Snapshot previous) {
+            Log.d(TAG, "metrics " + snapshot.format(previous));
+        }
+    };
+
+    // Copy on write array of the sessions. The first one is never closed.
+    private volatile BadElfDeviceSession[] sessions = {new BadElfDeviceSession(this, 0)};
+    private int nextDeviceId = 1; // Guarded by observerSync
+
+    /**
+     * Called by the system when the Service is created
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        metrics.gauge(METRIC_SESSIONS_CONNECTED, new GpsMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                long connected = 0;
+                for (BadElfDeviceSession session : sessions) {
+                    if (session.getState() == State.CONNECTED) connected++;
+                }
+                return connected;
+            }
+        });
+    }
+
     /**
      * Start the Service
      *
-     * This is called after connect calls startService.
-     *
-     * It creates a thread that connects to the Bad Elf Device. The Service will continue to run
-     * until the thread exits which happens after disconnect is called or if there is an error.
+     * This is called after a session's connect calls startService. Each session runs its own
+     * reader thread. The Service will continue to run until every session has disconnected
+     * or failed.
      *
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand");
-        serviceThread = new Thread(runnable, TAG);
-        serviceThread.start();
         return START_NOT_STICKY;
     }
 
@@ -106,21 +127,25 @@ public class BadElfService extends Service {
     @Override
     public void onDestroy(){
         Log.d(TAG,"onDestroy");
-        try {
-            // We should always already be disconnected when onDestroy is called, but we will
-            // call disconnect just in case.
-            disconnect();
-        }catch (NotYetConnectedException ignore){
-            // This exception can be safely ignored because we must have already been disconnected.
-        }
-        try {
-            // Wait for Service Thread to exit before returning from onDestroy.
-            serviceThread.join();
-        }catch(NullPointerException ignore){
-            // This exception can be safely ignored because it happens if there is no thread to wait for
-        }catch(InterruptedException e){
-            Thread.currentThread().interrupt(); // Restore the interrupted status
+        for (BadElfDeviceSession session : sessions) {
+            try {
+                // We should always already be disconnected when onDestroy is called, but we will
+                // call disconnect just in case.
+                session.disconnect();
+            }catch (NotYetConnectedException ignore){
+                // This exception can be safely ignored because we must have already been disconnected.
+            }
+            try {
+                // Wait for the reader thread to exit before returning from onDestroy.
+                session.join();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+            }
         }
+        stopRecording(); // write anything still buffered
+        stopStreamServer();
+        setBadElfRemoteController(null);
+        metrics.stopDump();
         Log.d(TAG,"onDestroy exiting");
 
     }
@@ -149,294 +174,676 @@ public class BadElfService extends Service {
     }
     private final IBinder binder = new BadElfBinder(this);
 
-    private List<BadElfGpsConnectionObserver> observers = new CopyOnWriteArrayList<>();
+    /** The queue capacity used for observers added without one */
+    public static final int DEFAULT_OBSERVER_QUEUE_CAPACITY = 256;
+    /** The queue capacity used for fix observers added without one */
+    public static final int DEFAULT_FIX_QUEUE_CAPACITY = 64;
 
     /**
-     * Add an observer
-     *
-     * @param observer an instance that implements BadElfGpsConnectionObserver
+     * An observer and the queue that delivers to it
      */
-    protected void addObserver(BadElfGpsConnectionObserver observer){
-        observers.add(observer);
+    static final class ObserverEntry {
+        final Object observer;
+        final GpsObserverQueue queue;
+        int sentenceTypes; // of a merged fix observer, guarded by observerSync
+
+        ObserverEntry(Object observer, GpsObserverQueue queue) {
+            this.observer = observer;
+            this.queue = queue;
+        }
     }
 
+    // Copy on write arrays of merged observers. The reader threads of all the sessions iterate
+    // over them for every chunk of received data, without taking a lock.
+    volatile ObserverEntry[] mergedObservers = new ObserverEntry[0];
+    private ObserverEntry[] mergedFixObservers = new ObserverEntry[0];
+    private final Object observerSync = new Object();
+
     /**
-     * Remove and observer
+     * Get the first session, which the methods that don't take a session act on
      *
-     * @param observer an instance that implements BadElfGpsConnectionObserver
+     * @return the session
      */
-    protected void removeObserver(BadElfGpsConnectionObserver observer){
-        observers.remove(observer);
+    protected BadElfDeviceSession getDefaultSession() {
+        return sessions[0];
     }
 
+    /**
+     * Get every session
+     *
+     * @return a snapshot of the sessions, the first session first
+     */
+    protected BadElfDeviceSession[] getSessions() {
+        return sessions.clone();
+    }
 
     /**
-     * Set the connection state
+     * Get the session of a Bad Elf Device, creating it if there isn't one.
      *
-     * This must only be called from inside a synchronized (stateSync) block
+     * The first session is used if it is idle and has no device yet.
      *
-     * @param newState the state to change to
+     * @param badElfDevice the Bad Elf Device
+     * @return the session
      */
-    private void setState(State newState){
-        state = newState;
-        Log.d(TAG, "setState("+newState+")");
-        for(BadElfGpsConnectionObserver observer:observers){
-            try {
-                observer.onStateChanged(state);
-            }catch (RuntimeException e){
-                // don't let observer errors stop us
-                Log.d(TAG,"observer.onStateChange", e);
+    protected BadElfDeviceSession openSession(BadElfDevice badElfDevice) {
+        synchronized (observerSync) {
+            for (BadElfDeviceSession session : sessions) {
+                if (session.isFor(badElfDevice)) return session;
+            }
+            BadElfDeviceSession session = sessions[0];
+            if (session.getState() != State.IDLE || session.hasTransport()) {
+                session = newSession();
             }
+            session.setBadElfDevice(badElfDevice);
+            return session;
         }
     }
 
     /**
-     * Get the state of the connection.
-     *
-     * @return the state of the connection
+     * Create a new session that talks through a transport
      *
+     * @param transport the transport
+     * @return the session
      */
-    protected State getState() {
-        synchronized (stateSync){
-            return state;
+    protected BadElfDeviceSession openSession(GpsTransport transport) {
+        synchronized (observerSync) {
+            BadElfDeviceSession session = newSession();
+            session.setTransport(transport);
+            return session;
         }
     }
 
     /**
-     * Set the Bad Elf Device.
-     *
-     * The Bad Elf Device can only be changed when the service state is Idle
+     * Disconnect a session, remove its observers and forget it. The first session can't be
+     * closed.
      *
-     * @param badElfDevice the Bad Elf Device
+     * @param session the session
      */
-    protected void setBadElfDevice(BadElfDevice badElfDevice) {
-        synchronized (stateSync) {
-            if( ! badElfDevice.getDevice().equals(device)) {
-                // setting a new device
-                if (state != State.IDLE) throw new AlreadyConnectedException();
-                device = badElfDevice.getDevice();
-            }
+    protected void closeSession(BadElfDeviceSession session) {
+        synchronized (observerSync) {
+            int index = Arrays.asList(sessions).indexOf(session);
+            if (index == 0) throw new IllegalArgumentException("The first session can't be closed");
+            if (index < 0) return;
+            BadElfDeviceSession[] newSessions = new BadElfDeviceSession[sessions.length - 1];
+            System.arraycopy(sessions, 0, newSessions, 0, index);
+            System.arraycopy(sessions, index + 1, newSessions, index, sessions.length - index - 1);
+            sessions = newSessions;
+        }
+        try {
+            session.disconnect();
+        } catch (NotYetConnectedException ignore) {
+            // already disconnected
         }
+        session.removeAllObservers();
     }
 
-    protected void setBadElfRemoteController(BadElfRemoteController remoteController) {
-        this.remoteController = remoteController;
+    /**
+     * Create a session and give it the merged fix observers. Must be called with observerSync
+     * held.
+     */
+    private BadElfDeviceSession newSession() {
+        BadElfDeviceSession session = new BadElfDeviceSession(this, nextDeviceId++);
+        for (ObserverEntry entry : mergedFixObservers) {
+            session.fixDispatcher.addObserver(entry.queue, entry.sentenceTypes);
+        }
+        BadElfDeviceSession[] newSessions = Arrays.copyOf(sessions, sessions.length + 1);
+        newSessions[sessions.length] = session;
+        sessions = newSessions;
+        return session;
     }
 
+    /**
+     * Add an observer of the first session, delivering to it through a DROP_OLDEST queue of
+     * the default capacity
+     *
+     * @param observer an instance that implements BadElfGpsConnectionObserver
+     */
+    protected void addObserver(BadElfGpsConnectionObserver observer){
+        getDefaultSession().addObserver(observer);
+    }
 
     /**
-     * Connect to the Bad Elf Device
+     * Add an observer of the first session
      *
-     * This will start the service which will continue to run until disconnect is called or until
-     * there is an error.
+     * @param observer an instance that implements BadElfGpsConnectionObserver
+     * @param policy what to do with received data when the observer falls behind
+     * @param capacity the number of received chunks that can be waiting for the observer
      */
-    protected void connect() {
+    protected void addObserver(BadElfGpsConnectionObserver observer,
+                               GpsObserverQueue.OverflowPolicy policy, int capacity){
+        getDefaultSession().addObserver(observer, policy, capacity);
+    }
 
-        synchronized (stateSync) {
-            if(device == null) throw new IllegalStateException("No Bad Elf Device has been Set");
-            if (state != State.IDLE) throw new AlreadyConnectedException();
-            setState(State.CONNECTING);
-        }
-        Context appContext = this.getApplicationContext();
-        appContext.startService(new Intent(appContext, BadElfService.class)); // start service
+    /**
+     * Remove and observer
+     *
+     * Anything still queued for the observer is discarded.
+     *
+     * @param observer an instance that implements BadElfGpsConnectionObserver
+     */
+    protected void removeObserver(BadElfGpsConnectionObserver observer){
+        getDefaultSession().removeObserver(observer);
     }
 
     /**
-     * Disconnect from the Bad Elf Device
+     * Get the queue that delivers to an observer, for its counters
      *
-     * This disconnects by closing the socket which will cause the service to stop
+     * @param observer an observer that was added
+     * @return the queue, or null if the observer was not added
+     */
+    protected GpsObserverQueue getObserverQueue(BadElfGpsConnectionObserver observer){
+        return getDefaultSession().getObserverQueue(observer);
+    }
+
+    /**
+     * Add an observer of the data received by every session. Each chunk's getDeviceId tells
+     * which session it came from. An observer that also implements BadElfGpsSessionObserver is
+     * told about the state changes of every session.
      *
+     * @param observer the observer
+     * @param policy what to do with received data when the observer falls behind
+     * @param capacity the number of received chunks that can be waiting for the observer
      */
-    protected void disconnect() {
-        synchronized (stateSync) {
-            if (state == State.IDLE) throw new NotYetConnectedException();
-            if (state == State.DISCONNECTING) return;
+    protected void addMergedObserver(BadElfGpsChunkObserver observer,
+                                     GpsObserverQueue.OverflowPolicy policy, int capacity){
+        GpsObserverQueue queue = newQueue(observer, policy, capacity, observer, null);
+        synchronized (observerSync) {
+            if (indexOf(mergedObservers, observer) >= 0) return;
+            mergedObservers = append(mergedObservers, new ObserverEntry(observer, queue));
+            queue.start();
+        }
+    }
 
-            setState(State.DISCONNECTING);
-            try {
-                socket.close(); // This will cause the Service Thread to exit
-            } catch (IOException | NullPointerException ignore){
-                // these exception can be safely ignored because we are trying to disconnect
+    /**
+     * Remove a merged observer
+     *
+     * @param observer the observer
+     */
+    protected void removeMergedObserver(BadElfGpsChunkObserver observer){
+        GpsObserverQueue queue;
+        synchronized (observerSync) {
+            int index = indexOf(mergedObservers, observer);
+            if (index < 0) return;
+            queue = mergedObservers[index].queue;
+            mergedObservers = remove(mergedObservers, index);
+        }
+        queue.stop();
+    }
+
+    /**
+     * Add an observer of the sentences decoded from every session, or change the sentence
+     * types of one that was already added. Each record's and fix's getDeviceId tells which
+     * session it came from.
+     *
+     * @param observer the observer
+     * @param sentenceTypes a combination of the NmeaParser.TYPE_ values to receive
+     * @param policy what to do with decoded sentences when the observer falls behind
+     * @param capacity the number of sentences and epochs that can be waiting for the observer
+     */
+    protected void addMergedFixObserver(BadElfGpsFixObserver observer, int sentenceTypes,
+                                        GpsObserverQueue.OverflowPolicy policy, int capacity){
+        synchronized (observerSync) {
+            ObserverEntry entry;
+            int index = indexOf(mergedFixObservers, observer);
+            if (index >= 0) {
+                entry = mergedFixObservers[index];
+            } else {
+                entry = new ObserverEntry(observer, newQueue(observer, policy, capacity, null, observer));
+                mergedFixObservers = append(mergedFixObservers, entry);
+                entry.queue.start();
             }
-            try {
-                serviceThread.interrupt(); // This will also cause the service thread to exit
-            }catch(NullPointerException ignore){
-                // this exception can be safely ignored because we are trying to disconnect
+            entry.sentenceTypes = sentenceTypes;
+            for (BadElfDeviceSession session : sessions) {
+                session.fixDispatcher.addObserver(entry.queue, sentenceTypes);
+            }
+        }
+    }
+
+    /**
+     * Remove a merged fix observer
+     *
+     * @param observer the observer
+     */
+    protected void removeMergedFixObserver(BadElfGpsFixObserver observer){
+        GpsObserverQueue queue;
+        synchronized (observerSync) {
+            int index = indexOf(mergedFixObservers, observer);
+            if (index < 0) return;
+            queue = mergedFixObservers[index].queue;
+            mergedFixObservers = remove(mergedFixObservers, index);
+            for (BadElfDeviceSession session : sessions) {
+                session.fixDispatcher.removeObserver(queue);
             }
         }
+        queue.stop();
+    }
+
+    static int indexOf(ObserverEntry[] entries, Object observer) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].observer.equals(observer)) return i;
+        }
+        return -1;
     }
 
+    static ObserverEntry[] append(ObserverEntry[] entries, ObserverEntry entry) {
+        ObserverEntry[] newEntries = Arrays.copyOf(entries, entries.length + 1);
+        newEntries[entries.length] = entry;
+        return newEntries;
+    }
 
+    static ObserverEntry[] remove(ObserverEntry[] entries, int index) {
+        ObserverEntry[] newEntries = new ObserverEntry[entries.length - 1];
+        System.arraycopy(entries, 0, newEntries, 0, index);
+        System.arraycopy(entries, index + 1, newEntries, index, entries.length - index - 1);
+        return newEntries;
+    }
 
     /**
-     * Send data to the Bad Elf Device
+     * Create a queue that logs the errors of its observer and records its metrics
+     */
+    GpsObserverQueue newQueue(Object observer, GpsObserverQueue.OverflowPolicy policy,
+                              int capacity, BadElfGpsChunkObserver chunkTarget,
+                              BadElfGpsFixObserver fixTarget) {
+        String name = TAG + "-" + observer.getClass().getSimpleName();
+        GpsObserverQueue queue = new GpsObserverQueue(name, capacity, policy, chunkTarget, fixTarget) {
+            @Override
+            protected void onDeliveryError(RuntimeException e) {
+                // don't let observer errors stop us
+                Log.d(TAG, "observer", e);
+            }
+        };
+        queue.setMetrics(metrics);
+        return queue;
+    }
+
+
+    // The queue feeding the session recorder. Guarded by observerSync.
+    private volatile GpsObserverQueue recorderQueue;
+    private GpsSessionRecorder recorder;
+
+    static final int RECORDER_QUEUE_CAPACITY = 1024;
+    private static final long RECORDER_DRAIN_TIMEOUT_MS = 5000;
+
+    /**
+     * Start recording every received byte to a session log. See GpsSessionRecorder.
      *
-     * @param data the data to send
+     * The recorder writes on its own thread through a BLOCK queue, so nothing is lost unless
+     * writing falls more than RECORDER_QUEUE_CAPACITY chunks behind, in which case the Service
+     * Thread waits for it. Recording continues across connections until stopRecording.
+     *
+     * @param directory the directory to write the segments to
+     * @param sessionName the name the segment file names start with
      */
-    protected void sendData(final byte[] data) {
-        synchronized (stateSync) {
-            if (state != State.CONNECTED) throw new NotYetConnectedException();
+    protected void startRecording(File directory, String sessionName){
+        final GpsSessionRecorder newRecorder = new GpsSessionRecorder(directory, sessionName) {
+            @Override
+            protected void onRecordingError(IOException e) {
+                Log.d(TAG, "recording stopped", e);
+            }
+        };
+        synchronized (observerSync) {
+            if (recorder != null) throw new IllegalStateException("Already recording");
+            GpsObserverQueue queue = newQueue(newRecorder, GpsObserverQueue.OverflowPolicy.BLOCK,
+                    RECORDER_QUEUE_CAPACITY, newRecorder, null);
+            queue.start();
+            recorder = newRecorder;
+            recorderQueue = queue;
         }
-        if(data == null || data.length == 0)
-            return;
+    }
+
+    /**
+     * Stop recording. Everything received so far is written before this returns.
+     */
+    protected void stopRecording(){
+        GpsSessionRecorder oldRecorder;
+        GpsObserverQueue oldQueue;
+        synchronized (observerSync) {
+            oldRecorder = recorder;
+            oldQueue = recorderQueue;
+            recorder = null;
+            recorderQueue = null;
+        }
+        if (oldRecorder == null) return;
+        if (!oldQueue.awaitEmpty(RECORDER_DRAIN_TIMEOUT_MS)) {
+            Log.d(TAG, "recording stopped before all data was written");
+        }
+        oldQueue.stop();
         try {
-            outStream.write(data);   // send data to Bad Elf Device
-        } catch (IOException | NullPointerException e) {
-            // Errors will cause us to disconnect
-            // We will not propagate the errors here. The calls to onStateChanged will be the
-            // notification of the error.
-            try {
-                disconnect();
-            } catch (NotYetConnectedException ignore) {
-                // If the IOException or NullPointerException was caused because we are
-                // disconnecting, then calling disconnect will throw NotYetConnectedException
-                // that we don't want to propagate.
-            }
+            oldRecorder.close();
+        } catch (IOException e) {
+            Log.d(TAG, "stopRecording", e);
         }
     }
 
-    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+    /**
+     * Get the active session recorder, for its counters
+     *
+     * @return the recorder, or null if not recording
+     */
+    protected GpsSessionRecorder getRecorder(){
+        synchronized (observerSync) {
+            return recorder;
+        }
+    }
 
-    private final ScheduledExecutorService sch = Executors.newSingleThreadScheduledExecutor();
+    // The received data for the stream server's clients. Written by the Service Thread.
+    private final GpsStreamRing streamRing = new GpsStreamRing();
+    private volatile GpsStreamServer streamServer; // Guarded by observerSync
 
     /**
-     * This is the runnable for the Service Thread.
+     * Start re-broadcasting the received data to TCP clients. See GpsStreamServer.
      *
-     * When a connection to the Bad Elf Device is requested the BadElfService is started which
-     * starts this runnable. It attempts to connect to the device and then runs until
-     * disconnect. It then cleans up and exits.
+     * The Service Thread copies each chunk into a ring once and the server writes every client's
+     * data from it, so no client can hold up the Bad Elf Device.
      *
+     * @param port the port to listen on, or 0 for any free port
+     * @return the port the server is listening on
+     * @throws IOException if the port can't be opened
      */
-    private final Runnable runnable = new Runnable() {
-        @Override
-        public void run() {
+    protected int startStreamServer(int port) throws IOException {
+        synchronized (observerSync) {
+            if (streamServer != null) throw new IllegalStateException("Already streaming");
+            GpsStreamServer server = new GpsStreamServer(streamRing, port);
+            server.start();
+            streamServer = server;
+            return server.getPort();
+        }
+    }
 
-            Log.d(TAG, "Service Thread Starting");
-            ScheduledFuture<?> pingFuture = null;
-            PowerManager.WakeLock wakeLock = null;
+    /**
+     * Stop re-broadcasting and disconnect the clients
+     */
+    protected void stopStreamServer() {
+        GpsStreamServer server;
+        synchronized (observerSync) {
+            server = streamServer;
+            streamServer = null;
+        }
+        if (server != null) server.stop();
+    }
 
-            try {
-                // Keep the CPU on while we are connected to the Bad Elf Device
-                PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-                wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-                wakeLock.acquire();
-
-                // Attempt connect to the Device
-                BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
-                socket = device.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
-                socket.connect();// This blocks until it succeeds or throws an exception
-                InputStream inStream = socket.getInputStream();
-                outStream = socket.getOutputStream();
-                // Connection succeeded
-
-                synchronized (stateSync) {
-                    if (state != State.CONNECTING) { // this happens if disconnect is called while connecting
-                        return;
-                    }
-                    setState(State.CONNECTED);
-                }
+    /**
+     * Get the stream server, for its clients' throughput and lag
+     *
+     * @return the server, or null if not streaming
+     */
+    protected GpsStreamServer getStreamServer() {
+        return streamServer;
+    }
 
-                // Call pingTask every 500 milli seconds because of an Android bug
-                pingFuture = sch.scheduleAtFixedRate(pingTask, 2000, 500, TimeUnit.MILLISECONDS);
+    /**
+     * Add an observer of the first session's decoded NMEA sentences, or change the sentence
+     * types of an observer that was already added.
+     *
+     * A new observer gets a COALESCE_LATEST_FIX queue of the default capacity.
+     *
+     * @param observer an instance that implements BadElfGpsFixObserver
+     * @param sentenceTypes a combination of the NmeaParser.TYPE_ values to receive
+     */
+    protected void addFixObserver(BadElfGpsFixObserver observer, int sentenceTypes){
+        getDefaultSession().addFixObserver(observer, sentenceTypes);
+    }
 
+    /**
+     * Add an observer of the first session's decoded NMEA sentences, or change the sentence
+     * types of an observer that was already added. The policy and capacity of an observer that
+     * was already added are not changed.
+     *
+     * @param observer an instance that implements BadElfGpsFixObserver
+     * @param sentenceTypes a combination of the NmeaParser.TYPE_ values to receive
+     * @param policy what to do with decoded sentences when the observer falls behind
+     * @param capacity the number of sentences and epochs that can be waiting for the observer
+     */
+    protected void addFixObserver(BadElfGpsFixObserver observer, int sentenceTypes,
+                                  GpsObserverQueue.OverflowPolicy policy, int capacity){
+        getDefaultSession().addFixObserver(observer, sentenceTypes, policy, capacity);
+    }
 
-                byte[] buffer = new byte[1024];
-                int bytesRead;
+    /**
+     * Remove an observer of decoded NMEA sentences
+     *
+     * @param observer an instance that implements BadElfGpsFixObserver
+     */
+    protected void removeFixObserver(BadElfGpsFixObserver observer){
+        getDefaultSession().removeFixObserver(observer);
+    }
 
-                // read from the InputStream until an exception occurs or until read returns -1
-                // or until the thread is interrupted.
-                while (-1 != (bytesRead = inStream.read(buffer)) && ! Thread.interrupted()  ) {
+    /**
+     * Get the queue that delivers to a fix observer, for its counters
+     *
+     * @param observer a fix observer that was added
+     * @return the queue, or null if the observer was not added
+     */
+    protected GpsObserverQueue getFixObserverQueue(BadElfGpsFixObserver observer){
+        return getDefaultSession().getFixObserverQueue(observer);
+    }
 
-                    byte[] data = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, data, 0, bytesRead);
-                    // Send The received data to any observers
-                    for (BadElfGpsConnectionObserver observer : observers) {
-                        try {
-                            observer.onDataReceived(data);
-                        } catch (RuntimeException e) {
-                            // don't let observer errors stop us
-                            Log.d(TAG, "observer.onDataReceived", e);
-                        }
-                    }
-                }
+    /**
+     * Set how long an epoch waits for missing sentences before it is passed to onEpoch
+     *
+     * @param timeoutMs the timeout in milliseconds
+     */
+    protected void setEpochTimeout(long timeoutMs){
+        getDefaultSession().setEpochTimeout(timeoutMs);
+    }
 
-            } catch (IOException ignore) {
-                // nothing to do here, the finally clauses will clean everything up
+    /**
+     * Set how hard the receiver may accelerate, which sets how much onSmoothedFix smooths
+     *
+     * @param horizontal the standard deviation of the horizontal acceleration in m/s^2
+     * @param vertical the standard deviation of the vertical acceleration in m/s^2
+     */
+    protected void setSmoothing(double horizontal, double vertical){
+        getDefaultSession().setSmoothing(horizontal, vertical);
+    }
 
-            } finally {
-                Log.d(TAG, "Service Thread finally");
-                // Disconnected (or failed to connect)- Shut Everything Down
+    /**
+     * Set the first session's keepalive interval, see BadElfDeviceSession.setKeepaliveInterval
+     *
+     * @param intervalMs the interval, or 0 for no keepalive
+     */
+    protected void setKeepaliveInterval(long intervalMs){
+        getDefaultSession().setKeepaliveInterval(intervalMs);
+    }
 
+    /**
+     * Set what the first session does when its link drops, see
+     * BadElfDeviceSession.setReconnectPolicy
+     *
+     * @param policy the policy, or null to go Idle
+     */
+    protected void setReconnectPolicy(GpsReconnectPolicy policy){
+        getDefaultSession().setReconnectPolicy(policy);
+    }
 
-                if(pingFuture != null){
-                    pingFuture.cancel(false);
-                }
-                if(socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException ignore) {
-                        // This exception can be safely ignored because we just we are done with the socket
-                    }
-                    socket = null;
-                }
-                outStream = null;
+    /**
+     * Get the metrics of every session: what was received, how it parsed and how quickly the
+     * observers were given it. Take a snapshot to read them.
+     *
+     * @return the registry
+     */
+    protected GpsMetrics getMetrics(){
+        return metrics;
+    }
 
-                stopSelf();  // stop service. It will be destroyed if no one is bound to it.
+    /**
+     * Log a line of metrics at a fixed interval, see GpsMetrics.Snapshot.format
+     *
+     * @param intervalMs the interval, or 0 to stop logging
+     */
+    protected void setMetricsDumpInterval(long intervalMs){
+        if (intervalMs < 0) throw new IllegalArgumentException("intervalMs < 0");
+        if (intervalMs == 0) {
+            metrics.stopDump();
+        } else {
+            metrics.startDump(intervalMs);
+        }
+    }
 
-                synchronized (stateSync) {
-                    if(state == State.CONNECTING){
-                        Log.d(TAG, "Failed to connect.");
-                    }
-                    setState(State.IDLE);
-                }
+    /**
+     * Get the state of the first session's connection.
+     *
+     * @return the state of the connection
+     *
+     */
+    protected State getState() {
+        return getDefaultSession().getState();
+    }
 
-                if(wakeLock != null){
-                    wakeLock.release(); // let the CPU sleep
-                }
-                Log.d(TAG,"Service Thread Exiting");
+    /**
+     * Set the Bad Elf Device of the first session.
+     *
+     * The Bad Elf Device can only be changed when the session state is Idle
+     *
+     * @param badElfDevice the Bad Elf Device
+     */
+    protected void setBadElfDevice(BadElfDevice badElfDevice) {
+        getDefaultSession().setBadElfDevice(badElfDevice);
+    }
 
-                serviceThread = null;
-            }
-        }
+    /**
+     * Set the transport the first session uses to talk to the Bad Elf Device.
+     *
+     * setBadElfDevice sets an RfcommTransport. This can be used instead to run the service over
+     * TCP, a file replay or an in-memory loopback. The transport can only be changed when the
+     * session state is Idle.
+     *
+     * @param newTransport the transport
+     */
+    protected void setTransport(GpsTransport newTransport) {
+        getDefaultSession().setTransport(newTransport);
+    }
+
+    /**
+     * Let a remote controller's clients drive this service
+     *
+     * @param remoteController the controller
+     */
+    protected void setBadElfRemoteController(BadElfRemoteController remoteController) {
+        if (this.remoteController != null) this.remoteController.setTarget(null);
+        this.remoteController = remoteController;
+        if (remoteController != null) remoteController.setTarget(remoteTarget);
+    }
+
+    // Carries out the remote controller's commands
+    private final BadElfRemoteController.Target remoteTarget = new BadElfRemoteController.Target() {
+        @Override public void setBadElfDevice(BadElfDevice badElfDevice) { BadElfService.this.setBadElfDevice(badElfDevice); }
+        @Override public void connect()                                  { BadElfService.this.connect();                     }
+        @Override public void disconnect()                               { BadElfService.this.disconnect();                  }
+        @Override public void requestConfiguration(int rate, boolean includeSatellites) { BadElfService.this.requestConfiguration(rate, includeSatellites); }
+        @Override public State getState()                                { return BadElfService.this.getState();             }
     };
 
 
+    /**
+     * Connect the first session to its Bad Elf Device
+     *
+     * This will start the service which will continue to run until every session has
+     * disconnected or failed.
+     */
+    protected void connect() {
+        getDefaultSession().connect();
+    }
+
+    /**
+     * Disconnect the first session
+     */
+    protected void disconnect() {
+        getDefaultSession().disconnect();
+    }
+
+    /**
+     * Send data to the first session's Bad Elf Device
+     *
+     * @param data the data to send
+     */
+    protected void sendData(final byte[] data) {
+        getDefaultSession().sendData(data);
+    }
 
-    static final byte[] pingJunk = {0};
+    /**
+     * Send part of an array to the first session's Bad Elf Device
+     *
+     * @param data the data to send
+     * @param offset the index of the first byte to send
+     * @param length the number of bytes to send
+     */
+    protected void sendData(final byte[] data, int offset, int length) {
+        getDefaultSession().sendData(data, offset, length);
+    }
 
     /**
-     *  Send junk data to the Bad Elf Device because of an Android bug
+     * Ask the first session's Bad Elf Device for a data rate and whether to include satellite
+     * data
      *
-     *  https://code.google.com/p/android/issues/detail?id=66177
+     * @param rate the number of fixes per second, 1 to 255
+     * @param includeSatellites if true the device will send satellite data
+     */
+    protected void requestConfiguration(int rate, boolean includeSatellites) {
+        getDefaultSession().requestConfiguration(rate, includeSatellites);
+    }
+
+    /**
+     * Called by a session after it has started connecting, to keep the service running
      *
-     *  Android sends sniff mode request on a busy rfcomm connection
+     * @param session the session
+     */
+    void onSessionStarted(BadElfDeviceSession session) {
+        Context appContext = this.getApplicationContext();
+        appContext.startService(new Intent(appContext, BadElfService.class)); // start service
+    }
+
+    /**
+     * Called on a session's reader thread for each chunk of received data. The first session's
+     * data is recorded and re-broadcast.
      *
-     *  Suspected cause:
-     *     Android only monitors the tx channel to determine if a connection is busy. Since we
-     *     mostly only receive data from the Bad Elf Device, but rarely send any data, Android
-     *     makes the wrong conclusion.
+     * @param session the session
+     * @param chunk the received data
+     */
+    void onSessionData(BadElfDeviceSession session, GpsDataChunk chunk) {
+        if (session != sessions[0]) return;
+        // Record before anything else
+        GpsObserverQueue activeRecorderQueue = recorderQueue;
+        if (activeRecorderQueue != null) {
+            activeRecorderQueue.onChunkReceived(chunk);
+        }
+        // One copy for every stream client
+        if (streamServer != null) {
+            streamRing.onChunkReceived(chunk);
+        }
+    }
+
+    /**
+     * Called on a session's reader thread after it has gone back to Idle
      *
-     *  Workaround:
-     *     Send junk data every ~500ms to Bad Elf device to prevent Android Device from commanding
-     *     sniff mode.
+     * @param session the session
+     */
+    void onSessionEnded(BadElfDeviceSession session) {
+        if (session == sessions[0]) {
+            final GpsObserverQueue activeRecorderQueue = recorderQueue;
+            if (activeRecorderQueue != null) {
+                activeRecorderQueue.post(flushRecorderTask); // write what this connection recorded
+            }
+        }
+        for (BadElfDeviceSession other : sessions) {
+            if (other.getState() != State.IDLE) return;
+        }
+        stopSelf();  // stop service. It will be destroyed if no one is bound to it.
+    }
+
+    /**
+     * Runs on the recorder's queue thread when a connection ends
      */
-    private final Runnable pingTask = new Runnable() {
+    private final Runnable flushRecorderTask = new Runnable() {
         @Override
         public void run() {
-//            try {
-//                outStream.write(data);   // send data to Bad Elf Device
-//            } catch (IOException | NullPointerException e) {
-//                // Errors will cause us to disconnect
-//                // We will not propagate the errors here. The calls to onStateChanged will be the
-//                // notification of the error.
-//                try {
-//                    disconnect();
-//                } catch (NotYetConnectedException ignore) {
-//                    // If the IOException or NullPointerException was caused because we are
-//                    // disconnecting, then calling disconnect will throw NotYetConnectedException
-//                    // that we don't want to propagate.
-//                }
-//            }
+            GpsSessionRecorder activeRecorder = getRecorder();
+            if (activeRecorder == null) return;
+            try {
+                activeRecorder.flush();
+            } catch (IOException e) {
+                Log.d(TAG, "recorder flush", e);
+            }
         }
     };
 }
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * GpsTransport that plays back a file of raw bytes captured from a Bad Elf Device.
+ *
+ * The file is delivered at a fixed byte rate, or as fast as it can be read when the rate is 0.
+ * Anything written to the transport is discarded. The end of the file is the end of the stream.
+ *
+ */
+public class FileReplayTransport implements GpsTransport {
+
+    private final File file;
+    private final int bytesPerSecond;
+    private volatile InputStream inStream;
+    private long startNanos;
+    private long bytesDelivered;
+
+    /**
+     * Construct a FileReplayTransport that replays as fast as possible
+     *
+     * @param file the file to replay
+     */
+    public FileReplayTransport(File file) {
+        this(file, 0);
+    }
+
+    /**
+     * Construct a FileReplayTransport
+     *
+     * @param file the file to replay
+     * @param bytesPerSecond the playback rate, or 0 to replay as fast as possible
+     */
+    public FileReplayTransport(File file, int bytesPerSecond) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("bytesPerSecond < 0");
+        this.file = file;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public void open() throws IOException {
+        inStream = new FileInputStream(file);
+        startNanos = System.nanoTime();
+        bytesDelivered = 0;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        InputStream in = inStream;
+        if (in == null) throw new IOException("Transport not open");
+        if (bytesPerSecond > 0) {
+            // Hand out roughly 10 ms worth of data per read, and wait until it is due
+            length = Math.min(length, Math.max(1, bytesPerSecond / 100));
+            long dueNanos = startNanos + bytesDelivered * 1000000000L / bytesPerSecond;
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Restore the interrupted status
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        int bytesRead = in.read(buffer, offset, length);
+        if (bytesRead > 0) {
+            bytesDelivered += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (inStream == null) throw new IOException("Transport not open");
+        // A recording can't answer, so the data is dropped
+    }
+
+    @Override
+    public void close() throws IOException {
+        InputStream in = inStream;
+        inStream = null;
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Collects GpsSessionStats for many recorded sessions on several threads, for post-processing
+ * a day of recordings on a workstation.
+ *
+ * Each session is split into parts of CHUNK_ENTRIES index entries, about
+ * CHUNK_ENTRIES * GpsSessionIndex.INTERVAL_FIXES fixes. An index entry is an epoch boundary with
+ * the assembler state saved, so every part decodes exactly the fixes one pass over the session
+ * would, and no sentence or epoch is split between two parts. The parts of all sessions are
+ * decoded by a fixed pool of threads, each with its own GpsSessionLog, and the results are
+ * merged in session order, so they do not depend on the number of threads or on scheduling.
+ *
+ * Sessions are split with their index, which GpsSessionRecorder writes while recording. A
+ * session without one is indexed first, which is a pass over the whole session.
+ *
+ */
+public class GpsBatchProcessor {
+
+    /** The number of index entries decoded by one task */
+    public static final int CHUNK_ENTRIES = 50;
+    /** The default longest time between two fixes that is not a gap */
+    public static final long DEFAULT_GAP_THRESHOLD_MS = 2000;
+
+    private final int threadCount;
+    private volatile long gapThresholdMillis = DEFAULT_GAP_THRESHOLD_MS;
+
+    /**
+     * Construct a GpsBatchProcessor
+     *
+     * @param threadCount the number of threads, for example Runtime.availableProcessors()
+     */
+    public GpsBatchProcessor(int threadCount) {
+        if (threadCount <= 0) throw new IllegalArgumentException("threadCount <= 0");
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Set the longest time between two fixes that is not counted as a gap
+     *
+     * @param gapThresholdMillis the time in milliseconds
+     */
+    public void setGapThresholdMillis(long gapThresholdMillis) {
+        if (gapThresholdMillis < 0) throw new IllegalArgumentException("gapThresholdMillis < 0");
+        this.gapThresholdMillis = gapThresholdMillis;
+    }
+
+    /**
+     * Find the sessions recorded in a directory
+     *
+     * @param directory the directory
+     * @return the session names, sorted
+     */
+    public static List<String> findSessions(File directory) {
+        final String firstSegment = "-00000" + GpsSessionRecorder.SEGMENT_SUFFIX;
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(firstSegment);
+            }
+        });
+        List<String> names = new ArrayList<String>();
+        if (files == null) return names;
+        for (File file : files) {
+            String name = file.getName();
+            names.add(name.substring(0, name.length() - firstSegment.length()));
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Collect the statistics of sessions on this processor's threads
+     *
+     * @param directory the directory of the sessions
+     * @param sessionNames the names of the sessions
+     * @return the statistics of each session, in the order of sessionNames
+     * @throws IOException if a session can't be read, or the thread is interrupted
+     */
+    public List<GpsSessionStats> process(final File directory, List<String> sessionNames) throws IOException {
+        final long gapThreshold = gapThresholdMillis;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            // Load or build the indexes
+            List<Future<GpsSessionIndex>> indexes = new ArrayList<Future<GpsSessionIndex>>(sessionNames.size());
+            for (final String name : sessionNames) {
+                indexes.add(executor.submit(new Callable<GpsSessionIndex>() {
+                    @Override
+                    public GpsSessionIndex call() throws IOException {
+                        return GpsSessionIndex.open(directory, name);
+                    }
+                }));
+            }
+
+            // Decode every part of every session
+            List<List<Future<GpsSessionStats>>> parts = new ArrayList<List<Future<GpsSessionStats>>>(sessionNames.size());
+            for (int s = 0; s < sessionNames.size(); s++) {
+                final String name = sessionNames.get(s);
+                final GpsSessionIndex index = get(indexes.get(s));
+                List<Future<GpsSessionStats>> sessionParts = new ArrayList<Future<GpsSessionStats>>();
+                for (int entry = 0; entry < index.getEntryCount(); entry += CHUNK_ENTRIES) {
+                    final long firstFix = index.getFixNumber(entry);
+                    final long fixCount = entry + CHUNK_ENTRIES < index.getEntryCount()
+                            ? index.getFixNumber(entry + CHUNK_ENTRIES) - firstFix
+                            : Long.MAX_VALUE - firstFix; // to the end of the log
+                    sessionParts.add(executor.submit(new Callable<GpsSessionStats>() {
+                        @Override
+                        public GpsSessionStats call() throws IOException {
+                            return decodePart(directory, name, index, firstFix, fixCount, gapThreshold);
+                        }
+                    }));
+                }
+                parts.add(sessionParts);
+            }
+
+            // Merge in order
+            List<GpsSessionStats> results = new ArrayList<GpsSessionStats>(sessionNames.size());
+            for (int s = 0; s < sessionNames.size(); s++) {
+                GpsSessionStats stats = new GpsSessionStats(sessionNames.get(s), gapThreshold);
+                for (Future<GpsSessionStats> part : parts.get(s)) {
+                    stats.merge(get(part));
+                }
+                results.add(stats);
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Collect the statistics of one session in one pass on the calling thread, without its index
+     *
+     * @param directory the directory of the session
+     * @param sessionName the name of the session
+     * @return the statistics
+     * @throws IOException if the session can't be read
+     */
+    public GpsSessionStats processSession(File directory, String sessionName) throws IOException {
+        final GpsSessionStats stats = new GpsSessionStats(sessionName, gapThresholdMillis);
+        new GpsSessionLog(directory, sessionName).decodeFixes(new GpsSessionIndex.FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                stats.add(fix);
+                return true;
+            }
+        });
+        return stats;
+    }
+
+    private static GpsSessionStats decodePart(File directory, String sessionName, GpsSessionIndex index,
+                                              long firstFix, long fixCount, long gapThreshold) throws IOException {
+        final GpsSessionStats stats = new GpsSessionStats(sessionName, gapThreshold);
+        index.queryFixes(new GpsSessionLog(directory, sessionName), firstFix, fixCount,
+                new GpsSessionIndex.FixListener() {
+                    @Override
+                    public boolean onFix(long fixNumber, GpsFix fix) {
+                        stats.add(fix);
+                        return true;
+                    }
+                });
+        return stats;
+    }
+
+    /**
+     * Wait for a task, rethrowing what it threw
+     */
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore the interrupted status
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
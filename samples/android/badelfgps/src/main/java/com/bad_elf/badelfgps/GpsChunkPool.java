@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A pool of GpsDataChunks.
+ *
+ * When no observer retains chunks the same chunk is handed out over and over, so receiving data
+ * does not allocate. Chunks retained by observers are replaced by new ones, and up to
+ * maxPooled of them are kept when they are released. Any beyond that are left to the garbage
+ * collector.
+ *
+ */
+final class GpsChunkPool {
+
+    private final int chunkCapacity;
+    private final GpsDataChunk[] free;
+    private int freeCount;
+    private long allocated;
+
+    /**
+     * Construct a GpsChunkPool
+     *
+     * @param chunkCapacity the size in bytes of every chunk
+     * @param maxPooled the maximum number of idle chunks to keep
+     */
+    GpsChunkPool(int chunkCapacity, int maxPooled) {
+        if (chunkCapacity <= 0) throw new IllegalArgumentException("chunkCapacity <= 0");
+        if (maxPooled <= 0) throw new IllegalArgumentException("maxPooled <= 0");
+        this.chunkCapacity = chunkCapacity;
+        this.free = new GpsDataChunk[maxPooled];
+    }
+
+    /**
+     * Get an empty chunk. The caller holds the only reference and must release it.
+     *
+     * @return the chunk
+     */
+    GpsDataChunk acquire() {
+        GpsDataChunk chunk = null;
+        synchronized (this) {
+            if (freeCount > 0) {
+                chunk = free[--freeCount];
+                free[freeCount] = null;
+            } else {
+                allocated++;
+            }
+        }
+        if (chunk == null) {
+            chunk = new GpsDataChunk(this, chunkCapacity);
+        }
+        chunk.acquired();
+        return chunk;
+    }
+
+    /**
+     * Return a chunk whose last reference has been released
+     *
+     * @param chunk the chunk
+     */
+    synchronized void recycle(GpsDataChunk chunk) {
+        if (freeCount < free.length) {
+            free[freeCount++] = chunk;
+        }
+    }
+
+    /**
+     * Get the number of chunks this pool has created
+     *
+     * @return the number of chunks created
+     */
+    synchronized long getAllocatedCount() {
+        return allocated;
+    }
+
+    /**
+     * Get the capacity of the chunks in this pool
+     *
+     * @return the chunk capacity in bytes
+     */
+    int getChunkCapacity() {
+        return chunkCapacity;
+    }
+}
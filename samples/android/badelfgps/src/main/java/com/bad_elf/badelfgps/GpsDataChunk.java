@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read-only view of one chunk of data received from a Bad Elf Device.
+ *
+ * Chunks are pooled and reused by GpsStreamReader. A chunk is only valid for the duration of
+ * the callback it is passed to. An observer that needs the data later must either copy it or
+ * call retain, and then call release exactly once when it is done with the chunk.
+ *
+ */
+public final class GpsDataChunk {
+
+    final byte[] data;
+    int length;
+    long receivedNanos;
+    int deviceId;
+    private final GpsChunkPool pool;
+    private final AtomicInteger references = new AtomicInteger();
+
+    /**
+     * Construct a GpsDataChunk. Only GpsChunkPool creates chunks.
+     *
+     * @param pool the pool the chunk returns to when released
+     * @param capacity the maximum number of bytes the chunk can hold
+     */
+    GpsDataChunk(GpsChunkPool pool, int capacity) {
+        this.pool = pool;
+        this.data = new byte[capacity];
+    }
+
+    /**
+     * Get the number of received bytes in the chunk
+     *
+     * @return the length
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Get the time the chunk was received
+     *
+     * @return System.nanoTime() when the read returned, or when replayed data was passed on
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Get the device the chunk was received from, when BadElfService has several sessions
+     *
+     * @return the device ID of the session, see BadElfDeviceSession.getDeviceId
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Get one received byte
+     *
+     * @param index the index of the byte, from 0 to length() - 1
+     * @return the byte
+     */
+    public byte get(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException("index " + index + " length " + length);
+        return data[index];
+    }
+
+    /**
+     * Copy received bytes into an array
+     *
+     * @param srcOffset the index of the first byte in the chunk to copy
+     * @param dst the destination array
+     * @param dstOffset the index in dst to copy to
+     * @param count the number of bytes to copy
+     */
+    public void copyTo(int srcOffset, byte[] dst, int dstOffset, int count) {
+        if (srcOffset < 0 || count < 0 || srcOffset + count > length) throw new IndexOutOfBoundsException();
+        System.arraycopy(data, srcOffset, dst, dstOffset, count);
+    }
+
+    /**
+     * Copy the received bytes into a new array
+     *
+     * @return a new array holding the received bytes
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Get a read-only ByteBuffer over the received bytes.
+     *
+     * Every call returns a new buffer with its own position and limit, so observers on
+     * different delivery threads can read the same chunk at once. The buffer is only valid while
+     * the chunk is.
+     *
+     * @return the read-only buffer, from position 0 to length()
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        return ByteBuffer.wrap(data, 0, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Keep the chunk after the callback returns.
+     *
+     * Each call must be matched by a call to release.
+     *
+     * @return this chunk
+     */
+    public GpsDataChunk retain() {
+        if (references.getAndIncrement() <= 0) {
+            references.getAndDecrement();
+            throw new IllegalStateException("retain of a released GpsDataChunk");
+        }
+        return this;
+    }
+
+    /**
+     * Give up a reference taken with retain. The chunk must not be used afterwards.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            length = 0;
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("GpsDataChunk released too many times");
+        }
+    }
+
+    /**
+     * Called by GpsChunkPool when handing out the chunk. The caller holds the only reference.
+     */
+    void acquired() {
+        references.set(1);
+    }
+}
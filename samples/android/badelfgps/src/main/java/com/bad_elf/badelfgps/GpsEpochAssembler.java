@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Merges the GGA, RMC and GST sentences of each measurement epoch into one GpsFix.
+ *
+ * Sentences are grouped by their UTC time of fix. An epoch is emitted as soon as it holds every
+ * sentence type the receiver sent in the previous epoch, so a receiver without GST (or one set
+ * to skip it) is handled without configuration. An epoch is also emitted, incomplete, when a
+ * sentence for a later time arrives or when checkTimeout finds it has been pending too long.
+ * Sentences that arrive for an epoch that was already emitted are dropped.
+ *
+ * Connect it to an NmeaParser as its listener, or call onGga, onRmc and onGst directly.
+ * It is not thread safe.
+ *
+ */
+public class GpsEpochAssembler extends NmeaParser.ListenerAdapter {
+
+    /** The sentence types an epoch is assembled from */
+    public static final int EPOCH_TYPES = NmeaParser.TYPE_GGA | NmeaParser.TYPE_RMC | NmeaParser.TYPE_GST;
+
+    private static final long DEFAULT_TIMEOUT_MS = 500;
+
+    /**
+     * Receives the assembled fixes
+     */
+    public interface Listener {
+
+        /**
+         * Called once per epoch
+         *
+         * The fix is reused after this returns unless it is retained.
+         *
+         * @param fix the consolidated fix
+         */
+        void onEpoch(GpsFix fix);
+    }
+
+    private final Listener listener;
+    private final GpsFixPool pool = new GpsFixPool(8);
+    private GpsFix pending;
+    private volatile long timeoutNanos = DEFAULT_TIMEOUT_MS * 1000000L;
+    private int requiredTypes;       // 0 means learn them from the previous epoch
+    private int learnedTypes;        // types seen in the last emitted epoch
+    private int lastEmittedTime = -1;
+    private int lastDate = -1;
+    private int lastDateTime = -1;   // time of day of the RMC that gave lastDate
+    private long epochCount;
+    private long incompleteEpochCount;
+    private long lateSentenceCount;
+
+    /**
+     * Construct a GpsEpochAssembler
+     *
+     * @param listener the listener for assembled fixes
+     */
+    public GpsEpochAssembler(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set how long an epoch may wait for its remaining sentences before checkTimeout emits it
+     *
+     * @param timeoutMs the timeout in milliseconds
+     */
+    public void setTimeoutMillis(long timeoutMs) {
+        if (timeoutMs <= 0) throw new IllegalArgumentException("timeoutMs <= 0");
+        timeoutNanos = timeoutMs * 1000000L;
+    }
+
+    /**
+     * Set the sentence types an epoch needs to be complete
+     *
+     * @param types a combination of TYPE_GGA, TYPE_RMC and TYPE_GST, or 0 to learn the types from
+     *              the data (the default)
+     */
+    public void setRequiredTypes(int types) {
+        requiredTypes = types & EPOCH_TYPES;
+    }
+
+    @Override
+    public void onGga(NmeaGga gga) {
+        GpsFix fix = epochFor(gga.timeOfDay, NmeaParser.TYPE_GGA, gga.receivedNanos);
+        if (fix == null) return;
+        fix.latitude = gga.latitude;
+        fix.longitude = gga.longitude;
+        fix.altitude = gga.altitude;
+        fix.geoidSeparation = gga.geoidSeparation;
+        fix.quality = gga.quality;
+        fix.satellitesUsed = gga.satellitesUsed;
+        fix.hdop = gga.hdop;
+        completeIfReady();
+    }
+
+    @Override
+    public void onRmc(NmeaRmc rmc) {
+        if (rmc.date >= 0) {
+            lastDate = rmc.date;
+            lastDateTime = rmc.timeOfDay;
+        }
+        GpsFix fix = epochFor(rmc.timeOfDay, NmeaParser.TYPE_RMC, rmc.receivedNanos);
+        if (fix == null) return;
+        fix.date = rmc.date;
+        fix.valid = rmc.valid;
+        fix.speedKnots = rmc.speedKnots;
+        fix.course = rmc.course;
+        if ((fix.sentenceTypes & NmeaParser.TYPE_GGA) == 0) {
+            // GGA positions carry altitude and quality, so they win when both are present
+            fix.latitude = rmc.latitude;
+            fix.longitude = rmc.longitude;
+        }
+        completeIfReady();
+    }
+
+    @Override
+    public void onGst(NmeaGst gst) {
+        GpsFix fix = epochFor(gst.timeOfDay, NmeaParser.TYPE_GST, gst.receivedNanos);
+        if (fix == null) return;
+        fix.latitudeError = gst.latitudeError;
+        fix.longitudeError = gst.longitudeError;
+        fix.altitudeError = gst.altitudeError;
+        completeIfReady();
+    }
+
+    /**
+     * Emit the pending epoch if it has waited longer than the timeout
+     *
+     * @param nowNanos the current System.nanoTime()
+     */
+    public void checkTimeout(long nowNanos) {
+        if (pending != null && nowNanos - pending.receivedNanos >= timeoutNanos) {
+            emit();
+        }
+    }
+
+    /**
+     * Emit the pending epoch now, for example at the end of the stream
+     */
+    public void flush() {
+        if (pending != null) {
+            emit();
+        }
+    }
+
+    /**
+     * Drop the pending epoch and everything learned about the stream
+     */
+    public void reset() {
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+        learnedTypes = 0;
+        lastEmittedTime = -1;
+        lastDate = -1;
+        lastDateTime = -1;
+    }
+
+    /**
+     * Continue a stream part way through, in the state it was in after emitting an epoch. Used
+     * to start decoding a recorded session at an indexed position.
+     *
+     * @param lastEmittedTime the time of day of the last emitted epoch
+     * @param learnedTypes the sentence types of the last emitted epoch
+     * @param lastDate the date of the last RMC, or -1
+     * @param lastDateTime the time of day of the last RMC, or -1
+     */
+    void resume(int lastEmittedTime, int learnedTypes, int lastDate, int lastDateTime) {
+        reset();
+        this.lastEmittedTime = lastEmittedTime;
+        this.learnedTypes = learnedTypes;
+        this.lastDate = lastDate;
+        this.lastDateTime = lastDateTime;
+    }
+
+    /** @return the date of the last RMC, or -1 */
+    int getLastDate()                    { return lastDate;             }
+    /** @return the time of day of the last RMC with a date, or -1 */
+    int getLastDateTime()                { return lastDateTime;         }
+
+    /** @return the number of epochs emitted */
+    public long getEpochCount()          { return epochCount;           }
+    /** @return the number of epochs emitted without all the sentences they were waiting for */
+    public long getIncompleteEpochCount() { return incompleteEpochCount; }
+    /** @return the number of sentences dropped because their epoch was already emitted */
+    public long getLateSentenceCount()   { return lateSentenceCount;    }
+
+    /**
+     * Find the fix for a sentence, starting a new epoch when the time moves on
+     *
+     * @param timeOfDay the time of the sentence
+     * @param type the type of the sentence
+     * @param receivedNanos when the sentence was read, or 0 if it didn't come from an NmeaParser
+     * @return the fix to merge the sentence into, or null to drop the sentence
+     */
+    private GpsFix epochFor(int timeOfDay, int type, long receivedNanos) {
+        if (timeOfDay < 0) return null;
+        if (pending != null && pending.timeOfDay != timeOfDay) {
+            emit(); // the time moved on, nothing more is coming for the pending epoch
+        }
+        if (pending == null) {
+            if (timeOfDay == lastEmittedTime) {
+                // a straggler for an epoch that completed without it. Expect it next time.
+                learnedTypes |= type;
+                lateSentenceCount++;
+                return null;
+            }
+            pending = pool.acquire();
+            pending.timeOfDay = timeOfDay;
+            pending.receivedNanos = receivedNanos != 0 ? receivedNanos : System.nanoTime();
+        }
+        pending.sentenceTypes |= type;
+        return pending;
+    }
+
+    private void completeIfReady() {
+        int required = requiredTypes != 0 ? requiredTypes : learnedTypes;
+        if (required != 0 && (pending.sentenceTypes & required) == required) {
+            emit();
+        }
+    }
+
+    private void emit() {
+        GpsFix fix = pending;
+        pending = null;
+        int required = requiredTypes != 0 ? requiredTypes : learnedTypes;
+        if (required == 0 || (fix.sentenceTypes & required) != required) {
+            incompleteEpochCount++;
+        }
+        if (fix.date < 0 && lastDate >= 0 && fix.timeOfDay >= lastDateTime) {
+            fix.date = lastDate; // no RMC in this epoch, but still the same day as the last one
+        }
+        learnedTypes = fix.sentenceTypes;
+        lastEmittedTime = fix.timeOfDay;
+        epochCount++;
+        try {
+            listener.onEpoch(fix);
+        } finally {
+            fix.release(); // back to the pool unless the listener retained it
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One consolidated fix: the GGA, RMC and GST sentences of a single measurement epoch merged
+ * together.
+ *
+ * Fixes are pooled. A fix is only valid for the duration of the callback it is passed to. An
+ * observer that needs it later must either copy it with copyFrom or call retain, and then call
+ * release exactly once when done with it.
+ *
+ * Missing numeric values are NaN, missing integer values are -1.
+ *
+ */
+public final class GpsFix {
+
+    int sentenceTypes;
+    int timeOfDay;
+    int date;
+    double latitude;
+    double longitude;
+    double altitude;
+    double geoidSeparation;
+    int quality;
+    int satellitesUsed;
+    double hdop;
+    boolean valid;
+    double speedKnots;
+    double course;
+    double latitudeError;
+    double longitudeError;
+    double altitudeError;
+    long receivedNanos;
+    int deviceId;
+
+    private final GpsFixPool pool;
+    private final AtomicInteger references = new AtomicInteger();
+
+    /**
+     * Construct an unpooled GpsFix, for example to hold a copy of a fix
+     */
+    public GpsFix() {
+        this(null);
+        clear();
+    }
+
+    GpsFix(GpsFixPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Reset every value to missing
+     */
+    void clear() {
+        sentenceTypes = 0;
+        timeOfDay = -1;
+        date = -1;
+        latitude = Double.NaN;
+        longitude = Double.NaN;
+        altitude = Double.NaN;
+        geoidSeparation = Double.NaN;
+        quality = -1;
+        satellitesUsed = -1;
+        hdop = Double.NaN;
+        valid = false;
+        speedKnots = Double.NaN;
+        course = Double.NaN;
+        latitudeError = Double.NaN;
+        longitudeError = Double.NaN;
+        altitudeError = Double.NaN;
+        receivedNanos = 0;
+        deviceId = 0;
+    }
+
+    /**
+     * Copy all values from another fix
+     *
+     * @param other the fix to copy
+     */
+    public void copyFrom(GpsFix other) {
+        sentenceTypes = other.sentenceTypes;
+        timeOfDay = other.timeOfDay;
+        date = other.date;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        altitude = other.altitude;
+        geoidSeparation = other.geoidSeparation;
+        quality = other.quality;
+        satellitesUsed = other.satellitesUsed;
+        hdop = other.hdop;
+        valid = other.valid;
+        speedKnots = other.speedKnots;
+        course = other.course;
+        latitudeError = other.latitudeError;
+        longitudeError = other.longitudeError;
+        altitudeError = other.altitudeError;
+        receivedNanos = other.receivedNanos;
+        deviceId = other.deviceId;
+    }
+
+    /** @return the NmeaParser.TYPE_ values of the sentences merged into this fix */
+    public int getSentenceTypes()      { return sentenceTypes;   }
+    /** @return UTC time of the fix in milliseconds since midnight, or -1 */
+    public int getTimeOfDay()          { return timeOfDay;       }
+    /** @return UTC date as yyyymmdd, or -1 if no RMC has been received */
+    public int getDate()               { return date;            }
+    /** @return latitude in decimal degrees, negative for south */
+    public double getLatitude()        { return latitude;        }
+    /** @return longitude in decimal degrees, negative for west */
+    public double getLongitude()       { return longitude;       }
+    /** @return altitude above mean sea level in meters */
+    public double getAltitude()        { return altitude;        }
+    /** @return height of the geoid above the WGS84 ellipsoid in meters */
+    public double getGeoidSeparation() { return geoidSeparation; }
+    /** @return GGA fix quality: 0 no fix, 1 GPS, 2 DGPS/SBAS, 4 RTK fixed, 5 RTK float, 6 estimated */
+    public int getQuality()            { return quality;         }
+    /** @return number of satellites used in the fix */
+    public int getSatellitesUsed()     { return satellitesUsed;  }
+    /** @return horizontal dilution of precision */
+    public double getHdop()            { return hdop;            }
+    /** @return true if the RMC status was valid */
+    public boolean isValid()           { return valid;           }
+    /** @return speed over ground in knots */
+    public double getSpeedKnots()      { return speedKnots;      }
+    /** @return course over ground in degrees true */
+    public double getCourse()          { return course;          }
+    /** @return one-sigma latitude error in meters from GST */
+    public double getLatitudeError()   { return latitudeError;   }
+    /** @return one-sigma longitude error in meters from GST */
+    public double getLongitudeError()  { return longitudeError;  }
+    /** @return one-sigma altitude error in meters from GST */
+    public double getAltitudeError()   { return altitudeError;   }
+    /** @return System.nanoTime() when the data holding the first sentence of the epoch was read */
+    public long getReceivedNanos()     { return receivedNanos;   }
+    /** @return the device ID of the session the fix was received from */
+    public int getDeviceId()           { return deviceId;        }
+
+    /**
+     * Get the one-sigma horizontal error
+     *
+     * @return the root sum square of the latitude and longitude errors, or NaN without GST
+     */
+    public double getHorizontalError() {
+        return Math.sqrt(latitudeError * latitudeError + longitudeError * longitudeError);
+    }
+
+    /**
+     * Check whether the fix has a position
+     *
+     * @return true if latitude and longitude are present
+     */
+    public boolean hasPosition() {
+        return latitude == latitude && longitude == longitude;
+    }
+
+    /**
+     * Get the time of the fix as milliseconds since 1970-01-01 UTC
+     *
+     * @return the time, or -1 if the date is not known
+     */
+    public long getUtcMillis() {
+        return toUtcMillis(date, timeOfDay);
+    }
+
+    /**
+     * Convert an NMEA date and time of day to milliseconds since 1970-01-01 UTC
+     *
+     * @param date the date as yyyymmdd
+     * @param timeOfDay milliseconds since midnight
+     * @return the time, or -1 if either value is missing
+     */
+    static long toUtcMillis(int date, int timeOfDay) {
+        if (date < 0 || timeOfDay < 0) return -1;
+        int year = date / 10000;
+        int month = (date / 100) % 100;
+        int day = date % 100;
+        // days from civil, valid for the proleptic Gregorian calendar
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return days * 86400000L + timeOfDay;
+    }
+
+    /**
+     * Keep the fix after the callback returns.
+     *
+     * Each call must be matched by a call to release.
+     *
+     * @return this fix
+     */
+    public GpsFix retain() {
+        if (pool == null) return this;
+        if (references.getAndIncrement() <= 0) {
+            references.getAndDecrement();
+            throw new IllegalStateException("retain of a released GpsFix");
+        }
+        return this;
+    }
+
+    /**
+     * Give up a reference taken with retain. The fix must not be used afterwards.
+     */
+    public void release() {
+        if (pool == null) return;
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("GpsFix released too many times");
+        }
+    }
+
+    /**
+     * Called by GpsFixPool when handing out the fix. The caller holds the only reference.
+     */
+    void acquired() {
+        references.set(1);
+        clear();
+    }
+}
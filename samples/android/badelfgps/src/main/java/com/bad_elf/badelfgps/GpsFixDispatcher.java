@@ -0,0 +1,345 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Parses received data once and fans the decoded sentences out to BadElfGpsFixObservers.
+ *
+ * Each observer subscribes to a set of NmeaParser.TYPE_ values and optionally
+ * BadElfGpsFixObserver.TYPE_EPOCH and TYPE_SMOOTHED. The parser only decodes the types that
+ * somebody needs, and does nothing at all while there are no observers. The epochs are only
+ * smoothed while somebody subscribes to TYPE_SMOOTHED.
+ *
+ * parse must always be called from the same thread. Observers may be added and removed from
+ * any thread.
+ *
+ */
+class GpsFixDispatcher implements NmeaParser.Listener {
+
+    /**
+     * An immutable snapshot of the subscriptions, replaced as a whole on every change
+     */
+    private static final class Subscriptions {
+        final BadElfGpsFixObserver[] observers;
+        final int[] types;
+        final int enabledTypes;
+        final int parserTypes;
+        final boolean epochs;   // epochs are assembled, for TYPE_EPOCH or TYPE_SMOOTHED
+        final boolean smoothed;
+
+        Subscriptions(BadElfGpsFixObserver[] observers, int[] types) {
+            this.observers = observers;
+            this.types = types;
+            int union = 0;
+            for (int t : types) union |= t;
+            this.enabledTypes = union;
+            this.smoothed = (union & BadElfGpsFixObserver.TYPE_SMOOTHED) != 0;
+            this.epochs = smoothed || (union & BadElfGpsFixObserver.TYPE_EPOCH) != 0;
+            this.parserTypes = (union & NmeaParser.TYPE_ALL) | (epochs ? GpsEpochAssembler.EPOCH_TYPES : 0);
+        }
+    }
+
+    private static final int SUPPORTED_TYPES = NmeaParser.TYPE_GGA | NmeaParser.TYPE_RMC
+            | NmeaParser.TYPE_GSA | NmeaParser.TYPE_GSV | NmeaParser.TYPE_GST | NmeaParser.TYPE_VTG
+            | BadElfGpsFixObserver.TYPE_EPOCH | BadElfGpsFixObserver.TYPE_SMOOTHED;
+
+    private final NmeaParser parser = new NmeaParser(this);
+    private final GpsEpochAssembler assembler = new GpsEpochAssembler(new GpsEpochAssembler.Listener() {
+        @Override
+        public void onEpoch(GpsFix fix) {
+            fix.deviceId = deviceId;
+            Subscriptions s = current;
+            for (int i = 0; i < s.observers.length; i++) {
+                if ((s.types[i] & BadElfGpsFixObserver.TYPE_EPOCH) == 0) continue;
+                try {
+                    s.observers[i].onEpoch(fix);
+                } catch (RuntimeException e) {
+                    onObserverError(e);
+                }
+            }
+            if (s.smoothed) smooth(fix, s);
+        }
+    });
+    private final GpsKalmanFilter smoother = new GpsKalmanFilter();
+    private final GpsFixPool smoothedPool = new GpsFixPool(8);
+    private volatile Subscriptions subscriptions = new Subscriptions(new BadElfGpsFixObserver[0], new int[0]);
+    private Subscriptions current; // the snapshot used for the chunk being parsed
+    private boolean parsePackets;
+    private int deviceId;
+
+    /**
+     * Set the device ID the decoded records and fixes are tagged with
+     *
+     * @param deviceId the ID, see BadElfDeviceSession
+     */
+    void setDeviceId(int deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Add an observer, or change the types of an observer that was already added
+     *
+     * @param observer the observer
+     * @param types the NmeaParser.TYPE_ values to receive
+     */
+    synchronized void addObserver(BadElfGpsFixObserver observer, int types) {
+        types &= SUPPORTED_TYPES;
+        Subscriptions old = subscriptions;
+        int index = indexOf(old, observer);
+        BadElfGpsFixObserver[] observers;
+        int[] newTypes;
+        if (index >= 0) {
+            observers = old.observers;
+            newTypes = old.types.clone();
+            newTypes[index] = types;
+        } else {
+            int n = old.observers.length;
+            observers = new BadElfGpsFixObserver[n + 1];
+            newTypes = new int[n + 1];
+            System.arraycopy(old.observers, 0, observers, 0, n);
+            System.arraycopy(old.types, 0, newTypes, 0, n);
+            observers[n] = observer;
+            newTypes[n] = types;
+        }
+        subscriptions = new Subscriptions(observers, newTypes);
+    }
+
+    /**
+     * Remove an observer
+     *
+     * @param observer the observer
+     */
+    synchronized void removeObserver(BadElfGpsFixObserver observer) {
+        Subscriptions old = subscriptions;
+        int index = indexOf(old, observer);
+        if (index < 0) return;
+        int n = old.observers.length - 1;
+        BadElfGpsFixObserver[] observers = new BadElfGpsFixObserver[n];
+        int[] types = new int[n];
+        System.arraycopy(old.observers, 0, observers, 0, index);
+        System.arraycopy(old.observers, index + 1, observers, index, n - index);
+        System.arraycopy(old.types, 0, types, 0, index);
+        System.arraycopy(old.types, index + 1, types, index, n - index);
+        subscriptions = new Subscriptions(observers, types);
+    }
+
+    private static int indexOf(Subscriptions s, BadElfGpsFixObserver observer) {
+        for (int i = 0; i < s.observers.length; i++) {
+            if (s.observers[i].equals(observer)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether any observer is subscribed
+     *
+     * @return true if parse would do any work
+     */
+    boolean hasObservers() {
+        return subscriptions.enabledTypes != 0;
+    }
+
+    /**
+     * Filter an epoch and pass the smoothed fix to the TYPE_SMOOTHED observers
+     */
+    private void smooth(GpsFix fix, Subscriptions s) {
+        GpsFix smoothed = smoothedPool.acquire();
+        try {
+            if (!smoother.filter(fix, smoothed)) return;
+            for (int i = 0; i < s.observers.length; i++) {
+                if ((s.types[i] & BadElfGpsFixObserver.TYPE_SMOOTHED) == 0) continue;
+                try {
+                    s.observers[i].onSmoothedFix(smoothed);
+                } catch (RuntimeException e) {
+                    onObserverError(e);
+                }
+            }
+        } finally {
+            smoothed.release(); // back to the pool unless an observer retained it
+        }
+    }
+
+    /**
+     * Parse received data and notify the observers
+     *
+     * @param chunk the received data
+     */
+    void parse(GpsDataChunk chunk) {
+        Subscriptions s = subscriptions;
+        if (s.enabledTypes == 0 && !parsePackets) {
+            parser.reset(); // nobody is listening, so don't keep a stale partial sentence
+            return;
+        }
+        current = s;
+        parser.setEnabledTypes(s.parserTypes);
+        parser.parse(chunk);
+        if (s.epochs) {
+            assembler.checkTimeout(System.nanoTime());
+        }
+    }
+
+    /**
+     * Set the listener for the Bad Elf packets in the stream. While there is one the data is
+     * parsed even without observers. Must be called before the stream starts.
+     *
+     * @param packetListener the listener, or null
+     */
+    void setPacketListener(NmeaParser.PacketListener packetListener) {
+        parser.setPacketListener(packetListener);
+        parsePackets = packetListener != null;
+    }
+
+    /**
+     * Forget any partial sentence and pending epoch. Called when a new connection starts.
+     */
+    void reset() {
+        parser.reset();
+        assembler.reset();
+        smoother.reset();
+    }
+
+    /**
+     * Emit the pending epoch. Called at the end of the stream.
+     */
+    void flush() {
+        current = subscriptions;
+        assembler.flush();
+    }
+
+    /**
+     * Get the epoch assembler, to configure it
+     *
+     * @return the assembler
+     */
+    GpsEpochAssembler getAssembler() {
+        return assembler;
+    }
+
+    /**
+     * Get the filter of the smoothed fixes, to configure it
+     *
+     * @return the filter
+     */
+    GpsKalmanFilter getSmoother() {
+        return smoother;
+    }
+
+    /**
+     * Get the parser, for its error counters
+     *
+     * @return the parser
+     */
+    NmeaParser getParser() {
+        return parser;
+    }
+
+    /**
+     * Called when an observer throws. Observer errors must not stop the stream.
+     *
+     * @param e the exception
+     */
+    protected void onObserverError(RuntimeException e) {
+    }
+
+    @Override
+    public void onGga(NmeaGga gga) {
+        gga.deviceId = deviceId;
+        Subscriptions s = current;
+        for (int i = 0; i < s.observers.length; i++) {
+            if ((s.types[i] & NmeaParser.TYPE_GGA) == 0) continue;
+            try {
+                s.observers[i].onFix(gga);
+            } catch (RuntimeException e) {
+                onObserverError(e);
+            }
+        }
+        if (s.epochs) {
+            assembler.onGga(gga);
+        }
+    }
+
+    @Override
+    public void onRmc(NmeaRmc rmc) {
+        rmc.deviceId = deviceId;
+        Subscriptions s = current;
+        for (int i = 0; i < s.observers.length; i++) {
+            if ((s.types[i] & NmeaParser.TYPE_RMC) == 0) continue;
+            try {
+                s.observers[i].onNavigation(rmc);
+            } catch (RuntimeException e) {
+                onObserverError(e);
+            }
+        }
+        if (s.epochs) {
+            assembler.onRmc(rmc);
+        }
+    }
+
+    @Override
+    public void onGsa(NmeaGsa gsa) {
+        gsa.deviceId = deviceId;
+        Subscriptions s = current;
+        for (int i = 0; i < s.observers.length; i++) {
+            if ((s.types[i] & NmeaParser.TYPE_GSA) == 0) continue;
+            try {
+                s.observers[i].onActiveSatellites(gsa);
+            } catch (RuntimeException e) {
+                onObserverError(e);
+            }
+        }
+    }
+
+    @Override
+    public void onGsv(NmeaGsv gsv) {
+        gsv.deviceId = deviceId;
+        Subscriptions s = current;
+        for (int i = 0; i < s.observers.length; i++) {
+            if ((s.types[i] & NmeaParser.TYPE_GSV) == 0) continue;
+            try {
+                s.observers[i].onSatellites(gsv);
+            } catch (RuntimeException e) {
+                onObserverError(e);
+            }
+        }
+    }
+
+    @Override
+    public void onGst(NmeaGst gst) {
+        gst.deviceId = deviceId;
+        Subscriptions s = current;
+        for (int i = 0; i < s.observers.length; i++) {
+            if ((s.types[i] & NmeaParser.TYPE_GST) == 0) continue;
+            try {
+                s.observers[i].onErrorEstimate(gst);
+            } catch (RuntimeException e) {
+                onObserverError(e);
+            }
+        }
+        if (s.epochs) {
+            assembler.onGst(gst);
+        }
+    }
+
+    @Override
+    public void onVtg(NmeaVtg vtg) {
+        vtg.deviceId = deviceId;
+        Subscriptions s = current;
+        for (int i = 0; i < s.observers.length; i++) {
+            if ((s.types[i] & NmeaParser.TYPE_VTG) == 0) continue;
+            try {
+                s.observers[i].onCourse(vtg);
+            } catch (RuntimeException e) {
+                onObserverError(e);
+            }
+        }
+    }
+
+    @Override
+    public void onOtherSentence(NmeaSentence sentence) {
+        // not delivered to BadElfGpsFixObservers
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A pool of GpsFixes.
+ *
+ * Works like GpsChunkPool: while nobody retains fixes the same instance is reused for every
+ * epoch, and at most maxPooled released fixes are kept for reuse.
+ *
+ */
+final class GpsFixPool {
+
+    private final GpsFix[] free;
+    private int freeCount;
+    private long allocated;
+
+    /**
+     * Construct a GpsFixPool
+     *
+     * @param maxPooled the maximum number of idle fixes to keep
+     */
+    GpsFixPool(int maxPooled) {
+        if (maxPooled <= 0) throw new IllegalArgumentException("maxPooled <= 0");
+        this.free = new GpsFix[maxPooled];
+    }
+
+    /**
+     * Get a cleared fix. The caller holds the only reference and must release it.
+     *
+     * @return the fix
+     */
+    GpsFix acquire() {
+        GpsFix fix = null;
+        synchronized (this) {
+            if (freeCount > 0) {
+                fix = free[--freeCount];
+                free[freeCount] = null;
+            } else {
+                allocated++;
+            }
+        }
+        if (fix == null) {
+            fix = new GpsFix(this);
+        }
+        fix.acquired();
+        return fix;
+    }
+
+    /**
+     * Return a fix whose last reference has been released
+     *
+     * @param fix the fix
+     */
+    synchronized void recycle(GpsFix fix) {
+        if (freeCount < free.length) {
+            free[freeCount++] = fix;
+        }
+    }
+
+    /**
+     * Get the number of fixes this pool has created
+     *
+     * @return the number of fixes created
+     */
+    synchronized long getAllocatedCount() {
+        return allocated;
+    }
+}
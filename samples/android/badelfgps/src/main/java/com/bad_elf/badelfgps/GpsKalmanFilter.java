@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Smooths the positions of consecutive fixes with a constant velocity Kalman filter.
+ *
+ * The filter works in metres east, north and up of an origin near the receiver, with the three
+ * axes filtered independently: each has a position and a velocity driven by random
+ * acceleration of setAccelerationNoise. A fix is weighted by its GST error estimates, or by
+ * HDOP times UERE_METERS without GST. The origin moves to the receiver when it gets more than
+ * MAX_ORIGIN_DISTANCE_METERS away, so the flat earth approximation stays within centimetres.
+ *
+ * The filter starts over from the next fix after a gap of more than MAX_GAP_MS, when time goes
+ * backwards, and after reset. It keeps its state in primitive fields and allocates nothing.
+ *
+ * GpsFixDispatcher runs one per session for observers subscribed with
+ * BadElfGpsFixObserver.TYPE_SMOOTHED. It can also be used on its own, for example on recorded
+ * fixes. It is not thread safe, except for setAccelerationNoise.
+ *
+ */
+public class GpsKalmanFilter {
+
+    /** The error of a pseudorange assumed for fixes without GST, in metres */
+    public static final double UERE_METERS = 4.0;
+    /** The error assumed for fixes with neither GST nor HDOP, in metres */
+    public static final double DEFAULT_ERROR_METERS = 10.0;
+    /** The longest gap between fixes the filter carries on over */
+    public static final long MAX_GAP_MS = 5000;
+    /** How far the receiver may get from the origin before the origin is moved to it */
+    public static final double MAX_ORIGIN_DISTANCE_METERS = 10000;
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180;
+    private static final double METERS_PER_SECOND_PER_KNOT = 1852.0 / 3600;
+    private static final int DAY_MS = 86400000;
+
+    private static final int EAST = 0, NORTH = 1, UP = 2;
+
+    private volatile double horizontalNoise = 1.0; // acceleration spectral density, m^2/s^3
+    private volatile double verticalNoise = 0.25;
+
+    private boolean started;
+    private boolean hasAltitude;
+    private int lastTimeOfDay;
+    private double originLatitude;
+    private double originLongitude;
+    private double metersPerDegreeLongitude;
+
+    // Per axis: position, velocity and the covariance [p00 p01; p01 p11]
+    private final double[] position = new double[3];
+    private final double[] velocity = new double[3];
+    private final double[] p00 = new double[3];
+    private final double[] p01 = new double[3];
+    private final double[] p11 = new double[3];
+
+    private long fixCount;
+    private long resetCount;
+
+    /**
+     * Set how hard the receiver may accelerate. Higher values follow turns more closely and
+     * smooth less.
+     *
+     * @param horizontal the standard deviation of the horizontal acceleration in m/s^2, 1 by default
+     * @param vertical the standard deviation of the vertical acceleration in m/s^2, 0.5 by default
+     */
+    public void setAccelerationNoise(double horizontal, double vertical) {
+        if (!(horizontal > 0) || !(vertical > 0)) throw new IllegalArgumentException("noise must be > 0");
+        horizontalNoise = horizontal * horizontal;
+        verticalNoise = vertical * vertical;
+    }
+
+    /**
+     * Start over from the next fix
+     */
+    public void reset() {
+        started = false;
+    }
+
+    /** @return the number of fixes filtered */
+    public long getFixCount()     { return fixCount;   }
+    /** @return the number of times the filter started over, including the first fix */
+    public long getResetCount()   { return resetCount; }
+
+    /**
+     * Filter the next fix
+     *
+     * The smoothed fix is a copy of the fix with the filtered position, its one-sigma errors
+     * in place of the GST ones, and the speed and course of the filtered velocity.
+     *
+     * @param fix the fix, with the time of day of its epoch
+     * @param smoothed receives the smoothed fix
+     * @return false if the fix has no position or no time, in which case smoothed is not
+     * changed and the filter ignores the fix
+     */
+    public boolean filter(GpsFix fix, GpsFix smoothed) {
+        if (!fix.hasPosition() || fix.timeOfDay < 0) return false;
+
+        double horizontalError = fix.getHorizontalError();
+        double eastError, northError;
+        if (horizontalError == horizontalError) {
+            eastError = fix.longitudeError;
+            northError = fix.latitudeError;
+        } else {
+            double error = fix.hdop == fix.hdop ? fix.hdop * UERE_METERS : DEFAULT_ERROR_METERS;
+            eastError = error / Math.sqrt(2);
+            northError = eastError;
+        }
+        double upError = fix.altitudeError == fix.altitudeError ? fix.altitudeError
+                : fix.hdop == fix.hdop ? 1.5 * fix.hdop * UERE_METERS : 1.5 * DEFAULT_ERROR_METERS;
+        boolean altitude = fix.altitude == fix.altitude;
+
+        long dtMs = fix.timeOfDay - lastTimeOfDay;
+        if (dtMs < -DAY_MS / 2) dtMs += DAY_MS; // past midnight
+        if (!started || dtMs <= 0 || dtMs > MAX_GAP_MS) {
+            start(fix, eastError, northError, upError);
+        } else {
+            double dt = dtMs / 1000.0;
+            double east = (fix.longitude - originLongitude) * metersPerDegreeLongitude;
+            double north = (fix.latitude - originLatitude) * METERS_PER_DEGREE;
+            if (east > 180 * metersPerDegreeLongitude) {
+                east -= 360 * metersPerDegreeLongitude; // across the antimeridian
+            } else if (east < -180 * metersPerDegreeLongitude) {
+                east += 360 * metersPerDegreeLongitude;
+            }
+            predict(EAST, dt, horizontalNoise);
+            predict(NORTH, dt, horizontalNoise);
+            predict(UP, dt, verticalNoise);
+            update(EAST, east, eastError);
+            update(NORTH, north, northError);
+            if (altitude) {
+                if (hasAltitude) {
+                    update(UP, fix.altitude, upError);
+                } else {
+                    startAxis(UP, fix.altitude, upError);
+                    hasAltitude = true;
+                }
+            }
+            lastTimeOfDay = fix.timeOfDay;
+            if (Math.abs(position[EAST]) > MAX_ORIGIN_DISTANCE_METERS
+                    || Math.abs(position[NORTH]) > MAX_ORIGIN_DISTANCE_METERS) {
+                moveOrigin();
+            }
+        }
+        fixCount++;
+
+        smoothed.copyFrom(fix);
+        smoothed.latitude = originLatitude + position[NORTH] / METERS_PER_DEGREE;
+        smoothed.longitude = originLongitude + position[EAST] / metersPerDegreeLongitude;
+        if (smoothed.longitude > 180) smoothed.longitude -= 360; else if (smoothed.longitude < -180) smoothed.longitude += 360;
+        smoothed.latitudeError = Math.sqrt(p00[NORTH]);
+        smoothed.longitudeError = Math.sqrt(p00[EAST]);
+        if (hasAltitude) {
+            smoothed.altitude = position[UP];
+            smoothed.altitudeError = Math.sqrt(p00[UP]);
+        }
+        double speed = Math.sqrt(velocity[EAST] * velocity[EAST] + velocity[NORTH] * velocity[NORTH]);
+        smoothed.speedKnots = speed / METERS_PER_SECOND_PER_KNOT;
+        if (speed > 0) {
+            double course = Math.toDegrees(Math.atan2(velocity[EAST], velocity[NORTH]));
+            smoothed.course = course < 0 ? course + 360 : course;
+        }
+        return true;
+    }
+
+    private void start(GpsFix fix, double eastError, double northError, double upError) {
+        started = true;
+        resetCount++;
+        lastTimeOfDay = fix.timeOfDay;
+        setOrigin(fix.latitude, fix.longitude);
+        startAxis(EAST, 0, eastError);
+        startAxis(NORTH, 0, northError);
+        hasAltitude = fix.altitude == fix.altitude;
+        startAxis(UP, hasAltitude ? fix.altitude : 0, upError);
+    }
+
+    private void setOrigin(double latitude, double longitude) {
+        originLatitude = latitude;
+        originLongitude = longitude;
+        // at least a metre per degree, so the poles don't divide by zero
+        metersPerDegreeLongitude = Math.max(METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)), 1);
+    }
+
+    private void moveOrigin() {
+        double latitude = originLatitude + position[NORTH] / METERS_PER_DEGREE;
+        double longitude = originLongitude + position[EAST] / metersPerDegreeLongitude;
+        if (longitude > 180) longitude -= 360; else if (longitude < -180) longitude += 360;
+        setOrigin(latitude, longitude);
+        // velocities and covariances are in metres, which the move doesn't change
+        position[EAST] = 0;
+        position[NORTH] = 0;
+    }
+
+    private void startAxis(int axis, double value, double error) {
+        position[axis] = value;
+        velocity[axis] = 0;
+        p00[axis] = error * error;
+        p01[axis] = 0;
+        p11[axis] = 100; // up to about 10 m/s either way
+    }
+
+    /**
+     * Move an axis forward in time under constant velocity with random acceleration
+     */
+    private void predict(int axis, double dt, double noise) {
+        position[axis] += velocity[axis] * dt;
+        double a = p00[axis], b = p01[axis], d = p11[axis];
+        double dt2 = dt * dt;
+        p00[axis] = a + dt * (2 * b + dt * d) + noise * dt2 * dt / 3;
+        p01[axis] = b + dt * d + noise * dt2 / 2;
+        p11[axis] = d + noise * dt;
+    }
+
+    /**
+     * Correct an axis with a measured position
+     */
+    private void update(int axis, double measured, double error) {
+        double a = p00[axis], b = p01[axis];
+        double s = a + error * error;
+        double k0 = a / s;
+        double k1 = b / s;
+        double innovation = measured - position[axis];
+        position[axis] += k0 * innovation;
+        velocity[axis] += k1 * innovation;
+        p00[axis] = (1 - k0) * a;
+        p01[axis] = (1 - k0) * b;
+        p11[axis] -= k1 * b;
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A registry of named counters, latency histograms and gauges describing the received data.
+ *
+ * Counters and histograms are striped: each thread adds to its own cells, on their own cache
+ * line, so the reader threads of several sessions and the delivery threads don't contend.
+ * Recording a value never allocates or locks. Get the metric once with counter or histogram and
+ * keep it, the lookup by name is for setting up.
+ *
+ * snapshot reads every metric at once for display or upload. startDump takes a snapshot at a
+ * fixed interval and passes it to onDump, together with the previous one so that rates and
+ * interval latencies can be worked out.
+ *
+ */
+public class GpsMetrics {
+
+    /** Counter: the bytes received */
+    public static final String BYTES = "bytes";
+    /** Counter: the chunks received, one per read of the link */
+    public static final String CHUNKS = "chunks";
+    /** Counters: the sentences that passed the checksum, by type */
+    public static final String SENTENCES_GGA   = "sentences.gga";
+    public static final String SENTENCES_RMC   = "sentences.rmc";
+    public static final String SENTENCES_GSA   = "sentences.gsa";
+    public static final String SENTENCES_GSV   = "sentences.gsv";
+    public static final String SENTENCES_GST   = "sentences.gst";
+    public static final String SENTENCES_VTG   = "sentences.vtg";
+    public static final String SENTENCES_OTHER = "sentences.other";
+    /** Counter: the sentences and packets dropped because of a wrong or missing checksum */
+    public static final String CHECKSUM_ERRORS = "errors.checksum";
+    /** Counter: the sentences dropped because they were cut short or too long */
+    public static final String FRAMING_ERRORS = "errors.framing";
+    /** Counter: the items observer queues dropped because an observer fell behind */
+    public static final String QUEUE_DROPPED = "queue.dropped";
+    /** Histogram: the depth of an observer queue after each item is added */
+    public static final String QUEUE_DEPTH = "queue.depth";
+    /** Histogram: nanoseconds from reading a chunk to handing it to an observer */
+    public static final String DISPATCH_LATENCY = "latency.dispatch";
+    /** Histogram: nanoseconds from reading the first sentence of an epoch to handing the fix to an observer */
+    public static final String FIX_LATENCY = "latency.fix";
+
+    // A power of two, for the stripe mask
+    private static final int STRIPES = 8;
+    // Longs per cache line, so that two stripes never share one
+    private static final int PADDING = 8;
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * A count that only goes up
+     */
+    public static final class Counter {
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        private Counter() {
+        }
+
+        /** Add one */
+        public void increment() {
+            cells.getAndIncrement(stripe() * PADDING);
+        }
+
+        /**
+         * Add to the count
+         *
+         * @param n the amount, not negative
+         */
+        public void add(long n) {
+            cells.getAndAdd(stripe() * PADDING, n);
+        }
+
+        /** @return the count */
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) sum += cells.get(i * PADDING);
+            return sum;
+        }
+    }
+
+    /**
+     * The distribution of a value, usually a latency in nanoseconds, in buckets whose bounds
+     * are powers of two: bucket 0 counts zeros and bucket i counts the values from 2^(i-1) to
+     * 2^i - 1, so the upper bound of a value is never more than twice the value. The last bucket
+     * also counts everything larger.
+     */
+    public static final class Histogram {
+        public static final int BUCKETS = 40; // up to 2^39 ns, about 9 minutes
+
+        // Each stripe's row holds the buckets and then the sum, padded to whole cache lines
+        private static final int SUM = BUCKETS;
+        private static final int ROW = (BUCKETS + 1 + PADDING - 1) / PADDING * PADDING;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * ROW);
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram() {
+        }
+
+        /**
+         * Record a value
+         *
+         * @param value the value, negative values count as 0
+         */
+        public void record(long value) {
+            if (value < 0) value = 0;
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+            int row = stripe() * ROW;
+            cells.getAndIncrement(row + bucket);
+            cells.getAndAdd(row + SUM, value);
+            long oldMax;
+            while (value > (oldMax = max.get())) {
+                if (max.compareAndSet(oldMax, value)) break;
+            }
+        }
+
+        private HistogramSnapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long sum = 0;
+            for (int s = 0; s < STRIPES; s++) {
+                int row = s * ROW;
+                for (int i = 0; i < BUCKETS; i++) counts[i] += cells.get(row + i);
+                sum += cells.get(row + SUM);
+            }
+            return new HistogramSnapshot(counts, sum, max.get());
+        }
+    }
+
+    /**
+     * A value read when a snapshot is taken, for example the number of connected sessions
+     */
+    public interface Gauge {
+        /** @return the current value */
+        long getValue();
+    }
+
+    /**
+     * The state of a Histogram at one time
+     */
+    public static final class HistogramSnapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        HistogramSnapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) total += c;
+            this.count = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /** @return the number of values recorded */
+        public long getCount()              { return count; }
+        /** @return the sum of the values recorded */
+        public long getSum()                { return sum;   }
+        /** @return the largest value recorded since the histogram was created */
+        public long getMax()                { return max;   }
+
+        /**
+         * Get the number of values in a bucket
+         *
+         * @param bucket 0 to Histogram.BUCKETS - 1
+         * @return the count
+         */
+        public long getBucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        /** @return the mean of the values recorded, or 0 if there are none */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Estimate a percentile. The result is the upper bound of the bucket it falls in, but no
+         * more than the maximum.
+         *
+         * @param percentile 0 to 100
+         * @return the estimate, or 0 if there are no values
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(i == 0 ? 0 : (1L << i) - 1, max);
+            }
+            return max;
+        }
+
+        /**
+         * Get the values recorded since an earlier snapshot of the same histogram. The maximum
+         * stays the maximum since the histogram was created.
+         *
+         * @param earlier the earlier snapshot, or null
+         * @return the difference
+         */
+        public HistogramSnapshot since(HistogramSnapshot earlier) {
+            if (earlier == null) return this;
+            long[] difference = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) difference[i] = counts[i] - earlier.counts[i];
+            return new HistogramSnapshot(difference, sum - earlier.sum, max);
+        }
+    }
+
+    /**
+     * Every metric's value at one time
+     */
+    public static final class Snapshot {
+        private final long nanos;
+        private final Map<String, Long> counters;
+        private final Map<String, HistogramSnapshot> histograms;
+        private final Map<String, Long> gauges;
+
+        Snapshot(long nanos, Map<String, Long> counters, Map<String, HistogramSnapshot> histograms,
+                 Map<String, Long> gauges) {
+            this.nanos = nanos;
+            this.counters = counters;
+            this.histograms = histograms;
+            this.gauges = gauges;
+        }
+
+        /** @return System.nanoTime() when the snapshot was taken */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Get a counter
+         *
+         * @param name the name, for example BYTES
+         * @return the count, or 0 if there is no such counter
+         */
+        public long getCount(String name) {
+            Long value = counters.get(name);
+            return value == null ? 0 : value;
+        }
+
+        /**
+         * Get how fast a counter went up since an earlier snapshot
+         *
+         * @param name the name, for example BYTES
+         * @param earlier the earlier snapshot
+         * @return the increase per second, or 0 if no time passed
+         */
+        public double getRate(String name, Snapshot earlier) {
+            long elapsed = nanos - earlier.nanos;
+            if (elapsed <= 0) return 0;
+            return (getCount(name) - earlier.getCount(name)) * 1e9 / elapsed;
+        }
+
+        /**
+         * Get a histogram
+         *
+         * @param name the name, for example DISPATCH_LATENCY
+         * @return the histogram, or null if there is no such histogram
+         */
+        public HistogramSnapshot getHistogram(String name) {
+            return histograms.get(name);
+        }
+
+        /**
+         * Get a gauge
+         *
+         * @param name the name
+         * @return the value, or 0 if there is no such gauge
+         */
+        public long getGauge(String name) {
+            Long value = gauges.get(name);
+            return value == null ? 0 : value;
+        }
+
+        /** @return the names of the counters */
+        public String[] getCounterNames()   { return counters.keySet().toArray(new String[0]);   }
+        /** @return the names of the histograms */
+        public String[] getHistogramNames() { return histograms.keySet().toArray(new String[0]); }
+        /** @return the names of the gauges */
+        public String[] getGaugeNames()     { return gauges.keySet().toArray(new String[0]);     }
+
+        /**
+         * Describe the change since an earlier snapshot on one line: counters as rates per
+         * second, histograms as the mean, median, 99th percentile and maximum of the values
+         * recorded since, latencies in microseconds, and gauges as they are now
+         *
+         * @param earlier the earlier snapshot, or null to describe the totals
+         * @return the description
+         */
+        public String format(Snapshot earlier) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                String name = entry.getKey();
+                if (earlier == null) {
+                    sb.append(name).append('=').append(entry.getValue()).append(' ');
+                } else {
+                    sb.append(name).append('=').append(String.format(Locale.US, "%.1f/s", getRate(name, earlier))).append(' ');
+                }
+            }
+            for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+                String name = entry.getKey();
+                HistogramSnapshot h = entry.getValue().since(earlier == null ? null : earlier.getHistogram(name));
+                double scale = name.startsWith("latency.") ? 1e-3 : 1;
+                sb.append(name).append(String.format(Locale.US, "(n=%d mean=%.1f p50=%.1f p99=%.1f max=%.1f) ",
+                        h.getCount(), h.getMean() * scale, h.getPercentile(50) * scale,
+                        h.getPercentile(99) * scale, h.getMax() * scale));
+            }
+            for (Map.Entry<String, Long> entry : gauges.entrySet()) {
+                sb.append(entry.getKey()).append('=').append(entry.getValue()).append(' ');
+            }
+            return sb.toString().trim();
+        }
+
+        @Override
+        public String toString() {
+            return format(null);
+        }
+    }
+
+    private final Object registrySync = new Object();
+    // Copy on write, in the order they were registered. Guarded by registrySync.
+    private volatile String[] counterNames = new String[0];
+    private volatile Counter[] counters = new Counter[0];
+    private volatile String[] histogramNames = new String[0];
+    private volatile Histogram[] histograms = new Histogram[0];
+    private volatile String[] gaugeNames = new String[0];
+    private volatile Gauge[] gauges = new Gauge[0];
+
+    private Thread dumpThread; // Guarded by registrySync
+
+    /**
+     * Get a counter, creating it the first time
+     *
+     * @param name the name, for example BYTES
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        synchronized (registrySync) {
+            int index = indexOf(counterNames, name);
+            if (index >= 0) return counters[index];
+            Counter counter = new Counter();
+            counters = append(counters, new Counter[counters.length + 1], counter);
+            counterNames = append(counterNames, new String[counterNames.length + 1], name);
+            return counter;
+        }
+    }
+
+    /**
+     * Get a histogram, creating it the first time
+     *
+     * @param name the name, for example DISPATCH_LATENCY
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        synchronized (registrySync) {
+            int index = indexOf(histogramNames, name);
+            if (index >= 0) return histograms[index];
+            Histogram histogram = new Histogram();
+            histograms = append(histograms, new Histogram[histograms.length + 1], histogram);
+            histogramNames = append(histogramNames, new String[histogramNames.length + 1], name);
+            return histogram;
+        }
+    }
+
+    /**
+     * Add a gauge, or replace the gauge of the same name
+     *
+     * @param name the name
+     * @param gauge the gauge, called on the thread taking the snapshot
+     */
+    public void gauge(String name, Gauge gauge) {
+        synchronized (registrySync) {
+            int index = indexOf(gaugeNames, name);
+            if (index >= 0) {
+                Gauge[] newGauges = gauges.clone();
+                newGauges[index] = gauge;
+                gauges = newGauges;
+                return;
+            }
+            gauges = append(gauges, new Gauge[gauges.length + 1], gauge);
+            gaugeNames = append(gaugeNames, new String[gaugeNames.length + 1], name);
+        }
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private static <T> T[] append(T[] items, T[] newItems, T item) {
+        System.arraycopy(items, 0, newItems, 0, items.length);
+        newItems[items.length] = item;
+        return newItems;
+    }
+
+    /**
+     * Read every metric
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        String[] names;
+        Map<String, Long> counterValues = new LinkedHashMap<>();
+        Map<String, HistogramSnapshot> histogramValues = new LinkedHashMap<>();
+        Map<String, Long> gaugeValues = new LinkedHashMap<>();
+        Counter[] c;
+        Histogram[] h;
+        Gauge[] g;
+        synchronized (registrySync) {
+            names = counterNames;
+            c = counters;
+            for (int i = 0; i < c.length; i++) counterValues.put(names[i], c[i].get());
+            names = histogramNames;
+            h = histograms;
+            for (int i = 0; i < h.length; i++) histogramValues.put(names[i], h[i].snapshot());
+            names = gaugeNames;
+            g = gauges;
+        }
+        for (int i = 0; i < g.length; i++) gaugeValues.put(names[i], g[i].getValue()); // outside the lock, they may lock
+        return new Snapshot(System.nanoTime(), counterValues, histogramValues, gaugeValues);
+    }
+
+    /**
+     * Start calling onDump at a fixed interval on a thread of its own, replacing an earlier
+     * interval
+     *
+     * @param intervalMs the interval
+     */
+    public void startDump(final long intervalMs) {
+        if (intervalMs <= 0) throw new IllegalArgumentException("intervalMs <= 0");
+        stopDump();
+        synchronized (registrySync) {
+            dumpThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Snapshot previous = snapshot();
+                    try {
+                        while (!Thread.interrupted()) {
+                            Thread.sleep(intervalMs);
+                            Snapshot snapshot = snapshot();
+                            onDump(snapshot, previous);
+                            previous = snapshot;
+                        }
+                    } catch (InterruptedException ignore) {
+                        // stopDump was called
+                    }
+                }
+            }, "GpsMetrics-dump");
+            dumpThread.setDaemon(true);
+            dumpThread.start();
+        }
+    }
+
+    /**
+     * Stop calling onDump
+     */
+    public void stopDump() {
+        Thread oldThread;
+        synchronized (registrySync) {
+            oldThread = dumpThread;
+            dumpThread = null;
+        }
+        if (oldThread != null) oldThread.interrupt();
+    }
+
+    /**
+     * Called on the dump thread every interval after startDump. Override to log or upload the
+     * metrics, for example snapshot.format(previous).
+     *
+     * @param snapshot the metrics now
+     * @param previous the metrics one interval ago
+     */
+    protected void onDump(Snapshot snapshot, Snapshot previous) {
+    }
+}
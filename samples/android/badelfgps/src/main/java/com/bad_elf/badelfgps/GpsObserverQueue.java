@@ -0,0 +1,493 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded queue and delivery thread between the thread that reads from the Bad Elf Device and
+ * one observer.
+ *
+ * The reading thread only enqueues, and the observer is called on the queue's own thread, so a
+ * slow observer can't stall the link. When the queue is full the OverflowPolicy decides what
+ * happens. Received chunks and GpsFixes are retained while queued and decoded NMEA records are
+ * copied into preallocated slots, so queueing does not allocate once every slot has been used.
+ *
+ * Events posted with post, such as connection state changes, are never dropped and are
+ * delivered in order with the data around them.
+ *
+ */
+public class GpsObserverQueue implements BadElfGpsChunkObserver, BadElfGpsFixObserver {
+
+    /**
+     * What to do with new data when an observer's queue is full
+     */
+    public enum OverflowPolicy {
+        /** Wait for the observer to make room. This stalls the reading thread. */
+        BLOCK,
+        /** Drop the oldest queued item to make room. */
+        DROP_OLDEST,
+        /**
+         * Keep at most one queued item of each fix type (GGA, RMC, GSA, GST, VTG, epochs and
+         * smoothed fixes) by replacing a queued item with the newer one. The newer one is
+         * delivered where it arrived, after anything queued or posted in between. Other items
+         * drop the oldest when the queue is full.
+         */
+        COALESCE_LATEST_FIX
+    }
+
+    private static final int KIND_NONE  = -1; // replaced by a newer item, skipped
+    private static final int KIND_CHUNK = 0;
+    private static final int KIND_GGA   = 1;
+    private static final int KIND_RMC   = 2;
+    private static final int KIND_GSA   = 3;
+    private static final int KIND_GSV   = 4;
+    private static final int KIND_GST   = 5;
+    private static final int KIND_VTG   = 6;
+    private static final int KIND_EPOCH = 7;
+    private static final int KIND_SMOOTHED = 8;
+    private static final int KIND_COUNT = 9;
+
+    /**
+     * One queued item. The record fields are allocated the first time a slot holds that kind.
+     */
+    private static final class Slot {
+        int kind;
+        GpsDataChunk chunk;
+        GpsFix fix;
+        NmeaGga gga;
+        NmeaRmc rmc;
+        NmeaGsa gsa;
+        NmeaGsv gsv;
+        NmeaGst gst;
+        NmeaVtg vtg;
+
+        /**
+         * Let go of any retained chunk or fix
+         */
+        void clear() {
+            if (chunk != null) {
+                chunk.release();
+                chunk = null;
+            }
+            if (fix != null) {
+                fix.release();
+                fix = null;
+            }
+        }
+    }
+
+    /**
+     * A posted event and the position in the data it must be delivered at
+     */
+    private static final class Event {
+        final Runnable runnable;
+        final long sequence;
+
+        Event(Runnable runnable, long sequence) {
+            this.runnable = runnable;
+            this.sequence = sequence;
+        }
+    }
+
+    private final String name;
+    private final OverflowPolicy policy;
+    private final BadElfGpsChunkObserver chunkTarget;
+    private final BadElfGpsFixObserver fixTarget;
+
+    private final Object lock = new Object();
+    private final Slot[] ring;
+    private Slot spare = new Slot(); // the slot being delivered, swapped out of the ring
+    private long headSequence;       // sequence number of the oldest queued item
+    private int count;
+    private final long[] latestOfKind = new long[KIND_COUNT];
+    private final ArrayDeque<Event> events = new ArrayDeque<>();
+    private boolean running;
+    private boolean delivering;
+    private int drainWaiters;
+    private Thread thread;
+
+    private long enqueued;
+    private long delivered;
+    private long dropped;
+    private long coalesced;
+    private int maxDepth;
+
+    // Shared metrics, or null. Guarded by lock.
+    private GpsMetrics.Counter droppedMetric;
+    private GpsMetrics.Histogram depthMetric;
+    private GpsMetrics.Histogram dispatchLatencyMetric;
+    private GpsMetrics.Histogram fixLatencyMetric;
+
+    /**
+     * Construct a GpsObserverQueue. Call start before use.
+     *
+     * @param name the name of the delivery thread
+     * @param capacity the number of data items the queue holds
+     * @param policy what to do when the queue is full
+     * @param chunkTarget the observer of received chunks, or null
+     * @param fixTarget the observer of decoded sentences and epochs, or null
+     */
+    public GpsObserverQueue(String name, int capacity, OverflowPolicy policy,
+                            BadElfGpsChunkObserver chunkTarget, BadElfGpsFixObserver fixTarget) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+        this.name = name;
+        this.policy = policy;
+        this.chunkTarget = chunkTarget;
+        this.fixTarget = fixTarget;
+        this.ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) ring[i] = new Slot();
+        for (int i = 0; i < KIND_COUNT; i++) latestOfKind[i] = -1;
+    }
+
+    /**
+     * Also record the queue's drops, depth and delivery latency in a GpsMetrics registry. See
+     * GpsMetrics.QUEUE_DROPPED, QUEUE_DEPTH, DISPATCH_LATENCY and FIX_LATENCY. Call before start.
+     *
+     * @param metrics the registry, or null to stop recording
+     */
+    public void setMetrics(GpsMetrics metrics) {
+        synchronized (lock) {
+            droppedMetric = metrics == null ? null : metrics.counter(GpsMetrics.QUEUE_DROPPED);
+            depthMetric = metrics == null ? null : metrics.histogram(GpsMetrics.QUEUE_DEPTH);
+            dispatchLatencyMetric = metrics == null ? null : metrics.histogram(GpsMetrics.DISPATCH_LATENCY);
+            fixLatencyMetric = metrics == null ? null : metrics.histogram(GpsMetrics.FIX_LATENCY);
+        }
+    }
+
+    /**
+     * Start the delivery thread
+     */
+    public void start() {
+        synchronized (lock) {
+            if (running) return;
+            running = true;
+            thread = new Thread(deliveryLoop, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the delivery thread and discard anything still queued.
+     *
+     * Waits for an observer call in progress to return, unless called from the delivery thread.
+     */
+    public void stop() {
+        Thread oldThread;
+        synchronized (lock) {
+            running = false;
+            oldThread = thread;
+            thread = null;
+            while (count > 0) {
+                dropHead();
+            }
+            events.clear();
+            lock.notifyAll();
+        }
+        if (oldThread != null && oldThread != Thread.currentThread()) {
+            try {
+                oldThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+            }
+        }
+    }
+
+    /**
+     * Wait until everything queued so far has been delivered
+     *
+     * @param timeoutMs the longest time to wait
+     * @return true if the queue is empty, false on timeout or if the thread was interrupted
+     */
+    public boolean awaitEmpty(long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        synchronized (lock) {
+            drainWaiters++;
+            try {
+                while (running && (count > 0 || !events.isEmpty() || delivering)) {
+                    long waitMs = (deadline - System.nanoTime()) / 1000000L;
+                    if (waitMs <= 0) return false;
+                    lock.wait(waitMs);
+                }
+                return count == 0 && events.isEmpty();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+                return false;
+            } finally {
+                drainWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Deliver an event on the delivery thread after the data queued so far. Events are never
+     * dropped.
+     *
+     * @param event the event to run
+     */
+    public void post(Runnable event) {
+        synchronized (lock) {
+            if (!running) return;
+            events.add(new Event(event, headSequence + count));
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Called on the delivery thread when the observer throws. Override to log the error.
+     *
+     * @param e the exception
+     */
+    protected void onDeliveryError(RuntimeException e) {
+    }
+
+    /** @return the overflow policy */
+    public OverflowPolicy getPolicy() { return policy; }
+    /** @return the number of data items the queue holds */
+    public int getCapacity()          { return ring.length; }
+
+    /** @return the number of data items queued now */
+    public int getDepth()             { synchronized (lock) { return count;     } }
+    /** @return the largest number of data items that have been queued at once */
+    public int getMaxDepth()          { synchronized (lock) { return maxDepth;  } }
+    /** @return the number of data items accepted */
+    public long getEnqueuedCount()    { synchronized (lock) { return enqueued;  } }
+    /** @return the number of data items given to the observer */
+    public long getDeliveredCount()   { synchronized (lock) { return delivered; } }
+    /** @return the number of data items dropped because the queue was full */
+    public long getDroppedCount()     { synchronized (lock) { return dropped;   } }
+    /** @return the number of data items replaced by a newer item of the same type */
+    public long getCoalescedCount()   { synchronized (lock) { return coalesced; } }
+
+    @Override
+    public void onChunkReceived(GpsDataChunk chunk) {
+        if (chunkTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_CHUNK);
+            if (slot == null) return;
+            slot.chunk = chunk.retain();
+        }
+    }
+
+    @Override
+    public void onFix(NmeaGga gga) {
+        if (fixTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_GGA);
+            if (slot == null) return;
+            if (slot.gga == null) slot.gga = new NmeaGga();
+            slot.gga.copyFrom(gga);
+        }
+    }
+
+    @Override
+    public void onNavigation(NmeaRmc rmc) {
+        if (fixTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_RMC);
+            if (slot == null) return;
+            if (slot.rmc == null) slot.rmc = new NmeaRmc();
+            slot.rmc.copyFrom(rmc);
+        }
+    }
+
+    @Override
+    public void onActiveSatellites(NmeaGsa gsa) {
+        if (fixTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_GSA);
+            if (slot == null) return;
+            if (slot.gsa == null) slot.gsa = new NmeaGsa();
+            slot.gsa.copyFrom(gsa);
+        }
+    }
+
+    @Override
+    public void onSatellites(NmeaGsv gsv) {
+        if (fixTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_GSV);
+            if (slot == null) return;
+            if (slot.gsv == null) slot.gsv = new NmeaGsv();
+            slot.gsv.copyFrom(gsv);
+        }
+    }
+
+    @Override
+    public void onErrorEstimate(NmeaGst gst) {
+        if (fixTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_GST);
+            if (slot == null) return;
+            if (slot.gst == null) slot.gst = new NmeaGst();
+            slot.gst.copyFrom(gst);
+        }
+    }
+
+    @Override
+    public void onCourse(NmeaVtg vtg) {
+        if (fixTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_VTG);
+            if (slot == null) return;
+            if (slot.vtg == null) slot.vtg = new NmeaVtg();
+            slot.vtg.copyFrom(vtg);
+        }
+    }
+
+    @Override
+    public void onEpoch(GpsFix fix) {
+        if (fixTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_EPOCH);
+            if (slot == null) return;
+            slot.fix = fix.retain();
+        }
+    }
+
+    @Override
+    public void onSmoothedFix(GpsFix fix) {
+        if (fixTarget == null) return;
+        synchronized (lock) {
+            Slot slot = claim(KIND_SMOOTHED);
+            if (slot == null) return;
+            slot.fix = fix.retain();
+        }
+    }
+
+    /**
+     * Find the slot for a new item, applying the overflow policy. Called holding lock.
+     *
+     * @param kind the kind of the new item
+     * @return the slot to fill in, or null if the item must be discarded
+     */
+    private Slot claim(int kind) {
+        if (!running) return null;
+        if (policy == OverflowPolicy.COALESCE_LATEST_FIX && kind != KIND_CHUNK && kind != KIND_GSV) {
+            long latest = latestOfKind[kind];
+            if (latest >= headSequence) {
+                // an older item of this kind is still queued
+                Slot slot = ring[(int) (latest % ring.length)];
+                slot.clear();
+                coalesced++;
+                Event lastEvent = events.peekLast();
+                if (latest == headSequence + count - 1 && (lastEvent == null || lastEvent.sequence <= latest)) {
+                    return slot; // nothing came after it, so replace it where it is
+                }
+                // replacing it would deliver the new item ahead of what came after the old one
+                slot.kind = KIND_NONE;
+            }
+        }
+        if (count == ring.length) {
+            if (policy == OverflowPolicy.BLOCK) {
+                try {
+                    while (count == ring.length && running) lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Restore the interrupted status
+                    return null;
+                }
+                if (!running) return null;
+            } else if (ring[(int) (headSequence % ring.length)].kind == KIND_NONE) {
+                dropHead(); // already replaced, nothing is lost
+            } else {
+                dropHead();
+                dropped++;
+                if (droppedMetric != null) droppedMetric.increment();
+            }
+        }
+        long sequence = headSequence + count;
+        Slot slot = ring[(int) (sequence % ring.length)];
+        slot.kind = kind;
+        latestOfKind[kind] = sequence;
+        count++;
+        enqueued++;
+        if (count > maxDepth) maxDepth = count;
+        if (depthMetric != null) depthMetric.record(count);
+        if (count == 1) lock.notifyAll(); // wake the delivery thread
+        return slot;
+    }
+
+    /**
+     * Discard the oldest queued item. Called holding lock.
+     */
+    private void dropHead() {
+        ring[(int) (headSequence % ring.length)].clear();
+        headSequence++;
+        count--;
+    }
+
+    private final Runnable deliveryLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable event = null;
+                Slot slot = null;
+                GpsMetrics.Histogram dispatchLatency;
+                GpsMetrics.Histogram fixLatency;
+                synchronized (lock) {
+                    delivering = false;
+                    if (drainWaiters > 0 && count == 0 && events.isEmpty()) lock.notifyAll();
+                    try {
+                        while (running && count == 0 && events.isEmpty()) lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!running) return;
+                    delivering = true;
+                    dispatchLatency = dispatchLatencyMetric;
+                    fixLatency = fixLatencyMetric;
+                    Event next = events.peek();
+                    if (next != null && next.sequence <= headSequence) {
+                        event = events.poll().runnable;
+                    } else {
+                        // Swap the head slot out of the ring so it can be delivered without
+                        // holding the lock
+                        int index = (int) (headSequence % ring.length);
+                        slot = ring[index];
+                        ring[index] = spare;
+                        spare = slot;
+                        headSequence++;
+                        count--;
+                        if (slot.kind != KIND_NONE) delivered++;
+                        if (policy == OverflowPolicy.BLOCK) lock.notifyAll(); // there is room now
+                    }
+                }
+                try {
+                    if (event != null) {
+                        event.run();
+                    } else if (slot.kind != KIND_NONE) {
+                        if (slot.kind == KIND_CHUNK && dispatchLatency != null) {
+                            dispatchLatency.record(System.nanoTime() - slot.chunk.receivedNanos);
+                        } else if (slot.kind == KIND_EPOCH && fixLatency != null) {
+                            fixLatency.record(System.nanoTime() - slot.fix.receivedNanos);
+                        }
+                        deliver(slot);
+                    }
+                } catch (RuntimeException e) {
+                    onDeliveryError(e);
+                } finally {
+                    if (slot != null) slot.clear();
+                }
+            }
+        }
+    };
+
+    private void deliver(Slot slot) {
+        switch (slot.kind) {
+            case KIND_CHUNK:    chunkTarget.onChunkReceived(slot.chunk);   break;
+            case KIND_GGA:      fixTarget.onFix(slot.gga);                 break;
+            case KIND_RMC:      fixTarget.onNavigation(slot.rmc);          break;
+            case KIND_GSA:      fixTarget.onActiveSatellites(slot.gsa);    break;
+            case KIND_GSV:      fixTarget.onSatellites(slot.gsv);          break;
+            case KIND_GST:      fixTarget.onErrorEstimate(slot.gst);       break;
+            case KIND_VTG:      fixTarget.onCourse(slot.vtg);              break;
+            case KIND_EPOCH:    fixTarget.onEpoch(slot.fix);               break;
+            case KIND_SMOOTHED: fixTarget.onSmoothedFix(slot.fix);         break;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Adds what one reader thread receives and parses to the counters of a GpsMetrics.
+ *
+ * Chunks are often smaller than a sentence, so the received bytes and chunks are added up in
+ * plain fields, and added to the shared counters together with the increase of the parser's own
+ * counters at most every FLUSH_INTERVAL_NANOS. The counters lag the stream by no more than
+ * that, and recording a chunk costs two additions.
+ *
+ * Only used on the reader thread.
+ *
+ */
+final class GpsReceiveMetrics {
+
+    private static final long FLUSH_INTERVAL_NANOS = 100 * 1000000L;
+
+    private static final int[] SENTENCE_TYPES = {
+            NmeaParser.TYPE_GGA, NmeaParser.TYPE_RMC, NmeaParser.TYPE_GSA, NmeaParser.TYPE_GSV,
+            NmeaParser.TYPE_GST, NmeaParser.TYPE_VTG, NmeaParser.TYPE_OTHER
+    };
+    private static final String[] SENTENCE_METRICS = {
+            GpsMetrics.SENTENCES_GGA, GpsMetrics.SENTENCES_RMC, GpsMetrics.SENTENCES_GSA, GpsMetrics.SENTENCES_GSV,
+            GpsMetrics.SENTENCES_GST, GpsMetrics.SENTENCES_VTG, GpsMetrics.SENTENCES_OTHER
+    };
+
+    private final GpsMetrics.Counter bytes;
+    private final GpsMetrics.Counter chunks;
+    private final GpsMetrics.Counter[] sentences = new GpsMetrics.Counter[SENTENCE_TYPES.length];
+    private final GpsMetrics.Counter checksumErrors;
+    private final GpsMetrics.Counter framingErrors;
+
+    private long pendingBytes;
+    private long pendingChunks;
+    private long flushNanos;
+
+    // The parser's counts when they were last added
+    private final long[] sentenceCounts = new long[SENTENCE_TYPES.length];
+    private long checksumErrorCount;
+    private long framingErrorCount;
+
+    /**
+     * Construct a GpsReceiveMetrics
+     *
+     * @param metrics the registry holding the counters
+     */
+    GpsReceiveMetrics(GpsMetrics metrics) {
+        bytes = metrics.counter(GpsMetrics.BYTES);
+        chunks = metrics.counter(GpsMetrics.CHUNKS);
+        for (int i = 0; i < SENTENCE_TYPES.length; i++) sentences[i] = metrics.counter(SENTENCE_METRICS[i]);
+        checksumErrors = metrics.counter(GpsMetrics.CHECKSUM_ERRORS);
+        framingErrors = metrics.counter(GpsMetrics.FRAMING_ERRORS);
+    }
+
+    /**
+     * Count a received chunk after the parser has parsed it
+     *
+     * @param chunk the chunk
+     * @param parser the parser, always the same one
+     */
+    void onParsed(GpsDataChunk chunk, NmeaParser parser) {
+        pendingBytes += chunk.length;
+        pendingChunks++;
+        if (chunk.receivedNanos - flushNanos >= FLUSH_INTERVAL_NANOS) {
+            flushNanos = chunk.receivedNanos;
+            flush(parser);
+        }
+    }
+
+    /**
+     * Add everything not yet added to the shared counters. Called when the link drops.
+     *
+     * @param parser the parser, always the same one
+     */
+    void flush(NmeaParser parser) {
+        if (pendingChunks > 0) {
+            bytes.add(pendingBytes);
+            chunks.add(pendingChunks);
+            pendingBytes = 0;
+            pendingChunks = 0;
+        }
+        for (int i = 0; i < SENTENCE_TYPES.length; i++) {
+            long count = parser.getSentenceCount(SENTENCE_TYPES[i]);
+            if (count != sentenceCounts[i]) {
+                sentences[i].add(count - sentenceCounts[i]);
+                sentenceCounts[i] = count;
+            }
+        }
+        long count = parser.getChecksumErrorCount();
+        if (count != checksumErrorCount) {
+            checksumErrors.add(count - checksumErrorCount);
+            checksumErrorCount = count;
+        }
+        count = parser.getFramingErrorCount();
+        if (count != framingErrorCount) {
+            framingErrors.add(count - framingErrorCount);
+            framingErrorCount = count;
+        }
+    }
+}
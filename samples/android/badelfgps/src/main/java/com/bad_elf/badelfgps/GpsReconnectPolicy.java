@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.Random;
+
+/**
+ * How a session re-opens the link when it drops, see BadElfDeviceSession.setReconnectPolicy.
+ *
+ * The delay before each attempt grows exponentially from the initial delay up to the maximum.
+ * Jitter shortens each delay by a random fraction, so that several receivers that dropped at the
+ * same time, for example when the phone's Bluetooth restarted, don't all retry in step.
+ *
+ */
+public final class GpsReconnectPolicy {
+
+    /** Retry forever, starting after half a second and backing off to 30 seconds */
+    public static final GpsReconnectPolicy DEFAULT = new GpsReconnectPolicy(500, 30000, 2.0, 0.5, 0);
+
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+
+    /**
+     * Construct a GpsReconnectPolicy
+     *
+     * @param initialDelayMs the delay before the first attempt
+     * @param maxDelayMs the longest delay between attempts
+     * @param multiplier how much the delay grows after each failed attempt, at least 1
+     * @param jitter the largest random fraction taken off each delay, 0 to 1
+     * @param maxAttempts the number of attempts before giving up, or 0 to retry until disconnect
+     */
+    public GpsReconnectPolicy(long initialDelayMs, long maxDelayMs, double multiplier, double jitter,
+                              int maxAttempts) {
+        if (initialDelayMs < 0 || maxDelayMs < initialDelayMs) throw new IllegalArgumentException("delay");
+        if (!(multiplier >= 1)) throw new IllegalArgumentException("multiplier < 1");
+        if (!(jitter >= 0 && jitter <= 1)) throw new IllegalArgumentException("jitter");
+        if (maxAttempts < 0) throw new IllegalArgumentException("maxAttempts < 0");
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /** @return the delay before the first attempt in milliseconds */
+    public long getInitialDelayMillis() { return initialDelayMs; }
+    /** @return the longest delay between attempts in milliseconds */
+    public long getMaxDelayMillis()     { return maxDelayMs;     }
+    /** @return how much the delay grows after each failed attempt */
+    public double getMultiplier()       { return multiplier;     }
+    /** @return the largest random fraction taken off each delay */
+    public double getJitter()           { return jitter;         }
+    /** @return the number of attempts before giving up, or 0 for no limit */
+    public int getMaxAttempts()         { return maxAttempts;    }
+
+    /**
+     * Check whether another attempt should be made
+     *
+     * @param attempt the number of attempts already made since the link dropped
+     * @return true if attempt is below the limit
+     */
+    public boolean shouldRetry(int attempt) {
+        return maxAttempts == 0 || attempt < maxAttempts;
+    }
+
+    /**
+     * Get the delay before an attempt
+     *
+     * @param attempt the number of attempts already made since the link dropped
+     * @param random the source of the jitter
+     * @return the delay in milliseconds
+     */
+    public long getDelayMillis(int attempt, Random random) {
+        double delay = initialDelayMs * Math.pow(multiplier, attempt);
+        if (delay > maxDelayMs) delay = maxDelayMs; // also catches overflow to infinity
+        return (long) (delay * (1 - jitter * random.nextDouble()));
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.IOException;
+
+/**
+ * Decodes the records of a session log into numbered epochs, for GpsSessionLog.decodeFixes and
+ * GpsSessionIndex queries.
+ *
+ * Decoding starts at the log's current position, from scratch or from the assembler state saved
+ * in an index entry, and goes on until the listener returns false or the log ends. The last
+ * epoch is flushed at the end of the log.
+ *
+ */
+final class GpsSessionDecoder implements GpsEpochAssembler.Listener, GpsSessionLog.RecordListener {
+
+    private final GpsEpochAssembler assembler = new GpsEpochAssembler(this);
+    private final NmeaParser parser = new NmeaParser(assembler);
+    private final GpsSessionIndex.FixListener listener;
+    private long fixNumber;
+    private int skipBytes;
+    private boolean more = true;
+
+    /**
+     * Construct a GpsSessionDecoder
+     *
+     * @param firstFixNumber the number of the first fix decoded
+     * @param listener the listener
+     */
+    GpsSessionDecoder(long firstFixNumber, GpsSessionIndex.FixListener listener) {
+        this.fixNumber = firstFixNumber;
+        this.listener = listener;
+        parser.setEnabledTypes(GpsEpochAssembler.EPOCH_TYPES);
+    }
+
+    /**
+     * Start from the state saved in an index entry instead of from scratch
+     *
+     * @param skipBytes the number of bytes of the first record to leave out
+     */
+    void resume(int lastEmittedTime, int learnedTypes, int lastDate, int lastDateTime, int skipBytes) {
+        assembler.resume(lastEmittedTime, learnedTypes, lastDate, lastDateTime);
+        this.skipBytes = skipBytes;
+    }
+
+    /**
+     * Decode the log from its current position
+     *
+     * @param log the session log
+     * @throws IOException if a segment can't be read
+     */
+    void decode(GpsSessionLog log) throws IOException {
+        log.readRecords(this);
+        if (more) assembler.flush();
+    }
+
+    @Override
+    public boolean onRecord(byte[] data, int length) {
+        int start = Math.min(skipBytes, length);
+        skipBytes = 0;
+        parser.parse(data, start, length - start);
+        return more;
+    }
+
+    @Override
+    public void onEpoch(GpsFix fix) {
+        if (more) more = listener.onFix(fixNumber++, fix);
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A sparse index of the fixes in a session log, for jumping to a UTC time or a fix number
+ * without decoding the session from the start.
+ *
+ * The fixes are the epochs a GpsEpochAssembler builds from the recorded GGA, RMC and GST
+ * sentences, numbered from 0. Every INTERVAL_FIXES fixes the index notes where in the log
+ * decoding can resume and the state the assembler was in there. A query binary searches the
+ * entries and decodes forward from the closest one, so it reads at most INTERVAL_FIXES unwanted
+ * fixes.
+ *
+ * GpsSessionRecorder writes the index to sessionName.beidx while recording. open loads it, or
+ * rebuilds it from the log when it is missing. An index that stops short of the log, as left by a
+ * recorder that was killed, still works: queries past its last entry decode from there.
+ *
+ * The file is a header of MAGIC, VERSION and INTERVAL_FIXES as ints, followed by ENTRY_LENGTH
+ * byte entries, big endian.
+ *
+ */
+public class GpsSessionIndex {
+
+    public static final int MAGIC = 0x42454c49; // "BELI"
+    public static final int VERSION = 1;
+    public static final int INTERVAL_FIXES = 100;
+    public static final String SUFFIX = ".beidx";
+
+    static final int HEADER_LENGTH = 12;
+    static final int ENTRY_LENGTH = 44;
+
+    /**
+     * Receives the fixes found by a query
+     */
+    public interface FixListener {
+
+        /**
+         * Called for each fix in the query, in order.
+         *
+         * The fix is reused after this returns unless it is retained.
+         *
+         * @param fixNumber the number of the fix in the session, from 0
+         * @param fix the fix
+         * @return false to end the query
+         */
+        boolean onFix(long fixNumber, GpsFix fix);
+    }
+
+    // The entries, as parallel arrays that grow as the session is recorded
+    private int count;
+    private long[] fixNumber = new long[64];   // fixes before the position
+    private long[] utcMillis = new long[64];   // time of the fix before the position, or -1
+    private int[] timeOfDay = new int[64];     // assembler state at the position
+    private int[] learnedTypes = new int[64];
+    private int[] lastDate = new int[64];
+    private int[] lastDateTime = new int[64];
+    private int[] segment = new int[64];       // the position: a record and bytes to skip in it
+    private int[] recordPosition = new int[64];
+    private int[] skip = new int[64];
+    private int writtenCount;                  // entries already appended to the file
+
+    /**
+     * Get the index file of a session
+     *
+     * @param directory the directory of the log
+     * @param sessionName the name the segment file names start with
+     * @return the file
+     */
+    public static File indexFile(File directory, String sessionName) {
+        return new File(directory, sessionName + SUFFIX);
+    }
+
+    /**
+     * Load the index of a session, or rebuild it from the log if it is missing or unreadable
+     *
+     * @param directory the directory of the log
+     * @param sessionName the name the segment file names start with
+     * @return the index
+     * @throws IOException if the log can't be read
+     */
+    public static GpsSessionIndex open(File directory, String sessionName) throws IOException {
+        File file = indexFile(directory, sessionName);
+        if (file.exists()) {
+            try {
+                return load(file);
+            } catch (IOException ignore) {
+                // rebuild it
+            }
+        }
+        return rebuild(directory, sessionName);
+    }
+
+    /**
+     * Load an index file
+     *
+     * @param file the file
+     * @return the index
+     * @throws IOException if the file can't be read or is not an index
+     */
+    public static GpsSessionIndex load(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION || buffer.getInt() != INTERVAL_FIXES) {
+                throw new IOException(file + " is not a session index");
+            }
+            GpsSessionIndex index = new GpsSessionIndex();
+            while (buffer.remaining() >= ENTRY_LENGTH) {
+                index.add(buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt(),
+                        buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+            }
+            index.writtenCount = index.count;
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Build the index of a session from its log and write the index file
+     *
+     * @param directory the directory of the log
+     * @param sessionName the name the segment file names start with
+     * @return the index
+     * @throws IOException if the log can't be read or the index can't be written
+     */
+    public static GpsSessionIndex rebuild(File directory, String sessionName) throws IOException {
+        GpsSessionIndex index = new GpsSessionIndex();
+        final GpsSessionIndexer indexer = new GpsSessionIndexer(index);
+        final GpsSessionLog log = new GpsSessionLog(directory, sessionName);
+        log.readRecords(new GpsSessionLog.RecordListener() {
+            @Override
+            public boolean onRecord(byte[] data, int length) {
+                indexer.onRecord(log.getSegment(), log.getRecordPosition(), data, 0, length);
+                return true;
+            }
+        });
+        FileOutputStream out = new FileOutputStream(indexFile(directory, sessionName));
+        try {
+            index.appendTo(out.getChannel());
+        } finally {
+            out.close();
+        }
+        return index;
+    }
+
+    /**
+     * Add an entry. Entries must be added in log order.
+     */
+    void add(long fixNumber, long utcMillis, int timeOfDay, int learnedTypes, int lastDate,
+             int lastDateTime, int segment, int recordPosition, int skip) {
+        if (count == this.fixNumber.length) {
+            int capacity = count * 2;
+            this.fixNumber = Arrays.copyOf(this.fixNumber, capacity);
+            this.utcMillis = Arrays.copyOf(this.utcMillis, capacity);
+            this.timeOfDay = Arrays.copyOf(this.timeOfDay, capacity);
+            this.learnedTypes = Arrays.copyOf(this.learnedTypes, capacity);
+            this.lastDate = Arrays.copyOf(this.lastDate, capacity);
+            this.lastDateTime = Arrays.copyOf(this.lastDateTime, capacity);
+            this.segment = Arrays.copyOf(this.segment, capacity);
+            this.recordPosition = Arrays.copyOf(this.recordPosition, capacity);
+            this.skip = Arrays.copyOf(this.skip, capacity);
+        }
+        this.fixNumber[count] = fixNumber;
+        this.utcMillis[count] = utcMillis;
+        this.timeOfDay[count] = timeOfDay;
+        this.learnedTypes[count] = learnedTypes;
+        this.lastDate[count] = lastDate;
+        this.lastDateTime[count] = lastDateTime;
+        this.segment[count] = segment;
+        this.recordPosition[count] = recordPosition;
+        this.skip[count] = skip;
+        count++;
+    }
+
+    /**
+     * Append the entries added since the last call to an index file, writing the header first
+     * if the file is empty
+     *
+     * @param channel the file, positioned at its end
+     * @throws IOException if writing fails
+     */
+    void appendTo(FileChannel channel) throws IOException {
+        int header = channel.position() == 0 ? HEADER_LENGTH : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(header + (count - writtenCount) * ENTRY_LENGTH);
+        if (header > 0) {
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(INTERVAL_FIXES);
+        }
+        for (int i = writtenCount; i < count; i++) {
+            buffer.putLong(fixNumber[i]).putLong(utcMillis[i]).putInt(timeOfDay[i])
+                    .putInt(learnedTypes[i]).putInt(lastDate[i]).putInt(lastDateTime[i])
+                    .putInt(segment[i]).putInt(recordPosition[i]).putInt(skip[i]);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        writtenCount = count;
+    }
+
+    /**
+     * Get the number of entries
+     *
+     * @return the entry count
+     */
+    public int getEntryCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of fixes before an entry's position, where queryFixes starts decoding
+     * without skipping any
+     *
+     * @param entry the entry, from 0
+     * @return the fix number
+     */
+    long getFixNumber(int entry) {
+        if (entry < 0 || entry >= count) throw new IndexOutOfBoundsException("entry " + entry);
+        return fixNumber[entry];
+    }
+
+    /**
+     * Find the entry to start decoding at for a time
+     *
+     * @param utcMillis milliseconds since 1970-01-01 UTC
+     * @return the last entry before any fix at or after the time
+     */
+    public int findByTime(long utcMillis) {
+        // utcMillis is -1 until a date is known, which sorts before every real time
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (this.utcMillis[mid] < utcMillis) low = mid; else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Find the entry to start decoding at for a fix number
+     *
+     * @param fixNumber the fix number, from 0
+     * @return the last entry at or before the fix
+     */
+    public int findByFixNumber(long fixNumber) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (this.fixNumber[mid] <= fixNumber) low = mid; else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Pass the fixes with a UTC time in a range to a listener. Fixes without a date are skipped.
+     *
+     * @param log the session log
+     * @param fromUtcMillis the start of the range, inclusive
+     * @param toUtcMillis the end of the range, exclusive
+     * @param listener the listener
+     * @throws IOException if the log can't be read
+     */
+    public void queryTime(GpsSessionLog log, final long fromUtcMillis, final long toUtcMillis,
+                          final FixListener listener) throws IOException {
+        decodeFrom(log, findByTime(fromUtcMillis), new FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                long utc = fix.getUtcMillis();
+                if (utc >= toUtcMillis) return false;
+                return utc < fromUtcMillis || listener.onFix(fixNumber, fix);
+            }
+        });
+    }
+
+    /**
+     * Pass a run of fixes to a listener
+     *
+     * @param log the session log
+     * @param firstFix the number of the first fix, from 0
+     * @param fixCount the number of fixes
+     * @param listener the listener
+     * @throws IOException if the log can't be read
+     */
+    public void queryFixes(GpsSessionLog log, final long firstFix, final long fixCount,
+                           final FixListener listener) throws IOException {
+        if (fixCount <= 0) return;
+        decodeFrom(log, findByFixNumber(firstFix), new FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                if (fixNumber < firstFix) return true;
+                return listener.onFix(fixNumber, fix) && fixNumber + 1 < firstFix + fixCount;
+            }
+        });
+    }
+
+    /**
+     * Decode the log from an entry until the listener returns false or the log ends
+     */
+    private void decodeFrom(GpsSessionLog log, int entry, FixListener listener) throws IOException {
+        if (count == 0) return;
+        GpsSessionDecoder decoder = new GpsSessionDecoder(fixNumber[entry], listener);
+        decoder.resume(timeOfDay[entry], learnedTypes[entry], lastDate[entry], lastDateTime[entry], skip[entry]);
+        log.seek(segment[entry], recordPosition[entry]);
+        decoder.decode(log);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Builds a GpsSessionIndex from the records of a session log, in log order.
+ *
+ * The records are decoded into epochs exactly as GpsSessionIndex decodes them for a query.
+ * Every GpsSessionIndex.INTERVAL_FIXES epochs an entry is added for the stream position right
+ * after the epoch: the end of its last sentence when the epoch completed, or the start of the
+ * sentence that began the next epoch when that is what emitted it.
+ *
+ */
+final class GpsSessionIndexer extends NmeaParser.ListenerAdapter implements GpsEpochAssembler.Listener {
+
+    // Enough recent records to find the start of any sentence, which is at most
+    // MAX_SENTENCE_LENGTH bytes back
+    private static final int RECENT_RECORDS = 512;
+
+    private final GpsSessionIndex index;
+    private final NmeaParser parser = new NmeaParser(this);
+    private final GpsEpochAssembler assembler = new GpsEpochAssembler(this);
+
+    private final long[] recentStart = new long[RECENT_RECORDS]; // stream position of each record
+    private final int[] recentSegment = new int[RECENT_RECORDS];
+    private final int[] recentPosition = new int[RECENT_RECORDS];
+    private int recentCount;
+    private int recentNext;
+
+    private long streamPosition;
+    private int sentenceTime;
+    private long fixCount;
+
+    /**
+     * Construct a GpsSessionIndexer
+     *
+     * @param index the index to add entries to. It must be empty.
+     */
+    GpsSessionIndexer(GpsSessionIndex index) {
+        this.index = index;
+        parser.setEnabledTypes(GpsEpochAssembler.EPOCH_TYPES);
+    }
+
+    /**
+     * Index the next record of the log
+     *
+     * @param segment the segment number of the record
+     * @param recordPosition the position of the record in its segment
+     * @param data the record's data
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     */
+    void onRecord(int segment, int recordPosition, byte[] data, int offset, int length) {
+        if (index.getEntryCount() == 0) {
+            // the start of the log, where decoding starts from scratch
+            index.add(0, -1, -1, 0, -1, -1, segment, recordPosition, 0);
+        }
+        if (length == 0) return;
+        recentStart[recentNext] = streamPosition;
+        recentSegment[recentNext] = segment;
+        recentPosition[recentNext] = recordPosition;
+        recentNext = (recentNext + 1) % RECENT_RECORDS;
+        if (recentCount < RECENT_RECORDS) recentCount++;
+        parser.parse(data, offset, length);
+        streamPosition += length;
+    }
+
+    @Override
+    public void onGga(NmeaGga gga) {
+        sentenceTime = gga.timeOfDay;
+        assembler.onGga(gga);
+    }
+
+    @Override
+    public void onRmc(NmeaRmc rmc) {
+        sentenceTime = rmc.timeOfDay;
+        assembler.onRmc(rmc);
+    }
+
+    @Override
+    public void onGst(NmeaGst gst) {
+        sentenceTime = gst.timeOfDay;
+        assembler.onGst(gst);
+    }
+
+    @Override
+    public void onEpoch(GpsFix fix) {
+        fixCount++;
+        if (fixCount % GpsSessionIndex.INTERVAL_FIXES != 0) return;
+        long position = fix.timeOfDay == sentenceTime ? parser.getSentenceEnd() : parser.getSentenceStart();
+        // find the record holding the position, newest first
+        for (int n = 0; n < recentCount; n++) {
+            int i = (recentNext - 1 - n + RECENT_RECORDS) % RECENT_RECORDS;
+            if (recentStart[i] <= position) {
+                index.add(fixCount, fix.getUtcMillis(), fix.timeOfDay, fix.sentenceTypes,
+                        assembler.getLastDate(), assembler.getLastDateTime(),
+                        recentSegment[i], recentPosition[i], (int) (position - recentStart[i]));
+                return;
+            }
+        }
+        // more than RECENT_RECORDS tiny records in one sentence, skip this entry
+    }
+}
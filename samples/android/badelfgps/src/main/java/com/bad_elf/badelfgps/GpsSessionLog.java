@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a log written by GpsSessionRecorder.
+ *
+ * Segments are memory-mapped one at a time and the records are read straight from the mapping.
+ * Use next to step through the records, or replay to feed them to a GpsStreamReader.Listener as
+ * if they were being received. A record or segment header cut short at the end of the last
+ * segment, as left by a recorder that was killed, ends the log.
+ *
+ * Segments are numbered from 0 without gaps, as GpsSessionRecorder writes them. GpsSessionIndex
+ * finds the record to seek to for a time or fix number.
+ *
+ * A GpsSessionLog is not thread safe.
+ *
+ */
+public class GpsSessionLog {
+
+    /**
+     * Receives the records of a log from readRecords
+     */
+    public interface RecordListener {
+
+        /**
+         * Called for each record, which is the log's current record during the call
+         *
+         * @param data the record's data from index 0, overwritten by the next record
+         * @param length the number of bytes
+         * @return false to stop reading
+         */
+        boolean onRecord(byte[] data, int length);
+    }
+
+    private static final int REPLAY_CHUNK_SIZE = 1024;
+
+    private final File[] segments;
+    private int segmentIndex = -1;
+    private MappedByteBuffer mapped;
+    private long segmentStartMillis;
+    private long segmentStartNanos;
+    private int recordOffset;  // position of the current record's data in mapped
+    private int recordLength = -1;
+    private long recordNanos;
+    private long truncatedCount;
+
+    private long paceStartNanos;   // System.nanoTime() when pacing started
+    private long paceFirstRecordNanos;
+
+    /**
+     * Open a log
+     *
+     * @param directory the directory holding the segments
+     * @param sessionName the name the segment file names start with
+     * @throws IOException if there are no segments
+     */
+    public GpsSessionLog(File directory, final String sessionName) throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.startsWith(sessionName + "-") && name.endsWith(GpsSessionRecorder.SEGMENT_SUFFIX)
+                        && name.length() == sessionName.length() + 6 + GpsSessionRecorder.SEGMENT_SUFFIX.length();
+            }
+        });
+        if (files == null || files.length == 0) throw new IOException("No segments for " + sessionName + " in " + directory);
+        Arrays.sort(files); // the segment numbers are zero padded
+        this.segments = files;
+    }
+
+    /**
+     * Go back to the first record
+     */
+    public void rewind() {
+        segmentIndex = -1;
+        mapped = null;
+        recordLength = -1;
+        paceStartNanos = 0;
+    }
+
+    /**
+     * Position the log so that next returns the record at a position
+     *
+     * @param segment the segment number
+     * @param recordPosition the position of the record in the segment, as from getRecordPosition
+     * @throws IOException if the segment can't be read
+     */
+    public void seek(int segment, int recordPosition) throws IOException {
+        if (segment < 0 || segment >= segments.length) throw new IllegalArgumentException("segment " + segment);
+        if (segment != segmentIndex || mapped == null) {
+            segmentIndex = segment;
+            mapSegment(segment);
+        }
+        recordOffset = recordPosition;
+        recordLength = -1;
+        paceStartNanos = 0;
+    }
+
+    /**
+     * Move to the next record
+     *
+     * @return false at the end of the log
+     * @throws IOException if a segment can't be read or is not a session log
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (mapped != null) {
+                mapped.position(recordOffset + Math.max(recordLength, 0));
+                int remaining = mapped.remaining();
+                if (remaining >= GpsSessionRecorder.RECORD_HEADER_LENGTH) {
+                    int length = mapped.getInt();
+                    long nanos = mapped.getLong();
+                    if (length >= 0 && length <= remaining - GpsSessionRecorder.RECORD_HEADER_LENGTH) {
+                        recordOffset = mapped.position();
+                        recordLength = length;
+                        recordNanos = nanos;
+                        return true;
+                    }
+                }
+                if (remaining > 0) truncatedCount++;
+            }
+            if (segmentIndex + 1 >= segments.length || !mapSegment(++segmentIndex)) {
+                mapped = null;
+                recordLength = -1;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Map a segment and read its header
+     *
+     * @return false if it is the last segment and ends within its header, which ends the log
+     */
+    private boolean mapSegment(int index) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segments[index], "r");
+        try {
+            FileChannel channel = file.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after close
+        } finally {
+            file.close();
+        }
+        if (mapped.remaining() < GpsSessionRecorder.HEADER_LENGTH && index == segments.length - 1) {
+            // the recorder was killed as it started the segment
+            if (mapped.remaining() > 0) truncatedCount++;
+            mapped = null;
+            recordLength = -1;
+            return false;
+        }
+        if (mapped.remaining() < GpsSessionRecorder.HEADER_LENGTH
+                || mapped.getInt() != GpsSessionRecorder.MAGIC) {
+            throw new IOException(segments[index] + " is not a session log");
+        }
+        if (mapped.getShort() != GpsSessionRecorder.VERSION) {
+            throw new IOException(segments[index] + " has an unsupported version");
+        }
+        int headerLength = mapped.getShort();
+        mapped.getInt(); // segment number
+        segmentStartMillis = mapped.getLong();
+        segmentStartNanos = mapped.getLong();
+        recordOffset = headerLength;
+        recordLength = -1;
+        return true;
+    }
+
+    /** @return the number of segments */
+    public int getSegmentCount()        { return segments.length; }
+    /** @return the number of records cut short at the end of a segment */
+    public long getTruncatedCount()     { return truncatedCount;  }
+    /** @return the segment number of the current record */
+    public int getSegment()             { return segmentIndex;    }
+    /** @return the position of the current record in its segment, for seek */
+    public int getRecordPosition()      { return recordOffset - GpsSessionRecorder.RECORD_HEADER_LENGTH; }
+    /** @return the length of the current record's data */
+    public int getLength()              { return recordLength;    }
+    /** @return System.nanoTime() of the recording process when the current record was received */
+    public long getReceivedNanos()      { return recordNanos;     }
+
+    /**
+     * Get the wall clock time the current record was received
+     *
+     * @return milliseconds since 1970-01-01 UTC
+     */
+    public long getReceivedMillis() {
+        return segmentStartMillis + (recordNanos - segmentStartNanos) / 1000000L;
+    }
+
+    /**
+     * Copy part of the current record's data
+     *
+     * @param srcOffset the index in the record's data to copy from
+     * @param dst the destination
+     * @param dstOffset the index in dst to copy to
+     * @param count the number of bytes to copy
+     */
+    public void copyTo(int srcOffset, byte[] dst, int dstOffset, int count) {
+        if (recordLength < 0) throw new IllegalStateException("no current record");
+        if (srcOffset < 0 || count < 0 || srcOffset + count > recordLength) throw new IndexOutOfBoundsException();
+        mapped.position(recordOffset + srcOffset);
+        mapped.get(dst, dstOffset, count);
+    }
+
+    /**
+     * Wait until the current record is due when replaying at a speed. The first call starts the
+     * clock.
+     *
+     * @param speed 1 for real time, 10 for ten times faster, or 0 to not wait at all
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void awaitRecord(double speed) throws InterruptedIOException {
+        if (speed <= 0) return;
+        long now = System.nanoTime();
+        if (paceStartNanos == 0) {
+            paceStartNanos = now;
+            paceFirstRecordNanos = recordNanos;
+            return;
+        }
+        long waitNanos = paceStartNanos + (long) ((recordNanos - paceFirstRecordNanos) / speed) - now;
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Read the records from the current position to the end of the log, or until the listener
+     * returns false, copying each one into a reused array
+     *
+     * @param listener the listener
+     * @throws IOException if a segment can't be read
+     */
+    public void readRecords(RecordListener listener) throws IOException {
+        byte[] record = new byte[REPLAY_CHUNK_SIZE];
+        while (next()) {
+            if (recordLength > record.length) record = new byte[Math.max(recordLength, record.length * 2)];
+            copyTo(0, record, 0, recordLength);
+            if (!listener.onRecord(record, recordLength)) return;
+        }
+    }
+
+    /**
+     * Decode the whole log into epochs, as GpsSessionIndex does for a query, and pass them to a
+     * listener until it returns false
+     *
+     * @param listener the listener, which gets the fixes numbered from 0
+     * @throws IOException if a segment can't be read
+     */
+    public void decodeFixes(GpsSessionIndex.FixListener listener) throws IOException {
+        rewind();
+        new GpsSessionDecoder(0, listener).decode(this);
+    }
+
+    /**
+     * Replay the log from the current position to the end, passing each record to the listener
+     * in pooled chunks.
+     *
+     * The chunks are stamped with System.nanoTime() as they are passed on, as a GpsStreamReader
+     * would stamp them, so latencies measured from them are those of the replay. The listener can
+     * get the time the record was recorded from getReceivedMillis while it handles the chunk.
+     *
+     * @param listener the listener, for example the one a GpsStreamReader would call
+     * @param speed 1 for real time, 10 for ten times faster, or 0 for as fast as possible
+     * @throws IOException if a segment can't be read, or the thread is interrupted
+     */
+    public void replay(GpsStreamReader.Listener listener, double speed) throws IOException {
+        GpsChunkPool pool = new GpsChunkPool(REPLAY_CHUNK_SIZE, 8);
+        while (next()) {
+            awaitRecord(speed);
+            for (int offset = 0; offset < recordLength; offset += REPLAY_CHUNK_SIZE) {
+                GpsDataChunk chunk = pool.acquire();
+                try {
+                    int count = Math.min(REPLAY_CHUNK_SIZE, recordLength - offset);
+                    copyTo(offset, chunk.data, 0, count);
+                    chunk.length = count;
+                    chunk.receivedNanos = System.nanoTime();
+                    listener.onDataReceived(chunk);
+                } finally {
+                    chunk.release(); // back to the pool unless the listener retained it
+                }
+            }
+            if (Thread.interrupted()) throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Records every byte received from a Bad Elf Device to an append-only log for post-processing.
+ *
+ * The log is a series of segment files named sessionName-00000.belog, sessionName-00001.belog
+ * and so on in one directory. A segment starts with a header:
+ *
+ *   int    MAGIC
+ *   short  VERSION
+ *   short  HEADER_LENGTH
+ *   int    segment number
+ *   long   System.currentTimeMillis() when the segment was started
+ *   long   System.nanoTime() at the same moment
+ *   int    reserved
+ *
+ * followed by one record per received chunk:
+ *
+ *   int    length of the data
+ *   long   System.nanoTime() when the chunk was received
+ *   byte[] the data
+ *
+ * All values are big endian. Records are collected in a direct buffer and written with a single
+ * FileChannel write when the buffer is full, when a record arrives more than MAX_BATCH_DELAY_MS
+ * after the first one in the buffer, on flush and on close. A new segment is
+ * started when the current one would grow past the segment size, and its header is written
+ * straight away. GpsSessionLog reads the log.
+ *
+ * The recorder also decodes the fixes as it goes and keeps a GpsSessionIndex of them in
+ * sessionName.beidx, written along with the batches.
+ *
+ * Add it to BadElfService with startRecording, or call record directly. It is thread safe.
+ *
+ */
+public class GpsSessionRecorder implements BadElfGpsChunkObserver {
+
+    public static final int MAGIC = 0x42454c47; // "BELG"
+    public static final short VERSION = 1;
+    public static final short HEADER_LENGTH = 32;
+    public static final int RECORD_HEADER_LENGTH = 12;
+    public static final String SEGMENT_SUFFIX = ".belog";
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final long MAX_BATCH_DELAY_MS = 1000;
+
+    private final File directory;
+    private final String sessionName;
+    private final long segmentBytes;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private long batchStartNanos;
+    private FileOutputStream outStream;
+    private FileChannel channel;
+    private long segmentPosition; // bytes in the current segment, including the unwritten batch
+    private int segmentNumber = -1;
+    private boolean failed;
+    private final GpsSessionIndex index = new GpsSessionIndex();
+    private final GpsSessionIndexer indexer = new GpsSessionIndexer(index);
+    private FileOutputStream indexStream;
+
+    private long recordCount;
+    private long bytesRecorded;
+
+    /**
+     * Construct a GpsSessionRecorder with the default segment size
+     *
+     * @param directory the directory to write the segments to
+     * @param sessionName the name the segment file names start with
+     */
+    public GpsSessionRecorder(File directory, String sessionName) {
+        this(directory, sessionName, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Construct a GpsSessionRecorder
+     *
+     * @param directory the directory to write the segments to
+     * @param sessionName the name the segment file names start with
+     * @param segmentBytes the size at which a new segment is started
+     */
+    public GpsSessionRecorder(File directory, String sessionName, long segmentBytes) {
+        if (segmentBytes < HEADER_LENGTH + RECORD_HEADER_LENGTH + 1) throw new IllegalArgumentException("segmentBytes too small");
+        if (segmentBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("segmentBytes too large to map");
+        this.directory = directory;
+        this.sessionName = sessionName;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Get the file of a segment
+     *
+     * @param directory the directory of the log
+     * @param sessionName the name the segment file names start with
+     * @param segmentNumber the segment number, from 0
+     * @return the file
+     */
+    public static File segmentFile(File directory, String sessionName, int segmentNumber) {
+        return new File(directory, sessionName + "-" + String.format(Locale.US, "%05d", segmentNumber) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Record a chunk. Errors stop the recording and are passed to onRecordingError.
+     *
+     * @param chunk the received data
+     */
+    @Override
+    public void onChunkReceived(GpsDataChunk chunk) {
+        try {
+            record(chunk.data, 0, chunk.length, chunk.receivedNanos);
+        } catch (IOException e) {
+            onRecordingError(e);
+        }
+    }
+
+    /**
+     * Append one record
+     *
+     * @param data the received data
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @param receivedNanos System.nanoTime() when the data was received
+     * @throws IOException if writing fails. The recorder is closed and records nothing more.
+     */
+    public synchronized void record(byte[] data, int offset, int length, long receivedNanos) throws IOException {
+        if (failed) return;
+        try {
+            int recordLength = RECORD_HEADER_LENGTH + length;
+            if (channel == null || (segmentPosition + recordLength > segmentBytes
+                    && segmentPosition > HEADER_LENGTH)) {
+                startSegment();
+            }
+            if (batch.remaining() < recordLength) {
+                writeBatch();
+            }
+            if (batch.position() == 0) {
+                batchStartNanos = System.nanoTime();
+            }
+            indexer.onRecord(segmentNumber, (int) segmentPosition, data, offset, length);
+            if (recordLength <= batch.remaining()) {
+                batch.putInt(length).putLong(receivedNanos).put(data, offset, length);
+            } else {
+                // larger than a whole batch, write it on its own
+                batch.putInt(length).putLong(receivedNanos);
+                writeBatch();
+                writeFully(ByteBuffer.wrap(data, offset, length));
+            }
+            segmentPosition += recordLength;
+            recordCount++;
+            bytesRecorded += length;
+            if (System.nanoTime() - batchStartNanos >= MAX_BATCH_DELAY_MS * 1000000L) {
+                writeBatch();
+            }
+        } catch (IOException e) {
+            fail();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the records collected so far to the file
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void flush() throws IOException {
+        if (channel == null) return;
+        try {
+            writeBatch();
+        } catch (IOException e) {
+            fail();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the remaining records and close the current segment. Recording again afterwards
+     * starts a new segment.
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+        try {
+            writeBatch();
+        } finally {
+            try {
+                closeSegment();
+            } finally {
+                closeIndex();
+            }
+        }
+    }
+
+    /**
+     * Called when writing fails. The recorder has already been closed. Override to report it.
+     *
+     * @param e the exception
+     */
+    protected void onRecordingError(IOException e) {
+    }
+
+    /** @return the number of records written or waiting to be written */
+    public synchronized long getRecordCount()   { return recordCount;       }
+    /** @return the number of received bytes recorded */
+    public synchronized long getBytesRecorded() { return bytesRecorded;     }
+    /** @return the number of segments started */
+    public synchronized int getSegmentCount()   { return segmentNumber + 1; }
+    /** @return true if writing failed and nothing more is recorded */
+    public synchronized boolean hasFailed()     { return failed;            }
+
+    private void startSegment() throws IOException {
+        if (channel != null) {
+            writeBatch();
+            closeSegment();
+        }
+        segmentNumber++;
+        if (indexStream == null) {
+            indexStream = new FileOutputStream(GpsSessionIndex.indexFile(directory, sessionName), segmentNumber > 0);
+        }
+        outStream = new FileOutputStream(segmentFile(directory, sessionName, segmentNumber));
+        channel = outStream.getChannel();
+        batch.putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort(HEADER_LENGTH)
+                .putInt(segmentNumber)
+                .putLong(System.currentTimeMillis())
+                .putLong(System.nanoTime())
+                .putInt(0);
+        segmentPosition = HEADER_LENGTH;
+        writeBatch(); // so a recorder killed before the first batch still leaves a readable segment
+    }
+
+    private void writeBatch() throws IOException {
+        batch.flip();
+        writeFully(batch);
+        batch.clear();
+        index.appendTo(indexStream.getChannel());
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        FileOutputStream out = outStream;
+        outStream = null;
+        channel = null;
+        batch.clear();
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    private void closeIndex() throws IOException {
+        FileOutputStream out = indexStream;
+        indexStream = null;
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    private void fail() {
+        failed = true;
+        try {
+            closeSegment();
+            closeIndex();
+        } catch (IOException ignore) {
+            // the recording has already failed
+        }
+    }
+}
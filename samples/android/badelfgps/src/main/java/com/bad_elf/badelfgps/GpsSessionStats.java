@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Statistics of the fixes of a recorded session: how many there are, their GGA fix quality,
+ * their HDOP and the gaps between them.
+ *
+ * A gap is a jump of more than the gap threshold between the UTC times of two fixes that follow
+ * each other. Fixes without a date are counted but take no part in gaps.
+ *
+ * GpsBatchProcessor collects the statistics of parts of a session separately and merges them
+ * in session order. Every value is a count, a sum or a maximum of whole numbers, so the merged
+ * statistics are exactly those of one pass over the session.
+ *
+ */
+public final class GpsSessionStats {
+
+    /** The highest GGA fix quality counted on its own. Higher ones count as unknown. */
+    public static final int MAX_QUALITY = 8;
+    /** The width of an HDOP histogram bucket */
+    public static final double HDOP_BUCKET_WIDTH = 0.5;
+    /** The number of HDOP buckets. The last one also holds every larger HDOP. */
+    public static final int HDOP_BUCKETS = 20;
+
+    private final String sessionName;
+    private final long gapThresholdMillis;
+
+    private long fixCount;
+    private long positionCount;
+    private final long[] qualityCounts = new long[MAX_QUALITY + 2]; // the last one for unknown
+    private final long[] hdopCounts = new long[HDOP_BUCKETS];
+    private long firstUtcMillis = -1;
+    private long lastUtcMillis = -1;
+    private long gapCount;
+    private long gapMillis;
+    private long longestGapMillis;
+
+    /**
+     * Construct empty GpsSessionStats
+     *
+     * @param sessionName the name of the session
+     * @param gapThresholdMillis the longest time between two fixes that is not a gap
+     */
+    public GpsSessionStats(String sessionName, long gapThresholdMillis) {
+        if (gapThresholdMillis < 0) throw new IllegalArgumentException("gapThresholdMillis < 0");
+        this.sessionName = sessionName;
+        this.gapThresholdMillis = gapThresholdMillis;
+    }
+
+    /**
+     * Count the next fix of the session
+     *
+     * @param fix the fix
+     */
+    public void add(GpsFix fix) {
+        fixCount++;
+        if (fix.hasPosition()) positionCount++;
+        int quality = fix.quality;
+        qualityCounts[quality >= 0 && quality <= MAX_QUALITY ? quality : MAX_QUALITY + 1]++;
+        double hdop = fix.hdop;
+        if (hdop >= 0) { // not NaN
+            hdopCounts[(int) Math.min(hdop / HDOP_BUCKET_WIDTH, HDOP_BUCKETS - 1)]++;
+        }
+        long utcMillis = fix.getUtcMillis();
+        if (utcMillis >= 0) {
+            if (firstUtcMillis < 0) firstUtcMillis = utcMillis;
+            if (lastUtcMillis >= 0) addGap(utcMillis - lastUtcMillis);
+            lastUtcMillis = utcMillis;
+        }
+    }
+
+    private void addGap(long millis) {
+        if (millis <= gapThresholdMillis) return;
+        gapCount++;
+        gapMillis += millis;
+        if (millis > longestGapMillis) longestGapMillis = millis;
+    }
+
+    /**
+     * Add the statistics of the fixes that follow these in the same session
+     *
+     * @param next the statistics of the following fixes
+     */
+    public void merge(GpsSessionStats next) {
+        if (next.gapThresholdMillis != gapThresholdMillis) throw new IllegalArgumentException("different gap thresholds");
+        fixCount += next.fixCount;
+        positionCount += next.positionCount;
+        for (int i = 0; i < qualityCounts.length; i++) qualityCounts[i] += next.qualityCounts[i];
+        for (int i = 0; i < HDOP_BUCKETS; i++) hdopCounts[i] += next.hdopCounts[i];
+        if (next.firstUtcMillis >= 0) {
+            if (lastUtcMillis >= 0) addGap(next.firstUtcMillis - lastUtcMillis); // across the seam
+            if (firstUtcMillis < 0) firstUtcMillis = next.firstUtcMillis;
+            lastUtcMillis = next.lastUtcMillis;
+        }
+        gapCount += next.gapCount;
+        gapMillis += next.gapMillis;
+        longestGapMillis = Math.max(longestGapMillis, next.longestGapMillis);
+    }
+
+    /** @return the name of the session */
+    public String getSessionName()       { return sessionName;        }
+    /** @return the longest time between two fixes that is not a gap */
+    public long getGapThresholdMillis()  { return gapThresholdMillis; }
+    /** @return the number of fixes */
+    public long getFixCount()            { return fixCount;           }
+    /** @return the number of fixes with a position */
+    public long getPositionCount()       { return positionCount;      }
+    /** @return the UTC time of the first fix with a date, or -1 */
+    public long getFirstUtcMillis()      { return firstUtcMillis;     }
+    /** @return the UTC time of the last fix with a date, or -1 */
+    public long getLastUtcMillis()       { return lastUtcMillis;      }
+    /** @return the number of gaps */
+    public long getGapCount()            { return gapCount;           }
+    /** @return the total length of the gaps in milliseconds */
+    public long getGapMillis()           { return gapMillis;          }
+    /** @return the length of the longest gap in milliseconds, or 0 */
+    public long getLongestGapMillis()    { return longestGapMillis;   }
+
+    /**
+     * Get the number of fixes with a GGA fix quality
+     *
+     * @param quality 0 to MAX_QUALITY, or -1 for fixes without GGA or with a higher quality
+     * @return the number of fixes
+     */
+    public long getQualityCount(int quality) {
+        if (quality < -1 || quality > MAX_QUALITY) throw new IllegalArgumentException("quality " + quality);
+        return qualityCounts[quality >= 0 ? quality : MAX_QUALITY + 1];
+    }
+
+    /**
+     * Get the number of fixes in a bucket of the HDOP histogram
+     *
+     * @param bucket 0 to HDOP_BUCKETS - 1. Bucket i holds HDOPs from i * HDOP_BUCKET_WIDTH up to
+     *               the next bucket.
+     * @return the number of fixes
+     */
+    public long getHdopCount(int bucket) {
+        return hdopCounts[bucket];
+    }
+
+    /**
+     * Check whether two statistics hold the same values, for example from a batch and from one
+     * pass over the session
+     *
+     * @param other the other statistics
+     * @return true if every count is the same
+     */
+    public boolean sameAs(GpsSessionStats other) {
+        return fixCount == other.fixCount && positionCount == other.positionCount
+                && Arrays.equals(qualityCounts, other.qualityCounts)
+                && Arrays.equals(hdopCounts, other.hdopCounts)
+                && firstUtcMillis == other.firstUtcMillis && lastUtcMillis == other.lastUtcMillis
+                && gapCount == other.gapCount && gapMillis == other.gapMillis
+                && longestGapMillis == other.longestGapMillis;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(sessionName);
+        s.append(String.format(Locale.US, ": %d fixes, %d with a position, quality", fixCount, positionCount));
+        for (int quality = 0; quality <= MAX_QUALITY; quality++) {
+            if (qualityCounts[quality] > 0) s.append(' ').append(quality).append('=').append(qualityCounts[quality]);
+        }
+        if (qualityCounts[MAX_QUALITY + 1] > 0) s.append(" unknown=").append(qualityCounts[MAX_QUALITY + 1]);
+        s.append(String.format(Locale.US, ", %d gaps of %.1f s, longest %.1f s",
+                gapCount, gapMillis / 1000.0, longestGapMillis / 1000.0));
+        return s.toString();
+    }
+}
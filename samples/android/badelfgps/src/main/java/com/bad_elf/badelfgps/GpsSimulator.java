@@ -0,0 +1,517 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * A stand-in for a Bad Elf Device that generates NMEA along a trajectory, for testing without
+ * hardware. Use it through SimulatorTransport.
+ *
+ * Every epoch produces GGA, RMC and GST, and, while satellites are included, GSA and once a
+ * second the GSV cycle, like the real receiver. The $BE configuration requests that
+ * BadElfGpsConnection.Request and requestConfiguration send change the rate, from 1 to 50 Hz,
+ * and whether satellites are included. Each request is acknowledged with an empty packet with
+ * the request's sequence number, class and id.
+ *
+ * Faults can be injected: sentences with a wrong checksum, sentences cut off part way and
+ * dropouts during which the receiver sends nothing.
+ *
+ * The output only depends on the seed, the trajectory and the requests received, and time is
+ * simulated, so a run can be repeated exactly. A GpsSimulator is not thread-safe.
+ *
+ */
+public class GpsSimulator {
+
+    public static final int MIN_RATE = 1;
+    public static final int MAX_RATE = 50;
+
+    /** Indexes into the position array passed to Trajectory.step */
+    public static final int LATITUDE = 0, LONGITUDE = 1, ALTITUDE = 2, SPEED = 3, COURSE = 4;
+
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final double KNOTS_PER_METER_PER_SECOND = 1.0 / 0.514444;
+    private static final int SATELLITES = 14;
+
+    /**
+     * How the receiver moves
+     */
+    public interface Trajectory {
+
+        /**
+         * Move the receiver on
+         *
+         * @param seconds the time since the last step
+         * @param position latitude and longitude in degrees, altitude in meters, speed in meters
+         *                 per second and course in degrees, see LATITUDE etc., updated in place
+         */
+        void step(double seconds, double[] position);
+    }
+
+    /**
+     * Wander around at a steady speed, turning a little at random every step
+     *
+     * @param speedMs the speed in meters per second, 0 to stand still
+     * @param seed the seed of the turns
+     * @return the trajectory
+     */
+    public static Trajectory randomWalk(final double speedMs, long seed) {
+        final Random random = new Random(seed);
+        return new Trajectory() {
+            @Override
+            public void step(double seconds, double[] position) {
+                double course = position[COURSE] + random.nextGaussian() * 10 * seconds;
+                position[COURSE] = (course % 360 + 360) % 360;
+                position[SPEED] = speedMs;
+                position[ALTITUDE] += random.nextGaussian() * 0.2 * seconds;
+                move(position, speedMs * seconds);
+            }
+        };
+    }
+
+    /**
+     * Follow a list of waypoints at a steady speed, starting over at the first one after the
+     * last. The receiver jumps to the first waypoint on the first step.
+     *
+     * @param waypoints latitude, longitude and altitude of each waypoint
+     * @param speedMs the speed in meters per second
+     * @return the trajectory
+     */
+    public static Trajectory route(final double[][] waypoints, final double speedMs) {
+        if (waypoints.length == 0) throw new IllegalArgumentException("no waypoints");
+        return new Trajectory() {
+            private int next = -1;
+
+            @Override
+            public void step(double seconds, double[] position) {
+                if (next < 0) {
+                    System.arraycopy(waypoints[0], 0, position, 0, 3);
+                    next = 1 % waypoints.length;
+                }
+                position[SPEED] = speedMs;
+                double distance = speedMs * seconds;
+                while (distance > 0 && waypoints.length > 1) {
+                    double[] target = waypoints[next];
+                    double north = (target[LATITUDE] - position[LATITUDE]) * METERS_PER_DEGREE;
+                    double east = (target[LONGITUDE] - position[LONGITUDE]) * METERS_PER_DEGREE
+                            * Math.cos(Math.toRadians(position[LATITUDE]));
+                    double remaining = Math.hypot(north, east);
+                    if (remaining > distance) {
+                        double f = distance / remaining;
+                        position[COURSE] = (Math.toDegrees(Math.atan2(east, north)) + 360) % 360;
+                        position[LATITUDE] += (target[LATITUDE] - position[LATITUDE]) * f;
+                        position[LONGITUDE] += (target[LONGITUDE] - position[LONGITUDE]) * f;
+                        position[ALTITUDE] += (target[ALTITUDE] - position[ALTITUDE]) * f;
+                        break;
+                    }
+                    System.arraycopy(target, 0, position, 0, 3);
+                    distance -= remaining;
+                    next = (next + 1) % waypoints.length;
+                }
+            }
+        };
+    }
+
+    /**
+     * Move a position along its course
+     */
+    static void move(double[] position, double meters) {
+        double course = Math.toRadians(position[COURSE]);
+        position[LATITUDE] += meters * Math.cos(course) / METERS_PER_DEGREE;
+        position[LONGITUDE] += meters * Math.sin(course)
+                / (METERS_PER_DEGREE * Math.cos(Math.toRadians(position[LATITUDE])));
+    }
+
+    private final Random random;
+    private final Trajectory trajectory;
+    private final double[] position = new double[5];
+    private long utcMicros;
+    private int rate = 1;
+    private boolean includeSatellites = true;
+    private long lastGsvSecond = -1;
+
+    private final int[] prn = new int[SATELLITES];
+    private final double[] elevation = new double[SATELLITES];
+    private final double[] azimuth = new double[SATELLITES];
+    private final int[] snr = new int[SATELLITES];
+    private final int[] used = new int[12];
+    private int usedCount;
+
+    private double checksumErrorRate;
+    private double partialSentenceRate;
+    private double dropoutRate;
+    private int dropoutEpochs;
+    private int dropoutRemaining;
+
+    private final StringBuilder sentence = new StringBuilder(100);
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
+    private final ByteArrayOutputStream responses = new ByteArrayOutputStream();
+    private final byte[] hostData = new byte[BadElfPacketEncoder.MAX_PACKET_LENGTH * 2];
+    private int hostDataLength;
+    private final BadElfPacket request = new BadElfPacket();
+    private final BadElfPacketEncoder encoder = new BadElfPacketEncoder();
+
+    private long epochs;
+    private long sentences;
+    private long requests;
+
+    /**
+     * Construct a GpsSimulator sending 1 Hz with satellites
+     *
+     * @param seed the seed of everything random
+     * @param startUtcMillis the time of the first epoch in milliseconds since 1970
+     * @param latitude the starting latitude in degrees
+     * @param longitude the starting longitude in degrees
+     * @param altitude the starting altitude in meters
+     * @param trajectory how the receiver moves, for example randomWalk
+     */
+    public GpsSimulator(long seed, long startUtcMillis, double latitude, double longitude,
+                        double altitude, Trajectory trajectory) {
+        this.random = new Random(seed);
+        this.trajectory = trajectory;
+        this.utcMicros = startUtcMillis * 1000;
+        position[LATITUDE] = latitude;
+        position[LONGITUDE] = longitude;
+        position[ALTITUDE] = altitude;
+        int[] gpsPrns = new int[32];
+        for (int i = 0; i < gpsPrns.length; i++) gpsPrns[i] = i + 1;
+        for (int i = 0; i < SATELLITES; i++) {
+            int j = i + random.nextInt(gpsPrns.length - i); // a random PRN not used yet
+            prn[i] = gpsPrns[j];
+            gpsPrns[j] = gpsPrns[i];
+            elevation[i] = 5 + random.nextDouble() * 80;
+            azimuth[i] = random.nextDouble() * 360;
+        }
+    }
+
+    /**
+     * Set the number of epochs per second
+     *
+     * @param rate MIN_RATE to MAX_RATE
+     */
+    public void setRate(int rate) {
+        if (rate < MIN_RATE || rate > MAX_RATE) throw new IllegalArgumentException("rate " + rate);
+        this.rate = rate;
+    }
+
+    /** @return the number of epochs per second */
+    public int getRate()                      { return rate;              }
+
+    /**
+     * Set whether GSA and GSV are sent
+     *
+     * @param includeSatellites true to send them
+     */
+    public void setIncludeSatellites(boolean includeSatellites) {
+        this.includeSatellites = includeSatellites;
+    }
+
+    /** @return true if GSA and GSV are sent */
+    public boolean isIncludeSatellites()      { return includeSatellites; }
+
+    /**
+     * Set the faults to inject. All are off by default.
+     *
+     * @param checksumErrorRate the fraction of sentences sent with a wrong checksum
+     * @param partialSentenceRate the fraction of sentences cut off part way
+     * @param dropoutRate the chance that a dropout starts at any epoch
+     * @param dropoutEpochs the number of epochs a dropout lasts
+     */
+    public void setFaults(double checksumErrorRate, double partialSentenceRate, double dropoutRate,
+                          int dropoutEpochs) {
+        if (dropoutEpochs < 0) throw new IllegalArgumentException("dropoutEpochs < 0");
+        this.checksumErrorRate = checksumErrorRate;
+        this.partialSentenceRate = partialSentenceRate;
+        this.dropoutRate = dropoutRate;
+        this.dropoutEpochs = dropoutEpochs;
+    }
+
+    /** @return the time of the next epoch in milliseconds since 1970 */
+    public long getUtcMillis()                { return utcMicros / 1000;  }
+    /** @return the microseconds from one epoch to the next at the current rate */
+    public long getEpochMicros()              { return 1000000L / rate;   }
+    /** @return the number of epochs generated, including silent ones */
+    public long getEpochCount()               { return epochs;            }
+    /** @return the number of sentences generated */
+    public long getSentenceCount()            { return sentences;         }
+    /** @return the number of configuration requests received */
+    public long getRequestCount()             { return requests;          }
+    /** @return latitude, longitude, altitude, speed and course of the next epoch, see LATITUDE */
+    public double[] getPosition()             { return position.clone();  }
+
+    /**
+     * Generate the sentences of the next epoch and move time on by one epoch
+     *
+     * @return the bytes the receiver sends, empty during a dropout
+     */
+    public byte[] nextEpoch() {
+        output.reset();
+        epochs++;
+        if (dropoutRemaining == 0 && dropoutEpochs > 0 && random.nextDouble() < dropoutRate) {
+            dropoutRemaining = dropoutEpochs;
+        }
+        if (dropoutRemaining > 0) {
+            dropoutRemaining--;
+        } else {
+            updateSatellites();
+            appendGga();
+            appendRmc();
+            if (includeSatellites) {
+                appendGsa();
+                long second = utcMicros / 1000000;
+                if (second != lastGsvSecond) {
+                    lastGsvSecond = second;
+                    appendGsv();
+                }
+            }
+            appendGst();
+        }
+        long micros = 1000000L / rate;
+        utcMicros += micros;
+        trajectory.step(micros / 1e6, position);
+        return output.toByteArray();
+    }
+
+    /**
+     * Receive data from the host. Configuration requests take effect from the next epoch.
+     *
+     * @param data the data
+     * @param offset the offset in data of the first byte
+     * @param length the number of bytes
+     */
+    public void onHostData(byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = data[offset + i];
+            if (hostDataLength == 0 && b != '$') continue; // keepalive junk
+            hostData[hostDataLength++] = b;
+            if (hostDataLength == 2 && b != BadElfPacket.MARKER) {
+                hostDataLength = 0;
+            } else if (request.decode(hostData, 0, hostDataLength)) {
+                onRequest();
+                hostDataLength = 0;
+            } else if (hostDataLength == hostData.length) {
+                hostDataLength = 0; // garbage
+            }
+        }
+    }
+
+    private void onRequest() {
+        if (request.getMessageClass() != BadElfPacket.CLASS_CONFIGURATION
+                || request.getMessageId() != BadElfPacket.ID_CONFIGURATION) {
+            return;
+        }
+        requests++;
+        int newRate = request.findValue(BadElfPacket.TAG_RATE, rate);
+        if (newRate >= MIN_RATE && newRate <= MAX_RATE) rate = newRate;
+        int satellites = request.findValue(BadElfPacket.TAG_SATELLITES, 0);
+        if (satellites == BadElfPacket.SATELLITES_INCLUDE) includeSatellites = true;
+        if (satellites == BadElfPacket.SATELLITES_NONE) includeSatellites = false;
+        encoder.begin(request.getSequence(), request.getMessageClass(), request.getMessageId());
+        responses.write(encoder.getBuffer(), 0, encoder.finish());
+    }
+
+    /**
+     * Get and clear the acknowledgements of the requests received
+     *
+     * @return the bytes the receiver sends in reply, possibly empty
+     */
+    public byte[] takeResponses() {
+        byte[] data = responses.toByteArray();
+        responses.reset();
+        return data;
+    }
+
+    private void updateSatellites() {
+        usedCount = 0;
+        for (int i = 0; i < SATELLITES; i++) {
+            azimuth[i] = (azimuth[i] + 0.004 / rate) % 360;   // the sky turns slowly
+            snr[i] = (int) (20 + elevation[i] / 3 + random.nextInt(6));
+            if (elevation[i] > 10 && usedCount < used.length) used[usedCount++] = prn[i];
+        }
+    }
+
+    private double hdop() {
+        return 0.6 + 6.0 / Math.max(usedCount, 1) + random.nextDouble() * 0.1;
+    }
+
+    private void appendGga() {
+        begin("GPGGA");
+        appendTime();
+        appendCoordinates();
+        sentence.append(",1,");
+        appendInt(usedCount, 2);
+        sentence.append(',');
+        appendFixed(hdop(), 1);
+        sentence.append(',');
+        appendFixed(position[ALTITUDE], 1);
+        sentence.append(",M,46.9,M,,");
+        end();
+    }
+
+    private void appendRmc() {
+        begin("GPRMC");
+        appendTime();
+        sentence.append(",A");
+        appendCoordinates();
+        sentence.append(',');
+        appendFixed(position[SPEED] * KNOTS_PER_METER_PER_SECOND, 2);
+        sentence.append(',');
+        appendFixed(position[COURSE], 1);
+        sentence.append(',');
+        appendDate();
+        sentence.append(",,,A");
+        end();
+    }
+
+    private void appendGsa() {
+        begin("GPGSA");
+        sentence.append(",A,3");
+        for (int i = 0; i < used.length; i++) {
+            sentence.append(',');
+            if (i < usedCount) appendInt(used[i], 2);
+        }
+        double hdop = hdop();
+        sentence.append(',');
+        appendFixed(hdop * 1.6, 1);
+        sentence.append(',');
+        appendFixed(hdop, 1);
+        sentence.append(',');
+        appendFixed(hdop * 1.3, 1);
+        end();
+    }
+
+    private void appendGsv() {
+        int messages = (SATELLITES + 3) / 4;
+        for (int m = 0; m < messages; m++) {
+            begin("GPGSV");
+            sentence.append(',').append(messages).append(',').append(m + 1).append(',');
+            appendInt(SATELLITES, 2);
+            for (int i = m * 4; i < Math.min(SATELLITES, m * 4 + 4); i++) {
+                sentence.append(',');
+                appendInt(prn[i], 2);
+                sentence.append(',');
+                appendInt((int) elevation[i], 2);
+                sentence.append(',');
+                appendInt((int) azimuth[i], 3);
+                sentence.append(',');
+                appendInt(snr[i], 2);
+            }
+            end();
+        }
+    }
+
+    private void appendGst() {
+        double sigma = 1.5 + random.nextDouble();
+        begin("GPGST");
+        appendTime();
+        sentence.append(',');
+        appendFixed(sigma * 2, 1);
+        sentence.append(',');
+        appendFixed(sigma * 1.2, 1);
+        sentence.append(',');
+        appendFixed(sigma * 0.8, 1);
+        sentence.append(',');
+        appendFixed(random.nextDouble() * 180, 1);
+        sentence.append(',');
+        appendFixed(sigma, 1);
+        sentence.append(',');
+        appendFixed(sigma * 0.9, 1);
+        sentence.append(',');
+        appendFixed(sigma * 1.7, 1);
+        end();
+    }
+
+    private void begin(String address) {
+        sentence.setLength(0);
+        sentence.append('$').append(address);
+    }
+
+    /**
+     * Add the checksum and line end and write the sentence out, injecting faults
+     */
+    private void end() {
+        int checksum = 0;
+        for (int i = 1; i < sentence.length(); i++) checksum ^= sentence.charAt(i);
+        if (checksumErrorRate > 0 && random.nextDouble() < checksumErrorRate) checksum ^= 0x5a;
+        sentence.append('*').append(HEX[checksum >> 4]).append(HEX[checksum & 0xf]).append("\r\n");
+        int length = sentence.length();
+        if (partialSentenceRate > 0 && random.nextDouble() < partialSentenceRate) {
+            length = 1 + random.nextInt(length - 1);
+        }
+        for (int i = 0; i < length; i++) output.write(sentence.charAt(i));
+        sentences++;
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private void appendTime() {
+        long centiseconds = (utcMicros / 10000) % 8640000;
+        if (centiseconds < 0) centiseconds += 8640000;
+        sentence.append(',');
+        appendInt((int) (centiseconds / 360000), 2);
+        appendInt((int) (centiseconds / 6000 % 60), 2);
+        appendInt((int) (centiseconds / 100 % 60), 2);
+        sentence.append('.');
+        appendInt((int) (centiseconds % 100), 2);
+    }
+
+    private void appendDate() {
+        // Days since 1970 to year, month and day, see http://howardhinnant.github.io/date_algorithms.html
+        long z = utcMicros / 86400000000L;
+        if (utcMicros % 86400000000L < 0) z--;
+        z += 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        appendInt(day, 2);
+        appendInt(month, 2);
+        appendInt((int) (year % 100), 2);
+    }
+
+    private void appendCoordinates() {
+        appendCoordinate(position[LATITUDE], 2, 'N', 'S');
+        appendCoordinate(position[LONGITUDE], 3, 'E', 'W');
+    }
+
+    private void appendCoordinate(double degrees, int degreeDigits, char positive, char negative) {
+        long units = Math.round(Math.abs(degrees) * 60 * 100000); // 1e-5 minutes
+        sentence.append(',');
+        appendInt((int) (units / 6000000), degreeDigits);
+        long minutes = units % 6000000;
+        appendInt((int) (minutes / 100000), 2);
+        sentence.append('.');
+        appendInt((int) (minutes % 100000), 5);
+        sentence.append(',').append(degrees < 0 ? negative : positive);
+    }
+
+    private void appendFixed(double value, int decimals) {
+        long scale = decimals == 1 ? 10 : 100;
+        long units = Math.round(Math.abs(value) * scale);
+        if (value < 0 && units != 0) sentence.append('-');
+        sentence.append(units / scale).append('.');
+        appendInt((int) (units % scale), decimals);
+    }
+
+    private void appendInt(int value, int digits) {
+        for (int p = pow10(digits - 1); p > 1 && value < p; p /= 10) {
+            sentence.append('0');
+        }
+        sentence.append(value);
+    }
+
+    private static int pow10(int n) {
+        int p = 1;
+        while (n-- > 0) p *= 10;
+        return p;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.IOException;
+
+/**
+ * The receive loop for a Bad Elf Device.
+ *
+ * It reads from an open GpsTransport until the end of the stream, an error, or until the thread
+ * is interrupted, and hands every chunk of received data to a Listener. It has no Android
+ * dependencies so the whole receive path can be run and measured on a plain JVM.
+ *
+ * Data is read straight into pooled GpsDataChunks, so once running the loop does not allocate
+ * unless a listener retains chunks.
+ *
+ */
+public class GpsStreamReader {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int MAX_POOLED_CHUNKS = 64;
+
+    /**
+     * Receives the data read by a GpsStreamReader
+     */
+    public interface Listener {
+
+        /**
+         * Called on the reading thread for every chunk of received data
+         *
+         * The chunk is only valid until this returns unless it is retained.
+         *
+         * @param chunk the received data
+         */
+        void onDataReceived(GpsDataChunk chunk);
+    }
+
+    private final Listener listener;
+    private final GpsChunkPool pool;
+
+    /**
+     * Construct a GpsStreamReader
+     *
+     * @param listener the listener that is given the received data
+     */
+    public GpsStreamReader(Listener listener) {
+        this(listener, MAX_POOLED_CHUNKS);
+    }
+
+    /**
+     * Construct a GpsStreamReader whose listeners may retain many chunks at once
+     *
+     * The pool only keeps chunks the reader had to create, so a large maxPooled costs nothing
+     * until listeners retain that many.
+     *
+     * @param listener the listener that is given the received data
+     * @param maxPooled the number of released chunks to keep, at least the number that the
+     *                  listeners can retain at once if reading is not to allocate
+     */
+    public GpsStreamReader(Listener listener, int maxPooled) {
+        this.listener = listener;
+        this.pool = new GpsChunkPool(CHUNK_SIZE, maxPooled);
+    }
+
+    /**
+     * Read from the transport until it reaches the end of the stream or the thread is
+     * interrupted.
+     *
+     * @param transport an open transport
+     * @throws IOException if reading fails, including when the transport is closed
+     */
+    public void run(GpsTransport transport) throws IOException {
+        // read from the transport until an exception occurs or until read returns -1
+        // or until the thread is interrupted.
+        while (! Thread.interrupted()) {
+            GpsDataChunk chunk = pool.acquire();
+            try {
+                int bytesRead = transport.read(chunk.data, 0, chunk.data.length);
+                if (bytesRead == -1) return;
+                if (bytesRead == 0) continue;
+                chunk.length = bytesRead;
+                chunk.receivedNanos = System.nanoTime();
+                listener.onDataReceived(chunk);
+            } finally {
+                chunk.release(); // back to the pool unless a listener retained it
+            }
+        }
+    }
+
+    /**
+     * Get the number of chunks allocated by this reader.
+     *
+     * This stops growing once the reader is running unless listeners retain chunks.
+     *
+     * @return the number of chunks allocated
+     */
+    public long getAllocatedChunkCount() {
+        return pool.getAllocatedCount();
+    }
+}
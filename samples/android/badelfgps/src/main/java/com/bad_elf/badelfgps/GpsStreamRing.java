@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A ring buffer of the most recently received bytes, shared by every stream subscriber.
+ *
+ * Each received chunk is copied in once. Readers keep their own position in the stream, counted
+ * in bytes since the ring was created, and read straight out of the array, so nothing is copied
+ * per reader. The writer never waits for readers: a reader that falls more than the capacity
+ * behind has lost data, which it can tell by checking isOverwritten after reading.
+ *
+ * There is one writer at a time. Any number of threads may read.
+ *
+ */
+public class GpsStreamRing implements BadElfGpsChunkObserver {
+
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    final byte[] buffer;
+    final int mask;
+    private volatile long claimPosition; // end of the bytes being written
+    private volatile long writePosition; // end of the bytes that can be read
+    private volatile Runnable[] listeners = new Runnable[0];
+
+    /**
+     * Construct a GpsStreamRing with the default capacity
+     */
+    public GpsStreamRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a GpsStreamRing
+     *
+     * @param capacity the number of bytes kept, a power of two
+     */
+    public GpsStreamRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) throw new IllegalArgumentException("capacity must be a power of two");
+        this.buffer = new byte[capacity];
+        this.mask = capacity - 1;
+    }
+
+    @Override
+    public void onChunkReceived(GpsDataChunk chunk) {
+        write(chunk.data, 0, chunk.length);
+    }
+
+    /**
+     * Append data to the stream and notify the listeners
+     *
+     * @param data the data
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     */
+    public void write(byte[] data, int offset, int length) {
+        long start = writePosition;
+        long end = start + length;
+        claimPosition = end;
+        if (length > buffer.length) {
+            // only the last capacity bytes can be kept
+            offset += length - buffer.length;
+            start = end - buffer.length;
+            length = buffer.length;
+        }
+        int index = (int) (start & mask);
+        int first = Math.min(length, buffer.length - index);
+        System.arraycopy(data, offset, buffer, index, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+        writePosition = end;
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /** @return the size of the ring in bytes */
+    public int getCapacity()        { return buffer.length; }
+    /** @return the number of bytes written since the ring was created */
+    public long getWritePosition()  { return writePosition; }
+
+    /**
+     * Check whether data read from the ring may have been overwritten while it was being read.
+     * Call this after reading.
+     *
+     * @param position the stream position the read started at
+     * @return true if the data read can't be trusted
+     */
+    public boolean isOverwritten(long position) {
+        return claimPosition - buffer.length > position;
+    }
+
+    /**
+     * Add a listener that is run on the writing thread after each write. It must not block.
+     *
+     * @param listener the listener
+     */
+    public synchronized void addListener(Runnable listener) {
+        Runnable[] newListeners = new Runnable[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    /**
+     * Remove a listener
+     *
+     * @param listener the listener
+     */
+    public synchronized void removeListener(Runnable listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                Runnable[] newListeners = new Runnable[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                listeners = newListeners;
+                return;
+            }
+        }
+    }
+}
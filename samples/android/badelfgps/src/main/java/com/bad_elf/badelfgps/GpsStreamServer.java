@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Re-broadcasts the data received from the Bad Elf Device to any number of TCP clients, such as
+ * mapping software on a laptop expecting NMEA over TCP.
+ *
+ * Every client that connects is subscribed to the ring and receives the stream from that point
+ * on. Anything the clients send is ignored. Slow clients skip ahead instead of holding up the
+ * device, see BadElfRemoteControlServer. Use getClients for each client's throughput and lag.
+ *
+ * Start one with BadElfService.startStreamServer.
+ *
+ */
+public class GpsStreamServer extends BadElfRemoteControlServer {
+
+    public static final int DEFAULT_PORT = 10110; // NMEA-0183 over IP
+
+    private final GpsStreamRing ring;
+
+    /**
+     * Construct a GpsStreamServer
+     *
+     * @param ring the ring the received data is written to
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public GpsStreamServer(GpsStreamRing ring, int port) {
+        super(port, DEFAULT_WRITE_BUFFER_BYTES);
+        this.ring = ring;
+    }
+
+    /** @return the ring the clients read from */
+    public GpsStreamRing getRing() {
+        return ring;
+    }
+
+    @Override
+    protected void onClientConnected(Client client) {
+        client.subscribe(ring);
+    }
+}
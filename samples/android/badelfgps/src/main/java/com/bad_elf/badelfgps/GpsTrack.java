@@ -0,0 +1,363 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.Arrays;
+
+/**
+ * A compact in-memory track of fixes, for holding hours of 10 Hz data on a field device.
+ *
+ * Fixes are stored by column rather than as objects. The newest CHUNK_SIZE fixes are held in
+ * parallel primitive arrays. When those fill up the chunk is sealed: each column is delta
+ * encoded as fixed-point variable length integers, which takes under 10 bytes per fix for a
+ * moving receiver instead of more than 100 for a GpsFix in a List.
+ *
+ * Values are stored to a fixed resolution: latitude and longitude to 1e-7 degrees (about 1 cm),
+ * altitude to 1 cm and HDOP to 0.01. They are rounded on append, so a value reads back the same
+ * before and after its chunk is sealed. Missing values read back as NaN or -1 like in GpsFix.
+ *
+ * Add a track as a BadElfGpsFixObserver with BadElfGpsFixObserver.TYPE_EPOCH, or call append.
+ * Read it with a Cursor. Appending and reading may happen on different threads.
+ *
+ */
+public class GpsTrack extends BadElfGpsFixAdapter {
+
+    public static final int CHUNK_SIZE = 4096;
+
+    private static final double DEGREE_SCALE = 1e7;
+    private static final double CENTI_SCALE = 100;
+    private static final long MISSING = Long.MIN_VALUE / 4; // fixed-point value of NaN, kept small enough to delta encode
+
+    /**
+     * A sealed chunk. Every column is a run of zigzag varint deltas in one array.
+     */
+    private static final class SealedChunk {
+        final byte[] encoded;
+        final long firstUtcMillis;
+
+        SealedChunk(byte[] encoded, long firstUtcMillis) {
+            this.encoded = encoded;
+            this.firstUtcMillis = firstUtcMillis;
+        }
+    }
+
+    /**
+     * The columns of one chunk as primitive arrays
+     */
+    private static final class Columns {
+        final long[] utcMillis = new long[CHUNK_SIZE];
+        final double[] latitude = new double[CHUNK_SIZE];
+        final double[] longitude = new double[CHUNK_SIZE];
+        final float[] altitude = new float[CHUNK_SIZE];
+        final float[] hdop = new float[CHUNK_SIZE];
+        final byte[] satellites = new byte[CHUNK_SIZE];
+        final byte[] quality = new byte[CHUNK_SIZE];
+        int count;
+    }
+
+    private SealedChunk[] sealed = new SealedChunk[16];
+    private int sealedCount;
+    private long sealedBytes;
+    private final Columns active = new Columns();
+    private final byte[] encodeBuffer = new byte[CHUNK_SIZE * 64];
+
+    @Override
+    public void onEpoch(GpsFix fix) {
+        append(fix);
+    }
+
+    /**
+     * Add a fix to the end of the track
+     *
+     * @param fix the fix
+     */
+    public void append(GpsFix fix) {
+        append(fix.getUtcMillis(), fix.latitude, fix.longitude, fix.altitude, fix.hdop,
+                fix.satellitesUsed, fix.quality);
+    }
+
+    /**
+     * Add a fix to the end of the track
+     *
+     * @param utcMillis milliseconds since 1970-01-01 UTC, or -1
+     * @param latitude decimal degrees, or NaN
+     * @param longitude decimal degrees, or NaN
+     * @param altitude meters, or NaN
+     * @param hdop horizontal dilution of precision, or NaN
+     * @param satellites satellites used, 0 to 127, or -1
+     * @param quality GGA fix quality, 0 to 127, or -1
+     */
+    public synchronized void append(long utcMillis, double latitude, double longitude, double altitude,
+                                    double hdop, int satellites, int quality) {
+        Columns c = active;
+        int i = c.count;
+        c.utcMillis[i] = utcMillis;
+        c.latitude[i] = fromFixed(toFixed(latitude, DEGREE_SCALE), DEGREE_SCALE);
+        c.longitude[i] = fromFixed(toFixed(longitude, DEGREE_SCALE), DEGREE_SCALE);
+        c.altitude[i] = (float) fromFixed(toFixed(altitude, CENTI_SCALE), CENTI_SCALE);
+        c.hdop[i] = (float) fromFixed(toFixed(hdop, CENTI_SCALE), CENTI_SCALE);
+        c.satellites[i] = (byte) Math.max(-1, Math.min(127, satellites));
+        c.quality[i] = (byte) Math.max(-1, Math.min(127, quality));
+        c.count = i + 1;
+        if (c.count == CHUNK_SIZE) {
+            seal();
+        }
+    }
+
+    /**
+     * Get the number of fixes in the track
+     *
+     * @return the fix count
+     */
+    public synchronized long size() {
+        return (long) sealedCount * CHUNK_SIZE + active.count;
+    }
+
+    /**
+     * Remove every fix
+     */
+    public synchronized void clear() {
+        Arrays.fill(sealed, null);
+        sealedCount = 0;
+        sealedBytes = 0;
+        active.count = 0;
+    }
+
+    /**
+     * Get the approximate number of bytes the track uses
+     *
+     * @return the bytes used by the sealed chunks plus the fixed size of the active chunk
+     */
+    public synchronized long getMemoryFootprint() {
+        long activeBytes = (long) CHUNK_SIZE * (8 + 8 + 8 + 4 + 4 + 1 + 1);
+        return sealedBytes + sealedCount * 32L + activeBytes + encodeBuffer.length;
+    }
+
+    /**
+     * Create a cursor positioned before the first fix
+     *
+     * @return the cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Iterates over the fixes of a track without creating an object per fix.
+     *
+     * Call next to move to each fix in turn and read it with the getters. Fixes appended after
+     * the cursor has reached the end of the track are seen by further calls to next. A cursor
+     * must only be used by one thread.
+     */
+    public final class Cursor {
+
+        private final Columns columns = new Columns();
+        private long chunkStart = -CHUNK_SIZE; // index of the first fix in columns
+        private long index = -1;
+
+        private Cursor() {
+        }
+
+        /**
+         * Move to the next fix
+         *
+         * @return false at the end of the track
+         */
+        public boolean next() {
+            return seek(index + 1);
+        }
+
+        /**
+         * Move to a fix
+         *
+         * @param fixIndex the index of the fix, from 0
+         * @return false if there is no such fix, leaving the cursor where it was
+         */
+        public boolean seek(long fixIndex) {
+            if (fixIndex < 0) throw new IllegalArgumentException("fixIndex < 0");
+            long start = fixIndex - fixIndex % CHUNK_SIZE;
+            if (start != chunkStart || fixIndex - start >= columns.count) {
+                if (!load(start, fixIndex)) {
+                    return false;
+                }
+            }
+            index = fixIndex;
+            return true;
+        }
+
+        private boolean load(long start, long fixIndex) {
+            synchronized (GpsTrack.this) {
+                int chunk = (int) (start / CHUNK_SIZE);
+                if (chunk < sealedCount) {
+                    decode(sealed[chunk].encoded, columns);
+                } else if (chunk == sealedCount && fixIndex - start < active.count) {
+                    copy(active, columns);
+                } else {
+                    return false;
+                }
+                chunkStart = start;
+                return true;
+            }
+        }
+
+        private int i() {
+            if (index < chunkStart || index >= chunkStart + columns.count) throw new IllegalStateException("no current fix");
+            return (int) (index - chunkStart);
+        }
+
+        /** @return the index of the current fix, from 0 */
+        public long getIndex()         { return index;                       }
+        /** @return milliseconds since 1970-01-01 UTC, or -1 */
+        public long getUtcMillis()     { return columns.utcMillis[i()];      }
+        /** @return latitude in decimal degrees, or NaN */
+        public double getLatitude()    { return columns.latitude[i()];       }
+        /** @return longitude in decimal degrees, or NaN */
+        public double getLongitude()   { return columns.longitude[i()];      }
+        /** @return altitude above mean sea level in meters, or NaN */
+        public float getAltitude()     { return columns.altitude[i()];       }
+        /** @return horizontal dilution of precision, or NaN */
+        public float getHdop()         { return columns.hdop[i()];           }
+        /** @return satellites used in the fix, or -1 */
+        public int getSatellitesUsed() { return columns.satellites[i()];     }
+        /** @return GGA fix quality, or -1 */
+        public int getQuality()        { return columns.quality[i()];        }
+    }
+
+    private static long toFixed(double value, double scale) {
+        return value == value ? Math.round(value * scale) : MISSING;
+    }
+
+    private static double fromFixed(long value, double scale) {
+        return value == MISSING ? Double.NaN : value / scale;
+    }
+
+    /**
+     * Encode the active chunk and start a new one
+     */
+    private void seal() {
+        Columns c = active;
+        int n = c.count;
+        byte[] out = encodeBuffer;
+        int p = 0;
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            p = putDelta(out, p, c.utcMillis[i], previous);
+            previous = c.utcMillis[i];
+        }
+        p = putFixedColumn(out, p, c.latitude, n, DEGREE_SCALE);
+        p = putFixedColumn(out, p, c.longitude, n, DEGREE_SCALE);
+        p = putFixedColumn(out, p, c.altitude, n, CENTI_SCALE);
+        p = putFixedColumn(out, p, c.hdop, n, CENTI_SCALE);
+        System.arraycopy(c.satellites, 0, out, p, n);
+        p += n;
+        System.arraycopy(c.quality, 0, out, p, n);
+        p += n;
+
+        if (sealedCount == sealed.length) {
+            sealed = Arrays.copyOf(sealed, sealedCount * 2);
+        }
+        sealed[sealedCount++] = new SealedChunk(Arrays.copyOf(out, p), c.utcMillis[0]);
+        sealedBytes += p;
+        c.count = 0;
+    }
+
+    private static int putFixedColumn(byte[] out, int p, double[] values, int n, double scale) {
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            long value = toFixed(values[i], scale);
+            p = putDelta(out, p, value, previous);
+            previous = value;
+        }
+        return p;
+    }
+
+    private static int putFixedColumn(byte[] out, int p, float[] values, int n, double scale) {
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            long value = toFixed(values[i], scale);
+            p = putDelta(out, p, value, previous);
+            previous = value;
+        }
+        return p;
+    }
+
+    /**
+     * Write value - previous as a zigzag varint
+     */
+    private static int putDelta(byte[] out, int p, long value, long previous) {
+        long delta = value - previous;
+        long zigzag = (delta << 1) ^ (delta >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            out[p++] = (byte) ((zigzag & 0x7f) | 0x80);
+            zigzag >>>= 7;
+        }
+        out[p++] = (byte) zigzag;
+        return p;
+    }
+
+    /**
+     * Decode a sealed chunk into columns
+     */
+    private static void decode(byte[] in, Columns c) {
+        int n = CHUNK_SIZE;
+        int[] p = {0};
+        long value = 0;
+        for (int i = 0; i < n; i++) {
+            value += getDelta(in, p);
+            c.utcMillis[i] = value;
+        }
+        value = 0;
+        for (int i = 0; i < n; i++) {
+            value += getDelta(in, p);
+            c.latitude[i] = fromFixed(value, DEGREE_SCALE);
+        }
+        value = 0;
+        for (int i = 0; i < n; i++) {
+            value += getDelta(in, p);
+            c.longitude[i] = fromFixed(value, DEGREE_SCALE);
+        }
+        value = 0;
+        for (int i = 0; i < n; i++) {
+            value += getDelta(in, p);
+            c.altitude[i] = (float) fromFixed(value, CENTI_SCALE);
+        }
+        value = 0;
+        for (int i = 0; i < n; i++) {
+            value += getDelta(in, p);
+            c.hdop[i] = (float) fromFixed(value, CENTI_SCALE);
+        }
+        System.arraycopy(in, p[0], c.satellites, 0, n);
+        System.arraycopy(in, p[0] + n, c.quality, 0, n);
+        c.count = n;
+    }
+
+    private static long getDelta(byte[] in, int[] p) {
+        int i = p[0];
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[i++];
+            zigzag |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        p[0] = i;
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static void copy(Columns from, Columns to) {
+        int n = from.count;
+        System.arraycopy(from.utcMillis, 0, to.utcMillis, 0, n);
+        System.arraycopy(from.latitude, 0, to.latitude, 0, n);
+        System.arraycopy(from.longitude, 0, to.longitude, 0, n);
+        System.arraycopy(from.altitude, 0, to.altitude, 0, n);
+        System.arraycopy(from.hdop, 0, to.hdop, 0, n);
+        System.arraycopy(from.satellites, 0, to.satellites, 0, n);
+        System.arraycopy(from.quality, 0, to.quality, 0, n);
+        to.count = n;
+    }
+}
@@ -0,0 +1,569 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes fixes as a GPX, KML, GeoJSON or CSV track, one fix at a time, for GIS tools.
+ *
+ * Each fix is formatted straight into a fixed size byte buffer that is written to a channel when
+ * it fills up, so exporting takes the same memory whatever the length of the track. Numbers and
+ * times are formatted by hand rather than with String.format, to a fixed number of decimals:
+ * latitude and longitude to 1e-7 degrees like GpsTrack, everything else to 0.01.
+ *
+ * exportLog decodes a recorded session into epochs in one pass, as GpsSessionIndex does, and
+ * writes them. An exporter can also be added as a BadElfGpsFixObserver with
+ * BadElfGpsFixObserver.TYPE_EPOCH to export while receiving; call finish when done. Only fixes
+ * with a position that the receiver marks as valid are written, and values a fix is missing are
+ * left out.
+ *
+ * KML has no streamable way to give a line a time per point, so the KML track is a LineString
+ * without times. The GeoJSON track is a FeatureCollection of Points, whose properties carry the
+ * time and quality of each fix.
+ *
+ * A GpsTrackExporter is not thread safe.
+ *
+ */
+public abstract class GpsTrackExporter extends BadElfGpsFixAdapter {
+
+    /**
+     * The formats a track can be exported in
+     */
+    public enum Format {
+        GPX("gpx"),
+        KML("kml"),
+        GEOJSON("geojson"),
+        CSV("csv");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /** @return the usual file name extension, without the dot */
+        public String getExtension() { return extension; }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FIX_LENGTH = 512; // longer than any formatted fix
+
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000};
+
+    static final int DEGREE_DECIMALS = 7;
+    static final int DECIMALS = 2;
+
+    private final WritableByteChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+    private final byte[] digits = new byte[20];
+    private int position;
+
+    private String name = "Bad Elf GPS track";
+    private boolean started;
+    private boolean finished;
+    private long fixCount;
+    private IOException error; // the first write that failed while observing
+
+    /**
+     * Construct a GpsTrackExporter
+     *
+     * @param channel where the track is written. It is not closed.
+     */
+    protected GpsTrackExporter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Create an exporter for a format
+     *
+     * @param format the format
+     * @param channel where the track is written. It is not closed.
+     * @return the exporter
+     */
+    public static GpsTrackExporter create(Format format, WritableByteChannel channel) {
+        switch (format) {
+            case GPX:     return new Gpx(channel);
+            case KML:     return new Kml(channel);
+            case GEOJSON: return new GeoJson(channel);
+            case CSV:     return new Csv(channel);
+            default:      throw new IllegalArgumentException("format " + format);
+        }
+    }
+
+    /**
+     * Export a recorded session to a file
+     *
+     * @param log the session log, read from the start
+     * @param format the format
+     * @param file the file to write, replaced if it exists
+     * @return the number of fixes written
+     * @throws IOException if the log can't be read or the file can't be written
+     */
+    public static long export(GpsSessionLog log, Format format, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            return create(format, out.getChannel()).exportLog(log);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Set the name of the track, where the format has one. Call it before the first fix.
+     *
+     * @param name the name
+     */
+    public void setName(String name) {
+        if (started) throw new IllegalStateException("already started");
+        this.name = name;
+    }
+
+    /** @return the name of the track */
+    public String getName()    { return name;     }
+    /** @return the number of fixes written */
+    public long getFixCount()  { return fixCount; }
+
+    /**
+     * Decode a recorded session from its start and write every fix, then finish the track
+     *
+     * @param log the session log
+     * @return the number of fixes written
+     * @throws IOException if the log can't be read or writing fails
+     */
+    public long exportLog(GpsSessionLog log) throws IOException {
+        log.decodeFixes(new GpsSessionIndex.FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                GpsTrackExporter.this.onEpoch(fix);
+                return error == null;
+            }
+        });
+        finish();
+        return fixCount;
+    }
+
+    /**
+     * Write a fix, if it has a valid position
+     *
+     * A write that fails is reported by finish, and nothing more is written.
+     *
+     * @param fix the fix
+     */
+    @Override
+    public void onEpoch(GpsFix fix) {
+        if (error != null || finished || !isExportable(fix)) return;
+        try {
+            if (!started) start();
+            if (BUFFER_SIZE - position < MAX_FIX_LENGTH) flushBuffer();
+            writeFix(fix, fixCount);
+            fixCount++;
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private static boolean isExportable(GpsFix fix) {
+        // GGA quality 0 and RMC status V both mean the position is not a fix
+        return fix.hasPosition() && (fix.quality > 0 || (fix.quality < 0 && fix.valid));
+    }
+
+    /**
+     * Write the end of the track and everything still buffered. Does nothing if already finished.
+     *
+     * @throws IOException if writing fails, now or earlier while observing
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        if (error == null) {
+            try {
+                if (!started) start();
+                writeFooter();
+                flushBuffer();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    private void start() throws IOException {
+        started = true;
+        writeHeader();
+    }
+
+    private void flushBuffer() throws IOException {
+        bufferView.limit(position).position(0);
+        while (bufferView.hasRemaining()) {
+            channel.write(bufferView);
+        }
+        position = 0;
+    }
+
+    /**
+     * Write everything before the first fix
+     */
+    protected abstract void writeHeader() throws IOException;
+
+    /**
+     * Write one fix. There is room for MAX_FIX_LENGTH bytes.
+     *
+     * @param fix the fix, which has a position
+     * @param index the number of fixes written before this one
+     */
+    protected abstract void writeFix(GpsFix fix, long index);
+
+    /**
+     * Write everything after the last fix
+     */
+    protected abstract void writeFooter() throws IOException;
+
+    /**
+     * Write ASCII text of any length
+     */
+    protected final void writeText(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (position == BUFFER_SIZE) flushBuffer();
+            buffer[position++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * Write the track name, escaped for XML and encoded as UTF-8
+     */
+    protected final void writeXmlName() throws IOException {
+        StringBuilder escaped = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            switch (c) {
+                case '<':  escaped.append("&lt;");   break;
+                case '>':  escaped.append("&gt;");   break;
+                case '&':  escaped.append("&amp;");  break;
+                case '"':  escaped.append("&quot;"); break;
+                default:   escaped.append(c);
+            }
+        }
+        byte[] utf8;
+        try {
+            utf8 = escaped.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); // every JVM has UTF-8
+        }
+        for (byte b : utf8) {
+            if (position == BUFFER_SIZE) flushBuffer();
+            buffer[position++] = b;
+        }
+    }
+
+    /**
+     * Write short ASCII text inside a fix
+     */
+    protected final void put(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * Write one ASCII character inside a fix
+     */
+    protected final void put(char c) {
+        buffer[position++] = (byte) c;
+    }
+
+    /**
+     * Write a non-negative integer inside a fix
+     */
+    protected final void putInt(long value) {
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (n > 0) {
+            buffer[position++] = digits[--n];
+        }
+    }
+
+    /**
+     * Write a number with a fixed number of decimals inside a fix
+     *
+     * @param value the number, which must not be NaN
+     * @param decimals the number of decimals, 0 to 7
+     */
+    protected final void putDecimal(double value, int decimals) {
+        long scale = POWERS_OF_TEN[decimals];
+        double magnitude = Math.abs(value) * scale;
+        if (magnitude >= 1e17) {
+            put(Double.toString(value)); // too large to round to a long, and never a coordinate
+            return;
+        }
+        long scaled = Math.round(magnitude);
+        if (value < 0 && scaled != 0) put('-');
+        putInt(scaled / scale);
+        if (decimals > 0) {
+            put('.');
+            long fraction = scaled % scale;
+            for (int i = position + decimals - 1; i >= position; i--) {
+                buffer[i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            position += decimals;
+        }
+    }
+
+    /**
+     * Write the time of a fix in ISO 8601, as 2016-05-31T12:34:56.789Z, inside a fix
+     *
+     * @param fix the fix, which must have a date and time
+     */
+    protected final void putTime(GpsFix fix) {
+        putDigits(fix.date / 10000, 4);
+        put('-');
+        putDigits((fix.date / 100) % 100, 2);
+        put('-');
+        putDigits(fix.date % 100, 2);
+        put('T');
+        int time = fix.timeOfDay;
+        putDigits(time / 3600000, 2);
+        put(':');
+        putDigits((time / 60000) % 60, 2);
+        put(':');
+        putDigits((time / 1000) % 60, 2);
+        put('.');
+        putDigits(time % 1000, 3);
+        put('Z');
+    }
+
+    private void putDigits(int value, int count) {
+        for (int i = position + count - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += count;
+    }
+
+    /**
+     * Check whether a fix has a date and time to write with putTime
+     */
+    protected static boolean hasTime(GpsFix fix) {
+        return fix.date >= 0 && fix.timeOfDay >= 0;
+    }
+
+    /**
+     * GPX 1.1: one track segment of track points
+     */
+    private static final class Gpx extends GpsTrackExporter {
+
+        Gpx(WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        protected void writeHeader() throws IOException {
+            writeText("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<gpx version=\"1.1\" creator=\"Bad Elf GPS SDK\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n"
+                    + "<trk>\n<name>");
+            writeXmlName();
+            writeText("</name>\n<trkseg>\n");
+        }
+
+        @Override
+        protected void writeFix(GpsFix fix, long index) {
+            put("<trkpt lat=\"");
+            putDecimal(fix.latitude, DEGREE_DECIMALS);
+            put("\" lon=\"");
+            putDecimal(fix.longitude, DEGREE_DECIMALS);
+            put("\">");
+            if (fix.altitude == fix.altitude) {
+                put("<ele>");
+                putDecimal(fix.altitude, DECIMALS);
+                put("</ele>");
+            }
+            if (hasTime(fix)) {
+                put("<time>");
+                putTime(fix);
+                put("</time>");
+            }
+            if (fix.geoidSeparation == fix.geoidSeparation) {
+                put("<geoidheight>");
+                putDecimal(fix.geoidSeparation, DECIMALS);
+                put("</geoidheight>");
+            }
+            if (fix.quality == 2) {
+                put("<fix>dgps</fix>");
+            } else if (fix.quality == 3) {
+                put("<fix>pps</fix>");
+            }
+            if (fix.satellitesUsed >= 0) {
+                put("<sat>");
+                putInt(fix.satellitesUsed);
+                put("</sat>");
+            }
+            if (fix.hdop == fix.hdop) {
+                put("<hdop>");
+                putDecimal(fix.hdop, DECIMALS);
+                put("</hdop>");
+            }
+            put("</trkpt>\n");
+        }
+
+        @Override
+        protected void writeFooter() throws IOException {
+            writeText("</trkseg>\n</trk>\n</gpx>\n");
+        }
+    }
+
+    /**
+     * KML 2.2: one placemark holding a LineString
+     */
+    private static final class Kml extends GpsTrackExporter {
+
+        Kml(WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        protected void writeHeader() throws IOException {
+            writeText("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n<Document>\n<Placemark>\n<name>");
+            writeXmlName();
+            writeText("</name>\n<LineString>\n<altitudeMode>absolute</altitudeMode>\n<coordinates>\n");
+        }
+
+        @Override
+        protected void writeFix(GpsFix fix, long index) {
+            putDecimal(fix.longitude, DEGREE_DECIMALS);
+            put(',');
+            putDecimal(fix.latitude, DEGREE_DECIMALS);
+            if (fix.altitude == fix.altitude) {
+                put(',');
+                putDecimal(fix.altitude, DECIMALS);
+            }
+            put('\n');
+        }
+
+        @Override
+        protected void writeFooter() throws IOException {
+            writeText("</coordinates>\n</LineString>\n</Placemark>\n</Document>\n</kml>\n");
+        }
+    }
+
+    /**
+     * GeoJSON (RFC 7946): a FeatureCollection with a Point feature per fix
+     */
+    private static final class GeoJson extends GpsTrackExporter {
+
+        GeoJson(WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        protected void writeHeader() throws IOException {
+            writeText("{\"type\":\"FeatureCollection\",\"features\":[\n");
+        }
+
+        @Override
+        protected void writeFix(GpsFix fix, long index) {
+            if (index > 0) put(",\n");
+            put("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
+            putDecimal(fix.longitude, DEGREE_DECIMALS);
+            put(',');
+            putDecimal(fix.latitude, DEGREE_DECIMALS);
+            if (fix.altitude == fix.altitude) {
+                put(',');
+                putDecimal(fix.altitude, DECIMALS);
+            }
+            put("]},\"properties\":{");
+            boolean first = true;
+            if (hasTime(fix)) {
+                put("\"time\":\"");
+                putTime(fix);
+                put('"');
+                first = false;
+            }
+            if (fix.quality >= 0) {
+                put(first ? "\"quality\":" : ",\"quality\":");
+                putInt(fix.quality);
+                first = false;
+            }
+            if (fix.satellitesUsed >= 0) {
+                put(first ? "\"satellites\":" : ",\"satellites\":");
+                putInt(fix.satellitesUsed);
+                first = false;
+            }
+            if (fix.hdop == fix.hdop) {
+                put(first ? "\"hdop\":" : ",\"hdop\":");
+                putDecimal(fix.hdop, DECIMALS);
+                first = false;
+            }
+            if (fix.speedKnots == fix.speedKnots) {
+                put(first ? "\"speedKnots\":" : ",\"speedKnots\":");
+                putDecimal(fix.speedKnots, DECIMALS);
+                first = false;
+            }
+            if (fix.course == fix.course) {
+                put(first ? "\"course\":" : ",\"course\":");
+                putDecimal(fix.course, DECIMALS);
+            }
+            put("}}");
+        }
+
+        @Override
+        protected void writeFooter() throws IOException {
+            writeText(getFixCount() > 0 ? "\n]}\n" : "]}\n");
+        }
+    }
+
+    /**
+     * CSV with a header row. Missing values are empty fields.
+     */
+    private static final class Csv extends GpsTrackExporter {
+
+        Csv(WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        protected void writeHeader() throws IOException {
+            writeText("time,latitude,longitude,altitude,quality,satellites,hdop,speed_knots,course\r\n");
+        }
+
+        @Override
+        protected void writeFix(GpsFix fix, long index) {
+            if (hasTime(fix)) putTime(fix);
+            put(',');
+            putDecimal(fix.latitude, DEGREE_DECIMALS);
+            put(',');
+            putDecimal(fix.longitude, DEGREE_DECIMALS);
+            put(',');
+            if (fix.altitude == fix.altitude) putDecimal(fix.altitude, DECIMALS);
+            put(',');
+            if (fix.quality >= 0) putInt(fix.quality);
+            put(',');
+            if (fix.satellitesUsed >= 0) putInt(fix.satellitesUsed);
+            put(',');
+            if (fix.hdop == fix.hdop) putDecimal(fix.hdop, DECIMALS);
+            put(',');
+            if (fix.speedKnots == fix.speedKnots) putDecimal(fix.speedKnots, DECIMALS);
+            put(',');
+            if (fix.course == fix.course) putDecimal(fix.course, DECIMALS);
+            put("\r\n");
+        }
+
+        @Override
+        protected void writeFooter() {
+        }
+    }
+}
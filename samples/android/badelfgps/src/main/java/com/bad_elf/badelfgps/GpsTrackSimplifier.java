@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.IOException;
+
+/**
+ * Thins a stream of fixes down to the ones needed to draw the track within a tolerance, for
+ * storing or sending long tracks.
+ *
+ * This is the opening window form of Douglas-Peucker: the last fix passed on is the anchor, and
+ * the fixes after it are held back while every one of them lies within the tolerance of the
+ * line from the anchor to the newest fix. When one doesn't, the fix before the newest is passed
+ * on and becomes the anchor. Standing still or moving in a straight line passes on almost
+ * nothing, and turns keep their corners.
+ *
+ * At most the window size of fixes are held back, as copies in preallocated slots, so memory is
+ * bounded whatever the track. A full window passes on its newest held fix, as does
+ * setMaxIntervalMillis when it is set. Checking a fix costs a distance per held fix.
+ *
+ * Fixes are passed on to the target's onEpoch, as pooled fixes that the target may retain.
+ * Feed it live by adding it as a BadElfGpsFixObserver with BadElfGpsFixObserver.TYPE_EPOCH or
+ * TYPE_SMOOTHED, or from a recorded session with simplifyLog. Call flush at the end of the
+ * stream to pass on the last fix. Fixes without a position are ignored.
+ *
+ * A GpsTrackSimplifier is not thread safe.
+ *
+ */
+public class GpsTrackSimplifier extends BadElfGpsFixAdapter {
+
+    public static final int DEFAULT_WINDOW = 256;
+
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    private final double tolerance;
+    private final BadElfGpsFixObserver target;
+    private final GpsFixPool pool = new GpsFixPool(8);
+    private long maxIntervalMillis;
+
+    private final GpsFix anchor = new GpsFix();
+    private boolean hasAnchor;
+    private double metersPerDegreeLongitude;
+
+    // The fixes held back since the anchor, and their position in metres east and north of it
+    private final GpsFix[] held;
+    private final double[] east;
+    private final double[] north;
+    private int heldCount;
+
+    private long inputCount;
+    private long outputCount;
+
+    /**
+     * Construct a GpsTrackSimplifier holding back at most DEFAULT_WINDOW fixes
+     *
+     * @param toleranceMeters how far the simplified track may be from any fix left out
+     * @param target receives the fixes that are kept
+     */
+    public GpsTrackSimplifier(double toleranceMeters, BadElfGpsFixObserver target) {
+        this(toleranceMeters, DEFAULT_WINDOW, target);
+    }
+
+    /**
+     * Construct a GpsTrackSimplifier
+     *
+     * @param toleranceMeters how far the simplified track may be from any fix left out
+     * @param window the most fixes held back, at least 1
+     * @param target receives the fixes that are kept
+     */
+    public GpsTrackSimplifier(double toleranceMeters, int window, BadElfGpsFixObserver target) {
+        if (!(toleranceMeters >= 0)) throw new IllegalArgumentException("toleranceMeters < 0");
+        if (window < 1) throw new IllegalArgumentException("window < 1");
+        this.tolerance = toleranceMeters;
+        this.target = target;
+        held = new GpsFix[window];
+        for (int i = 0; i < window; i++) held[i] = new GpsFix();
+        east = new double[window];
+        north = new double[window];
+    }
+
+    /**
+     * Pass on a fix at least this often while moving, even in a straight line
+     *
+     * @param maxIntervalMillis the longest time between two fixes passed on, or 0 for no limit
+     */
+    public void setMaxIntervalMillis(long maxIntervalMillis) {
+        if (maxIntervalMillis < 0) throw new IllegalArgumentException("maxIntervalMillis < 0");
+        this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    /** @return the number of fixes with a position received */
+    public long getInputCount()   { return inputCount;  }
+    /** @return the number of fixes passed on */
+    public long getOutputCount()  { return outputCount; }
+
+    @Override
+    public void onEpoch(GpsFix fix) {
+        add(fix);
+    }
+
+    @Override
+    public void onSmoothedFix(GpsFix fix) {
+        add(fix);
+    }
+
+    /**
+     * Simplify the next fix of the track
+     *
+     * @param fix the fix, which is copied if it is held back
+     */
+    public void add(GpsFix fix) {
+        if (!fix.hasPosition()) return;
+        inputCount++;
+        if (!hasAnchor) {
+            setAnchor(fix);
+            emit(fix);
+            return;
+        }
+        double x = eastOfAnchor(fix);
+        double y = (fix.latitude - anchor.latitude) * METERS_PER_DEGREE;
+        if (heldCount > 0 && (heldCount == held.length || exceedsInterval(fix) || !fits(x, y))) {
+            // pass on the fix before this one, and start again from it
+            GpsFix last = held[heldCount - 1];
+            emit(last);
+            setAnchor(last);
+            heldCount = 0;
+            x = eastOfAnchor(fix);
+            y = (fix.latitude - anchor.latitude) * METERS_PER_DEGREE;
+        }
+        held[heldCount].copyFrom(fix);
+        east[heldCount] = x;
+        north[heldCount] = y;
+        heldCount++;
+    }
+
+    private double eastOfAnchor(GpsFix fix) {
+        double degrees = fix.longitude - anchor.longitude;
+        if (degrees > 180) degrees -= 360; else if (degrees < -180) degrees += 360; // across the antimeridian
+        return degrees * metersPerDegreeLongitude;
+    }
+
+    private boolean exceedsInterval(GpsFix fix) {
+        if (maxIntervalMillis == 0) return false;
+        long from = anchor.getUtcMillis();
+        long to = fix.getUtcMillis();
+        return from >= 0 && to >= 0 && to - from > maxIntervalMillis;
+    }
+
+    /**
+     * Check whether every held fix is within the tolerance of the line from the anchor to x, y
+     */
+    private boolean fits(double x, double y) {
+        double lengthSquared = x * x + y * y;
+        double toleranceSquared = tolerance * tolerance;
+        for (int i = 0; i < heldCount; i++) {
+            double px = east[i];
+            double py = north[i];
+            // distance to the nearest point of the segment, so doubling back is kept
+            double t = lengthSquared > 0 ? (px * x + py * y) / lengthSquared : 0;
+            if (t < 0) t = 0; else if (t > 1) t = 1;
+            double dx = px - t * x;
+            double dy = py - t * y;
+            if (dx * dx + dy * dy > toleranceSquared) return false;
+        }
+        return true;
+    }
+
+    private void setAnchor(GpsFix fix) {
+        anchor.copyFrom(fix);
+        hasAnchor = true;
+        // at least a metre per degree, so the poles don't divide by zero
+        metersPerDegreeLongitude = Math.max(METERS_PER_DEGREE * Math.cos(Math.toRadians(fix.latitude)), 1);
+    }
+
+    private void emit(GpsFix fix) {
+        outputCount++;
+        GpsFix out = pool.acquire();
+        try {
+            out.copyFrom(fix);
+            target.onEpoch(out);
+        } finally {
+            out.release(); // back to the pool unless the target retained it
+        }
+    }
+
+    /**
+     * Pass on the newest fix held back, which ends the track. The next fix starts a new one.
+     */
+    public void flush() {
+        if (heldCount > 0) emit(held[heldCount - 1]);
+        heldCount = 0;
+        hasAnchor = false;
+    }
+
+    /**
+     * Simplify every fix of a recorded session and flush
+     *
+     * @param log the session log, read from the start
+     * @throws IOException if the log can't be read
+     */
+    public void simplifyLog(GpsSessionLog log) throws IOException {
+        log.decodeFixes(new GpsSessionIndex.FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                add(fix);
+                return true;
+            }
+        });
+        flush();
+    }
+}
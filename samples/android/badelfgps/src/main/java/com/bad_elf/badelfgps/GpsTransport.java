@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.IOException;
+
+/**
+ * A bidirectional byte link to a Bad Elf Device.
+ *
+ * BadElfService and GpsStreamReader only talk to the device through this interface, so the
+ * same streaming code runs over Bluetooth RFCOMM on a phone and over TCP, a file replay or an
+ * in-memory loopback on a plain JVM.
+ *
+ * close may be called from any thread and must cause a blocked open or read to return or throw
+ * promptly. A closed transport may be opened again, where the underlying link allows it.
+ *
+ */
+public interface GpsTransport {
+
+    /**
+     * Open the link.
+     *
+     * This blocks until the link is established or fails.
+     *
+     * @throws IOException if the link could not be opened or close was called while opening
+     */
+    void open() throws IOException;
+
+    /**
+     * Read received bytes.
+     *
+     * This blocks until at least one byte is available, the end of the stream is reached or the
+     * transport is closed.
+     *
+     * @param buffer the buffer to read into
+     * @param offset the offset in buffer of the first byte to write
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException on a read error or if the transport was closed
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Write bytes to the device.
+     *
+     * @param data the data to send
+     * @param offset the offset in data of the first byte to send
+     * @param length the number of bytes to send
+     * @throws IOException on a write error or if the transport is not open
+     */
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Close the link.
+     *
+     * Closing a transport that is already closed, or was never opened, has no effect.
+     *
+     * @throws IOException if closing the underlying link fails
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.IOException;
+
+/**
+ * A bounded outbound buffer and writer thread between the callers of sendData and a GpsTransport.
+ *
+ * Callers only copy their data into the buffer, and everything that has piled up while the
+ * previous write was in progress goes out in a single transport write, so a burst of small
+ * requests costs one radio transmission instead of many. Configuration requests are kept apart:
+ * only the latest one not yet written is sent, after the other pending data, because a newer
+ * rate request makes an older one pointless.
+ *
+ * When nothing has been written for the keepalive interval the keepalive bytes are written, see
+ * BadElfDeviceSession.setKeepaliveInterval. Any other traffic postpones them.
+ *
+ */
+public class GpsTransportWriter {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final String name;
+    private final GpsTransport transport;
+    private final byte[] keepalive;
+    private final long keepaliveIntervalNanos;
+
+    private final Object lock = new Object();
+    private final byte[] pending;
+    private int pendingLength;
+    private final byte[] configuration;
+    private int configurationLength;
+    private final byte[] writeBuffer;  // Only used on the writer thread
+    private long lastWriteNanos;       // Only used on the writer thread
+    private boolean running;
+    private boolean writing;
+    private Thread thread;
+
+    private long accepted;
+    private long written;
+    private long writes;
+    private long superseded;
+    private long keepalives;
+    private int maxPending;
+
+    /**
+     * Construct a GpsTransportWriter. Call start before use.
+     *
+     * @param name the name of the writer thread
+     * @param transport the open transport to write to
+     * @param capacity the number of bytes that can be waiting to be written
+     * @param keepalive the bytes to write when the link has been idle, or null for none
+     * @param keepaliveIntervalMs how long the link may be idle, or 0 for no keepalive
+     */
+    public GpsTransportWriter(String name, GpsTransport transport, int capacity, byte[] keepalive,
+                              long keepaliveIntervalMs) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+        if (keepaliveIntervalMs < 0) throw new IllegalArgumentException("keepaliveIntervalMs < 0");
+        this.name = name;
+        this.transport = transport;
+        this.pending = new byte[capacity];
+        this.configuration = new byte[capacity];
+        this.writeBuffer = new byte[2 * capacity];
+        boolean keepaliveEnabled = keepalive != null && keepalive.length > 0 && keepaliveIntervalMs > 0;
+        this.keepalive = keepaliveEnabled ? keepalive.clone() : null;
+        this.keepaliveIntervalNanos = keepaliveEnabled ? keepaliveIntervalMs * 1000000L : 0;
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public void start() {
+        synchronized (lock) {
+            if (running) return;
+            running = true;
+            thread = new Thread(writeLoop, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the writer thread and discard anything not yet written.
+     *
+     * Waits for a write in progress to return, unless called from the writer thread. Close the
+     * transport first if the write may block.
+     */
+    public void stop() {
+        Thread oldThread;
+        synchronized (lock) {
+            running = false;
+            pendingLength = 0;
+            configurationLength = 0;
+            oldThread = thread;
+            thread = null;
+            lock.notifyAll();
+        }
+        if (oldThread != null && oldThread != Thread.currentThread()) {
+            try {
+                oldThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+            }
+        }
+    }
+
+    /**
+     * Queue data to be written after the data queued before it.
+     *
+     * Blocks while the buffer is full. Data longer than the buffer is queued in parts.
+     *
+     * @param data the data
+     * @param offset the offset in data of the first byte
+     * @param length the number of bytes
+     * @return true if all of the data was queued, false if the writer was stopped or the thread
+     * was interrupted
+     */
+    public boolean write(byte[] data, int offset, int length) {
+        synchronized (lock) {
+            try {
+                while (length > 0) {
+                    while (running && pendingLength == pending.length) lock.wait();
+                    if (!running) return false;
+                    int n = Math.min(length, pending.length - pendingLength);
+                    System.arraycopy(data, offset, pending, pendingLength, n);
+                    pendingLength += n;
+                    queued(n);
+                    offset += n;
+                    length -= n;
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Queue a configuration request, replacing one that hasn't been written yet. It is written
+     * after the other queued data.
+     *
+     * @param data the data
+     * @param offset the offset in data of the first byte
+     * @param length the number of bytes, at most the capacity
+     * @return true if the request was queued, false if the writer was stopped
+     */
+    public boolean writeConfiguration(byte[] data, int offset, int length) {
+        if (length > configuration.length) throw new IllegalArgumentException("length > capacity");
+        synchronized (lock) {
+            if (!running) return false;
+            if (configurationLength > 0) superseded++;
+            System.arraycopy(data, offset, configuration, 0, length);
+            configurationLength = length;
+            queued(length);
+            return true;
+        }
+    }
+
+    /**
+     * Count newly queued bytes and wake the writer thread. Called holding lock.
+     */
+    private void queued(int length) {
+        accepted += length;
+        int total = pendingLength + configurationLength;
+        if (total > maxPending) maxPending = total;
+        lock.notifyAll();
+    }
+
+    /**
+     * Wait until everything queued so far has been written
+     *
+     * @param timeoutMs the longest time to wait
+     * @return true if everything was written, false on timeout, if the writer was stopped or if
+     * the thread was interrupted
+     */
+    public boolean awaitEmpty(long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        synchronized (lock) {
+            try {
+                while (running && (pendingLength > 0 || configurationLength > 0 || writing)) {
+                    long waitMs = (deadline - System.nanoTime()) / 1000000L;
+                    if (waitMs <= 0) return false;
+                    lock.wait(waitMs);
+                }
+                return running;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Called on the writer thread when a write fails. The writer has stopped by then. Override
+     * to close the link.
+     *
+     * @param e the exception
+     */
+    protected void onWriteError(IOException e) {
+    }
+
+    /** @return the number of bytes that can be waiting to be written */
+    public int getCapacity()               { return pending.length; }
+
+    /** @return the number of bytes queued, not counting keepalives */
+    public long getAcceptedBytes()         { synchronized (lock) { return accepted;   } }
+    /** @return the number of bytes written to the transport, including keepalives */
+    public long getWrittenBytes()          { synchronized (lock) { return written;    } }
+    /** @return the number of transport writes, including keepalives */
+    public long getWriteCount()            { synchronized (lock) { return writes;     } }
+    /** @return the number of configuration requests replaced before they were written */
+    public long getSupersededCount()       { synchronized (lock) { return superseded; } }
+    /** @return the number of keepalives written */
+    public long getKeepaliveCount()        { synchronized (lock) { return keepalives; } }
+    /** @return the largest number of bytes that have been waiting at once */
+    public int getMaxPending()             { synchronized (lock) { return maxPending; } }
+
+    private final Runnable writeLoop = new Runnable() {
+        @Override
+        public void run() {
+            lastWriteNanos = System.nanoTime();
+            while (true) {
+                int length;
+                boolean isKeepalive = false;
+                synchronized (lock) {
+                    writing = false;
+                    lock.notifyAll(); // there is room now, and awaitEmpty may be waiting
+                    try {
+                        while (running && pendingLength == 0 && configurationLength == 0) {
+                            if (keepaliveIntervalNanos == 0) {
+                                lock.wait();
+                                continue;
+                            }
+                            long waitNanos = lastWriteNanos + keepaliveIntervalNanos - System.nanoTime();
+                            if (waitNanos <= 0) {
+                                isKeepalive = true;
+                                break;
+                            }
+                            lock.wait((waitNanos + 999999) / 1000000L);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!running) return;
+                    if (isKeepalive) {
+                        length = keepalive.length;
+                        System.arraycopy(keepalive, 0, writeBuffer, 0, length);
+                        keepalives++;
+                    } else {
+                        // Everything that piled up goes out in one write, the latest
+                        // configuration request last
+                        System.arraycopy(pending, 0, writeBuffer, 0, pendingLength);
+                        System.arraycopy(configuration, 0, writeBuffer, pendingLength, configurationLength);
+                        length = pendingLength + configurationLength;
+                        pendingLength = 0;
+                        configurationLength = 0;
+                    }
+                    writing = true;
+                    writes++;
+                    written += length;
+                }
+                try {
+                    transport.write(writeBuffer, 0, length);
+                } catch (IOException e) {
+                    synchronized (lock) {
+                        running = false;
+                        writing = false;
+                        pendingLength = 0;
+                        configurationLength = 0;
+                        thread = null;
+                        lock.notifyAll();
+                    }
+                    onWriteError(e);
+                    return;
+                }
+                lastWriteNanos = System.nanoTime();
+            }
+        }
+    };
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * In-memory GpsTransport.
+ *
+ * The "device" side of the link is driven by calling inject, which makes bytes available to
+ * read, and takeWrittenData, which returns everything the host has written. Both sides may run
+ * on different threads. inject blocks while the receive buffer is full so a fast producer is
+ * paced by the reader the same way a real link would be.
+ *
+ */
+public class LoopbackTransport implements GpsTransport {
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final byte[] ring;
+    private int readPos;
+    private int count;
+    private boolean open;
+    private boolean endOfStream;
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    /**
+     * Construct a LoopbackTransport with a 64 KiB receive buffer
+     */
+    public LoopbackTransport() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a LoopbackTransport
+     *
+     * @param capacity size of the receive buffer in bytes
+     */
+    public LoopbackTransport(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+        ring = new byte[capacity];
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        open = true;
+        endOfStream = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        try {
+            while (true) {
+                if (!open) throw new IOException("Transport closed"); // even with bytes still buffered
+                if (count > 0) break;
+                if (endOfStream) return -1;
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore the interrupted status
+            throw new InterruptedIOException();
+        }
+        int n = Math.min(length, count);
+        int first = Math.min(n, ring.length - readPos);
+        System.arraycopy(ring, readPos, buffer, offset, first);
+        System.arraycopy(ring, 0, buffer, offset + first, n - first);
+        readPos = (readPos + n) % ring.length;
+        count -= n;
+        notifyAll(); // wake a blocked inject
+        return n;
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        if (!open) throw new IOException("Transport not open");
+        written.write(data, offset, length);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        notifyAll();
+    }
+
+    /**
+     * Make bytes available to read, as if they had been sent by the device.
+     *
+     * Blocks while the receive buffer is full.
+     *
+     * @param data the bytes to deliver
+     * @param offset the offset in data of the first byte
+     * @param length the number of bytes
+     * @throws IOException if the transport is closed
+     * @throws InterruptedIOException if interrupted while waiting for space
+     */
+    public synchronized void inject(byte[] data, int offset, int length) throws IOException {
+        try {
+            while (length > 0) {
+                if (!open) throw new IOException("Transport closed");
+                if (count == ring.length) {
+                    wait();
+                    continue;
+                }
+                int writePos = (readPos + count) % ring.length;
+                int n = Math.min(length, Math.min(ring.length - count, ring.length - writePos));
+                System.arraycopy(data, offset, ring, writePos, n);
+                count += n;
+                offset += n;
+                length -= n;
+                notifyAll(); // wake a blocked read
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Restore the interrupted status
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Make bytes available to read, as if they had been sent by the device.
+     *
+     * @param data the bytes to deliver
+     * @throws IOException if the transport is closed
+     */
+    public void inject(byte[] data) throws IOException {
+        inject(data, 0, data.length);
+    }
+
+    /**
+     * Mark the end of the stream. read returns -1 once the buffered bytes have been consumed.
+     */
+    public synchronized void finish() {
+        endOfStream = true;
+        notifyAll();
+    }
+
+    /**
+     * Get and clear everything the host has written to the transport.
+     *
+     * @return the written bytes, possibly empty
+     */
+    public synchronized byte[] takeWrittenData() {
+        byte[] data = written.toByteArray();
+        written.reset();
+        return data;
+    }
+
+    /**
+     * Wait until the host has written at least the given number of bytes.
+     *
+     * @param minimumBytes the number of bytes to wait for
+     * @param timeoutMs the maximum time to wait
+     * @return true if the bytes are available, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitWrittenData(int minimumBytes, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (written.size() < minimumBytes) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A decoded GGA sentence: time, position and fix data.
+ *
+ * Missing numeric values are NaN, missing integer values are -1.
+ *
+ */
+public final class NmeaGga extends NmeaRecord {
+
+    int timeOfDay;
+    double latitude;
+    double longitude;
+    int quality;
+    int satellitesUsed;
+    double hdop;
+    double altitude;
+    double geoidSeparation;
+    double dgpsAge;
+    int dgpsStationId;
+
+    /**
+     * Copy all values from another record
+     *
+     * @param other the record to copy
+     */
+    public void copyFrom(NmeaGga other) {
+        talker = other.talker;
+        deviceId = other.deviceId;
+        receivedNanos = other.receivedNanos;
+        timeOfDay = other.timeOfDay;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        quality = other.quality;
+        satellitesUsed = other.satellitesUsed;
+        hdop = other.hdop;
+        altitude = other.altitude;
+        geoidSeparation = other.geoidSeparation;
+        dgpsAge = other.dgpsAge;
+        dgpsStationId = other.dgpsStationId;
+    }
+
+    @Override
+    void decode(NmeaSentence sentence) {
+        talker = sentence.getTalker();
+        timeOfDay = sentence.getTimeOfDay(1);
+        latitude = sentence.getCoordinate(2, 3);
+        longitude = sentence.getCoordinate(4, 5);
+        quality = sentence.getInt(6, 0);
+        satellitesUsed = sentence.getInt(7, -1);
+        hdop = sentence.getDouble(8);
+        altitude = sentence.getDouble(9);
+        geoidSeparation = sentence.getDouble(11);
+        dgpsAge = sentence.getDouble(13);
+        dgpsStationId = sentence.getInt(14, -1);
+    }
+
+    /** @return UTC time of the fix in milliseconds since midnight, or -1 */
+    public int getTimeOfDay()          { return timeOfDay;       }
+    /** @return latitude in decimal degrees, negative for south */
+    public double getLatitude()        { return latitude;        }
+    /** @return longitude in decimal degrees, negative for west */
+    public double getLongitude()       { return longitude;       }
+    /** @return fix quality: 0 no fix, 1 GPS, 2 DGPS/SBAS, 4 RTK fixed, 5 RTK float, 6 estimated */
+    public int getQuality()            { return quality;         }
+    /** @return number of satellites used in the fix */
+    public int getSatellitesUsed()     { return satellitesUsed;  }
+    /** @return horizontal dilution of precision */
+    public double getHdop()            { return hdop;            }
+    /** @return altitude above mean sea level in meters */
+    public double getAltitude()        { return altitude;        }
+    /** @return height of the geoid above the WGS84 ellipsoid in meters */
+    public double getGeoidSeparation() { return geoidSeparation; }
+    /** @return age of the differential corrections in seconds */
+    public double getDgpsAge()         { return dgpsAge;         }
+    /** @return differential reference station ID */
+    public int getDgpsStationId()      { return dgpsStationId;   }
+
+    /**
+     * Check whether the sentence carried a position fix
+     *
+     * @return true if the quality indicates a fix
+     */
+    public boolean hasFix() {
+        return quality > 0 && latitude == latitude && longitude == longitude;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A decoded GSA sentence: DOP and the satellites used in the fix.
+ *
+ * Missing numeric values are NaN, missing integer values are -1 and missing characters are 0.
+ *
+ */
+public final class NmeaGsa extends NmeaRecord {
+
+    /** The most satellites one GSA sentence can list */
+    public static final int MAX_SATELLITES = 12;
+
+    char selectionMode;
+    int fixType;
+    final int[] satellites = new int[MAX_SATELLITES];
+    int satelliteCount;
+    double pdop;
+    double hdop;
+    double vdop;
+    int systemId;
+
+    /**
+     * Copy all values from another record
+     *
+     * @param other the record to copy
+     */
+    public void copyFrom(NmeaGsa other) {
+        talker = other.talker;
+        deviceId = other.deviceId;
+        receivedNanos = other.receivedNanos;
+        selectionMode = other.selectionMode;
+        fixType = other.fixType;
+        satelliteCount = other.satelliteCount;
+        pdop = other.pdop;
+        hdop = other.hdop;
+        vdop = other.vdop;
+        systemId = other.systemId;
+        System.arraycopy(other.satellites, 0, satellites, 0, satelliteCount);
+    }
+
+    @Override
+    void decode(NmeaSentence sentence) {
+        talker = sentence.getTalker();
+        selectionMode = sentence.getChar(1);
+        fixType = sentence.getInt(2, -1);
+        satelliteCount = 0;
+        for (int field = 3; field < 3 + MAX_SATELLITES; field++) {
+            int prn = sentence.getInt(field, -1);
+            if (prn >= 0) satellites[satelliteCount++] = prn;
+        }
+        pdop = sentence.getDouble(15);
+        hdop = sentence.getDouble(16);
+        vdop = sentence.getDouble(17);
+        systemId = sentence.getInt(18, -1);
+    }
+
+    /** @return M for manual or A for automatic 2D/3D selection */
+    public char getSelectionMode() { return selectionMode;  }
+    /** @return 1 no fix, 2 2D fix, 3 3D fix */
+    public int getFixType()        { return fixType;        }
+    /** @return the number of satellites listed */
+    public int getSatelliteCount() { return satelliteCount; }
+    /** @return position dilution of precision */
+    public double getPdop()        { return pdop;           }
+    /** @return horizontal dilution of precision */
+    public double getHdop()        { return hdop;           }
+    /** @return vertical dilution of precision */
+    public double getVdop()        { return vdop;           }
+    /** @return the NMEA 4.1 GNSS system ID, or -1 if not present */
+    public int getSystemId()       { return systemId;       }
+
+    /**
+     * Get the ID of a satellite used in the fix
+     *
+     * @param index 0 to getSatelliteCount() - 1
+     * @return the satellite PRN
+     */
+    public int getSatellite(int index) {
+        if (index >= satelliteCount) throw new IndexOutOfBoundsException();
+        return satellites[index];
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A decoded GST sentence: pseudorange error statistics.
+ *
+ * All values are one-sigma errors in meters except the orientation. Missing values are NaN.
+ *
+ */
+public final class NmeaGst extends NmeaRecord {
+
+    int timeOfDay;
+    double rms;
+    double semiMajor;
+    double semiMinor;
+    double orientation;
+    double latitudeError;
+    double longitudeError;
+    double altitudeError;
+
+    /**
+     * Copy all values from another record
+     *
+     * @param other the record to copy
+     */
+    public void copyFrom(NmeaGst other) {
+        talker = other.talker;
+        deviceId = other.deviceId;
+        receivedNanos = other.receivedNanos;
+        timeOfDay = other.timeOfDay;
+        rms = other.rms;
+        semiMajor = other.semiMajor;
+        semiMinor = other.semiMinor;
+        orientation = other.orientation;
+        latitudeError = other.latitudeError;
+        longitudeError = other.longitudeError;
+        altitudeError = other.altitudeError;
+    }
+
+    @Override
+    void decode(NmeaSentence sentence) {
+        talker = sentence.getTalker();
+        timeOfDay = sentence.getTimeOfDay(1);
+        rms = sentence.getDouble(2);
+        semiMajor = sentence.getDouble(3);
+        semiMinor = sentence.getDouble(4);
+        orientation = sentence.getDouble(5);
+        latitudeError = sentence.getDouble(6);
+        longitudeError = sentence.getDouble(7);
+        altitudeError = sentence.getDouble(8);
+    }
+
+    /** @return UTC time of the fix in milliseconds since midnight, or -1 */
+    public int getTimeOfDay()         { return timeOfDay;      }
+    /** @return RMS of the pseudorange residuals */
+    public double getRms()            { return rms;            }
+    /** @return semi-major axis of the error ellipse */
+    public double getSemiMajor()      { return semiMajor;      }
+    /** @return semi-minor axis of the error ellipse */
+    public double getSemiMinor()      { return semiMinor;      }
+    /** @return orientation of the semi-major axis in degrees from true north */
+    public double getOrientation()    { return orientation;    }
+    /** @return latitude error */
+    public double getLatitudeError()  { return latitudeError;  }
+    /** @return longitude error */
+    public double getLongitudeError() { return longitudeError; }
+    /** @return altitude error */
+    public double getAltitudeError()  { return altitudeError;  }
+
+    /**
+     * Get the horizontal position error
+     *
+     * @return the root sum square of the latitude and longitude errors, or NaN
+     */
+    public double getHorizontalError() {
+        return Math.sqrt(latitudeError * latitudeError + longitudeError * longitudeError);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A decoded GSV sentence: one part of the list of satellites in view.
+ *
+ * A full list spans getMessageCount() sentences of up to four satellites each. Missing integer
+ * values are -1.
+ *
+ */
+public final class NmeaGsv extends NmeaRecord {
+
+    /** The most satellites one GSV sentence can describe */
+    public static final int MAX_SATELLITES = 4;
+
+    int messageCount;
+    int messageNumber;
+    int satellitesInView;
+    final int[] prn = new int[MAX_SATELLITES];
+    final int[] elevation = new int[MAX_SATELLITES];
+    final int[] azimuth = new int[MAX_SATELLITES];
+    final int[] snr = new int[MAX_SATELLITES];
+    int satelliteCount;
+    int signalId;
+
+    /**
+     * Copy all values from another record
+     *
+     * @param other the record to copy
+     */
+    public void copyFrom(NmeaGsv other) {
+        talker = other.talker;
+        deviceId = other.deviceId;
+        receivedNanos = other.receivedNanos;
+        messageCount = other.messageCount;
+        messageNumber = other.messageNumber;
+        satellitesInView = other.satellitesInView;
+        satelliteCount = other.satelliteCount;
+        signalId = other.signalId;
+        System.arraycopy(other.prn, 0, prn, 0, satelliteCount);
+        System.arraycopy(other.elevation, 0, elevation, 0, satelliteCount);
+        System.arraycopy(other.azimuth, 0, azimuth, 0, satelliteCount);
+        System.arraycopy(other.snr, 0, snr, 0, satelliteCount);
+    }
+
+    @Override
+    void decode(NmeaSentence sentence) {
+        talker = sentence.getTalker();
+        messageCount = sentence.getInt(1, -1);
+        messageNumber = sentence.getInt(2, -1);
+        satellitesInView = sentence.getInt(3, -1);
+        int fields = sentence.getFieldCount();
+        satelliteCount = 0;
+        for (int field = 4; field + 3 < fields && satelliteCount < MAX_SATELLITES; field += 4) {
+            prn[satelliteCount] = sentence.getInt(field, -1);
+            elevation[satelliteCount] = sentence.getInt(field + 1, -1);
+            azimuth[satelliteCount] = sentence.getInt(field + 2, -1);
+            snr[satelliteCount] = sentence.getInt(field + 3, -1);
+            satelliteCount++;
+        }
+        // NMEA 4.1 adds a signal ID after the last satellite
+        signalId = ((fields - 4) % 4 == 1) ? sentence.getInt(fields - 1, -1) : -1;
+    }
+
+    /** @return the number of GSV sentences in this cycle */
+    public int getMessageCount()    { return messageCount;     }
+    /** @return the number of this sentence, starting at 1 */
+    public int getMessageNumber()   { return messageNumber;    }
+    /** @return the total number of satellites in view */
+    public int getSatellitesInView(){ return satellitesInView; }
+    /** @return the number of satellites described by this sentence */
+    public int getSatelliteCount()  { return satelliteCount;   }
+    /** @return the NMEA 4.1 signal ID, or -1 if not present */
+    public int getSignalId()        { return signalId;         }
+
+    /**
+     * @param index 0 to getSatelliteCount() - 1
+     * @return the satellite PRN
+     */
+    public int getPrn(int index) {
+        check(index);
+        return prn[index];
+    }
+
+    /**
+     * @param index 0 to getSatelliteCount() - 1
+     * @return elevation in degrees, or -1
+     */
+    public int getElevation(int index) {
+        check(index);
+        return elevation[index];
+    }
+
+    /**
+     * @param index 0 to getSatelliteCount() - 1
+     * @return azimuth in degrees true, or -1
+     */
+    public int getAzimuth(int index) {
+        check(index);
+        return azimuth[index];
+    }
+
+    /**
+     * @param index 0 to getSatelliteCount() - 1
+     * @return signal to noise ratio in dB-Hz, or -1 if not tracked
+     */
+    public int getSnr(int index) {
+        check(index);
+        return snr[index];
+    }
+
+    private void check(int index) {
+        if (index >= satelliteCount) throw new IndexOutOfBoundsException();
+    }
+}
@@ -0,0 +1,419 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Streaming NMEA 0183 parser.
+ *
+ * Feed it the data received from a Bad Elf Device in chunks of any size. Sentences may be split
+ * across chunks. Every complete sentence has its *hh checksum validated and is split into
+ * fields, and GGA, RMC, GSA, GSV, GST and VTG sentences are decoded into reusable records that
+ * are passed to the Listener. Nothing is allocated after construction.
+ *
+ * Decoding can be limited to the sentence types that are actually used with setEnabledTypes.
+ * Sentences of other types are still framed and checked, but not decoded.
+ *
+ * Bad Elf binary packets, which also start with a '$', are framed by their length so their
+ * bytes are never mistaken for NMEA. Valid packets are passed to the PacketListener.
+ *
+ * A parser is not thread safe. Use one parser per stream.
+ *
+ */
+public class NmeaParser {
+
+    public static final int TYPE_GGA   = 1;
+    public static final int TYPE_RMC   = 1 << 1;
+    public static final int TYPE_GSA   = 1 << 2;
+    public static final int TYPE_GSV   = 1 << 3;
+    public static final int TYPE_GST   = 1 << 4;
+    public static final int TYPE_VTG   = 1 << 5;
+    public static final int TYPE_OTHER = 1 << 6;
+    public static final int TYPE_ALL   = (1 << 7) - 1;
+
+    public static final int TALKER_GP = ('G' << 8) | 'P'; // GPS
+    public static final int TALKER_GL = ('G' << 8) | 'L'; // GLONASS
+    public static final int TALKER_GA = ('G' << 8) | 'A'; // Galileo
+    public static final int TALKER_GB = ('G' << 8) | 'B'; // BeiDou
+    public static final int TALKER_GN = ('G' << 8) | 'N'; // combined GNSS
+
+    // The longest sentence accepted. NMEA limits sentences to 82 characters but some receivers
+    // exceed that.
+    private static final int MAX_SENTENCE_LENGTH = 256;
+
+    private static final int ADDRESS_GGA = ('G' << 16) | ('G' << 8) | 'A';
+    private static final int ADDRESS_RMC = ('R' << 16) | ('M' << 8) | 'C';
+    private static final int ADDRESS_GSA = ('G' << 16) | ('S' << 8) | 'A';
+    private static final int ADDRESS_GSV = ('G' << 16) | ('S' << 8) | 'V';
+    private static final int ADDRESS_GST = ('G' << 16) | ('S' << 8) | 'T';
+    private static final int ADDRESS_VTG = ('V' << 16) | ('T' << 8) | 'G';
+
+    /**
+     * Receives the sentences decoded by an NmeaParser.
+     *
+     * The records and the sentence are reused for the next sentence of the same type, so they
+     * are only valid until the callback returns.
+     */
+    public interface Listener {
+        void onGga(NmeaGga gga);
+        void onRmc(NmeaRmc rmc);
+        void onGsa(NmeaGsa gsa);
+        void onGsv(NmeaGsv gsv);
+        void onGst(NmeaGst gst);
+        void onVtg(NmeaVtg vtg);
+
+        /**
+         * Called for valid sentences of any other type when TYPE_OTHER is enabled
+         *
+         * @param sentence the sentence
+         */
+        void onOtherSentence(NmeaSentence sentence);
+    }
+
+    /**
+     * A Listener that ignores everything. Extend it and override the callbacks of interest.
+     */
+    public static class ListenerAdapter implements Listener {
+        @Override public void onGga(NmeaGga gga) {}
+        @Override public void onRmc(NmeaRmc rmc) {}
+        @Override public void onGsa(NmeaGsa gsa) {}
+        @Override public void onGsv(NmeaGsv gsv) {}
+        @Override public void onGst(NmeaGst gst) {}
+        @Override public void onVtg(NmeaVtg vtg) {}
+        @Override public void onOtherSentence(NmeaSentence sentence) {}
+    }
+
+    /**
+     * Receives the Bad Elf packets found in the stream, such as acknowledgements
+     */
+    public interface PacketListener {
+
+        /**
+         * Called for every packet that passed its checksums
+         *
+         * @param packet the packet, only valid until the callback returns
+         */
+        void onPacket(BadElfPacket packet);
+    }
+
+    private final Listener listener;
+    private PacketListener packetListener;
+    private final BadElfPacket packet = new BadElfPacket();
+    private boolean inPacket;
+    private int packetLength; // 0 until the length field has been received
+    private final byte[] line = new byte[MAX_SENTENCE_LENGTH];
+    private int lineLength; // 0 while waiting for a '$'
+    private final NmeaSentence sentence = new NmeaSentence(line);
+    private int enabledTypes = TYPE_ALL;
+
+    private final NmeaGga gga = new NmeaGga();
+    private final NmeaRmc rmc = new NmeaRmc();
+    private final NmeaGsa gsa = new NmeaGsa();
+    private final NmeaGsv gsv = new NmeaGsv();
+    private final NmeaGst gst = new NmeaGst();
+    private final NmeaVtg vtg = new NmeaVtg();
+
+    private long position;       // bytes parsed since construction
+    private long sentenceStart;  // position of the '$' of the current sentence
+    private long sentenceEnd;    // position of the line terminator of the current sentence
+    private long receivedNanos;          // of the data being parsed
+    private long sentenceReceivedNanos;  // of the data holding the '$' of the current sentence
+
+    private long sentenceCount;
+    private final long[] typeCounts = new long[Integer.numberOfTrailingZeros(TYPE_OTHER) + 1];
+    private long checksumErrorCount;
+    private long framingErrorCount;
+    private long packetCount;
+
+    /**
+     * Construct an NmeaParser
+     *
+     * @param listener the listener for decoded sentences
+     */
+    public NmeaParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the listener for Bad Elf packets. Packets are dropped when there is none.
+     *
+     * @param packetListener the listener, or null
+     */
+    public void setPacketListener(PacketListener packetListener) {
+        this.packetListener = packetListener;
+    }
+
+    /**
+     * Choose which sentence types are decoded and passed to the listener
+     *
+     * @param types a combination of the TYPE_ constants
+     */
+    public void setEnabledTypes(int types) {
+        enabledTypes = types;
+    }
+
+    /**
+     * Get the sentence types that are decoded
+     *
+     * @return a combination of the TYPE_ constants
+     */
+    public int getEnabledTypes() {
+        return enabledTypes;
+    }
+
+    /**
+     * Parse received data. The records passed to the listener carry the received time of the
+     * chunk that held the start of their sentence.
+     *
+     * @param chunk the received data
+     */
+    public void parse(GpsDataChunk chunk) {
+        parse(chunk.data, 0, chunk.length, chunk.receivedNanos);
+    }
+
+    /**
+     * Parse data that has no received time, such as a recording. The records passed to the
+     * listener carry 0 as their received time.
+     *
+     * @param data the data
+     * @param offset the index of the first byte to parse
+     * @param length the number of bytes to parse
+     */
+    public void parse(byte[] data, int offset, int length) {
+        parse(data, offset, length, 0);
+    }
+
+    /**
+     * Parse received data
+     *
+     * @param data the received data
+     * @param offset the index of the first byte to parse
+     * @param length the number of bytes to parse
+     * @param receivedNanos System.nanoTime() when the data was read. The decoded records carry
+     *                      the time of the data that held the start of their sentence.
+     */
+    public void parse(byte[] data, int offset, int length, long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+        final byte[] line = this.line;
+        int lineLength = this.lineLength;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (inPacket) {
+                // binary, so '$', '\r' and '\n' are just data until the length is reached
+                line[lineLength++] = b;
+                if (lineLength == 4) {
+                    packetLength = ((line[2] & 0xff) << 8) | (line[3] & 0xff);
+                    if (packetLength < BadElfPacket.MIN_LENGTH || packetLength > MAX_SENTENCE_LENGTH) {
+                        framingErrorCount++;
+                        inPacket = false;
+                        lineLength = 0;
+                    }
+                } else if (lineLength == packetLength) {
+                    endOfPacket(lineLength);
+                    inPacket = false;
+                    lineLength = 0;
+                }
+            } else if (b == '$') {
+                if (lineLength > 0) framingErrorCount++; // the previous sentence was cut short
+                line[0] = b;
+                lineLength = 1;
+                sentenceStart = position + (i - offset);
+                sentenceReceivedNanos = this.receivedNanos;
+            } else if (lineLength == 0) {
+                // waiting for the start of a sentence
+            } else if (lineLength == 1 && b == BadElfPacket.MARKER) {
+                line[lineLength++] = b;
+                inPacket = true;
+                packetLength = 0;
+            } else if (b == '\r' || b == '\n') {
+                this.lineLength = lineLength;
+                sentenceEnd = position + (i - offset);
+                endOfSentence();
+                lineLength = 0;
+            } else if (lineLength == MAX_SENTENCE_LENGTH) {
+                framingErrorCount++; // too long, drop it
+                lineLength = 0;
+            } else {
+                line[lineLength++] = b;
+            }
+        }
+        this.lineLength = lineLength;
+        position += length;
+    }
+
+    /**
+     * Forget any partial sentence, for example after the stream was interrupted
+     */
+    public void reset() {
+        lineLength = 0;
+        inPacket = false;
+    }
+
+    /**
+     * Get the number of sentences that passed the checksum
+     *
+     * @return the sentence count
+     */
+    public long getSentenceCount() {
+        return sentenceCount;
+    }
+
+    /**
+     * Get the number of sentences of one type that passed the checksum, whether or not the type
+     * is enabled
+     *
+     * @param type one of the TYPE_ constants other than TYPE_ALL
+     * @return the sentence count
+     */
+    public long getSentenceCount(int type) {
+        return typeCounts[Integer.numberOfTrailingZeros(type)];
+    }
+
+    /**
+     * Get the number of sentences dropped because the checksum was missing or wrong
+     *
+     * @return the checksum error count
+     */
+    public long getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
+
+    /**
+     * Get the number of sentences dropped because they were cut short or too long
+     *
+     * @return the framing error count
+     */
+    public long getFramingErrorCount() {
+        return framingErrorCount;
+    }
+
+    /**
+     * Get the stream position of the sentence being passed to the listener
+     *
+     * @return the number of bytes parsed before its '$'
+     */
+    long getSentenceStart() {
+        return sentenceStart;
+    }
+
+    /**
+     * Get the stream position of the end of the sentence being passed to the listener. Parsing
+     * from there on skips to the next '$'.
+     *
+     * @return the number of bytes parsed before its line terminator
+     */
+    long getSentenceEnd() {
+        return sentenceEnd;
+    }
+
+    /**
+     * Get the number of Bad Elf packets that passed their checksums
+     *
+     * @return the packet count
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Validate the packet in the line buffer and pass it to the packet listener
+     *
+     * @param length the length of the packet
+     */
+    private void endOfPacket(int length) {
+        if (!packet.decode(line, 0, length)) {
+            checksumErrorCount++;
+            return;
+        }
+        packetCount++;
+        if (packetListener != null) packetListener.onPacket(packet);
+    }
+
+    /**
+     * Validate, split and decode the sentence in the line buffer
+     */
+    private void endOfSentence() {
+        final byte[] line = this.line;
+        final int star = lineLength - 3;
+        if (star < 1 || line[star] != '*') {
+            checksumErrorCount++;
+            return;
+        }
+        int expected = (hexValue(line[star + 1]) << 4) | hexValue(line[star + 2]);
+
+        // Compute the checksum and find the fields in one pass
+        final NmeaSentence sentence = this.sentence;
+        final int[] fieldStart = sentence.fieldStart;
+        final int[] fieldEnd = sentence.fieldEnd;
+        int checksum = 0;
+        int field = 0;
+        fieldStart[0] = 1;
+        for (int i = 1; i < star; i++) {
+            byte b = line[i];
+            checksum ^= b;
+            if (b == ',') {
+                if (field == NmeaSentence.MAX_FIELDS - 1) {
+                    framingErrorCount++;
+                    return;
+                }
+                fieldEnd[field++] = i;
+                fieldStart[field] = i + 1;
+            }
+        }
+        fieldEnd[field] = star;
+        if (expected < 0 || checksum != expected) {
+            checksumErrorCount++;
+            return;
+        }
+        sentenceCount++;
+        sentence.length = lineLength;
+        sentence.fieldCount = field + 1;
+
+        // The address is a two character talker ID followed by the sentence formatter
+        int type = TYPE_OTHER;
+        if (fieldEnd[0] == 6) {
+            sentence.talker = ((line[1] & 0xff) << 8) | (line[2] & 0xff);
+            switch (((line[3] & 0xff) << 16) | ((line[4] & 0xff) << 8) | (line[5] & 0xff)) {
+                case ADDRESS_GGA: type = TYPE_GGA; break;
+                case ADDRESS_RMC: type = TYPE_RMC; break;
+                case ADDRESS_GSA: type = TYPE_GSA; break;
+                case ADDRESS_GSV: type = TYPE_GSV; break;
+                case ADDRESS_GST: type = TYPE_GST; break;
+                case ADDRESS_VTG: type = TYPE_VTG; break;
+            }
+        } else {
+            sentence.talker = 0;
+        }
+        sentence.type = type;
+        typeCounts[Integer.numberOfTrailingZeros(type)]++;
+        if ((enabledTypes & type) == 0) return;
+
+        final long nanos = sentenceReceivedNanos;
+        switch (type) {
+            case TYPE_GGA: gga.decode(sentence); gga.receivedNanos = nanos; listener.onGga(gga); break;
+            case TYPE_RMC: rmc.decode(sentence); rmc.receivedNanos = nanos; listener.onRmc(rmc); break;
+            case TYPE_GSA: gsa.decode(sentence); gsa.receivedNanos = nanos; listener.onGsa(gsa); break;
+            case TYPE_GSV: gsv.decode(sentence); gsv.receivedNanos = nanos; listener.onGsv(gsv); break;
+            case TYPE_GST: gst.decode(sentence); gst.receivedNanos = nanos; listener.onGst(gst); break;
+            case TYPE_VTG: vtg.decode(sentence); vtg.receivedNanos = nanos; listener.onVtg(vtg); break;
+            default:       listener.onOtherSentence(sentence);                                  break;
+        }
+    }
+
+    /**
+     * Convert a hex digit
+     *
+     * @param b an ASCII character
+     * @return the value, or a large negative number if b is not a hex digit
+     */
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        return -0x1000;
+    }
+}
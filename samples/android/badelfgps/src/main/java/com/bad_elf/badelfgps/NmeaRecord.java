@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * Base class of the decoded NMEA sentences.
+ *
+ * Records are mutable and reused: NmeaParser decodes every sentence of a type into the same
+ * instance, so a listener must copy any values it wants to keep after its callback returns.
+ *
+ */
+public abstract class NmeaRecord {
+
+    int talker;
+    int deviceId;
+    long receivedNanos;
+
+    /**
+     * Get the talker ID of the sentence this record was decoded from
+     *
+     * @return the talker, for example NmeaParser.TALKER_GP
+     */
+    public int getTalker() {
+        return talker;
+    }
+
+    /**
+     * Get the device the sentence was received from, when BadElfService has several sessions
+     *
+     * @return the device ID of the session, see BadElfDeviceSession.getDeviceId
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Get the time the data holding the sentence was read, see GpsDataChunk.getReceivedNanos
+     *
+     * @return System.nanoTime() when the chunk that held the sentence's '$' was read, or 0 if
+     *         the data had no received time
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Decode a sentence into this record
+     *
+     * @param sentence a valid sentence of this record's type
+     */
+    abstract void decode(NmeaSentence sentence);
+}
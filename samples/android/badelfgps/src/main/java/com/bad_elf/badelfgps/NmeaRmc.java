@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A decoded RMC sentence: recommended minimum navigation data.
+ *
+ * Missing numeric values are NaN, missing integer values are -1 and missing characters are 0.
+ *
+ */
+public final class NmeaRmc extends NmeaRecord {
+
+    int timeOfDay;
+    boolean valid;
+    double latitude;
+    double longitude;
+    double speedKnots;
+    double course;
+    int date;
+    double magneticVariation;
+    char mode;
+
+    /**
+     * Copy all values from another record
+     *
+     * @param other the record to copy
+     */
+    public void copyFrom(NmeaRmc other) {
+        talker = other.talker;
+        deviceId = other.deviceId;
+        receivedNanos = other.receivedNanos;
+        timeOfDay = other.timeOfDay;
+        valid = other.valid;
+        latitude = other.latitude;
+        longitude = other.longitude;
+        speedKnots = other.speedKnots;
+        course = other.course;
+        date = other.date;
+        magneticVariation = other.magneticVariation;
+        mode = other.mode;
+    }
+
+    @Override
+    void decode(NmeaSentence sentence) {
+        talker = sentence.getTalker();
+        timeOfDay = sentence.getTimeOfDay(1);
+        valid = sentence.getChar(2) == 'A';
+        latitude = sentence.getCoordinate(3, 4);
+        longitude = sentence.getCoordinate(5, 6);
+        speedKnots = sentence.getDouble(7);
+        course = sentence.getDouble(8);
+        date = sentence.getDate(9);
+        magneticVariation = sentence.getDouble(10);
+        if (sentence.getChar(11) == 'W') magneticVariation = -magneticVariation;
+        mode = sentence.getChar(12);
+    }
+
+    /** @return UTC time of the fix in milliseconds since midnight, or -1 */
+    public int getTimeOfDay()            { return timeOfDay;         }
+    /** @return true if the status field is A (valid) */
+    public boolean isValid()             { return valid;             }
+    /** @return latitude in decimal degrees, negative for south */
+    public double getLatitude()          { return latitude;          }
+    /** @return longitude in decimal degrees, negative for west */
+    public double getLongitude()         { return longitude;         }
+    /** @return speed over ground in knots */
+    public double getSpeedKnots()        { return speedKnots;        }
+    /** @return course over ground in degrees true */
+    public double getCourse()            { return course;            }
+    /** @return UTC date as yyyymmdd, or -1 */
+    public int getDate()                 { return date;              }
+    /** @return magnetic variation in degrees, negative for west */
+    public double getMagneticVariation() { return magneticVariation; }
+    /** @return the mode indicator (A autonomous, D differential, E estimated, N not valid, ...) */
+    public char getMode()                { return mode;              }
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A view of one checksum-validated NMEA 0183 sentence held in an NmeaParser's line buffer.
+ *
+ * Fields are numbered as in the NMEA specification: field 0 is the address (for example GPGGA)
+ * and field 1 is the first data field. All accessors work directly on the bytes and do not
+ * allocate. The sentence is only valid until the parser is given more data.
+ *
+ */
+public final class NmeaSentence {
+
+    static final int MAX_FIELDS = 64;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    final byte[] line;
+    int length;
+    int type;
+    int talker;
+    int fieldCount;
+    final int[] fieldStart = new int[MAX_FIELDS];
+    final int[] fieldEnd = new int[MAX_FIELDS];
+
+    NmeaSentence(byte[] line) {
+        this.line = line;
+    }
+
+    /**
+     * Get the sentence type
+     *
+     * @return one of the NmeaParser.TYPE_ constants
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Get the talker ID, the two characters after the '$', packed into an int.
+     *
+     * @return the talker, for example NmeaParser.TALKER_GP
+     */
+    public int getTalker() {
+        return talker;
+    }
+
+    /**
+     * Get the number of fields, including the address field
+     *
+     * @return the field count
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Get the length of the sentence from the '$' up to, but not including, the line terminator
+     *
+     * @return the length in bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Get one byte of the sentence
+     *
+     * @param index 0 is the '$'
+     * @return the byte
+     */
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException();
+        return line[index];
+    }
+
+    /**
+     * Copy the sentence, from the '$' to the checksum, into an array
+     *
+     * @param dst the destination
+     * @param dstOffset the index in dst to copy to
+     */
+    public void copyTo(byte[] dst, int dstOffset) {
+        System.arraycopy(line, 0, dst, dstOffset, length);
+    }
+
+    /**
+     * Check whether a field is missing or empty
+     *
+     * @param field the field number
+     * @return true if the field has no content
+     */
+    public boolean isEmpty(int field) {
+        return field >= fieldCount || fieldStart[field] == fieldEnd[field];
+    }
+
+    /**
+     * Get the first character of a field
+     *
+     * @param field the field number
+     * @return the character, or 0 if the field is empty
+     */
+    public char getChar(int field) {
+        if (isEmpty(field)) return 0;
+        return (char) (line[fieldStart[field]] & 0xff);
+    }
+
+    /**
+     * Parse a field as a decimal integer
+     *
+     * @param field the field number
+     * @param defaultValue returned if the field is empty or not a number
+     * @return the value
+     */
+    public int getInt(int field, int defaultValue) {
+        if (isEmpty(field)) return defaultValue;
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (line[i] == '-') {
+            negative = true;
+            if (++i == end) return defaultValue;
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                if (line[i] == '.') break; // ignore a fraction
+                return defaultValue;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a field as a decimal number
+     *
+     * @param field the field number
+     * @return the value, or NaN if the field is empty or not a number
+     */
+    public double getDouble(int field) {
+        if (isEmpty(field)) return Double.NaN;
+        return parseDouble(line, fieldStart[field], fieldEnd[field]);
+    }
+
+    /**
+     * Parse a latitude or longitude in NMEA (d)ddmm.mmmm form together with its hemisphere.
+     *
+     * @param valueField the field holding the coordinate
+     * @param hemisphereField the field holding N, S, E or W
+     * @return signed decimal degrees, negative for S and W, or NaN if the field is empty
+     */
+    public double getCoordinate(int valueField, int hemisphereField) {
+        if (isEmpty(valueField)) return Double.NaN;
+        // Split degrees and minutes with integer arithmetic so no rounding error creeps in
+        long mantissa = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        for (int i = fieldStart[valueField]; i < fieldEnd[valueField]; i++) {
+            byte b = line[i];
+            if (b == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) return Double.NaN;
+            if (fractionDigits == 12) continue; // well below a millimeter
+            mantissa = mantissa * 10 + digit;
+            if (fraction) {
+                fractionDigits++;
+            } else if (mantissa > 99999) {
+                return Double.NaN; // more than dddmm
+            }
+        }
+        long scale = (long) POWERS_OF_TEN[fractionDigits];
+        long degrees = mantissa / (100 * scale);
+        double result = degrees + (mantissa - degrees * 100 * scale) / (scale * 60.0);
+        char hemisphere = getChar(hemisphereField);
+        return (hemisphere == 'S' || hemisphere == 'W') ? -result : result;
+    }
+
+    /**
+     * Parse a UTC time of day in hhmmss.sss form
+     *
+     * @param field the field number
+     * @return milliseconds since midnight UTC, or -1 if the field is empty or invalid
+     */
+    public int getTimeOfDay(int field) {
+        if (isEmpty(field)) return -1;
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        if (end - i < 6) return -1;
+        int hh = twoDigits(i);
+        int mm = twoDigits(i + 2);
+        int ss = twoDigits(i + 4);
+        if (hh < 0 || mm < 0 || ss < 0) return -1;
+        int millis = 0;
+        i += 6;
+        if (i < end) {
+            if (line[i++] != '.') return -1;
+            int scale = 100;
+            for (; i < end; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9) return -1;
+                millis += digit * scale;
+                scale /= 10;
+            }
+        }
+        return ((hh * 60 + mm) * 60 + ss) * 1000 + millis;
+    }
+
+    /**
+     * Parse a date in ddmmyy form
+     *
+     * Two digit years from 80 to 99 are taken as 1980 to 1999, all others as 20xx.
+     *
+     * @param field the field number
+     * @return the date as yyyymmdd, for example 20160704, or -1 if the field is empty or invalid
+     */
+    public int getDate(int field) {
+        if (isEmpty(field) || fieldEnd[field] - fieldStart[field] != 6) return -1;
+        int i = fieldStart[field];
+        int dd = twoDigits(i);
+        int mm = twoDigits(i + 2);
+        int yy = twoDigits(i + 4);
+        if (dd < 0 || mm < 0 || yy < 0) return -1;
+        int year = yy >= 80 ? 1900 + yy : 2000 + yy;
+        return (year * 100 + mm) * 100 + dd;
+    }
+
+    private int twoDigits(int i) {
+        int tens = line[i] - '0';
+        int ones = line[i + 1] - '0';
+        if (tens < 0 || tens > 9 || ones < 0 || ones > 9) return -1;
+        return tens * 10 + ones;
+    }
+
+    /**
+     * Parse a decimal number without creating a String.
+     *
+     * Up to 18 significant digits are used, which is far more than any NMEA field carries.
+     *
+     * @param bytes the characters
+     * @param start the index of the first character
+     * @param end the index after the last character
+     * @return the value, or NaN if the characters are not a number
+     */
+    static double parseDouble(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (bytes[i] == '-' || bytes[i] == '+') {
+            negative = bytes[i] == '-';
+            if (++i == end) return Double.NaN;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '.') {
+                if (fraction) return Double.NaN;
+                fraction = true;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) return Double.NaN;
+            if (fraction) {
+                if (fractionDigits == 18 || digits == 18) continue; // drop excess fraction digits
+                fractionDigits++;
+            } else if (digits == 18) {
+                return Double.NaN; // too large for any NMEA field
+            }
+            if (mantissa != 0 || digit != 0) digits++;
+            mantissa = mantissa * 10 + digit;
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+}
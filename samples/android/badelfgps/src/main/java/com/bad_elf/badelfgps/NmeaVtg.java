@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+/**
+ * A decoded VTG sentence: course and speed over ground.
+ *
+ * Missing numeric values are NaN and a missing mode is 0.
+ *
+ */
+public final class NmeaVtg extends NmeaRecord {
+
+    double courseTrue;
+    double courseMagnetic;
+    double speedKnots;
+    double speedKmh;
+    char mode;
+
+    /**
+     * Copy all values from another record
+     *
+     * @param other the record to copy
+     */
+    public void copyFrom(NmeaVtg other) {
+        talker = other.talker;
+        deviceId = other.deviceId;
+        receivedNanos = other.receivedNanos;
+        courseTrue = other.courseTrue;
+        courseMagnetic = other.courseMagnetic;
+        speedKnots = other.speedKnots;
+        speedKmh = other.speedKmh;
+        mode = other.mode;
+    }
+
+    @Override
+    void decode(NmeaSentence sentence) {
+        talker = sentence.getTalker();
+        courseTrue = sentence.getDouble(1);
+        courseMagnetic = sentence.getDouble(3);
+        speedKnots = sentence.getDouble(5);
+        speedKmh = sentence.getDouble(7);
+        mode = sentence.getChar(9);
+    }
+
+    /** @return course over ground in degrees true */
+    public double getCourseTrue()     { return courseTrue;     }
+    /** @return course over ground in degrees magnetic */
+    public double getCourseMagnetic() { return courseMagnetic; }
+    /** @return speed over ground in knots */
+    public double getSpeedKnots()     { return speedKnots;     }
+    /** @return speed over ground in km/h */
+    public double getSpeedKmh()       { return speedKmh;       }
+    /** @return the mode indicator (A autonomous, D differential, E estimated, N not valid, ...) */
+    public char getMode()             { return mode;           }
+}
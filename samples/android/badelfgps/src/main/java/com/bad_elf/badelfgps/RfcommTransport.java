@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * GpsTransport over a Bluetooth RFCOMM (Serial Port Profile) socket.
+ *
+ * This is the transport BadElfService uses for a paired Bad Elf Device.
+ *
+ */
+public class RfcommTransport implements GpsTransport {
+
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothDevice device;
+    private final Object socketSync = new Object();
+    private BluetoothSocket socket;
+    private volatile InputStream inStream;
+    private volatile OutputStream outStream;
+    private boolean closed;
+
+    /**
+     * Construct an RfcommTransport
+     *
+     * @param device A paired Bad Elf BluetoothDevice
+     */
+    public RfcommTransport(BluetoothDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Get the Bluetooth device this transport connects to
+     *
+     * @return the BluetoothDevice
+     */
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    @Override
+    public void open() throws IOException {
+        BluetoothSocket newSocket;
+        synchronized (socketSync) {
+            closed = false;
+            BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
+            newSocket = device.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
+            socket = newSocket;
+        }
+        newSocket.connect(); // This blocks until it succeeds or throws an exception
+        synchronized (socketSync) {
+            if (closed) throw new IOException("Transport closed");
+            inStream = newSocket.getInputStream();
+            outStream = newSocket.getOutputStream();
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        InputStream in = inStream;
+        if (in == null) throw new IOException("Transport not open");
+        return in.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        OutputStream out = outStream;
+        if (out == null) throw new IOException("Transport not open");
+        out.write(data, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket oldSocket;
+        synchronized (socketSync) {
+            closed = true;
+            oldSocket = socket;
+            socket = null;
+            inStream = null;
+            outStream = null;
+        }
+        if (oldSocket != null) {
+            oldSocket.close(); // This will cause a blocked connect or read to throw
+        }
+    }
+}
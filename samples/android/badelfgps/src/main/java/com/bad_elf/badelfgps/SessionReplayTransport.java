@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * GpsTransport that plays back a log recorded by GpsSessionRecorder.
+ *
+ * Run BadElfService over it to replay a session through the normal observers. Each read returns
+ * at most one recorded chunk, so the chunk boundaries are kept when the reader's buffer is large
+ * enough. Records are delivered with their recorded timing scaled by the speed, or as fast as
+ * possible when the speed is 0. Anything written to the transport is discarded. The end of the
+ * log is the end of the stream.
+ *
+ */
+public class SessionReplayTransport implements GpsTransport {
+
+    private final File directory;
+    private final String sessionName;
+    private final double speed;
+    private volatile GpsSessionLog log;
+    private int recordPosition; // bytes of the current record already delivered
+
+    /**
+     * Construct a SessionReplayTransport
+     *
+     * @param directory the directory holding the segments
+     * @param sessionName the name the segment file names start with
+     * @param speed 1 for real time, 10 for ten times faster, or 0 for as fast as possible
+     */
+    public SessionReplayTransport(File directory, String sessionName, double speed) {
+        if (speed < 0) throw new IllegalArgumentException("speed < 0");
+        this.directory = directory;
+        this.sessionName = sessionName;
+        this.speed = speed;
+    }
+
+    @Override
+    public void open() throws IOException {
+        log = new GpsSessionLog(directory, sessionName);
+        recordPosition = -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        GpsSessionLog current = log;
+        if (current == null) throw new IOException("Transport not open");
+        if (recordPosition < 0 || recordPosition == current.getLength()) {
+            if (!current.next()) return -1;
+            current.awaitRecord(speed);
+            recordPosition = 0;
+            if (log == null) throw new IOException("Transport closed");
+        }
+        int count = Math.min(length, current.getLength() - recordPosition);
+        current.copyTo(recordPosition, buffer, offset, count);
+        recordPosition += count;
+        return count;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (log == null) throw new IOException("Transport not open");
+        // A recording can't answer, so the data is dropped
+    }
+
+    @Override
+    public void close() throws IOException {
+        log = null; // the mappings are released once the reading thread lets go of them
+    }
+
+    @Override
+    public String toString() {
+        return new File(directory, sessionName).getPath();
+    }
+}
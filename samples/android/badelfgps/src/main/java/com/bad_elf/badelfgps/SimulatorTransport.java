@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * GpsTransport that talks to a GpsSimulator instead of a Bad Elf Device.
+ *
+ * Reads return one epoch of sentences at a time, paced by the simulator's rate in real time or
+ * as fast as they are read. Writes go to the simulator, so configuration requests change its
+ * output, and its acknowledgements are read before the next epoch. dropLink makes the link fail
+ * as if the device went out of range, to exercise reconnecting.
+ *
+ * The simulator keeps running while the transport is closed, in simulated time: a reopened link
+ * carries on from the next epoch.
+ *
+ */
+public class SimulatorTransport implements GpsTransport {
+
+    private final GpsSimulator simulator;
+    private final boolean realTime;
+    private final long epochLimit;
+
+    private final Object lock = new Object();
+    private boolean open;
+    private boolean linkDropped;
+    private byte[] pending = new byte[0];
+    private int pendingOffset;
+    private long lastEpochNanos;
+
+    /**
+     * Construct a SimulatorTransport that paces the epochs in real time without end
+     *
+     * @param simulator the simulator
+     */
+    public SimulatorTransport(GpsSimulator simulator) {
+        this(simulator, true, 0);
+    }
+
+    /**
+     * Construct a SimulatorTransport
+     *
+     * @param simulator the simulator, only used through this transport from now on
+     * @param realTime true to wait for each epoch's time, false to deliver them as fast as they
+     *                 are read
+     * @param epochLimit the number of epochs after which the stream ends, or 0 for no end
+     */
+    public SimulatorTransport(GpsSimulator simulator, boolean realTime, long epochLimit) {
+        if (epochLimit < 0) throw new IllegalArgumentException("epochLimit < 0");
+        this.simulator = simulator;
+        this.realTime = realTime;
+        this.epochLimit = epochLimit;
+    }
+
+    @Override
+    public void open() throws IOException {
+        synchronized (lock) {
+            open = true;
+            linkDropped = false;
+            pending = new byte[0];
+            pendingOffset = 0;
+            lastEpochNanos = System.nanoTime() - simulator.getEpochMicros() * 1000; // the first epoch is due now
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        synchronized (lock) {
+            try {
+                while (pendingOffset == pending.length) {
+                    if (!open) throw new IOException("Transport closed");
+                    if (linkDropped) throw new IOException("Link dropped");
+                    byte[] responses = simulator.takeResponses();
+                    if (responses.length > 0) {
+                        setPending(responses);
+                        break;
+                    }
+                    if (epochLimit > 0 && simulator.getEpochCount() >= epochLimit) return -1;
+                    if (realTime) {
+                        // At the current rate, which a request may have just changed
+                        long epochNanos = simulator.getEpochMicros() * 1000;
+                        long waitNanos = lastEpochNanos + epochNanos - System.nanoTime();
+                        if (waitNanos > 0) {
+                            lock.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                            continue; // something may have changed while waiting
+                        }
+                        lastEpochNanos += epochNanos;
+                    }
+                    setPending(simulator.nextEpoch());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore the interrupted status
+                throw new InterruptedIOException();
+            }
+            int n = Math.min(length, pending.length - pendingOffset);
+            System.arraycopy(pending, pendingOffset, buffer, offset, n);
+            pendingOffset += n;
+            return n;
+        }
+    }
+
+    private void setPending(byte[] data) {
+        pending = data;
+        pendingOffset = 0;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        synchronized (lock) {
+            if (!open || linkDropped) throw new IOException("Transport not open");
+            simulator.onHostData(data, offset, length);
+            lock.notifyAll(); // a waiting read delivers the acknowledgement at once
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            open = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Make reads and writes fail until the transport is opened again, as if the device went out
+     * of range
+     */
+    public void dropLink() {
+        synchronized (lock) {
+            linkDropped = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Change the simulator's faults while the link is in use, see GpsSimulator.setFaults
+     *
+     * @param checksumErrorRate the fraction of sentences sent with a wrong checksum
+     * @param partialSentenceRate the fraction of sentences cut off part way
+     * @param dropoutRate the chance that a dropout starts at any epoch
+     * @param dropoutEpochs the number of epochs a dropout lasts
+     */
+    public void setFaults(double checksumErrorRate, double partialSentenceRate, double dropoutRate,
+                          int dropoutEpochs) {
+        synchronized (lock) {
+            simulator.setFaults(checksumErrorRate, partialSentenceRate, dropoutRate, dropoutEpochs);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GPS Simulator";
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * GpsTransport over a TCP connection.
+ *
+ * Useful for receivers bridged onto the network (for example NMEA-over-TCP) and for driving the
+ * streaming path from a simulator or a test harness on a build host.
+ *
+ */
+public class TcpTransport implements GpsTransport {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMs;
+    private final Object socketSync = new Object();
+    private Socket socket;
+    private volatile InputStream inStream;
+    private volatile OutputStream outStream;
+    private boolean closed;
+
+    /**
+     * Construct a TcpTransport
+     *
+     * @param host the host name or address to connect to
+     * @param port the TCP port to connect to
+     */
+    public TcpTransport(String host, int port) {
+        this(host, port, DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+
+    /**
+     * Construct a TcpTransport
+     *
+     * @param host the host name or address to connect to
+     * @param port the TCP port to connect to
+     * @param connectTimeoutMs how long open waits for the connection, 0 waits forever
+     */
+    public TcpTransport(String host, int port, int connectTimeoutMs) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    @Override
+    public void open() throws IOException {
+        Socket newSocket = new Socket();
+        synchronized (socketSync) {
+            closed = false;
+            socket = newSocket;
+        }
+        newSocket.setTcpNoDelay(true);
+        newSocket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+        synchronized (socketSync) {
+            if (closed) throw new IOException("Transport closed");
+            inStream = newSocket.getInputStream();
+            outStream = newSocket.getOutputStream();
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        InputStream in = inStream;
+        if (in == null) throw new IOException("Transport not open");
+        return in.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        OutputStream out = outStream;
+        if (out == null) throw new IOException("Transport not open");
+        out.write(data, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket oldSocket;
+        synchronized (socketSync) {
+            closed = true;
+            oldSocket = socket;
+            socket = null;
+            inStream = null;
+            outStream = null;
+        }
+        if (oldSocket != null) {
+            oldSocket.close(); // This will cause a blocked connect or read to throw
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.bad_elf.badelfgps.BadElfService.State;
+
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of BadElfDeviceSession's state machine over a LoopbackTransport: many threads calling
+ * connect, disconnect, sendData and getState while the link drops and reconnects never lose or
+ * skip a transition or deadlock, and the last configuration request is sent again after a
+ * reconnect.
+ *
+ */
+public class BadElfDeviceSessionTest {
+
+    private static final int THREADS = 8;
+    private static final int SWITCHERS = 2; // of the threads, the ones that connect and disconnect
+    private static final long STRESS_MS = 2000;
+    private static final int TIMEOUT_MS = 10000;
+
+    private static final GpsReconnectPolicy FAST_RECONNECT = new GpsReconnectPolicy(1, 5, 2.0, 0, 0);
+
+    private BadElfService service;
+    private BadElfDeviceSession session;
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final ConcurrentLinkedQueue<State> observed = new ConcurrentLinkedQueue<State>();
+
+    private final BadElfGpsConnectionObserver observer = new BadElfGpsConnectionObserver() {
+        @Override
+        public void onReady() {
+        }
+
+        @Override
+        public void onStateChanged(State newState) {
+            observed.add(newState);
+        }
+
+        @Override
+        public void onDataReceived(byte[] data) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        service = new BadElfService() {
+            @Override
+            public Object getSystemService(String name) {
+                return null; // no wake lock
+            }
+
+            @Override
+            void onSessionStarted(BadElfDeviceSession session) {
+                // there is no Android to start the service
+            }
+        };
+        session = service.openSession(transport);
+        session.setKeepaliveInterval(0);
+        session.addObserver(observer);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        try {
+            session.disconnect();
+        } catch (NotYetConnectedException ignore) {
+            // already idle
+        }
+        session.join();
+        session.removeObserver(observer);
+    }
+
+    @Test
+    public void configurationIsResentAfterReconnect() throws Exception {
+        session.setReconnectPolicy(FAST_RECONNECT);
+        session.connect();
+        awaitState(State.CONNECTED);
+
+        session.requestConfiguration(5, false);
+        byte[] request = takeWritten(BadElfPacket.MIN_LENGTH);
+        BadElfPacket packet = new BadElfPacket();
+        assertTrue(packet.decode(request, 0, request.length));
+        assertEquals(5, packet.findValue(BadElfPacket.TAG_RATE, -1));
+
+        // a request sent as a BadElfGpsConnection.Request replaces it
+        byte[] tenHz = BadElfGpsConnection.Request.TEN_HZ_NO_SATELLITES.data;
+        session.sendData(tenHz);
+        assertArrayEquals(tenHz, takeWritten(tenHz.length));
+
+        transport.close(); // the link drops
+        assertArrayEquals("resent after the reconnect", tenHz, takeWritten(tenHz.length));
+        assertEquals(State.CONNECTED, session.getState());
+        assertEquals(1, session.getReconnectCount());
+
+        session.disconnect();
+        session.join();
+        awaitObserved();
+        assertEquals(Arrays.asList(State.CONNECTING, State.CONNECTED, State.RECONNECTING, State.CONNECTED,
+                State.DISCONNECTING, State.IDLE), new ArrayList<State>(observed));
+    }
+
+    @Test
+    public void stressKeepsEveryTransition() throws Exception {
+        session.setReconnectPolicy(FAST_RECONNECT);
+        final long deadline = System.currentTimeMillis() + STRESS_MS;
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger sends = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final byte[] sentence = "$GPGGA,,,,,,0,00,,,,,,,*66\r\n".getBytes(Charset.forName("US-ASCII"));
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int seed = i;
+            final boolean switcher = i < SWITCHERS;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            try {
+                                if (switcher) {
+                                    // connect and disconnect a few milliseconds apart, so the
+                                    // link is up long enough to be dropped
+                                    Thread.sleep(random.nextInt(10));
+                                    if (random.nextBoolean()) {
+                                        session.connect();
+                                        connects.incrementAndGet();
+                                    } else {
+                                        session.disconnect();
+                                    }
+                                } else {
+                                    switch (random.nextInt(3)) {
+                                        case 0:
+                                            session.sendData(sentence);
+                                            sends.incrementAndGet();
+                                            break;
+                                        case 1:
+                                            session.requestConfiguration(1 + random.nextInt(10), random.nextBoolean());
+                                            sends.incrementAndGet();
+                                            break;
+                                        default:
+                                            if (session.getState() == null) fail("no state");
+                                            break;
+                                    }
+                                }
+                            } catch (AlreadyConnectedException ignore) {
+                                // connect while not Idle
+                            } catch (NotYetConnectedException ignore) {
+                                // disconnect while Idle, or sendData while not Connected
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }, "stress-" + i));
+        }
+        // drops the link now and then, so the session reconnects
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        Thread.sleep(random.nextInt(5));
+                        transport.close();
+                        transport.takeWrittenData();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }, "dropper"));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(STRESS_MS + TIMEOUT_MS);
+            assertFalse(thread.getName() + " deadlocked", thread.isAlive());
+        }
+        if (failure.get() != null) throw new AssertionError(failure.get());
+
+        try {
+            session.disconnect();
+        } catch (NotYetConnectedException ignore) {
+            // already idle
+        }
+        session.join();
+        awaitObserved();
+        assertEquals(State.IDLE, session.getState());
+
+        // every transition was seen, in order, and each one is one the state machine makes
+        State previous = State.IDLE;
+        int connecting = 0;
+        for (State state : observed) {
+            assertTrue(previous + " -> " + state, legalNext(previous).contains(state));
+            if (state == State.CONNECTING) connecting++;
+            previous = state;
+        }
+        assertEquals(State.IDLE, previous);
+        assertEquals(connects.get(), connecting);
+        assertTrue("never connected", connects.get() > 0);
+        assertTrue("never sent", sends.get() > 0);
+        assertTrue("never reconnected", session.getReconnectCount() > 0);
+
+        // and it still resends the last configuration after all that
+        observed.clear();
+        transport.takeWrittenData();
+        session.connect();
+        awaitState(State.CONNECTED);
+        session.requestConfiguration(7, true);
+        byte[] request = takeWritten(BadElfPacket.MIN_LENGTH);
+        transport.close();
+        assertArrayEquals("resent after the reconnect", request, takeWritten(request.length));
+    }
+
+    private static EnumSet<State> legalNext(State state) {
+        switch (state) {
+            case IDLE:          return EnumSet.of(State.CONNECTING);
+            case CONNECTING:    return EnumSet.of(State.CONNECTED, State.DISCONNECTING, State.IDLE);
+            case CONNECTED:     return EnumSet.of(State.RECONNECTING, State.DISCONNECTING, State.IDLE);
+            case RECONNECTING:  return EnumSet.of(State.CONNECTED, State.DISCONNECTING, State.IDLE);
+            case DISCONNECTING: return EnumSet.of(State.IDLE);
+            default:            throw new AssertionError(state);
+        }
+    }
+
+    /**
+     * Wait for the host to write a number of bytes to the transport, and take them
+     */
+    private byte[] takeWritten(int length) throws InterruptedException {
+        assertTrue("nothing written", transport.awaitWrittenData(length, TIMEOUT_MS));
+        return transport.takeWrittenData();
+    }
+
+    private void awaitState(State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (session.getState() != state) {
+            if (System.currentTimeMillis() >= deadline) fail("still " + session.getState());
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitObserved() {
+        assertTrue(session.getObserverQueue(observer).awaitEmpty(TIMEOUT_MS));
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of BadElfPacket and BadElfPacketEncoder: the standard requests encode to the bytes the
+ * SDK used to send as hex strings, packets decode back to what was encoded, and NmeaParser finds
+ * packets mixed in with sentences.
+ *
+ */
+public class BadElfPacketTest {
+
+    // The requests as they were hardcoded before the encoder, in BadElfGpsConnection.Request order
+    private static final String[] REQUEST_HEX = {
+            "24be001105010205310132043301640d0a",
+            "24be001104010206310232043301630d0a",
+            "24be001107010203310432113301540d0a",
+            "24be001106010204310532043301600d0a",
+            "24be001108010202310a320433015b0d0a",
+            "24be00110b0102ff310132043302630d0a",
+            "24be0011100102fa310232043302620d0a",
+            "24be0011120102f8310432043302600d0a",
+            "24be0011130102f73105320433025f0d0a",
+            "24be0011160102f4310a320433025a0d0a",
+    };
+
+    @Test
+    public void requestsEncodeToTheOriginalBytes() {
+        BadElfGpsConnection.Request[] requests = BadElfGpsConnection.Request.values();
+        assertEquals(REQUEST_HEX.length, requests.length);
+        for (int i = 0; i < requests.length; i++) {
+            assertArrayEquals(requests[i].name(), hex(REQUEST_HEX[i]), requests[i].data);
+        }
+    }
+
+    @Test
+    public void requestsRoundTrip() {
+        BadElfPacket packet = new BadElfPacket();
+        BadElfPacketEncoder encoder = new BadElfPacketEncoder();
+        for (BadElfGpsConnection.Request request : BadElfGpsConnection.Request.values()) {
+            byte[] data = request.data;
+            assertTrue(request.name(), packet.decode(data, 0, data.length));
+            assertEquals(data.length, packet.length());
+            assertEquals(BadElfPacket.CLASS_CONFIGURATION, packet.getMessageClass());
+            assertEquals(BadElfPacket.ID_CONFIGURATION, packet.getMessageId());
+            assertEquals(3, packet.getFieldCount());
+            assertEquals(request.rate, packet.findValue(BadElfPacket.TAG_RATE, -1));
+            assertEquals(request.includeSatellites ? BadElfPacket.SATELLITES_INCLUDE : BadElfPacket.SATELLITES_NONE,
+                    packet.findValue(BadElfPacket.TAG_SATELLITES, -1));
+
+            // encoding the decoded fields gives the same bytes again
+            encoder.encodeConfiguration(packet.getSequence(), packet.findValue(BadElfPacket.TAG_RATE, -1),
+                    packet.findValue(BadElfPacket.TAG_OPTIONS, -1), request.includeSatellites);
+            assertArrayEquals(request.name(), data, encoder.toByteArray());
+        }
+    }
+
+    @Test
+    public void anyRateAndFieldsRoundTrip() {
+        BadElfPacket packet = new BadElfPacket();
+        BadElfPacketEncoder encoder = new BadElfPacketEncoder();
+        for (int rate = 1; rate <= 255; rate++) {
+            int length = encoder.encodeConfiguration(rate * 7, rate, BadElfPacket.OPTIONS_DEFAULT, rate % 2 == 0);
+            assertTrue(packet.decode(encoder.getBuffer(), 0, length));
+            assertEquals((rate * 7) & 0xff, packet.getSequence());
+            assertEquals(rate, packet.findValue(BadElfPacket.TAG_RATE, -1));
+        }
+
+        encoder.begin(0x42, 0x7f, 0x01);
+        for (int tag = 0; tag < 100; tag++) {
+            encoder.addField(tag, 255 - tag);
+        }
+        int length = encoder.finish();
+        assertTrue(packet.decode(encoder.getBuffer(), 0, length));
+        assertEquals(0x7f, packet.getMessageClass());
+        assertEquals(100, packet.getFieldCount());
+        for (int field = 0; field < 100; field++) {
+            assertEquals(field, packet.getTag(field));
+            assertEquals(255 - field, packet.getValue(field));
+        }
+
+        // no payload, so no payload checksum
+        length = encoder.begin(1, 2, 3).finish();
+        assertEquals(BadElfPacket.MIN_LENGTH, length);
+        assertTrue(packet.decode(encoder.getBuffer(), 0, length));
+        assertEquals(0, packet.getFieldCount());
+    }
+
+    @Test
+    public void damagedPacketsAreRejected() {
+        BadElfPacket packet = new BadElfPacket();
+        byte[] data = BadElfGpsConnection.Request.TEN_HZ_NO_SATELLITES.data;
+        for (int i = 0; i < data.length; i++) {
+            byte[] damaged = data.clone();
+            damaged[i] ^= 0x01;
+            assertFalse("byte " + i, packet.decode(damaged, 0, damaged.length));
+        }
+        assertFalse("cut short", packet.decode(data, 0, data.length - 1));
+    }
+
+    @Test
+    public void parserFindsPacketsBetweenSentences() {
+        GpsSimulator simulator = new GpsSimulator(1, 1464698096000L, 37.3349, -122.0090, 30,
+                GpsSimulator.randomWalk(5, 2));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        BadElfGpsConnection.Request[] requests = BadElfGpsConnection.Request.values();
+        for (BadElfGpsConnection.Request request : requests) {
+            byte[] epoch = simulator.nextEpoch();
+            stream.write(epoch, 0, epoch.length);
+            stream.write(request.data, 0, request.data.length);
+        }
+        byte[] data = stream.toByteArray();
+
+        final int[] ggaCount = new int[1];
+        final List<byte[]> packets = new ArrayList<byte[]>();
+        NmeaParser parser = new NmeaParser(new NmeaParser.ListenerAdapter() {
+            @Override
+            public void onGga(NmeaGga gga) {
+                ggaCount[0]++;
+            }
+        });
+        parser.setPacketListener(new NmeaParser.PacketListener() {
+            @Override
+            public void onPacket(BadElfPacket packet) {
+                byte[] copy = new byte[packet.length()];
+                packet.copyTo(copy, 0);
+                packets.add(copy);
+            }
+        });
+
+        // one byte at a time, so every packet and sentence is split across reads
+        for (int i = 0; i < data.length; i++) {
+            parser.parse(data, i, 1);
+        }
+
+        assertEquals(requests.length, ggaCount[0]);
+        assertEquals(requests.length, packets.size());
+        for (int i = 0; i < requests.length; i++) {
+            assertArrayEquals(requests[i].data, packets.get(i));
+        }
+        assertEquals(0, parser.getFramingErrorCount());
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
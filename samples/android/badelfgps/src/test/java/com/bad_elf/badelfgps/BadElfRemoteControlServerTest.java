@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Load tests of BadElfRemoteControlServer on loopback: hundreds of clients are served at once,
+ * a client that stops reading is closed without holding up the others, and stopping the server
+ * closes every client.
+ *
+ */
+public class BadElfRemoteControlServerTest {
+
+    private static final int CLIENTS = 300;
+    private static final int ROUND_TRIPS = 20;
+    private static final int TIMEOUT_MS = 20000;
+
+    private BadElfRemoteControlServer server;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) server.stop();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void hundredsOfClientsAreServedAtOnce() throws Exception {
+        startEchoServer(BadElfRemoteControlServer.DEFAULT_WRITE_BUFFER_BYTES);
+
+        // every client connects before any of them is echoed, so they are all connected at once.
+        // They are counted before the barrier lets any of them go on and close.
+        final int[] connectedCount = new int[1];
+        final CyclicBarrier connected = new CyclicBarrier(CLIENTS + 1, new Runnable() {
+            @Override
+            public void run() {
+                connectedCount[0] = server.getClientCount();
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<String>> greetings = new ArrayList<Future<String>>();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                final int client = i;
+                greetings.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        Socket socket = connect();
+                        BufferedReader in = reader(socket);
+                        String greeting = in.readLine();
+                        connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        OutputStream out = socket.getOutputStream();
+                        for (int trip = 0; trip < ROUND_TRIPS; trip++) {
+                            String line = "client " + client + " trip " + trip;
+                            out.write((line + "\r\n").getBytes(BadElfRemoteControlServer.US_ASCII));
+                            assertEquals(line, in.readLine());
+                        }
+                        socket.close();
+                        return greeting;
+                    }
+                }));
+            }
+            connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertEquals(CLIENTS, connectedCount[0]);
+
+            Set<String> distinct = new HashSet<String>();
+            for (Future<String> greeting : greetings) {
+                distinct.add(greeting.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            }
+            for (int number = 1; number <= CLIENTS; number++) {
+                assertTrue("greeting #" + number, distinct.contains("Hello from Server, you are #" + number));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        awaitClientCount(0);
+    }
+
+    @Test
+    public void slowClientDoesNotHoldUpOthers() throws Exception {
+        final int writeBufferBytes = 8 * 1024;
+        startEchoServer(writeBufferBytes);
+
+        Socket slow = new Socket();
+        slow.setReceiveBufferSize(4 * 1024);
+        slow.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        sockets.add(slow);
+        awaitClientCount(1);
+        final Socket fast = connect();
+        awaitClientCount(2);
+        BadElfRemoteControlServer.Client[] clients = server.getClients();
+        BadElfRemoteControlServer.Client slowClient = clients[0];
+        BadElfRemoteControlServer.Client fastClient = clients[1];
+
+        // the fast client reads everything sent to it on its own thread
+        final long[] received = new long[1];
+        Thread fastReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8 * 1024];
+                try {
+                    InputStream in = fast.getInputStream();
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        received[0] += n;
+                    }
+                } catch (IOException ignore) {
+                    // the test fails on the count
+                }
+            }
+        }, "fastReader");
+        fastReader.start();
+
+        // send to both until the slow client, which never reads, is closed for falling behind
+        byte[] data = new byte[1024];
+        long sentToFast = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!slowClient.isClosed()) {
+            assertTrue("slow client was never closed", System.currentTimeMillis() < deadline);
+            slowClient.send(data, 0, data.length);
+            while (fastClient.getPendingBytes() > writeBufferBytes - data.length) {
+                assertTrue("fast client stalled", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            assertTrue(fastClient.send(data, 0, data.length));
+            sentToFast += data.length;
+        }
+        assertTrue(slowClient.getOverflowCount() > 0);
+        awaitClientCount(1);
+
+        // the fast client still gets everything, and more
+        for (int i = 0; i < 100; i++) {
+            while (fastClient.getPendingBytes() > writeBufferBytes - data.length) {
+                Thread.sleep(1);
+            }
+            assertTrue(fastClient.send(data, 0, data.length));
+            sentToFast += data.length;
+        }
+        fastClient.closeAfterWrite();
+        fastReader.join(TIMEOUT_MS);
+        assertFalse(fastReader.isAlive());
+        assertEquals(0, fastClient.getOverflowCount());
+        assertEquals(sentToFast + greetingLength(2), received[0]);
+        assertEquals(received[0], fastClient.getBytesWritten());
+    }
+
+    @Test
+    public void stopClosesEveryClient() throws Exception {
+        startEchoServer(BadElfRemoteControlServer.DEFAULT_WRITE_BUFFER_BYTES);
+        List<BufferedReader> readers = new ArrayList<BufferedReader>();
+        for (int i = 0; i < CLIENTS; i++) {
+            BufferedReader in = reader(connect());
+            assertEquals("Hello from Server, you are #" + (i + 1), in.readLine());
+            readers.add(in);
+        }
+        assertEquals(CLIENTS, server.getClientCount());
+
+        server.stop();
+        assertEquals(0, server.getClientCount());
+        for (BufferedReader in : readers) {
+            assertEndOfStream(in);
+        }
+        server.stop(); // stopping again does nothing
+    }
+
+    @Test
+    public void controllerStopClosesItsClients() throws Exception {
+        BadElfRemoteController controller = new BadElfRemoteController();
+        int port = controller.start(0);
+        assertTrue(port > 0);
+        assertEquals(port, controller.start(0)); // already started
+        try {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            sockets.add(socket);
+            socket.setSoTimeout(TIMEOUT_MS);
+            BufferedReader in = reader(socket);
+            assertEquals("Hello from Server, you are #1", in.readLine());
+            socket.getOutputStream().write("PING\n".getBytes(BadElfRemoteControlServer.US_ASCII));
+            assertEquals("OK", in.readLine());
+
+            controller.stop();
+            assertEndOfStream(in);
+        } finally {
+            controller.stop();
+        }
+    }
+
+    private void startEchoServer(int writeBufferBytes) throws IOException {
+        server = new BadElfRemoteControlServer(0, writeBufferBytes) {
+            @Override
+            protected void onClientData(Client client, ByteBuffer data) {
+                client.send(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            }
+        };
+        server.start();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(TIMEOUT_MS);
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), BadElfRemoteControlServer.US_ASCII));
+    }
+
+    private static int greetingLength(int number) {
+        return ("Hello from Server, you are #" + number + "\r\n").length();
+    }
+
+    private static void assertEndOfStream(BufferedReader in) throws IOException {
+        try {
+            assertNull(in.readLine());
+        } catch (SocketException e) {
+            // reset by the server, which is closed as well
+        }
+    }
+
+    private void awaitClientCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getClientCount() != count) {
+            if (System.currentTimeMillis() >= deadline) {
+                fail("expected " + count + " clients, have " + server.getClientCount());
+            }
+            Thread.sleep(1);
+        }
+    }
+}
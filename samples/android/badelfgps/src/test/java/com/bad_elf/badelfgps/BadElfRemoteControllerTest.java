@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * End-to-end tests of BadElfRemoteController's command protocol: commands sent over TCP drive
+ * BadElfService, whose session talks to each device through a LoopbackTransport, and the $BE
+ * requests the device receives are checked.
+ *
+ */
+public class BadElfRemoteControllerTest {
+
+    private static final int TIMEOUT_MS = 10000;
+
+    private final List<BadElfDevice> devices = Arrays.asList(device("Bad Elf GPS Pro"), device("Bad Elf GNSS Surveyor"));
+    private final Map<BadElfDevice, LoopbackTransport> transports = new HashMap<BadElfDevice, LoopbackTransport>();
+    private BadElfService service;
+    private BadElfRemoteController controller;
+    private Socket socket;
+    private BufferedReader in;
+
+    @Before
+    public void setUp() throws IOException {
+        for (BadElfDevice device : devices) {
+            transports.put(device, new LoopbackTransport());
+        }
+        service = new BadElfService() {
+            @Override
+            public Object getSystemService(String name) {
+                return null; // no wake lock
+            }
+
+            @Override
+            void onSessionStarted(BadElfDeviceSession session) {
+                // there is no Android to start the service
+            }
+
+            @Override
+            protected void setBadElfDevice(BadElfDevice badElfDevice) {
+                setTransport(transports.get(badElfDevice)); // instead of Bluetooth
+            }
+        };
+        service.getDefaultSession().setKeepaliveInterval(0);
+
+        controller = new BadElfRemoteController();
+        controller.setDeviceList(devices);
+        service.setBadElfRemoteController(controller);
+        int port = controller.start(0);
+        assertTrue(port > 0);
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(TIMEOUT_MS);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), BadElfRemoteControlServer.US_ASCII));
+        assertEquals("Hello from Server, you are #1", in.readLine());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        controller.stop();
+        service.setBadElfRemoteController(null);
+        try {
+            service.getDefaultSession().disconnect();
+        } catch (NotYetConnectedException ignore) {
+            // already idle
+        }
+        service.getDefaultSession().join();
+    }
+
+    @Test
+    public void listSelectConnectAndChangeRate() throws Exception {
+        assertEquals(Arrays.asList("DEVICE 0 Bad Elf GPS Pro", "DEVICE 1 Bad Elf GNSS Surveyor", "OK 2"),
+                command("list", 3));
+        assertEquals(Arrays.asList("ERR no device 2"), command("SELECT 2", 1));
+        assertEquals(Arrays.asList("OK Bad Elf GNSS Surveyor"), command("SELECT 1", 1));
+        assertEquals(Arrays.asList("OK"), command("CONNECT", 1));
+        awaitState("CONNECTED");
+
+        LoopbackTransport surveyor = transports.get(devices.get(1));
+        assertEquals(Arrays.asList("OK"), command("RATE 5 NOSATS", 1));
+        assertConfiguration(takeLastPacket(surveyor), 5, false);
+        assertEquals(Arrays.asList("OK"), command("rate 10 sats", 1));
+        assertConfiguration(takeLastPacket(surveyor), 10, true);
+
+        assertEquals(Arrays.asList("OK"), command("DISCONNECT", 1));
+        awaitState("IDLE");
+
+        // the other device, through its own transport
+        assertEquals(Arrays.asList("OK Bad Elf GPS Pro"), command("SELECT 0", 1));
+        assertEquals(Arrays.asList("OK"), command("CONNECT", 1));
+        awaitState("CONNECTED");
+        assertEquals(Arrays.asList("OK"), command("RATE 1", 1));
+        assertConfiguration(takeLastPacket(transports.get(devices.get(0))), 1, false);
+        assertEquals(0, surveyor.takeWrittenData().length);
+    }
+
+    @Test
+    public void pipelinedCommandsAreAnsweredInOrder() throws Exception {
+        command("SELECT 0", 1);
+        command("CONNECT", 1);
+        awaitState("CONNECTED");
+
+        // one write, answered in one batch in the same order
+        send("PING\nRATE 2\r\nSELECT 9\nRATE 4 NOSATS\r\nBOGUS\nRATE\nRATE 8 MAYBE\nCONNECT\n\nSTATE\n");
+        assertEquals(Arrays.asList(
+                "OK",
+                "OK",
+                "ERR no device 9",
+                "OK",
+                "ERR unknown command BOGUS",
+                "ERR missing argument",
+                "ERR MAYBE",
+                "ERR AlreadyConnectedException",
+                "OK CONNECTED"), readLines(9));
+
+        // the second rate request may replace the first before it is written, but it is the
+        // last one the device receives
+        assertConfiguration(takeLastPacket(transports.get(devices.get(0))), 4, false);
+
+        // a command split across writes waits for its line end
+        send("PI");
+        send("NG\r\nQUIT\nPING\n");
+        assertEquals(Arrays.asList("OK", "OK"), readLines(2));
+        assertNull("closed after QUIT", in.readLine());
+    }
+
+    @Test
+    public void commandsNeedTheService() throws Exception {
+        service.setBadElfRemoteController(null);
+        assertEquals(Arrays.asList("ERR no service", "ERR no service",
+                "DEVICE 0 Bad Elf GPS Pro", "DEVICE 1 Bad Elf GNSS Surveyor", "OK 2"), command("STATE\nCONNECT\nLIST", 5));
+    }
+
+    private static BadElfDevice device(final String name) {
+        return new BadElfDevice((BluetoothDevice) null) {
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    private void send(String text) throws IOException {
+        socket.getOutputStream().write(text.getBytes(BadElfRemoteControlServer.US_ASCII));
+    }
+
+    private List<String> command(String text, int responses) throws IOException {
+        send(text + "\r\n");
+        return readLines(responses);
+    }
+
+    private List<String> readLines(int count) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            lines.add(in.readLine());
+        }
+        return lines;
+    }
+
+    private void awaitState(String state) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!command("STATE", 1).get(0).equals("OK " + state)) {
+            if (System.currentTimeMillis() >= deadline) fail("never " + state);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Wait for the session to write everything it was asked to send, and decode the last packet
+     * written to a transport
+     */
+    private BadElfPacket takeLastPacket(LoopbackTransport transport) {
+        assertTrue(service.getDefaultSession().getWriter().awaitEmpty(TIMEOUT_MS));
+        byte[] data = transport.takeWrittenData();
+        final List<BadElfPacket> packets = new ArrayList<BadElfPacket>();
+        NmeaParser parser = new NmeaParser(new NmeaParser.ListenerAdapter() {
+        });
+        parser.setPacketListener(new NmeaParser.PacketListener() {
+            @Override
+            public void onPacket(BadElfPacket packet) {
+                BadElfPacket copy = new BadElfPacket();
+                byte[] bytes = new byte[packet.length()];
+                packet.copyTo(bytes, 0);
+                assertTrue(copy.decode(bytes, 0, bytes.length));
+                packets.add(copy);
+            }
+        });
+        parser.parse(data, 0, data.length);
+        assertTrue("no packet written", packets.size() > 0);
+        return packets.get(packets.size() - 1);
+    }
+
+    private static void assertConfiguration(BadElfPacket packet, int rate, boolean includeSatellites) {
+        assertEquals(BadElfPacket.CLASS_CONFIGURATION, packet.getMessageClass());
+        assertEquals(BadElfPacket.ID_CONFIGURATION, packet.getMessageId());
+        assertEquals(rate, packet.findValue(BadElfPacket.TAG_RATE, -1));
+        assertEquals(includeSatellites ? BadElfPacket.SATELLITES_INCLUDE : BadElfPacket.SATELLITES_NONE,
+                packet.findValue(BadElfPacket.TAG_SATELLITES, -1));
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of GpsEpochAssembler with GGA, RMC and GST sentences fed in directly: the types an
+ * epoch needs are learned from the previous one, missing sentences, stragglers, timeouts, the
+ * date carried over to epochs without an RMC, and resuming part way through a stream.
+ *
+ */
+public class GpsEpochAssemblerTest {
+
+    private static final int GGA = NmeaParser.TYPE_GGA;
+    private static final int RMC = NmeaParser.TYPE_RMC;
+    private static final int GST = NmeaParser.TYPE_GST;
+    private static final int DATE = 20160704;
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private final List<GpsFix> epochs = new ArrayList<GpsFix>();
+    private GpsEpochAssembler assembler;
+
+    @Before
+    public void setUp() {
+        assembler = new GpsEpochAssembler(new GpsEpochAssembler.Listener() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                GpsFix copy = new GpsFix();
+                copy.copyFrom(fix);
+                epochs.add(copy);
+            }
+        });
+    }
+
+    @Test
+    public void learnsTheTypesFromThePreviousEpoch() {
+        // nothing is known about the first epoch, so it waits for the time to move on
+        gga(1000);
+        rmc(1000, DATE);
+        gst(1000);
+        assertEquals(0, epochs.size());
+        gga(2000);
+        assertEpoch(0, 1000, GGA | RMC | GST);
+        assertEquals(1, assembler.getIncompleteEpochCount());
+
+        // the second completes with its last sentence
+        rmc(2000, DATE);
+        assertEquals(1, epochs.size());
+        gst(2000);
+        assertEpoch(1, 2000, GGA | RMC | GST);
+
+        // the receiver stops sending GST: the epoch waits for it until the next one starts
+        gga(3000);
+        rmc(3000, DATE);
+        assertEquals(2, epochs.size());
+        gga(4000);
+        assertEpoch(2, 3000, GGA | RMC);
+        assertEquals(2, assembler.getIncompleteEpochCount());
+
+        // and from then on no GST is expected
+        rmc(4000, DATE);
+        assertEpoch(3, 4000, GGA | RMC);
+        assertEquals(4, assembler.getEpochCount());
+        assertEquals(2, assembler.getIncompleteEpochCount());
+        assertEquals(0, assembler.getLateSentenceCount());
+    }
+
+    @Test
+    public void lateSentencesAreDroppedAndExpectedNextTime() {
+        gga(1000);
+        rmc(1000, DATE);
+        gga(2000);
+        rmc(2000, DATE);
+        assertEpoch(1, 2000, GGA | RMC);
+
+        // a GST that comes after its epoch completed
+        gst(2000);
+        assertEquals(2, epochs.size());
+        assertEquals(1, assembler.getLateSentenceCount());
+
+        // is waited for in the next epoch
+        gga(3000);
+        rmc(3000, DATE);
+        assertEquals(2, epochs.size());
+        gst(3000);
+        assertEpoch(2, 3000, GGA | RMC | GST);
+        assertEquals(1, assembler.getIncompleteEpochCount());
+
+        // sentences without a time are ignored
+        gga(-1);
+        assertEquals(3, epochs.size());
+        assertEquals(1, assembler.getLateSentenceCount());
+    }
+
+    @Test
+    public void requiredTypesOverrideLearning() {
+        assembler.setRequiredTypes(GGA | GST | NmeaParser.TYPE_GSA);
+        gga(1000);
+        rmc(1000, DATE);
+        assertEquals(0, epochs.size());
+        gst(1000);
+        assertEpoch(0, 1000, GGA | RMC | GST);
+        assertEquals(0, assembler.getIncompleteEpochCount());
+    }
+
+    @Test
+    public void checkTimeoutEmitsAStalledEpoch() {
+        assembler.setTimeoutMillis(100);
+        long start = 5000 * NANOS_PER_MS;
+        gga(1000, start);
+        rmc(1000, DATE, start + 20 * NANOS_PER_MS);
+        gga(2000, start + 1000 * NANOS_PER_MS);
+        assertEpoch(0, 1000, GGA | RMC);
+        assertEquals(start, epochs.get(0).getReceivedNanos());
+
+        // the RMC never comes
+        assembler.checkTimeout(start + 1099 * NANOS_PER_MS);
+        assertEquals(1, epochs.size());
+        assembler.checkTimeout(start + 1100 * NANOS_PER_MS);
+        assertEpoch(1, 2000, GGA);
+        assertEquals(start + 1000 * NANOS_PER_MS, epochs.get(1).getReceivedNanos());
+        assertEquals(2, assembler.getIncompleteEpochCount());
+
+        // nothing pending
+        assembler.checkTimeout(start + 10000 * NANOS_PER_MS);
+        assertEquals(2, epochs.size());
+    }
+
+    @Test
+    public void dateCarriesOverUntilMidnight() {
+        assembler.setRequiredTypes(GGA);
+        int beforeMidnight = 86398000;
+        rmc(beforeMidnight, DATE);
+        gga(beforeMidnight);
+        assertEquals(DATE, epochs.get(0).getDate());
+
+        // no RMC, the same day
+        gga(beforeMidnight + 1000);
+        assertEquals(DATE, epochs.get(1).getDate());
+        assertTrue(epochs.get(1).getUtcMillis() > epochs.get(0).getUtcMillis());
+
+        // past midnight the date is unknown until the next RMC
+        gga(0);
+        assertEquals(-1, epochs.get(2).getDate());
+        assertEquals(-1, epochs.get(2).getUtcMillis());
+        rmc(1000, DATE + 1);
+        gga(1000);
+        assertEquals(DATE + 1, epochs.get(3).getDate());
+
+        // an RMC without a date
+        rmc(2000, -1);
+        gga(2000);
+        assertEquals(DATE + 1, epochs.get(4).getDate());
+    }
+
+    @Test
+    public void resumeContinuesAfterTheLastEpoch() {
+        gga(1000); // dropped by resume
+        assembler.resume(5000, GGA | RMC, DATE, 4000);
+        assertEquals(0, epochs.size());
+
+        // a sentence of the epoch that was already emitted
+        gga(5000);
+        assertEquals(1, assembler.getLateSentenceCount());
+
+        // the next one completes with the types of the last one, on the same date
+        gga(6000);
+        rmc(6000, -1);
+        assertEpoch(0, 6000, GGA | RMC);
+        assertEquals(DATE, epochs.get(0).getDate());
+        assertEquals(0, assembler.getIncompleteEpochCount());
+    }
+
+    @Test
+    public void flushAndReset() {
+        gga(1000);
+        rmc(1000, DATE);
+        assembler.flush();
+        assertEpoch(0, 1000, GGA | RMC);
+        assembler.flush(); // nothing pending
+        assertEquals(1, epochs.size());
+
+        // reset drops the pending epoch and forgets the types and the date
+        gga(2000);
+        assembler.reset();
+        assembler.flush();
+        assertEquals(1, epochs.size());
+        gga(3000);
+        gga(4000);
+        assertEpoch(1, 3000, GGA);
+        assertEquals(-1, epochs.get(1).getDate());
+    }
+
+    private void assertEpoch(int index, int timeOfDay, int types) {
+        assertTrue("no epoch " + index, epochs.size() > index);
+        GpsFix fix = epochs.get(index);
+        assertEquals(timeOfDay, fix.getTimeOfDay());
+        assertEquals(types, fix.getSentenceTypes());
+    }
+
+    private void gga(int timeOfDay) {
+        gga(timeOfDay, 0);
+    }
+
+    private void gga(int timeOfDay, long receivedNanos) {
+        NmeaGga gga = new NmeaGga();
+        gga.timeOfDay = timeOfDay;
+        gga.latitude = 37.3349;
+        gga.longitude = -122.0090;
+        gga.quality = 1;
+        gga.receivedNanos = receivedNanos;
+        assembler.onGga(gga);
+    }
+
+    private void rmc(int timeOfDay, int date) {
+        rmc(timeOfDay, date, 0);
+    }
+
+    private void rmc(int timeOfDay, int date, long receivedNanos) {
+        NmeaRmc rmc = new NmeaRmc();
+        rmc.timeOfDay = timeOfDay;
+        rmc.date = date;
+        rmc.valid = true;
+        rmc.receivedNanos = receivedNanos;
+        assembler.onRmc(rmc);
+    }
+
+    private void gst(int timeOfDay) {
+        NmeaGst gst = new NmeaGst();
+        gst.timeOfDay = timeOfDay;
+        gst.latitudeError = 1.5;
+        assembler.onGst(gst);
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of GpsKalmanFilter on synthetic tracks: noisy fixes along a straight line converge on
+ * the true position and velocity with less error than the fixes, a clean track is followed as
+ * the origin moves and across the antimeridian, and the filter starts over after gaps, when
+ * time goes backwards and after reset, but not at midnight.
+ *
+ */
+public class GpsKalmanFilterTest {
+
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final double METERS_PER_SECOND_PER_KNOT = 1852.0 / 3600;
+    private static final double LATITUDE = 37.3349;
+    private static final double LONGITUDE = -122.0090;
+
+    private final GpsKalmanFilter filter = new GpsKalmanFilter();
+    private final GpsFix smoothed = new GpsFix();
+
+    @Test
+    public void convergesOnAStraightLine() {
+        double improvement = smoothStraightLine(filter);
+        assertTrue("improvement " + improvement, improvement < 0.75);
+        assertEquals(300, filter.getFixCount());
+        assertEquals(1, filter.getResetCount());
+    }
+
+    @Test
+    public void lessAccelerationNoiseSmoothsMore() {
+        GpsKalmanFilter steady = new GpsKalmanFilter();
+        steady.setAccelerationNoise(0.1, 0.1);
+        double improvement = smoothStraightLine(steady);
+        assertTrue("improvement " + improvement, improvement < 0.4);
+        assertTrue(improvement < smoothStraightLine(filter));
+    }
+
+    @Test
+    public void followsTheOriginAcrossTheAntimeridian() {
+        // 50 m/s east, along the equator, for 30 km past the antimeridian
+        double speed = 50;
+        double start = 179.9;
+        for (int i = 0; i < 1000; i++) {
+            double longitude = start + speed * i / METERS_PER_DEGREE;
+            if (longitude > 180) longitude -= 360;
+            GpsFix fix = fix(i * 1000, 0, longitude);
+            fix.latitudeError = 0.5;
+            fix.longitudeError = 0.5;
+            assertTrue(filter.filter(fix, smoothed));
+            assertTrue(smoothed.longitude >= -180 && smoothed.longitude <= 180);
+            if (i >= 10) {
+                double error = smoothed.longitude - longitude;
+                if (error > 180) error -= 360; else if (error < -180) error += 360;
+                assertEquals("fix " + i, 0, error * METERS_PER_DEGREE, 0.5);
+                assertEquals(0, smoothed.latitude * METERS_PER_DEGREE, 0.5);
+                assertEquals(90, smoothed.course, 1);
+            }
+        }
+        assertTrue(smoothed.longitude < -179.6);
+        assertEquals(1, filter.getResetCount());
+    }
+
+    @Test
+    public void startsOverAfterGapsAndReset() {
+        filter.filter(fix(1000, LATITUDE, LONGITUDE), smoothed);
+        assertEquals(1, filter.getResetCount());
+        filter.filter(fix(2000, LATITUDE + 0.0001, LONGITUDE), smoothed);
+        filter.filter(fix(2000 + GpsKalmanFilter.MAX_GAP_MS, LATITUDE + 0.0002, LONGITUDE), smoothed);
+        assertEquals(1, filter.getResetCount());
+
+        // a gap that is too long: the filter starts at the fix, not moving
+        GpsFix fix = fix(3001 + 2 * GpsKalmanFilter.MAX_GAP_MS, LATITUDE + 0.01, LONGITUDE + 0.01);
+        filter.filter(fix, smoothed);
+        assertEquals(2, filter.getResetCount());
+        assertStartedAt(fix);
+
+        // time going backwards, or repeating
+        fix = fix(500, LATITUDE, LONGITUDE);
+        filter.filter(fix, smoothed);
+        assertEquals(3, filter.getResetCount());
+        filter.filter(fix, smoothed);
+        assertEquals(4, filter.getResetCount());
+
+        // reset
+        filter.filter(fix(1500, LATITUDE + 0.0001, LONGITUDE), smoothed);
+        assertEquals(4, filter.getResetCount());
+        filter.reset();
+        fix = fix(2500, LATITUDE - 0.001, LONGITUDE);
+        filter.filter(fix, smoothed);
+        assertEquals(5, filter.getResetCount());
+        assertStartedAt(fix);
+
+        // midnight is not a gap
+        filter.filter(fix(86399000, LATITUDE, LONGITUDE), smoothed);
+        assertEquals(6, filter.getResetCount());
+        filter.filter(fix(0, LATITUDE, LONGITUDE), smoothed);
+        assertEquals(6, filter.getResetCount());
+        assertEquals(10, filter.getFixCount());
+    }
+
+    @Test
+    public void ignoresFixesWithoutPositionOrTime() {
+        GpsFix noTime = fix(1000, LATITUDE, LONGITUDE);
+        noTime.timeOfDay = -1;
+        assertFalse(filter.filter(noTime, smoothed));
+        assertFalse(filter.filter(new GpsFix(), smoothed));
+        assertEquals(-1, smoothed.getTimeOfDay());
+        assertEquals(0, filter.getFixCount());
+        assertEquals(0, filter.getResetCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void accelerationNoiseMustBePositive() {
+        filter.setAccelerationNoise(1, Double.NaN);
+    }
+
+    /**
+     * Filter 300 noisy fixes along a straight line, 5 m/s north and 10 m/s east with 3 m of
+     * noise on each axis, and check the speed, course and errors the filter reports once it has
+     * settled
+     *
+     * @return the RMS error of the smoothed positions over that of the fixes
+     */
+    private double smoothStraightLine(GpsKalmanFilter filter) {
+        double north = 5, east = 10, sigma = 3;
+        double metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+        Random random = new Random(1);
+        int fixes = 300, settle = 30;
+        double fixSquares = 0, smoothedSquares = 0, speeds = 0, courses = 0;
+        for (int i = 0; i < fixes; i++) {
+            double trueNorth = north * i, trueEast = east * i;
+            GpsFix fix = fix(i * 1000,
+                    LATITUDE + (trueNorth + sigma * random.nextGaussian()) / METERS_PER_DEGREE,
+                    LONGITUDE + (trueEast + sigma * random.nextGaussian()) / metersPerDegreeLongitude);
+            fix.latitudeError = sigma;
+            fix.longitudeError = sigma;
+            assertTrue(filter.filter(fix, smoothed));
+            if (i < settle) continue;
+
+            double fixError = distance(fix, trueNorth, trueEast, metersPerDegreeLongitude);
+            double smoothedError = distance(smoothed, trueNorth, trueEast, metersPerDegreeLongitude);
+            fixSquares += fixError * fixError;
+            smoothedSquares += smoothedError * smoothedError;
+            speeds += smoothed.speedKnots * METERS_PER_SECOND_PER_KNOT;
+            courses += smoothed.course;
+            assertTrue(smoothed.latitudeError < sigma && smoothed.longitudeError < sigma);
+            assertEquals(Math.hypot(north, east), smoothed.speedKnots * METERS_PER_SECOND_PER_KNOT, 2.5);
+            assertEquals(Math.toDegrees(Math.atan2(east, north)), smoothed.course, 15);
+        }
+        int settled = fixes - settle;
+        assertEquals(Math.hypot(north, east), speeds / settled, 0.2);
+        assertEquals(Math.toDegrees(Math.atan2(east, north)), courses / settled, 1);
+
+        // the error the filter reports is about the error it makes
+        double smoothedRms = Math.sqrt(smoothedSquares / settled);
+        assertEquals(smoothedRms, Math.hypot(smoothed.latitudeError, smoothed.longitudeError), smoothedRms / 2);
+        return smoothedRms / Math.sqrt(fixSquares / settled);
+    }
+
+    private void assertStartedAt(GpsFix fix) {
+        assertEquals(fix.latitude, smoothed.latitude, 1e-9);
+        assertEquals(fix.longitude, smoothed.longitude, 1e-9);
+        assertEquals(fix.altitude, smoothed.altitude, 1e-9);
+        assertEquals(0, smoothed.speedKnots, 0);
+        assertEquals(fix.hdop * GpsKalmanFilter.UERE_METERS / Math.sqrt(2), smoothed.latitudeError, 1e-9);
+    }
+
+    private static GpsFix fix(long timeOfDay, double latitude, double longitude) {
+        GpsFix fix = new GpsFix();
+        fix.timeOfDay = (int) timeOfDay;
+        fix.latitude = latitude;
+        fix.longitude = longitude;
+        fix.altitude = 30;
+        fix.quality = 1;
+        fix.hdop = 1.2;
+        return fix;
+    }
+
+    private static double distance(GpsFix fix, double north, double east, double metersPerDegreeLongitude) {
+        return Math.hypot((fix.latitude - LATITUDE) * METERS_PER_DEGREE - north,
+                (fix.longitude - LONGITUDE) * metersPerDegreeLongitude - east);
+    }
+}
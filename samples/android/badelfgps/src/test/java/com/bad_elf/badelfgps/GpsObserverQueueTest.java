@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of GpsObserverQueue's overflow policies while the observer is held up: BLOCK makes the
+ * reading thread wait, DROP_OLDEST drops and counts the oldest items, and COALESCE_LATEST_FIX
+ * keeps the latest item of each type without delivering it ahead of what was queued or posted
+ * after the item it replaced.
+ *
+ */
+public class GpsObserverQueueTest {
+
+    private static final int CAPACITY = 4;
+    private static final int TIMEOUT_MS = 10000;
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> delivered = new ArrayList<String>();
+    private GpsObserverQueue queue;
+
+    // Holds up the delivery thread on the first item, GGA 0, until release
+    private final BadElfGpsFixObserver observer = new BadElfGpsFixAdapter() {
+        @Override
+        public void onFix(NmeaGga gga) {
+            if (gga.getTimeOfDay() == 0) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            add("GGA " + gga.getTimeOfDay());
+        }
+
+        @Override
+        public void onNavigation(NmeaRmc rmc) {
+            add("RMC " + rmc.getTimeOfDay());
+        }
+    };
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (queue != null) queue.stop();
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception {
+        start(GpsObserverQueue.OverflowPolicy.BLOCK);
+        final int items = CAPACITY + 3;
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= items; i++) {
+                    gga(i);
+                }
+            }
+        }, "reader");
+        reader.start();
+
+        // the reader fills the queue and waits
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (reader.getState() != Thread.State.WAITING || queue.getDepth() < CAPACITY) {
+            assertTrue("the reader never waited", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(CAPACITY, queue.getDepth());
+        assertEquals(CAPACITY + 1, queue.getEnqueuedCount());
+
+        release.countDown();
+        reader.join(TIMEOUT_MS);
+        assertFalse(reader.isAlive());
+        assertTrue(queue.awaitEmpty(TIMEOUT_MS));
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i <= items; i++) {
+            expected.add("GGA " + i);
+        }
+        assertEquals(expected, delivered());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(CAPACITY, queue.getMaxDepth());
+    }
+
+    @Test
+    public void dropOldestCountsDrops() throws Exception {
+        start(GpsObserverQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 1; i <= CAPACITY + 3; i++) {
+            gga(i);
+        }
+        queue.post(event("event"));
+        assertEquals(CAPACITY, queue.getDepth());
+        assertEquals(3, queue.getDroppedCount());
+
+        release.countDown();
+        assertTrue(queue.awaitEmpty(TIMEOUT_MS));
+        assertEquals(Arrays.asList("GGA 0", "GGA 4", "GGA 5", "GGA 6", "GGA 7", "event"), delivered());
+        assertEquals(5, queue.getDeliveredCount());
+        assertEquals(0, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void coalesceKeepsTheLatestInOrder() throws Exception {
+        start(GpsObserverQueue.OverflowPolicy.COALESCE_LATEST_FIX);
+
+        // replaced where it is while it is the newest item
+        gga(1);
+        gga(2);
+        gga(3);
+        assertEquals(1, queue.getDepth());
+
+        // but not ahead of an event posted after it, or of data queued after it
+        queue.post(event("connected"));
+        rmc(4);
+        gga(5);
+        rmc(6);
+        gga(7);
+        gga(8);
+        assertEquals(6, queue.getCoalescedCount());
+
+        release.countDown();
+        assertTrue(queue.awaitEmpty(TIMEOUT_MS));
+        assertEquals(Arrays.asList("GGA 0", "connected", "RMC 6", "GGA 8"), delivered());
+        assertEquals(3, queue.getDeliveredCount());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void coalesceDropsOnlyLiveItemsWhenFull() throws Exception {
+        start(GpsObserverQueue.OverflowPolicy.COALESCE_LATEST_FIX);
+
+        // GGA 1 is replaced by GGA 3 behind RMC 2, leaving a skipped slot at the head
+        gga(1);
+        rmc(2);
+        gga(3);
+        rmc(4);
+        gga(5);
+        assertEquals(CAPACITY, queue.getDepth());
+        rmc(6);
+        assertEquals("the skipped slot made room", 0, queue.getDroppedCount());
+
+        release.countDown();
+        assertTrue(queue.awaitEmpty(TIMEOUT_MS));
+        assertEquals(Arrays.asList("GGA 0", "GGA 5", "RMC 6"), delivered());
+    }
+
+    private void start(GpsObserverQueue.OverflowPolicy policy) throws InterruptedException {
+        queue = new GpsObserverQueue("test", CAPACITY, policy, null, observer);
+        queue.start();
+        gga(0);
+        assertTrue(entered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void gga(int timeOfDay) {
+        NmeaGga gga = new NmeaGga();
+        gga.timeOfDay = timeOfDay;
+        queue.onFix(gga);
+    }
+
+    private void rmc(int timeOfDay) {
+        NmeaRmc rmc = new NmeaRmc();
+        rmc.timeOfDay = timeOfDay;
+        queue.onNavigation(rmc);
+    }
+
+    private Runnable event(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                add(name);
+            }
+        };
+    }
+
+    private void add(String item) {
+        synchronized (delivered) {
+            delivered.add(item);
+        }
+    }
+
+    private List<String> delivered() {
+        synchronized (delivered) {
+            return new ArrayList<String>(delivered);
+        }
+    }
+}
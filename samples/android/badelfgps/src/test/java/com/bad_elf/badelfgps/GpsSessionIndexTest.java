@@ -0,0 +1,309 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of GpsSessionIndex on a simulated session recorded across midnight in several segments:
+ * fix number and UTC time queries return the same fixes as decoding the whole log, starting
+ * between index entries and across the date change, and an index that is missing, damaged or
+ * stops short of the log is rebuilt or still works. A short session with damaged sentences, in
+ * reads of any size, gives every fix from the index just as decoding the log from the start.
+ *
+ */
+public class GpsSessionIndexTest {
+
+    private static final String SESSION = "session";
+    private static final long START_UTC_MILLIS = 1464739080000L; // 2016-05-31 23:58:00
+    private static final int RATE = 10;
+    private static final int EPOCHS = 3000;
+    private static final int CHUNK_SIZE = 300;
+    private static final int ENTRIES = EPOCHS / GpsSessionIndex.INTERVAL_FIXES + 1; // at the start, then every INTERVAL_FIXES
+
+    private File directory;
+    private final List<GpsFix> fixes = new ArrayList<GpsFix>(); // every fix, by fix number
+    private GpsSessionLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("badelfgps", ".test");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Can't create " + directory);
+
+        GpsSimulator simulator = new GpsSimulator(1, START_UTC_MILLIS, 37.3349, -122.0090, 30,
+                GpsSimulator.randomWalk(5, 2));
+        simulator.setRate(RATE);
+        simulator.setIncludeSatellites(false);
+        GpsSessionRecorder recorder = new GpsSessionRecorder(directory, SESSION, 64 * 1024);
+        long nanos = 0;
+        for (int i = 0; i < EPOCHS; i++) {
+            byte[] epoch = simulator.nextEpoch();
+            for (int offset = 0; offset < epoch.length; offset += CHUNK_SIZE) {
+                recorder.record(epoch, offset, Math.min(CHUNK_SIZE, epoch.length - offset), nanos);
+            }
+            nanos += 1000000000L / RATE;
+        }
+        recorder.close();
+        assertTrue(recorder.getSegmentCount() > 3);
+
+        log = new GpsSessionLog(directory, SESSION);
+        log.decodeFixes(new GpsSessionIndex.FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                assertEquals(fixes.size(), fixNumber);
+                fixes.add(copy(fix));
+                return true;
+            }
+        });
+        assertEquals(EPOCHS, fixes.size());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void queriesByFixNumber() throws IOException {
+        GpsSessionIndex index = GpsSessionIndex.open(directory, SESSION);
+        assertEquals(ENTRIES, index.getEntryCount());
+        for (int entry = 0; entry < index.getEntryCount(); entry++) {
+            assertEquals((long) entry * GpsSessionIndex.INTERVAL_FIXES, index.getFixNumber(entry));
+        }
+
+        assertFixes(index, 0, 5);
+        assertFixes(index, 100, 1);                         // on an entry
+        assertFixes(index, 99, 2);                          // the fix before it
+        assertFixes(index, 1234, 150);                      // between entries, across several
+        assertFixes(index, EPOCHS - 3, 10);                 // past the end
+        assertEquals(0, queryFixes(index, EPOCHS + 5, 10).size());
+        assertEquals(0, queryFixes(index, 10, 0).size());
+    }
+
+    @Test
+    public void queriesByTimeAcrossMidnight() throws IOException {
+        GpsSessionIndex index = GpsSessionIndex.open(directory, SESSION);
+
+        // the session crosses midnight, and the fixes stay in order through the date change
+        int midnight = -1;
+        for (int i = 1; i < fixes.size(); i++) {
+            assertEquals(fixes.get(i - 1).getUtcMillis() + 1000 / RATE, fixes.get(i).getUtcMillis());
+            if (fixes.get(i).getDate() != fixes.get(i - 1).getDate()) midnight = i;
+        }
+        assertTrue("no date change", midnight > 0);
+        assertEquals(0, fixes.get(midnight).getTimeOfDay());
+        assertEquals(20160601, fixes.get(midnight).getDate());
+
+        assertTime(index, midnight - 5, midnight + 5);
+        assertTime(index, midnight - 250, midnight + 250);
+        assertTime(index, 0, 1);
+        assertTime(index, 1717, 1800);
+        assertTime(index, EPOCHS - 10, EPOCHS);
+
+        // a range that starts between two fixes starts at the next one
+        long between = fixes.get(1234).getUtcMillis() + 1;
+        List<GpsFix> found = queryTime(index, between, fixes.get(1240).getUtcMillis());
+        assertEquals(5, found.size());
+        assertSameFix(fixes.get(1235), found.get(0));
+
+        // before and after the session
+        assertEquals(0, queryTime(index, START_UTC_MILLIS - 60000, START_UTC_MILLIS).size());
+        assertEquals(0, queryTime(index, fixes.get(EPOCHS - 1).getUtcMillis() + 1, Long.MAX_VALUE).size());
+        assertEquals(EPOCHS, queryTime(index, 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void missingOrDamagedIndexIsRebuilt() throws IOException {
+        File file = GpsSessionIndex.indexFile(directory, SESSION);
+        byte[] recorded = readFile(file);
+
+        // rebuilding gives the index the recorder wrote as it went
+        assertTrue(file.delete());
+        GpsSessionIndex index = GpsSessionIndex.open(directory, SESSION);
+        assertTrue(file.exists());
+        assertArrayEquals(recorded, readFile(file));
+        assertFixes(index, 1234, 150);
+
+        // not an index
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0);
+        raf.close();
+        index = GpsSessionIndex.open(directory, SESSION);
+        assertEquals(ENTRIES, index.getEntryCount());
+        assertArrayEquals(recorded, readFile(file));
+    }
+
+    @Test
+    public void staleIndexStillWorks() throws IOException {
+        // as left by a recorder that was killed: the index stops short of the log
+        File file = GpsSessionIndex.indexFile(directory, SESSION);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(GpsSessionIndex.HEADER_LENGTH + 5 * GpsSessionIndex.ENTRY_LENGTH + 7);
+        raf.close();
+        GpsSessionIndex index = GpsSessionIndex.open(directory, SESSION);
+        assertEquals(5, index.getEntryCount());
+
+        // queries past the last entry decode from it
+        assertFixes(index, 2900, 50);
+        assertFixes(index, 250, 20);
+        assertTime(index, 1790, 1810);
+
+        // and rebuilding brings it up to date
+        index = GpsSessionIndex.rebuild(directory, SESSION);
+        assertEquals(ENTRIES, index.getEntryCount());
+        assertFixes(index, 2900, 50);
+    }
+
+    @Test
+    public void indexAgreesWithDecodingTheLog() throws IOException {
+        // a short session at 1 Hz with satellites and damaged sentences, recorded in reads of any size
+        String session = "short";
+        GpsSimulator simulator = new GpsSimulator(2, START_UTC_MILLIS, 37.3349, -122.0090, 30,
+                GpsSimulator.randomWalk(5, 3));
+        simulator.setFaults(0.02, 0.02, 0, 0);
+        GpsSessionRecorder recorder = new GpsSessionRecorder(directory, session, 4 * 1024);
+        Random random = new Random(4);
+        for (int i = 0; i < 350; i++) {
+            byte[] epoch = simulator.nextEpoch();
+            for (int offset = 0, length; offset < epoch.length; offset += length) {
+                length = Math.min(1 + random.nextInt(200), epoch.length - offset);
+                recorder.record(epoch, offset, length, i * 1000000000L);
+            }
+        }
+        recorder.close();
+
+        GpsSessionLog shortLog = new GpsSessionLog(directory, session);
+        final List<GpsFix> decoded = new ArrayList<GpsFix>();
+        shortLog.decodeFixes(new GpsSessionIndex.FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                assertEquals(decoded.size(), fixNumber);
+                decoded.add(copy(fix));
+                return true;
+            }
+        });
+        assertTrue(decoded.size() > 300);
+
+        // the entries are where decoding numbers the fixes, at the times of the decoded fixes
+        GpsSessionIndex index = GpsSessionIndex.open(directory, session);
+        assertEquals(decoded.size() / GpsSessionIndex.INTERVAL_FIXES + 1, index.getEntryCount());
+        for (int entry = 1; entry < index.getEntryCount(); entry++) {
+            int fixNumber = entry * GpsSessionIndex.INTERVAL_FIXES;
+            assertEquals(fixNumber, index.getFixNumber(entry));
+            assertEquals(entry, index.findByFixNumber(fixNumber));
+            assertEquals(entry - 1, index.findByFixNumber(fixNumber - 1));
+            assertEquals(entry, index.findByTime(decoded.get(fixNumber).getUtcMillis()));
+            assertEquals(entry - 1, index.findByTime(decoded.get(fixNumber - 1).getUtcMillis()));
+        }
+
+        // and every fix found through the index is the decoded one
+        for (int number = 0; number < decoded.size(); number++) {
+            final List<GpsFix> found = new ArrayList<GpsFix>();
+            index.queryFixes(shortLog, number, 1, new GpsSessionIndex.FixListener() {
+                @Override
+                public boolean onFix(long fixNumber, GpsFix fix) {
+                    found.add(copy(fix));
+                    return true;
+                }
+            });
+            assertEquals(1, found.size());
+            assertSameFix(decoded.get(number), found.get(0));
+        }
+    }
+
+    private void assertFixes(GpsSessionIndex index, long first, int count) throws IOException {
+        List<GpsFix> found = queryFixes(index, first, count);
+        int end = (int) Math.min(first + count, EPOCHS);
+        assertEquals(end - first, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            assertSameFix(fixes.get((int) first + i), found.get(i));
+        }
+    }
+
+    private void assertTime(GpsSessionIndex index, int first, int end) throws IOException {
+        long to = end < EPOCHS ? fixes.get(end).getUtcMillis() : Long.MAX_VALUE;
+        List<GpsFix> found = queryTime(index, fixes.get(first).getUtcMillis(), to);
+        assertEquals(end - first, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            assertSameFix(fixes.get(first + i), found.get(i));
+        }
+    }
+
+    private List<GpsFix> queryFixes(GpsSessionIndex index, final long first, long count) throws IOException {
+        final List<GpsFix> found = new ArrayList<GpsFix>();
+        index.queryFixes(log, first, count, new GpsSessionIndex.FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                assertEquals(first + found.size(), fixNumber);
+                found.add(copy(fix));
+                return true;
+            }
+        });
+        return found;
+    }
+
+    private List<GpsFix> queryTime(GpsSessionIndex index, long from, long to) throws IOException {
+        final List<GpsFix> found = new ArrayList<GpsFix>();
+        index.queryTime(log, from, to, new GpsSessionIndex.FixListener() {
+            @Override
+            public boolean onFix(long fixNumber, GpsFix fix) {
+                assertSameFix(fixes.get((int) fixNumber), fix);
+                found.add(copy(fix));
+                return true;
+            }
+        });
+        return found;
+    }
+
+    private static void assertSameFix(GpsFix expected, GpsFix actual) {
+        assertEquals(expected.getUtcMillis(), actual.getUtcMillis());
+        assertEquals(expected.getSentenceTypes(), actual.getSentenceTypes());
+        assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+        assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+        assertEquals(expected.getAltitude(), actual.getAltitude(), 0);
+    }
+
+    private static GpsFix copy(GpsFix fix) {
+        GpsFix copy = new GpsFix();
+        copy.copyFrom(fix);
+        return copy;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int read = in.read(data, n, data.length - n);
+                if (read < 0) break;
+                n += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips through GpsSessionRecorder and GpsSessionLog: records come back byte for byte
+ * with their received times from the mapped segments, segments roll over at their size, seek
+ * returns to a record, and a log whose recorder was killed mid-record or as it started a segment
+ * still reads up to the last whole record.
+ *
+ */
+public class GpsSessionLogTest {
+
+    private static final String SESSION = "session";
+
+    private File directory;
+    private final List<byte[]> records = new ArrayList<byte[]>();
+    private final List<Long> times = new ArrayList<Long>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("badelfgps", ".test");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Can't create " + directory);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void recordsRoundTrip() throws IOException {
+        GpsSessionRecorder recorder = new GpsSessionRecorder(directory, SESSION);
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            // mostly small reads, an empty one and one larger than a write batch
+            int length = i == 7 ? 0 : i == 50 ? 100 * 1024 : 1 + random.nextInt(600);
+            record(recorder, randomBytes(random, length), 1000000000L + i * 50000000L);
+        }
+        recorder.close();
+        assertEquals(records.size(), recorder.getRecordCount());
+        assertEquals(1, recorder.getSegmentCount());
+        assertTrue(GpsSessionIndex.indexFile(directory, SESSION).exists());
+
+        GpsSessionLog log = new GpsSessionLog(directory, SESSION);
+        assertEquals(1, log.getSegmentCount());
+        assertRecords(log, records.size());
+        assertEquals(0, log.getTruncatedCount());
+
+        // the received times in wall clock time, from the segment header
+        log.rewind();
+        assertTrue(log.next());
+        long first = log.getReceivedMillis();
+        assertTrue(log.next());
+        assertEquals(50, log.getReceivedMillis() - first, 1); // each is rounded to a millisecond
+        byte[] part = new byte[3];
+        log.copyTo(1, part, 0, 3);
+        assertEquals(records.get(1)[1], part[0]);
+        assertEquals(records.get(1)[3], part[2]);
+
+        // replay passes on the same bytes, in pieces
+        log.rewind();
+        final ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        log.replay(new GpsStreamReader.Listener() {
+            @Override
+            public void onDataReceived(GpsDataChunk chunk) {
+                assertTrue(chunk.length() <= 1024);
+                replayed.write(chunk.data, 0, chunk.length());
+            }
+        }, 0);
+        assertArrayEquals(concat(records), replayed.toByteArray());
+    }
+
+    @Test
+    public void segmentsRollOver() throws IOException {
+        int segmentBytes = 1024;
+        GpsSessionRecorder recorder = new GpsSessionRecorder(directory, SESSION, segmentBytes);
+        Random random = new Random(2);
+        for (int i = 0; i < 300; i++) {
+            // including one that doesn't fit a segment, which gets one of its own
+            int length = i == 100 ? 4000 : 20 + random.nextInt(100);
+            record(recorder, randomBytes(random, length), i * 100000000L);
+        }
+        recorder.close();
+        assertTrue(recorder.getSegmentCount() > 20);
+        for (int segment = 0; segment < recorder.getSegmentCount(); segment++) {
+            File file = GpsSessionRecorder.segmentFile(directory, SESSION, segment);
+            assertTrue(file.getName(), file.length() <= segmentBytes || file.length() == 4000 + 12 + 32);
+        }
+
+        GpsSessionLog log = new GpsSessionLog(directory, SESSION);
+        assertEquals(recorder.getSegmentCount(), log.getSegmentCount());
+        int[] segments = new int[records.size()];
+        int[] positions = new int[records.size()];
+        log.rewind();
+        for (int i = 0; i < records.size(); i++) {
+            assertTrue(log.next());
+            segments[i] = log.getSegment();
+            positions[i] = log.getRecordPosition();
+            assertRecord(log, i);
+        }
+        assertFalse(log.next());
+        assertEquals(0, log.getTruncatedCount());
+
+        // seek back to any record, in this segment or another
+        for (int i : new int[] {150, 151, 0, 299, 100, 37}) {
+            log.seek(segments[i], positions[i]);
+            assertTrue(log.next());
+            assertRecord(log, i);
+        }
+        assertRecords(log, 38, records.size());
+
+        // recording again after close starts a new segment
+        recorder.record(new byte[] {1, 2, 3}, 0, 3, 0);
+        recorder.close();
+        assertEquals(log.getSegmentCount() + 1, recorder.getSegmentCount());
+    }
+
+    @Test
+    public void truncatedLogReadsToTheLastWholeRecord() throws IOException {
+        GpsSessionRecorder recorder = new GpsSessionRecorder(directory, SESSION, 1024);
+        Random random = new Random(3);
+        for (int i = 0; i < 40; i++) {
+            record(recorder, randomBytes(random, 100), i * 100000000L);
+        }
+        recorder.close();
+        int segmentCount = recorder.getSegmentCount();
+
+        // killed part way through the last record
+        File last = GpsSessionRecorder.segmentFile(directory, SESSION, segmentCount - 1);
+        truncate(last, last.length() - 10);
+        GpsSessionLog log = new GpsSessionLog(directory, SESSION);
+        assertRecords(log, records.size() - 1);
+        assertEquals(1, log.getTruncatedCount());
+
+        // killed as it started the next segment, part way through the header
+        File started = GpsSessionRecorder.segmentFile(directory, SESSION, segmentCount);
+        FileOutputStream out = new FileOutputStream(started);
+        out.write(new byte[] {0x42, 0x45, 0x4c, 0x47, 0, 1});
+        out.close();
+        log = new GpsSessionLog(directory, SESSION);
+        assertEquals(segmentCount + 1, log.getSegmentCount());
+        assertRecords(log, records.size() - 1);
+        assertEquals(2, log.getTruncatedCount());
+
+        // or before writing anything to it
+        truncate(started, 0);
+        log = new GpsSessionLog(directory, SESSION);
+        assertRecords(log, records.size() - 1);
+        assertEquals(1, log.getTruncatedCount());
+
+        // a segment that is not the last one must be whole
+        truncate(GpsSessionRecorder.segmentFile(directory, SESSION, 1), 10);
+        log = new GpsSessionLog(directory, SESSION);
+        try {
+            while (log.next()) {
+                // read up to the damaged segment
+            }
+            fail("read a damaged segment");
+        } catch (IOException expected) {
+            // not a session log
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void missingLogCantBeOpened() throws IOException {
+        new GpsSessionLog(directory, SESSION);
+    }
+
+    private void record(GpsSessionRecorder recorder, byte[] data, long receivedNanos) throws IOException {
+        recorder.record(data, 0, data.length, receivedNanos);
+        records.add(data);
+        times.add(receivedNanos);
+    }
+
+    private void assertRecords(GpsSessionLog log, int count) throws IOException {
+        log.rewind();
+        assertRecords(log, 0, count);
+    }
+
+    private void assertRecords(GpsSessionLog log, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            assertTrue("record " + i, log.next());
+            assertRecord(log, i);
+        }
+        assertFalse(log.next());
+    }
+
+    private void assertRecord(GpsSessionLog log, int i) {
+        byte[] expected = records.get(i);
+        assertEquals(expected.length, log.getLength());
+        byte[] actual = new byte[log.getLength()];
+        log.copyTo(0, actual, 0, actual.length);
+        assertArrayEquals("record " + i, expected, actual);
+        assertEquals(times.get(i).longValue(), log.getReceivedNanos());
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] concat(List<byte[]> parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
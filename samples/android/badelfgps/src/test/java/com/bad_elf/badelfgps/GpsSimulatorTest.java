@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of GpsSimulator: the same seed, trajectory and requests give the same bytes, the output
+ * passes NmeaParser's checksums and framing with the sentences the receiver would send, faults
+ * are seen by the parser, and configuration requests are applied and acknowledged.
+ *
+ */
+public class GpsSimulatorTest {
+
+    private static final long START_UTC_MILLIS = 1464698096000L; // 2016-05-31 12:34:56
+    private static final double LATITUDE = 37.3349;
+    private static final double LONGITUDE = -122.0090;
+
+    @Test
+    public void sameSeedSameBytes() {
+        byte[] first = run(1);
+        assertArrayEquals(first, run(1));
+        assertFalse(Arrays.equals(first, run(2)));
+    }
+
+    @Test
+    public void outputPassesTheParser() {
+        GpsSimulator simulator = simulator(1);
+        simulator.setRate(10);
+        final List<NmeaGga> ggas = new ArrayList<NmeaGga>();
+        final List<NmeaRmc> rmcs = new ArrayList<NmeaRmc>();
+        NmeaParser parser = new NmeaParser(new NmeaParser.ListenerAdapter() {
+            @Override
+            public void onGga(NmeaGga gga) {
+                NmeaGga copy = new NmeaGga();
+                copy.copyFrom(gga);
+                ggas.add(copy);
+            }
+
+            @Override
+            public void onRmc(NmeaRmc rmc) {
+                NmeaRmc copy = new NmeaRmc();
+                copy.copyFrom(rmc);
+                rmcs.add(copy);
+            }
+        });
+        int epochs = 200;
+        List<double[]> positions = new ArrayList<double[]>();
+        for (int i = 0; i < epochs; i++) {
+            positions.add(simulator.getPosition());
+            byte[] epoch = simulator.nextEpoch();
+            parser.parse(epoch, 0, epoch.length);
+        }
+
+        assertEquals(0, parser.getChecksumErrorCount());
+        assertEquals(0, parser.getFramingErrorCount());
+        assertEquals(simulator.getSentenceCount(), parser.getSentenceCount());
+        assertEquals(epochs, parser.getSentenceCount(NmeaParser.TYPE_GGA));
+        assertEquals(epochs, parser.getSentenceCount(NmeaParser.TYPE_RMC));
+        assertEquals(epochs, parser.getSentenceCount(NmeaParser.TYPE_GSA));
+        assertEquals(epochs, parser.getSentenceCount(NmeaParser.TYPE_GST));
+        assertEquals(epochs / 10 * 4, parser.getSentenceCount(NmeaParser.TYPE_GSV)); // 14 satellites, once a second
+
+        // every epoch is at the simulated time and position
+        for (int i = 0; i < epochs; i++) {
+            NmeaGga gga = ggas.get(i);
+            assertEquals((START_UTC_MILLIS + i * 100) % 86400000, gga.getTimeOfDay());
+            assertEquals(positions.get(i)[GpsSimulator.LATITUDE], gga.getLatitude(), 1e-6);
+            assertEquals(positions.get(i)[GpsSimulator.LONGITUDE], gga.getLongitude(), 1e-6);
+            assertEquals(positions.get(i)[GpsSimulator.ALTITUDE], gga.getAltitude(), 0.05);
+            assertEquals(20160531, rmcs.get(i).getDate());
+        }
+        assertTrue(ggas.get(epochs - 1).getLatitude() != LATITUDE);
+    }
+
+    @Test
+    public void faultsReachTheParser() {
+        GpsSimulator simulator = simulator(3);
+        simulator.setFaults(0.05, 0.05, 0.01, 10);
+        NmeaParser parser = new NmeaParser(new NmeaParser.ListenerAdapter());
+        int silent = 0;
+        for (int i = 0; i < 2000; i++) {
+            byte[] epoch = simulator.nextEpoch();
+            if (epoch.length == 0) silent++;
+            parser.parse(epoch, 0, epoch.length);
+        }
+        assertEquals(2000, simulator.getEpochCount());
+        assertTrue("dropouts " + silent, silent > 0);
+        assertTrue(parser.getChecksumErrorCount() > 0);
+        assertTrue(parser.getFramingErrorCount() > 0);
+        assertTrue(parser.getSentenceCount() < simulator.getSentenceCount());
+        assertTrue(parser.getSentenceCount() + parser.getChecksumErrorCount() + parser.getFramingErrorCount()
+                <= simulator.getSentenceCount());
+    }
+
+    @Test
+    public void requestsAreAppliedAndAcknowledged() {
+        GpsSimulator simulator = simulator(1);
+        assertEquals(1, simulator.getRate());
+        assertTrue(simulator.isIncludeSatellites());
+
+        // keepalive junk, then a request split in two
+        byte[] request = BadElfGpsConnection.Request.TEN_HZ_NO_SATELLITES.data;
+        simulator.onHostData(new byte[] {'\r', '\n', 0}, 0, 3);
+        simulator.onHostData(request, 0, 5);
+        assertEquals(0, simulator.getRequestCount());
+        simulator.onHostData(request, 5, request.length - 5);
+        assertEquals(1, simulator.getRequestCount());
+        assertEquals(10, simulator.getRate());
+        assertFalse(simulator.isIncludeSatellites());
+
+        final List<Integer> acknowledged = new ArrayList<Integer>();
+        NmeaParser parser = new NmeaParser(new NmeaParser.ListenerAdapter());
+        parser.setPacketListener(new NmeaParser.PacketListener() {
+            @Override
+            public void onPacket(BadElfPacket packet) {
+                assertEquals(BadElfPacket.CLASS_CONFIGURATION, packet.getMessageClass());
+                assertEquals(BadElfPacket.ID_CONFIGURATION, packet.getMessageId());
+                acknowledged.add(packet.getSequence());
+            }
+        });
+        byte[] responses = simulator.takeResponses();
+        parser.parse(responses, 0, responses.length);
+        assertEquals(Arrays.asList(0x16), acknowledged);
+        assertEquals(0, simulator.takeResponses().length);
+
+        // the next epoch is 100 ms on, without satellites
+        long utcMillis = simulator.getUtcMillis();
+        byte[] epoch = simulator.nextEpoch();
+        parser.parse(epoch, 0, epoch.length);
+        assertEquals(utcMillis + 100, simulator.getUtcMillis());
+        assertEquals(0, parser.getSentenceCount(NmeaParser.TYPE_GSA));
+        assertEquals(0, parser.getSentenceCount(NmeaParser.TYPE_GSV));
+        assertEquals(3, parser.getSentenceCount());
+    }
+
+    /**
+     * Run a simulator with faults and a request part way through
+     *
+     * @return everything it sent
+     */
+    private static byte[] run(long seed) {
+        GpsSimulator simulator = simulator(seed);
+        simulator.setFaults(0.01, 0.01, 0.001, 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) {
+            if (i == 100) {
+                byte[] request = BadElfGpsConnection.Request.FIVE_HZ_INCLUDE_SATELLITES.data;
+                simulator.onHostData(request, 0, request.length);
+                byte[] responses = simulator.takeResponses();
+                out.write(responses, 0, responses.length);
+            }
+            byte[] epoch = simulator.nextEpoch();
+            out.write(epoch, 0, epoch.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static GpsSimulator simulator(long seed) {
+        return new GpsSimulator(seed, START_UTC_MILLIS, LATITUDE, LONGITUDE, 30, GpsSimulator.randomWalk(5, seed));
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the pooled receive path: once running, reading and parsing a stream allocates
+ * nothing on the reading thread, either on its own or as a BadElfDeviceSession's reader thread
+ * handing each chunk to observer queues, the fix dispatcher and the receive metrics.
+ *
+ */
+public class GpsStreamReaderTest {
+
+    private static final int EPOCHS = 2000;
+    private static final int WARM_UP_ROUNDS = 5;
+    private static final int SETTLED_ROUNDS = 4;
+    private static final int MAX_SESSION_ROUNDS = 40;
+    private static final int TIMEOUT_MS = 10000;
+
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final byte[][] epochs = new byte[EPOCHS][];
+    private GpsStreamReader reader;
+    private Thread readerThread;
+
+    private volatile long chunkCount;
+    private volatile long byteCount;
+    private volatile long ggaCount;
+    private volatile IOException readError;
+
+    @Before
+    public void setUp() throws IOException {
+        GpsSimulator simulator = new GpsSimulator(1, 1464698096000L, 37.3349, -122.0090, 30,
+                GpsSimulator.randomWalk(5, 2));
+        simulator.setRate(10);
+        for (int i = 0; i < EPOCHS; i++) {
+            epochs[i] = simulator.nextEpoch();
+        }
+
+        final NmeaParser parser = new NmeaParser(new NmeaParser.ListenerAdapter() {
+            @Override
+            public void onGga(NmeaGga gga) {
+                ggaCount++;
+            }
+        });
+        reader = new GpsStreamReader(new GpsStreamReader.Listener() {
+            @Override
+            public void onDataReceived(GpsDataChunk chunk) {
+                parser.parse(chunk);
+                byteCount += chunk.length();
+                chunkCount++;
+            }
+        });
+        transport.open();
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reader.run(transport);
+                } catch (IOException e) {
+                    readError = e;
+                }
+            }
+        }, "GpsStreamReaderTest");
+        readerThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        transport.close();
+        readerThread.join(5000);
+    }
+
+    @Test
+    public void steadyStateReceiveDoesNotAllocate() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocation.isThreadAllocatedMemorySupported());
+        allocation.setThreadAllocatedMemoryEnabled(true);
+
+        // warm up, so classes are loaded, the code is compiled and the pool holds its chunk
+        long injected = 0;
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            injected += injectAll();
+            awaitBytes(injected);
+        }
+        long chunksBefore = chunkCount;
+        long allocatedChunks = reader.getAllocatedChunkCount();
+        long allocatedBytes = allocation.getThreadAllocatedBytes(readerThread.getId());
+
+        injected += injectAll();
+        awaitBytes(injected);
+        long chunks = chunkCount - chunksBefore;
+        long allocated = allocation.getThreadAllocatedBytes(readerThread.getId()) - allocatedBytes;
+
+        assertTrue("too few chunks to measure: " + chunks, chunks >= 100);
+        assertEquals("bytes allocated by the reader over " + chunks + " chunks", 0, allocated);
+        assertEquals("chunks allocated", allocatedChunks, reader.getAllocatedChunkCount());
+        assertEquals((WARM_UP_ROUNDS + 1) * EPOCHS, ggaCount);
+    }
+
+    @Test
+    public void sessionReceiveDoesNotAllocate() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocation.isThreadAllocatedMemorySupported());
+        allocation.setThreadAllocatedMemoryEnabled(true);
+
+        final Thread[] sessionThread = new Thread[1];
+        final long[] sessionBytes = new long[1];
+        BadElfService service = new BadElfService() {
+            @Override
+            public Object getSystemService(String name) {
+                return null; // no wake lock
+            }
+
+            @Override
+            void onSessionStarted(BadElfDeviceSession session) {
+                // there is no Android to start the service
+            }
+
+            @Override
+            void onSessionData(BadElfDeviceSession session, GpsDataChunk chunk) {
+                sessionThread[0] = Thread.currentThread();
+                super.onSessionData(session, chunk);
+                synchronized (sessionBytes) {
+                    sessionBytes[0] += chunk.length();
+                }
+            }
+        };
+        final LoopbackTransport sessionTransport = new LoopbackTransport();
+        BadElfDeviceSession session = service.openSession(sessionTransport);
+        session.setKeepaliveInterval(0);
+
+        // a chunk observer, so its queue retains the chunks rather than copying them
+        ObserverCounter chunkObserver = new ObserverCounter();
+        session.addObserver(chunkObserver);
+        ObserverCounter fixObserver = new ObserverCounter();
+        session.addFixObserver(fixObserver,
+                NmeaParser.TYPE_ALL | BadElfGpsFixObserver.TYPE_EPOCH | BadElfGpsFixObserver.TYPE_SMOOTHED);
+
+        long injected = 0;
+        int rounds = 0;
+        try {
+            session.connect();
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (session.getState() != BadElfService.State.CONNECTED) {
+                assertTrue("still " + session.getState(), System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+
+            // stall the observers every other round, so their queues fill and drain as a slow
+            // observer's would, until the reader goes SETTLED_ROUNDS rounds in a row without
+            // allocating. With the delivery threads running too, the compiled code takes longer
+            // to settle than for the reader alone, and recompiling can allocate a little.
+            GpsObserverQueue chunkQueue = session.getObserverQueue(chunkObserver);
+            long threadId = -1;
+            int settled = 0;
+            long allocated = 0;
+            while (settled < SETTLED_ROUNDS) {
+                assertTrue("bytes allocated by the session's reader after " + rounds + " rounds: " + allocated,
+                        rounds < MAX_SESSION_ROUNDS);
+                boolean stall = rounds % 2 == 0;
+                chunkObserver.holding = stall;
+                fixObserver.holding = stall;
+                long allocatedBytes = threadId < 0 ? 0 : allocation.getThreadAllocatedBytes(threadId);
+                injected += injectAll(sessionTransport);
+                awaitSessionBytes(sessionBytes, injected);
+                if (threadId < 0) {
+                    threadId = sessionThread[0].getId();
+                    assertEquals(chunkQueue.getCapacity(), chunkQueue.getMaxDepth());
+                } else {
+                    allocated = allocation.getThreadAllocatedBytes(threadId) - allocatedBytes;
+                    settled = allocated == 0 ? settled + 1 : 0;
+                }
+                rounds++;
+            }
+            chunkObserver.holding = false;
+            fixObserver.holding = false;
+
+            // and everything got to the observers, or was dropped by their queues
+            assertTrue(chunkQueue.awaitEmpty(TIMEOUT_MS));
+            assertTrue(session.getFixObserverQueue(fixObserver).awaitEmpty(TIMEOUT_MS));
+            assertTrue(chunkObserver.chunks > 0);
+            assertEquals(chunkQueue.getEnqueuedCount(), chunkObserver.chunks + chunkQueue.getDroppedCount());
+            assertTrue(fixObserver.epochs > 0);
+        } finally {
+            chunkObserver.holding = false;
+            fixObserver.holding = false;
+            session.disconnect();
+            session.join();
+            session.removeObserver(chunkObserver);
+            session.removeFixObserver(fixObserver);
+        }
+        GpsMetrics.Snapshot snapshot = service.getMetrics().snapshot();
+        assertEquals(injected, snapshot.getCount(GpsMetrics.BYTES));
+        assertEquals(rounds * EPOCHS, snapshot.getCount(GpsMetrics.SENTENCES_GGA));
+    }
+
+    @Test
+    public void retainedChunksAreReplaced() throws Exception {
+        final GpsDataChunk[] kept = new GpsDataChunk[1];
+        GpsStreamReader retaining = new GpsStreamReader(new GpsStreamReader.Listener() {
+            @Override
+            public void onDataReceived(GpsDataChunk chunk) {
+                if (kept[0] == null) kept[0] = chunk.retain();
+            }
+        });
+        LoopbackTransport other = new LoopbackTransport();
+        other.open();
+        other.inject(epochs[0]);
+        other.inject(epochs[1]);
+        other.finish();
+        retaining.run(other);
+
+        // the retained chunk kept its data and a second chunk was needed for the rest
+        assertEquals(2, retaining.getAllocatedChunkCount());
+        assertTrue(kept[0].length() > 0);
+        assertEquals('$', kept[0].get(0));
+        kept[0].release();
+    }
+
+    private long injectAll() throws IOException {
+        return injectAll(transport);
+    }
+
+    private long injectAll(LoopbackTransport target) throws IOException {
+        long bytes = 0;
+        for (byte[] epoch : epochs) {
+            target.inject(epoch);
+            bytes += epoch.length;
+        }
+        return bytes;
+    }
+
+    private void awaitBytes(long bytes) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (byteCount < bytes) {
+            if (readError != null) throw readError;
+            assertTrue("timed out waiting for the reader", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitSessionBytes(long[] sessionBytes, long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            synchronized (sessionBytes) {
+                if (sessionBytes[0] >= bytes) return;
+            }
+            assertTrue("timed out waiting for the session", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Counts what is delivered to a session observer, and can stall its delivery thread
+     */
+    private static class ObserverCounter extends BadElfGpsFixAdapter
+            implements BadElfGpsConnectionObserver, BadElfGpsChunkObserver {
+        volatile boolean holding;
+        volatile long chunks; // only the observer's delivery thread writes these
+        volatile long epochs;
+
+        @Override
+        public void onChunkReceived(GpsDataChunk chunk) {
+            hold();
+            chunks++;
+        }
+
+        @Override
+        public void onEpoch(GpsFix fix) {
+            hold();
+            epochs++;
+        }
+
+        private void hold() {
+            try {
+                while (holding) Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // the queue is stopping
+            }
+        }
+
+        @Override
+        public void onReady() {
+        }
+
+        @Override
+        public void onStateChanged(BadElfService.State newState) {
+        }
+
+        @Override
+        public void onDataReceived(byte[] data) {
+        }
+    }
+}
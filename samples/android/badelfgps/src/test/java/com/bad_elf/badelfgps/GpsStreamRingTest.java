@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of GpsStreamRing: readers read what was written across the wrap at their own positions,
+ * a reader more than the capacity behind is told its data was overwritten, and a write larger
+ * than the capacity keeps its last bytes.
+ *
+ */
+public class GpsStreamRingTest {
+
+    private static final int CAPACITY = 64;
+
+    private final GpsStreamRing ring = new GpsStreamRing(CAPACITY);
+    private final Random random = new Random(1);
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new GpsStreamRing(100);
+    }
+
+    @Test
+    public void readsAcrossTheWrap() {
+        byte[] stream = randomBytes(10 * CAPACITY);
+        int position = 0;
+        for (int length : new int[] {10, 50, 1, 0, 63, 64, 37, 20}) {
+            ring.write(stream, position, length);
+            position += length;
+            assertEquals(position, ring.getWritePosition());
+
+            // everything still in the ring reads back, from any position
+            for (int from = Math.max(0, position - CAPACITY); from < position; from++) {
+                assertArrayEquals(copyOfRange(stream, from, position), read(from, position));
+                assertFalse(ring.isOverwritten(from));
+            }
+        }
+    }
+
+    @Test
+    public void slowReaderIsOverwritten() {
+        byte[] stream = randomBytes(10 * CAPACITY);
+        long reader = 0;
+        ring.write(stream, 0, 30);
+
+        // the reader starts a read and is held up while the writer laps it
+        byte[] read = read(reader, 30);
+        ring.write(stream, 30, 30);
+        ring.write(stream, 60, 4);
+        assertFalse("exactly the capacity behind", ring.isOverwritten(reader));
+        assertArrayEquals(copyOfRange(stream, 0, 30), read);
+        ring.write(stream, 64, 1);
+        assertTrue(ring.isOverwritten(reader));
+        assertFalse(ring.isOverwritten(1));
+
+        // it skips ahead to what is still there
+        reader = ring.getWritePosition() - CAPACITY;
+        assertArrayEquals(copyOfRange(stream, 1, 65), read(reader, ring.getWritePosition()));
+        assertFalse(ring.isOverwritten(reader));
+    }
+
+    @Test
+    public void writeLargerThanTheCapacityKeepsItsEnd() {
+        byte[] stream = randomBytes(10 * CAPACITY);
+        ring.write(stream, 0, 20);
+
+        // starting part way through the array, and not at the start of the ring
+        ring.write(stream, 20, 3 * CAPACITY + 5);
+        long end = 20 + 3 * CAPACITY + 5;
+        assertEquals(end, ring.getWritePosition());
+        assertTrue(ring.isOverwritten(end - CAPACITY - 1));
+        assertFalse(ring.isOverwritten(end - CAPACITY));
+        assertArrayEquals(copyOfRange(stream, (int) end - CAPACITY, (int) end), read(end - CAPACITY, end));
+
+        // and the ring carries on from there
+        ring.write(stream, (int) end, 7);
+        assertArrayEquals(copyOfRange(stream, (int) end + 7 - CAPACITY, (int) end + 7), read(end + 7 - CAPACITY, end + 7));
+    }
+
+    @Test
+    public void listenersRunAfterEachWrite() {
+        final int[] runs = new int[2];
+        final long[] seen = new long[1];
+        Runnable first = new Runnable() {
+            @Override
+            public void run() {
+                runs[0]++;
+                seen[0] = ring.getWritePosition();
+            }
+        };
+        Runnable second = new Runnable() {
+            @Override
+            public void run() {
+                runs[1]++;
+            }
+        };
+        ring.addListener(first);
+        ring.addListener(second);
+        ring.write(randomBytes(5), 0, 5);
+        assertEquals(5, seen[0]);
+
+        ring.removeListener(first);
+        GpsDataChunk chunk = new GpsChunkPool(16, 1).acquire();
+        System.arraycopy(randomBytes(3), 0, chunk.data, 0, 3);
+        chunk.length = 3;
+        ring.onChunkReceived(chunk);
+        chunk.release();
+        assertEquals(1, runs[0]);
+        assertEquals(2, runs[1]);
+        assertEquals(8, ring.getWritePosition());
+    }
+
+    /**
+     * Read from the ring the way a subscriber does, straight out of the array
+     */
+    private byte[] read(long from, long to) {
+        byte[] data = new byte[(int) (to - from)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = ring.buffer[(int) ((from + i) & ring.mask)];
+        }
+        return data;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] copyOfRange(byte[] data, int from, int to) {
+        byte[] copy = new byte[to - from];
+        System.arraycopy(data, from, copy, 0, copy.length);
+        return copy;
+    }
+}
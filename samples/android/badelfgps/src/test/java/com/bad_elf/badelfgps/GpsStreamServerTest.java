@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of GpsStreamServer on loopback: a client that reads keeps up with the whole stream,
+ * while a client that stops reading falls more than the ring's capacity behind, skips ahead to
+ * the newest data, and then carries on with the stream in order.
+ *
+ */
+public class GpsStreamServerTest {
+
+    private static final int RING_CAPACITY = 64 * 1024;
+    private static final int LINES_PER_WRITE = 64;
+    private static final int TIMEOUT_MS = 20000;
+    private static final Pattern LINE = Pattern.compile("\\$SEQ,(\\d{8})");
+
+    private final GpsStreamRing ring = new GpsStreamRing(RING_CAPACITY);
+    private GpsStreamServer server;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private int nextLine;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) server.stop();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void slowClientSkipsAhead() throws Exception {
+        server = new GpsStreamServer(ring, 0);
+        server.start();
+
+        Socket slow = new Socket();
+        slow.setReceiveBufferSize(4 * 1024);
+        slow.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        slow.setSoTimeout(TIMEOUT_MS);
+        sockets.add(slow);
+        awaitClientCount(1);
+        Socket fast = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        fast.setSoTimeout(TIMEOUT_MS);
+        sockets.add(fast);
+        awaitClientCount(2);
+        BadElfRemoteControlServer.Client[] clients = server.getClients();
+        BadElfRemoteControlServer.Client slowClient = clients[0];
+        BadElfRemoteControlServer.Client fastClient = clients[1];
+
+        // the fast client reads everything sent to it on its own thread
+        final List<Integer> fastLines = new ArrayList<Integer>();
+        final BufferedReader fastIn = reader(fast);
+        Thread fastReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readLines(fastIn, fastLines, null);
+                } catch (IOException ignore) {
+                    // the test fails on the lines
+                }
+            }
+        }, "fastReader");
+        fastReader.start();
+
+        // both subscribe from the next write once the server thread gets to them
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (fastClient.getStreamBytesSent() == 0 || slowClient.getStreamBytesSent() == 0) {
+            assertTrue("never subscribed", System.currentTimeMillis() < deadline);
+            writeLines();
+            Thread.sleep(1);
+        }
+
+        // stream until the slow client, which never reads, has fallen too far behind, without
+        // running ahead of the fast one
+        while (slowClient.getStreamSkipCount() == 0) {
+            assertTrue("slow client never skipped", System.currentTimeMillis() < deadline);
+            writeLines();
+            while (fastClient.getStreamLag() > RING_CAPACITY / 4) {
+                assertTrue("fast client stalled", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+        assertTrue(slowClient.getStreamSkippedBytes() > RING_CAPACITY - RING_CAPACITY / 4);
+        assertTrue(slowClient.getMaxStreamLag() <= RING_CAPACITY);
+        assertFalse(slowClient.isClosed());
+
+        // the slow client catches up, and receives the rest in order
+        for (int i = 0; i < 10; i++) {
+            writeLines();
+            Thread.sleep(1);
+        }
+        int last = nextLine - 1;
+        List<Integer> slowLines = new ArrayList<Integer>();
+        int damaged = readLines(reader(slow), slowLines, last);
+        assertTrue("lines " + damaged, damaged <= slowClient.getStreamSkipCount());
+        int gaps = 0;
+        for (int i = 1; i < slowLines.size(); i++) {
+            assertTrue(slowLines.get(i) > slowLines.get(i - 1));
+            if (slowLines.get(i) != slowLines.get(i - 1) + 1) gaps++;
+        }
+        assertTrue(gaps > 0 && gaps <= slowClient.getStreamSkipCount());
+        assertEquals(last, (int) slowLines.get(slowLines.size() - 1));
+
+        // the fast client never skipped, so it received every line from when it subscribed
+        while (fastClient.getStreamLag() > 0) {
+            assertTrue("fast client stalled", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        server.stop();
+        fastReader.join(TIMEOUT_MS);
+        assertFalse(fastReader.isAlive());
+        assertEquals(0, fastClient.getStreamSkipCount());
+        assertEquals(last, (int) fastLines.get(fastLines.size() - 1));
+        int first = fastLines.get(0);
+        for (int i = 0; i < fastLines.size(); i++) {
+            assertEquals(first + i, (int) fastLines.get(i));
+        }
+    }
+
+    /**
+     * Write one chunk of numbered lines to the ring
+     */
+    private void writeLines() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES_PER_WRITE; i++) {
+            text.append(String.format("$SEQ,%08d\r\n", nextLine++));
+        }
+        byte[] data = text.toString().getBytes(BadElfRemoteControlServer.US_ASCII);
+        ring.write(data, 0, data.length);
+    }
+
+    /**
+     * Read numbered lines until the end of the stream or the last line
+     *
+     * @return the number of lines that weren't whole, cut short by a skip
+     */
+    private static int readLines(BufferedReader in, List<Integer> lines, Integer last) throws IOException {
+        int damaged = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            Matcher matcher = LINE.matcher(line);
+            if (!matcher.matches()) {
+                damaged++;
+                continue;
+            }
+            int number = Integer.parseInt(matcher.group(1));
+            synchronized (lines) {
+                lines.add(number);
+            }
+            if (last != null && number == last) break;
+        }
+        return damaged;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), BadElfRemoteControlServer.US_ASCII));
+    }
+
+    private void awaitClientCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getClientCount() != count) {
+            if (System.currentTimeMillis() >= deadline) {
+                fail("expected " + count + " clients, have " + server.getClientCount());
+            }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+/**
+ * Golden output tests of GpsTrackExporter in every format, for the same fixes: one with every
+ * value, one from an RMC alone with most values missing and a coordinate that rounds to zero,
+ * one without a time, and two that aren't written because they have no valid position. The XML
+ * formats escape the track name, and CSV leaves missing values as empty fields.
+ *
+ */
+public class GpsTrackExporterTest {
+
+    private static final String NAME = "Tom & Jerry's <\"run\"> caf\u00e9";
+    private static final String ESCAPED_NAME = "Tom &amp; Jerry's &lt;&quot;run&quot;&gt; caf\u00e9";
+
+    @Test
+    public void gpx() throws IOException {
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<gpx version=\"1.1\" creator=\"Bad Elf GPS SDK\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n"
+                + "<trk>\n"
+                + "<name>" + ESCAPED_NAME + "</name>\n"
+                + "<trkseg>\n"
+                + "<trkpt lat=\"37.3349123\" lon=\"-122.0090456\"><ele>30.46</ele><time>2016-05-31T12:34:56.789Z</time>"
+                + "<geoidheight>-32.10</geoidheight><fix>dgps</fix><sat>9</sat><hdop>0.90</hdop></trkpt>\n"
+                + "<trkpt lat=\"0.0000000\" lon=\"0.0000000\"><time>2016-05-31T12:34:57.000Z</time></trkpt>\n"
+                + "<trkpt lat=\"-33.8688000\" lon=\"151.2093000\"><ele>-5.50</ele></trkpt>\n"
+                + "</trkseg>\n"
+                + "</trk>\n"
+                + "</gpx>\n",
+                export(GpsTrackExporter.Format.GPX));
+    }
+
+    @Test
+    public void kml() throws IOException {
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n"
+                + "<Document>\n"
+                + "<Placemark>\n"
+                + "<name>" + ESCAPED_NAME + "</name>\n"
+                + "<LineString>\n"
+                + "<altitudeMode>absolute</altitudeMode>\n"
+                + "<coordinates>\n"
+                + "-122.0090456,37.3349123,30.46\n"
+                + "0.0000000,0.0000000\n"
+                + "151.2093000,-33.8688000,-5.50\n"
+                + "</coordinates>\n"
+                + "</LineString>\n"
+                + "</Placemark>\n"
+                + "</Document>\n"
+                + "</kml>\n",
+                export(GpsTrackExporter.Format.KML));
+    }
+
+    @Test
+    public void geoJson() throws IOException {
+        assertEquals("{\"type\":\"FeatureCollection\",\"features\":[\n"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[-122.0090456,37.3349123,30.46]},"
+                + "\"properties\":{\"time\":\"2016-05-31T12:34:56.789Z\",\"quality\":2,\"satellites\":9,\"hdop\":0.90,"
+                + "\"speedKnots\":1.23,\"course\":360.00}},\n"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[0.0000000,0.0000000]},"
+                + "\"properties\":{\"time\":\"2016-05-31T12:34:57.000Z\",\"speedKnots\":0.00}},\n"
+                + "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[151.2093000,-33.8688000,-5.50]},"
+                + "\"properties\":{\"quality\":1}}\n"
+                + "]}\n",
+                export(GpsTrackExporter.Format.GEOJSON));
+    }
+
+    @Test
+    public void csv() throws IOException {
+        assertEquals("time,latitude,longitude,altitude,quality,satellites,hdop,speed_knots,course\r\n"
+                + "2016-05-31T12:34:56.789Z,37.3349123,-122.0090456,30.46,2,9,0.90,1.23,360.00\r\n"
+                + "2016-05-31T12:34:57.000Z,0.0000000,0.0000000,,,,,0.00,\r\n"
+                + ",-33.8688000,151.2093000,-5.50,1,,,,\r\n",
+                export(GpsTrackExporter.Format.CSV));
+    }
+
+    @Test
+    public void emptyTracks() throws IOException {
+        assertEquals("{\"type\":\"FeatureCollection\",\"features\":[\n]}\n",
+                exportNothing(GpsTrackExporter.Format.GEOJSON));
+        assertEquals("time,latitude,longitude,altitude,quality,satellites,hdop,speed_knots,course\r\n",
+                exportNothing(GpsTrackExporter.Format.CSV));
+    }
+
+    @Test
+    public void longTrackIsWrittenInPieces() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GpsTrackExporter exporter = GpsTrackExporter.create(GpsTrackExporter.Format.CSV, Channels.newChannel(out));
+        GpsFix fix = fullFix();
+        int fixes = 2000; // several times the buffer
+        for (int i = 0; i < fixes; i++) {
+            exporter.onEpoch(fix);
+        }
+        exporter.finish();
+        exporter.finish(); // does nothing
+        assertEquals(fixes, exporter.getFixCount());
+
+        String[] lines = utf8(out).split("\r\n", -1);
+        assertEquals(fixes + 2, lines.length);
+        for (int i = 1; i <= fixes; i++) {
+            assertEquals("2016-05-31T12:34:56.789Z,37.3349123,-122.0090456,30.46,2,9,0.90,1.23,360.00", lines[i]);
+        }
+        assertEquals("", lines[fixes + 1]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nameCantChangeOnceStarted() {
+        GpsTrackExporter exporter = GpsTrackExporter.create(GpsTrackExporter.Format.GPX,
+                Channels.newChannel(new ByteArrayOutputStream()));
+        exporter.onEpoch(fullFix());
+        exporter.setName(NAME);
+    }
+
+    private static String export(GpsTrackExporter.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GpsTrackExporter exporter = GpsTrackExporter.create(format, Channels.newChannel(out));
+        exporter.setName(NAME);
+
+        exporter.onEpoch(fullFix());
+
+        // from an RMC alone
+        GpsFix rmc = new GpsFix();
+        rmc.date = 20160531;
+        rmc.timeOfDay = 45297000;
+        rmc.latitude = 0.00000004;
+        rmc.longitude = -0.00000004;
+        rmc.valid = true;
+        rmc.speedKnots = 0;
+        exporter.onEpoch(rmc);
+
+        // no fix yet
+        GpsFix noFix = new GpsFix();
+        noFix.copyFrom(rmc);
+        noFix.valid = false;
+        exporter.onEpoch(noFix);
+        GpsFix noPosition = new GpsFix();
+        noPosition.quality = 1;
+        exporter.onEpoch(noPosition);
+
+        // from a GGA alone, before the date is known
+        GpsFix gga = new GpsFix();
+        gga.timeOfDay = 45298000;
+        gga.latitude = -33.8688;
+        gga.longitude = 151.2093;
+        gga.altitude = -5.5;
+        gga.quality = 1;
+        exporter.onEpoch(gga);
+
+        exporter.finish();
+        assertEquals(3, exporter.getFixCount());
+        return utf8(out);
+    }
+
+    private static String exportNothing(GpsTrackExporter.Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GpsTrackExporter exporter = GpsTrackExporter.create(format, Channels.newChannel(out));
+        exporter.finish();
+        assertEquals(0, exporter.getFixCount());
+        return utf8(out);
+    }
+
+    /**
+     * A fix with every value, some of which need rounding
+     */
+    private static GpsFix fullFix() {
+        GpsFix fix = new GpsFix();
+        fix.date = 20160531;
+        fix.timeOfDay = 45296789; // 12:34:56.789
+        fix.latitude = 37.3349123;
+        fix.longitude = -122.0090456;
+        fix.altitude = 30.456;
+        fix.geoidSeparation = -32.1;
+        fix.quality = 2;
+        fix.satellitesUsed = 9;
+        fix.hdop = 0.9;
+        fix.valid = true;
+        fix.speedKnots = 1.234;
+        fix.course = 359.999;
+        return fix;
+    }
+
+    private static String utf8(ByteArrayOutputStream out) throws UnsupportedEncodingException {
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of GpsTrackSimplifier's guarantee: every fix it leaves out lies within the tolerance of
+ * the simplified track, the segment between the kept fixes on either side of it, whatever the
+ * tolerance, window and interval. Checked on a noisy track that wanders, stands still and
+ * doubles back, and on a straight line, which keeps only its ends.
+ *
+ */
+public class GpsTrackSimplifierTest {
+
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final int DATE = 20160531;
+    private static final int START_TIME = 43200000; // noon
+
+    @Test
+    public void droppedFixesAreWithinTheTolerance() {
+        List<GpsFix> track = wanderingTrack();
+        for (double tolerance : new double[] {0, 1, 5, 20}) {
+            for (int window : new int[] {1, 8, GpsTrackSimplifier.DEFAULT_WINDOW}) {
+                for (long maxIntervalMillis : new long[] {0, 30000}) {
+                    List<Integer> kept = simplify(track, tolerance, window, maxIntervalMillis);
+                    String run = "tolerance " + tolerance + " window " + window + " interval " + maxIntervalMillis;
+                    assertWithinTolerance(run, track, kept, tolerance);
+                    if (maxIntervalMillis > 0) {
+                        for (int i = 1; i < kept.size(); i++) {
+                            assertTrue(run, (kept.get(i) - kept.get(i - 1)) * 1000L <= maxIntervalMillis);
+                        }
+                    }
+                    if (window == 1) assertEquals(run, track.size(), kept.size());
+                }
+            }
+        }
+
+        // a useful tolerance keeps a small part of the track
+        int kept = simplify(track, 5, GpsTrackSimplifier.DEFAULT_WINDOW, 0).size();
+        assertTrue("kept " + kept, kept < track.size() / 4);
+    }
+
+    @Test
+    public void straightLineKeepsItsEnds() {
+        List<GpsFix> track = new ArrayList<GpsFix>();
+        double metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(37.3349));
+        for (int i = 0; i < 1000; i++) {
+            track.add(fix(i, 37.3349 + 3.0 * i / METERS_PER_DEGREE, -122.0090 + 4.0 * i / metersPerDegreeLongitude));
+        }
+        List<Integer> kept = simplify(track, 1, GpsTrackSimplifier.DEFAULT_WINDOW * 4, 0);
+        assertEquals(2, kept.size());
+        assertEquals(999, (int) kept.get(1));
+
+        // a full window passes a fix on
+        kept = simplify(track, 1, 100, 0);
+        assertEquals(11, kept.size()); // the start, every 100th fix and the end
+        assertWithinTolerance("window", track, kept, 1);
+    }
+
+    @Test
+    public void fixesWithoutAPositionAreIgnored() {
+        final List<GpsFix> out = new ArrayList<GpsFix>();
+        GpsTrackSimplifier simplifier = new GpsTrackSimplifier(5, new BadElfGpsFixAdapter() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                out.add(fix);
+            }
+        });
+        GpsFix noPosition = new GpsFix();
+        noPosition.timeOfDay = START_TIME;
+        simplifier.add(noPosition);
+        simplifier.flush();
+        assertEquals(0, simplifier.getInputCount());
+        assertEquals(0, out.size());
+
+        simplifier.add(fix(1, 37.3349, -122.0090));
+        simplifier.add(noPosition);
+        simplifier.flush();
+        assertEquals(1, simplifier.getInputCount());
+        assertEquals(1, simplifier.getOutputCount());
+    }
+
+    /**
+     * A track with GPS noise that wanders at walking pace, stands still for two minutes, then
+     * goes out and back along a straight road
+     */
+    private static List<GpsFix> wanderingTrack() {
+        Random noise = new Random(7);
+        List<GpsFix> track = new ArrayList<GpsFix>();
+        double[] position = {37.3349, -122.0090, 30, 0, 0};
+        GpsSimulator.Trajectory walk = GpsSimulator.randomWalk(1.5, 1);
+        for (int i = 0; i < 600; i++) {
+            walk.step(1, position);
+            track.add(noisyFix(track.size(), position, noise));
+        }
+        for (int i = 0; i < 120; i++) {
+            track.add(noisyFix(track.size(), position, noise));
+        }
+        double[][] road = {
+            {position[0], position[1], position[2]},
+            {position[0] + 0.004, position[1] + 0.003, position[2]},
+        };
+        GpsSimulator.Trajectory drive = GpsSimulator.route(road, 10);
+        for (int i = 0; i < 120; i++) {
+            drive.step(1, position);
+            track.add(noisyFix(track.size(), position, noise));
+        }
+        return track;
+    }
+
+    private static GpsFix noisyFix(int index, double[] position, Random noise) {
+        double metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(position[0]));
+        return fix(index,
+                position[0] + 1.5 * noise.nextGaussian() / METERS_PER_DEGREE,
+                position[1] + 1.5 * noise.nextGaussian() / metersPerDegreeLongitude);
+    }
+
+    private static GpsFix fix(int index, double latitude, double longitude) {
+        GpsFix fix = new GpsFix();
+        fix.date = DATE;
+        fix.timeOfDay = START_TIME + index * 1000;
+        fix.latitude = latitude;
+        fix.longitude = longitude;
+        fix.quality = 1;
+        return fix;
+    }
+
+    /**
+     * Simplify a track
+     *
+     * @return the indexes of the fixes kept, in order
+     */
+    private static List<Integer> simplify(List<GpsFix> track, double tolerance, int window, long maxIntervalMillis) {
+        final List<Integer> kept = new ArrayList<Integer>();
+        GpsTrackSimplifier simplifier = new GpsTrackSimplifier(tolerance, window, new BadElfGpsFixAdapter() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                kept.add((fix.timeOfDay - START_TIME) / 1000);
+            }
+        });
+        simplifier.setMaxIntervalMillis(maxIntervalMillis);
+        for (GpsFix fix : track) {
+            simplifier.add(fix);
+        }
+        simplifier.flush();
+        assertEquals(track.size(), simplifier.getInputCount());
+        assertEquals(kept.size(), simplifier.getOutputCount());
+        return kept;
+    }
+
+    /**
+     * Check that the track starts and ends with a kept fix, and that every fix in between is
+     * within the tolerance of the segment joining the kept fixes around it
+     */
+    private static void assertWithinTolerance(String run, List<GpsFix> track, List<Integer> kept, double tolerance) {
+        assertEquals(run, 0, (int) kept.get(0));
+        assertEquals(run, track.size() - 1, (int) kept.get(kept.size() - 1));
+        for (int k = 1; k < kept.size(); k++) {
+            int from = kept.get(k - 1), to = kept.get(k);
+            assertTrue(run, to > from);
+            for (int i = from + 1; i < to; i++) {
+                double distance = distanceToSegment(track.get(i), track.get(from), track.get(to));
+                assertTrue(run + " fix " + i + " is " + distance + " m off", distance <= tolerance + 1e-6);
+            }
+        }
+    }
+
+    /**
+     * The distance in metres from a fix to the segment from a to b, on a plane around a
+     */
+    private static double distanceToSegment(GpsFix fix, GpsFix a, GpsFix b) {
+        double metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(a.latitude));
+        double x = (b.longitude - a.longitude) * metersPerDegreeLongitude;
+        double y = (b.latitude - a.latitude) * METERS_PER_DEGREE;
+        double px = (fix.longitude - a.longitude) * metersPerDegreeLongitude;
+        double py = (fix.latitude - a.latitude) * METERS_PER_DEGREE;
+        double lengthSquared = x * x + y * y;
+        double t = lengthSquared > 0 ? (px * x + py * y) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(px - t * x, py - t * y);
+    }
+}
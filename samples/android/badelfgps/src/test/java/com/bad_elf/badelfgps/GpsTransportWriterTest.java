@@ -0,0 +1,245 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of GpsTransportWriter over a LoopbackTransport whose first write can be held up: what
+ * piles up during a write goes out in one write with only the latest configuration request
+ * last, keepalives are only written when the link is idle, and a full buffer blocks callers
+ * until there is room or the writer is stopped.
+ *
+ */
+public class GpsTransportWriterTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int TIMEOUT_MS = 10000;
+    private static final byte[] KEEPALIVE = bytes("KA");
+
+    private final GatedTransport transport = new GatedTransport();
+    private GpsTransportWriter writer;
+
+    /**
+     * A LoopbackTransport that keeps each write apart and holds the first one until released
+     */
+    private static class GatedTransport extends LoopbackTransport {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<byte[]> writes = new ArrayList<byte[]>();
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            synchronized (writes) {
+                writes.add(copy);
+            }
+            super.write(data, offset, length);
+        }
+
+        List<byte[]> takeWrites() {
+            synchronized (writes) {
+                List<byte[]> taken = new ArrayList<byte[]>(writes);
+                writes.clear();
+                return taken;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        transport.open();
+    }
+
+    @After
+    public void tearDown() {
+        transport.release.countDown();
+        if (writer != null) writer.stop();
+    }
+
+    @Test
+    public void burstGoesOutInOneWrite() throws Exception {
+        start(GpsTransportWriter.DEFAULT_CAPACITY, null, 0);
+        holdFirstWrite();
+
+        // while the first write is held up
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            byte[] data = bytes("$PBELF," + i + "\r\n");
+            assertTrue(writer.write(data, 0, data.length));
+            expected.write(data, 0, data.length);
+        }
+        byte[] oneHz = BadElfGpsConnection.Request.ONE_HZ_NO_SATELLITES.data;
+        byte[] tenHz = BadElfGpsConnection.Request.TEN_HZ_NO_SATELLITES.data;
+        assertTrue(writer.writeConfiguration(oneHz, 0, oneHz.length));
+        byte[] last = bytes("$PBELF,last\r\n");
+        assertTrue(writer.write(last, 0, last.length));
+        expected.write(last, 0, last.length);
+        assertTrue(writer.writeConfiguration(tenHz, 0, tenHz.length));
+        expected.write(tenHz, 0, tenHz.length);
+
+        transport.release.countDown();
+        assertTrue(writer.awaitEmpty(TIMEOUT_MS));
+        List<byte[]> writes = transport.takeWrites();
+        assertEquals(2, writes.size());
+        assertArrayEquals(bytes("first"), writes.get(0));
+        assertArrayEquals("the latest configuration, after the data", expected.toByteArray(), writes.get(1));
+        assertEquals(2, writer.getWriteCount());
+        assertEquals(1, writer.getSupersededCount());
+        assertEquals(5 + expected.size() + oneHz.length, writer.getAcceptedBytes());
+        assertEquals(5 + expected.size(), writer.getWrittenBytes());
+        assertEquals(expected.size(), writer.getMaxPending());
+    }
+
+    @Test
+    public void keepaliveOnlyWhenIdle() throws Exception {
+        transport.release.countDown();
+        long intervalMs = 200;
+        start(GpsTransportWriter.DEFAULT_CAPACITY, KEEPALIVE, intervalMs);
+
+        // traffic more often than the interval postpones the keepalive
+        byte[] data = bytes("$PBELF\r\n");
+        long end = System.currentTimeMillis() + 3 * intervalMs;
+        while (System.currentTimeMillis() < end) {
+            assertTrue(writer.write(data, 0, data.length));
+            Thread.sleep(intervalMs / 10);
+        }
+        assertEquals(0, writer.getKeepaliveCount());
+
+        // once idle, one per interval
+        assertTrue(writer.awaitEmpty(TIMEOUT_MS));
+        transport.takeWrites();
+        Thread.sleep(intervalMs * 5 / 2);
+        long keepalives = writer.getKeepaliveCount();
+        assertTrue("keepalives " + keepalives, keepalives >= 1 && keepalives <= 2);
+        for (byte[] write : transport.takeWrites()) {
+            assertArrayEquals(KEEPALIVE, write);
+        }
+    }
+
+    @Test
+    public void fullBufferBlocksUntilRoomOrStop() throws Exception {
+        final int capacity = 16;
+        start(capacity, null, 0);
+        holdFirstWrite();
+        final byte[] data = bytes("0123456789abcdefXYZ"); // more than the capacity
+
+        // the second part waits for room
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(writer.write(data, 0, data.length));
+            }
+        }, "caller");
+        caller.start();
+        awaitWaiting(caller);
+        assertEquals(capacity, writer.getMaxPending());
+
+        // it gets room when the held up write completes
+        transport.release.countDown();
+        caller.join(TIMEOUT_MS);
+        assertFalse(caller.isAlive());
+        assertTrue(result.get());
+        assertTrue(writer.awaitEmpty(TIMEOUT_MS));
+        assertArrayEquals(concat(bytes("first"), data), transport.takeWrittenData());
+    }
+
+    @Test
+    public void stopReleasesBlockedCallers() throws Exception {
+        final int capacity = 16;
+        start(capacity, null, 0);
+        holdFirstWrite();
+        final byte[] data = bytes("0123456789abcdefXYZ");
+        final AtomicBoolean result = new AtomicBoolean(true);
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(writer.write(data, 0, data.length));
+            }
+        }, "caller");
+        caller.start();
+        awaitWaiting(caller);
+
+        // stop waits for the write in progress, so it runs on its own thread until released
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writer.stop();
+            }
+        }, "stopper");
+        stopper.start();
+        caller.join(TIMEOUT_MS);
+        assertFalse(caller.isAlive());
+        assertFalse("write returns false once stopped", result.get());
+        transport.release.countDown();
+        stopper.join(TIMEOUT_MS);
+        assertFalse(stopper.isAlive());
+
+        assertFalse(writer.write(data, 0, 1));
+        assertFalse(writer.writeConfiguration(data, 0, 1));
+        assertFalse(writer.awaitEmpty(0));
+        assertArrayEquals("the rest was discarded", bytes("first"), transport.takeWrittenData());
+    }
+
+    private void start(int capacity, byte[] keepalive, long keepaliveIntervalMs) {
+        writer = new GpsTransportWriter("writer", transport, capacity, keepalive, keepaliveIntervalMs);
+        writer.start();
+    }
+
+    /**
+     * Write something and wait until the writer thread is held up writing it
+     */
+    private void holdFirstWrite() throws InterruptedException {
+        byte[] first = bytes("first");
+        assertTrue(writer.write(first, 0, first.length));
+        assertTrue(transport.entered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(thread.getName() + " never waited", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,354 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of NmeaParser and NmeaSentence: framing, checksums, sentences split across reads, Bad
+ * Elf packets mixed in with sentences, and the decoding of numbers, coordinates, times, dates
+ * and empty fields.
+ *
+ */
+public class NmeaParserTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final double DELTA = 1e-9;
+
+    private final List<NmeaGga> ggas = new ArrayList<NmeaGga>();
+    private final List<NmeaRmc> rmcs = new ArrayList<NmeaRmc>();
+    private final List<byte[]> others = new ArrayList<byte[]>();
+    private final List<byte[]> packets = new ArrayList<byte[]>();
+    private NmeaSentence lastOther;
+    private NmeaParser parser;
+
+    @Before
+    public void setUp() {
+        parser = new NmeaParser(new NmeaParser.ListenerAdapter() {
+            @Override
+            public void onGga(NmeaGga gga) {
+                NmeaGga copy = new NmeaGga();
+                copy.copyFrom(gga);
+                ggas.add(copy);
+            }
+
+            @Override
+            public void onRmc(NmeaRmc rmc) {
+                NmeaRmc copy = new NmeaRmc();
+                copy.copyFrom(rmc);
+                rmcs.add(copy);
+            }
+
+            @Override
+            public void onOtherSentence(NmeaSentence sentence) {
+                byte[] copy = new byte[sentence.length()];
+                sentence.copyTo(copy, 0);
+                others.add(copy);
+                lastOther = sentence;
+            }
+        });
+        parser.setPacketListener(new NmeaParser.PacketListener() {
+            @Override
+            public void onPacket(BadElfPacket packet) {
+                byte[] copy = new byte[packet.length()];
+                packet.copyTo(copy, 0);
+                packets.add(copy);
+            }
+        });
+    }
+
+    @Test
+    public void decodesGga() {
+        parse(sentence("GPGGA,123519.25,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,"));
+        assertEquals(1, ggas.size());
+        NmeaGga gga = ggas.get(0);
+        assertEquals(NmeaParser.TALKER_GP, gga.getTalker());
+        assertEquals(((12 * 60 + 35) * 60 + 19) * 1000 + 250, gga.getTimeOfDay());
+        assertEquals(48 + 7.038 / 60, gga.getLatitude(), DELTA);
+        assertEquals(11 + 31.0 / 60, gga.getLongitude(), DELTA);
+        assertEquals(1, gga.getQuality());
+        assertEquals(8, gga.getSatellitesUsed());
+        assertEquals(0.9, gga.getHdop(), DELTA);
+        assertEquals(545.4, gga.getAltitude(), DELTA);
+        assertEquals(46.9, gga.getGeoidSeparation(), DELTA);
+        assertTrue(Double.isNaN(gga.getDgpsAge()));
+        assertEquals(-1, gga.getDgpsStationId());
+        assertTrue(gga.hasFix());
+        assertEquals(1, parser.getSentenceCount(NmeaParser.TYPE_GGA));
+    }
+
+    @Test
+    public void decodesSouthWestAndBelowSeaLevel() {
+        parse(sentence("GNGGA,000000,3345.5,S,11830.25,W,2,05,1.2,-12.5,M,-30.1,M,3.5,0042"));
+        NmeaGga gga = ggas.get(0);
+        assertEquals(NmeaParser.TALKER_GN, gga.getTalker());
+        assertEquals(0, gga.getTimeOfDay());
+        assertEquals(-(33 + 45.5 / 60), gga.getLatitude(), DELTA);
+        assertEquals(-(118 + 30.25 / 60), gga.getLongitude(), DELTA);
+        assertEquals(-12.5, gga.getAltitude(), DELTA);
+        assertEquals(-30.1, gga.getGeoidSeparation(), DELTA);
+        assertEquals(3.5, gga.getDgpsAge(), DELTA);
+        assertEquals(42, gga.getDgpsStationId());
+
+        parse(sentence("GPRMC,235959.999,A,4916.45,N,12311.12,W,000.5,054.7,191194,020.3,W,D"));
+        NmeaRmc rmc = rmcs.get(0);
+        assertTrue(rmc.isValid());
+        assertEquals(86399999, rmc.getTimeOfDay());
+        assertEquals(49 + 16.45 / 60, rmc.getLatitude(), DELTA);
+        assertEquals(-(123 + 11.12 / 60), rmc.getLongitude(), DELTA);
+        assertEquals(0.5, rmc.getSpeedKnots(), DELTA);
+        assertEquals(54.7, rmc.getCourse(), DELTA);
+        assertEquals(19941119, rmc.getDate());
+        assertEquals(-20.3, rmc.getMagneticVariation(), DELTA);
+        assertEquals('D', rmc.getMode());
+    }
+
+    @Test
+    public void emptyFieldsDecodeAsMissing() {
+        parse(sentence("GPGGA,,,,,,0,,,,,,,,"));
+        NmeaGga gga = ggas.get(0);
+        assertEquals(-1, gga.getTimeOfDay());
+        assertTrue(Double.isNaN(gga.getLatitude()));
+        assertTrue(Double.isNaN(gga.getLongitude()));
+        assertEquals(0, gga.getQuality());
+        assertEquals(-1, gga.getSatellitesUsed());
+        assertTrue(Double.isNaN(gga.getHdop()));
+        assertTrue(Double.isNaN(gga.getAltitude()));
+        assertFalse(gga.hasFix());
+
+        // trailing fields left out altogether
+        parse(sentence("GPRMC,,V"));
+        NmeaRmc rmc = rmcs.get(0);
+        assertEquals(-1, rmc.getTimeOfDay());
+        assertFalse(rmc.isValid());
+        assertTrue(Double.isNaN(rmc.getLatitude()));
+        assertTrue(Double.isNaN(rmc.getSpeedKnots()));
+        assertEquals(-1, rmc.getDate());
+        assertEquals(0, rmc.getMode());
+        assertEquals(0, parser.getChecksumErrorCount());
+    }
+
+    @Test
+    public void badChecksumsAreDropped() {
+        byte[] good = sentence("GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,");
+        byte[] wrong = good.clone();
+        wrong[wrong.length - 3]++; // the last checksum digit
+        byte[] corrupted = good.clone();
+        corrupted[10] = '9'; // a data byte
+        parse(wrong);
+        parse(corrupted);
+        parse(ascii("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,\r\n")); // none
+        parse(ascii("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*ZZ\r\n"));
+        assertEquals(0, ggas.size());
+        assertEquals(4, parser.getChecksumErrorCount());
+        assertEquals(0, parser.getSentenceCount());
+
+        // lower case hex digits are accepted
+        parse(ascii("$GPGGA,123519,,,,,0,,,,,,,,*6b\r\n"));
+        parse(good);
+        assertEquals(2, ggas.size());
+        assertEquals(4, parser.getChecksumErrorCount());
+    }
+
+    @Test
+    public void tooLongSentencesAreDropped() {
+        StringBuilder body = new StringBuilder("GPXXX");
+        while (body.length() < 300) {
+            body.append(",0");
+        }
+        byte[] good = sentence("GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,");
+        parse(concat(sentence(body.toString()), good));
+        assertEquals(1, parser.getFramingErrorCount());
+        assertEquals(0, others.size());
+        assertEquals("the next sentence is still found", 1, ggas.size());
+
+        // a sentence cut short by the next '$'
+        parse(concat(ascii("$GPGGA,1235"), good));
+        assertEquals(2, parser.getFramingErrorCount());
+        assertEquals(2, ggas.size());
+    }
+
+    @Test
+    public void sentenceSplitAcrossReads() {
+        byte[] data = sentence("GPGGA,123519.25,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,");
+        // up to the line end, which completes the sentence
+        for (int split = 1; split < data.length - 1; split++) {
+            ggas.clear();
+            parser.parse(data, 0, split, 1000);
+            assertEquals(0, ggas.size());
+            parser.parse(data, split, data.length - split, 2000);
+            assertEquals("split at " + split, 1, ggas.size());
+            assertEquals(48 + 7.038 / 60, ggas.get(0).getLatitude(), DELTA);
+            assertEquals("stamped by the read that held the '$'", 1000, ggas.get(0).getReceivedNanos());
+        }
+        assertEquals(data.length - 2, parser.getSentenceCount());
+        assertEquals(0, parser.getFramingErrorCount());
+
+        // data without a received time
+        parser.parse(data, 0, data.length);
+        assertEquals(0, ggas.get(ggas.size() - 1).getReceivedNanos());
+    }
+
+    @Test
+    public void packetsInterleavedWithSentences() {
+        BadElfPacketEncoder encoder = new BadElfPacketEncoder();
+        int length = encoder.encodeConfiguration(7, 10, BadElfPacket.OPTIONS_DEFAULT, true);
+        byte[] packet = new byte[length];
+        System.arraycopy(encoder.getBuffer(), 0, packet, 0, length);
+        byte[] gga = sentence("GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,");
+        byte[] rmc = sentence("GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W");
+
+        // packets between sentences, and one that cuts a sentence short
+        parse(concat(gga, packet, rmc, packet, ascii("$GPGGA,1235"), packet, gga));
+        assertEquals(3, packets.size());
+        for (byte[] received : packets) {
+            assertArrayEquals(packet, received);
+        }
+        assertEquals(2, ggas.size());
+        assertEquals(1, rmcs.size());
+        assertEquals(3, parser.getPacketCount());
+        assertEquals(1, parser.getFramingErrorCount());
+        assertEquals(0, parser.getChecksumErrorCount());
+
+        // a packet that fails its checksum is still framed by its length
+        packet[packet.length - 3] ^= 1;
+        parse(concat(packet, gga));
+        assertEquals(3, packets.size());
+        assertEquals(1, parser.getChecksumErrorCount());
+        assertEquals(3, ggas.size());
+    }
+
+    @Test
+    public void otherSentencesAndEnabledTypes() {
+        parser.setEnabledTypes(NmeaParser.TYPE_RMC | NmeaParser.TYPE_OTHER);
+        byte[] other = sentence("PBELF,-12,3.7,x,,+5,-");
+        parse(concat(sentence("GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,"), other));
+        assertEquals("GGA is counted, not decoded", 0, ggas.size());
+        assertEquals(1, parser.getSentenceCount(NmeaParser.TYPE_GGA));
+        assertEquals(1, parser.getSentenceCount(NmeaParser.TYPE_OTHER));
+        assertEquals(1, others.size());
+        assertArrayEquals(trimmed(other), others.get(0));
+    }
+
+    @Test
+    public void parsesNumbers() {
+        parse(sentence("PBELF,-12,3.7,x,,+5,-,007"));
+        NmeaSentence s = lastOther;
+        assertEquals(NmeaParser.TYPE_OTHER, s.getType());
+        assertEquals(8, s.getFieldCount());
+        assertEquals(-12, s.getInt(1, 99));
+        assertEquals("a fraction is ignored", 3, s.getInt(2, 99));
+        assertEquals(99, s.getInt(3, 99));
+        assertEquals(99, s.getInt(4, 99));
+        assertEquals(99, s.getInt(6, 99));
+        assertEquals(7, s.getInt(7, 99));
+        assertEquals(99, s.getInt(8, 99)); // past the last field
+        assertTrue(s.isEmpty(4));
+        assertEquals('x', s.getChar(3));
+        assertEquals(0, s.getChar(4));
+        assertEquals(-12.0, s.getDouble(1), DELTA);
+        assertEquals(3.7, s.getDouble(2), DELTA);
+        assertTrue(Double.isNaN(s.getDouble(3)));
+        assertEquals(5.0, s.getDouble(5), DELTA);
+        assertTrue(Double.isNaN(s.getDouble(6)));
+
+        assertEquals(123.456, parseDouble("123.456"), DELTA);
+        assertEquals(-0.5, parseDouble("-0.5"), DELTA);
+        assertEquals(0.5, parseDouble(".5"), DELTA);
+        assertEquals(1.0, parseDouble("1."), DELTA);
+        assertEquals(0.000001, parseDouble("0.000001"), 1e-15);
+        assertEquals(1.2345678901234567, parseDouble("1.23456789012345678901"), 1e-15);
+        assertTrue(Double.isNaN(parseDouble("1.2.3")));
+        assertTrue(Double.isNaN(parseDouble("+")));
+        assertTrue(Double.isNaN(parseDouble("1e5")));
+        assertTrue(Double.isNaN(parseDouble("1234567890123456789")));
+    }
+
+    @Test
+    public void parsesCoordinates() {
+        parse(sentence("PBELF,4807.038,N,01131.000,E,0000.0000,S,12311.123456789012345,W,123456.0,N,48x7,N,4807.038,"));
+        NmeaSentence s = lastOther;
+        assertEquals(48 + 7.038 / 60, s.getCoordinate(1, 2), DELTA);
+        assertEquals(11 + 31.0 / 60, s.getCoordinate(3, 4), DELTA);
+        assertEquals(0.0, s.getCoordinate(5, 6), DELTA);
+        assertEquals(-(123 + 11.123456789012 / 60), s.getCoordinate(7, 8), 1e-11);
+        assertTrue("more than dddmm", Double.isNaN(s.getCoordinate(9, 10)));
+        assertTrue(Double.isNaN(s.getCoordinate(11, 12)));
+        assertEquals("no hemisphere is taken as N or E", 48 + 7.038 / 60, s.getCoordinate(13, 14), DELTA);
+        assertTrue(Double.isNaN(s.getCoordinate(14, 13)));
+    }
+
+    @Test
+    public void parsesTimesAndDates() {
+        parse(sentence("PBELF,123519,123519.5,123519.123,1235,12a519,123519:5,235959.999,"
+                + "191194,010180,311279,0101,01x180"));
+        NmeaSentence s = lastOther;
+        int hhmmss = ((12 * 60 + 35) * 60 + 19) * 1000;
+        assertEquals(hhmmss, s.getTimeOfDay(1));
+        assertEquals(hhmmss + 500, s.getTimeOfDay(2));
+        assertEquals(hhmmss + 123, s.getTimeOfDay(3));
+        assertEquals(-1, s.getTimeOfDay(4));
+        assertEquals(-1, s.getTimeOfDay(5));
+        assertEquals(-1, s.getTimeOfDay(6));
+        assertEquals(24 * 3600 * 1000 - 1, s.getTimeOfDay(7));
+        assertEquals(19941119, s.getDate(8));
+        assertEquals(19800101, s.getDate(9));
+        assertEquals(20791231, s.getDate(10));
+        assertEquals(-1, s.getDate(11));
+        assertEquals(-1, s.getDate(12));
+        assertEquals(-1, s.getDate(13));
+    }
+
+    private void parse(byte[] data) {
+        parser.parse(data, 0, data.length);
+    }
+
+    private static double parseDouble(String text) {
+        byte[] bytes = ascii(text);
+        return NmeaSentence.parseDouble(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Frame a sentence body with its '$', checksum and line end
+     */
+    static byte[] sentence(String body) {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        return ascii(String.format("$%s*%02X\r\n", body, checksum));
+    }
+
+    private static byte[] trimmed(byte[] sentence) {
+        byte[] line = new byte[sentence.length - 2];
+        System.arraycopy(sentence, 0, line, 0, line.length);
+        return line;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding the configuration request for the stream's rate and satellites, and
+ * picking the acknowledgements out of a minute of data as a session does.
+ *
+ */
+@State(Scope.Thread)
+public class BadElfPacketBenchmark {
+
+    private final BadElfPacketEncoder encoder = new BadElfPacketEncoder();
+    private final BadElfPacket packet = new BadElfPacket();
+    private byte[] request;
+    private int sequence;
+    private NmeaParser parser;
+    private int acknowledged;
+
+    @Setup(Level.Trial)
+    public void setUp(SimulatedStream stream) {
+        BadElfPacketEncoder requestEncoder = new BadElfPacketEncoder();
+        requestEncoder.encodeConfiguration(0, stream.rate, BadElfPacket.OPTIONS_DEFAULT, stream.satellites);
+        request = requestEncoder.toByteArray();
+        parser = new NmeaParser(new NmeaParser.ListenerAdapter());
+        parser.setEnabledTypes(0);
+        parser.setPacketListener(new NmeaParser.PacketListener() {
+            @Override
+            public void onPacket(BadElfPacket packet) {
+                acknowledged += packet.getSequence();
+            }
+        });
+    }
+
+    @Benchmark
+    public int encode(SimulatedStream stream) {
+        sequence = (sequence + 1) & 0xff;
+        encoder.encodeConfiguration(sequence, stream.rate, BadElfPacket.OPTIONS_DEFAULT, stream.satellites);
+        return encoder.getBuffer()[encoder.length() - 3];
+    }
+
+    @Benchmark
+    public int decode() {
+        if (!packet.decode(request, 0, request.length)) throw new IllegalStateException("bad packet");
+        return packet.findValue(BadElfPacket.TAG_RATE, 0) + packet.findValue(BadElfPacket.TAG_SATELLITES, 0);
+    }
+
+    @Benchmark
+    public int findAcknowledgements(SimulatedStream stream) {
+        acknowledged = 0;
+        parser.reset();
+        stream.parseInChunks(parser);
+        return acknowledged;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * GpsBatchProcessor collecting the statistics of eight recorded half hour sessions at 10 Hz on
+ * a number of threads, against processSession doing them one after the other on one thread.
+ * Compare the scores to see how the batch scales with cores.
+ *
+ */
+@State(Scope.Benchmark)
+public class BatchProcessingBenchmark {
+
+    private static final int SESSIONS = 8;
+    private static final int EPOCHS = 18000;
+    private static final int CHUNK_SIZE = 256;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private File directory;
+    private List<String> sessionNames;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("badelfgps", ".bench");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Can't create " + directory);
+        for (int s = 0; s < SESSIONS; s++) {
+            GpsSimulator simulator = new GpsSimulator(s, 1464698096000L + s * 3600000L, 37.3349, -122.0090, 30,
+                    GpsSimulator.randomWalk(5, s));
+            simulator.setRate(10);
+            simulator.setFaults(0, 0, 0.001, 30); // a few gaps
+            GpsSessionRecorder recorder = new GpsSessionRecorder(directory, "session" + s);
+            for (int epoch = 0; epoch < EPOCHS; epoch++) {
+                byte[] data = simulator.nextEpoch();
+                for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+                    recorder.record(data, offset, Math.min(CHUNK_SIZE, data.length - offset), epoch * 100000000L);
+                }
+            }
+            recorder.close();
+        }
+        sessionNames = GpsBatchProcessor.findSessions(directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public long batch() throws IOException {
+        long fixes = 0;
+        for (GpsSessionStats stats : new GpsBatchProcessor(threads).process(directory, sessionNames)) {
+            fixes += stats.getFixCount();
+        }
+        return fixes;
+    }
+
+    @Benchmark
+    public long singleThreaded() throws IOException {
+        GpsBatchProcessor processor = new GpsBatchProcessor(1);
+        long fixes = 0;
+        for (String name : sessionNames) {
+            fixes += processor.processSession(directory, name).getFixCount();
+        }
+        return fixes;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+
+/**
+ * Receiving a minute of data through GpsStreamReader, on its own and with the chunks handed to a
+ * GpsFixDispatcher that notifies fix observers, as the session's reader thread does. The last
+ * benchmark also records the session's GpsMetrics, so that comparing it with
+ * receiveAndDispatch gives the cost of the metrics on the reader thread. The latencies are
+ * recorded on the observer queues' threads.
+ *
+ */
+@State(Scope.Thread)
+public class ChunkDispatchBenchmark {
+
+    private Blackhole blackhole; // the current benchmark method's
+    private GpsStreamReader rawReader;
+    private GpsFixDispatcher dispatcher;
+    private GpsStreamReader dispatchingReader;
+    private GpsFixDispatcher measuredDispatcher;
+    private GpsReceiveMetrics receiveMetrics;
+    private GpsStreamReader measuredReader;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rawReader = new GpsStreamReader(new GpsStreamReader.Listener() {
+            @Override
+            public void onDataReceived(GpsDataChunk chunk) {
+                blackhole.consume(chunk.length());
+            }
+        });
+        dispatcher = new GpsFixDispatcher();
+        dispatcher.addObserver(new ConsumingObserver(), NmeaParser.TYPE_ALL | BadElfGpsFixObserver.TYPE_EPOCH);
+        dispatchingReader = new GpsStreamReader(new GpsStreamReader.Listener() {
+            @Override
+            public void onDataReceived(GpsDataChunk chunk) {
+                dispatcher.parse(chunk);
+            }
+        });
+        GpsMetrics metrics = new GpsMetrics();
+        receiveMetrics = new GpsReceiveMetrics(metrics);
+        measuredDispatcher = new GpsFixDispatcher();
+        measuredDispatcher.addObserver(new ConsumingObserver(), NmeaParser.TYPE_ALL | BadElfGpsFixObserver.TYPE_EPOCH);
+        measuredReader = new GpsStreamReader(new GpsStreamReader.Listener() {
+            @Override
+            public void onDataReceived(GpsDataChunk chunk) {
+                measuredDispatcher.parse(chunk);
+                receiveMetrics.onParsed(chunk, measuredDispatcher.getParser());
+            }
+        });
+    }
+
+    @Benchmark
+    public long receive(SimulatedStream stream, Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        rawReader.run(stream.newTransport());
+        return rawReader.getAllocatedChunkCount();
+    }
+
+    @Benchmark
+    public long receiveAndDispatch(SimulatedStream stream, Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        dispatcher.reset();
+        dispatchingReader.run(stream.newTransport());
+        dispatcher.flush();
+        return dispatcher.getParser().getSentenceCount();
+    }
+
+    @Benchmark
+    public long receiveAndDispatchWithMetrics(SimulatedStream stream, Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        measuredDispatcher.reset();
+        measuredReader.run(stream.newTransport());
+        measuredDispatcher.flush();
+        return measuredDispatcher.getParser().getSentenceCount();
+    }
+
+    /**
+     * An observer of every sentence type and epoch that reads a value from each
+     */
+    private class ConsumingObserver extends BadElfGpsFixAdapter {
+        @Override public void onFix(NmeaGga gga)                 { blackhole.consume(gga.getLatitude());      }
+        @Override public void onNavigation(NmeaRmc rmc)          { blackhole.consume(rmc.getSpeedKnots());    }
+        @Override public void onActiveSatellites(NmeaGsa gsa)    { blackhole.consume(gsa);                    }
+        @Override public void onSatellites(NmeaGsv gsv)          { blackhole.consume(gsv.getSatelliteCount()); }
+        @Override public void onErrorEstimate(NmeaGst gst)       { blackhole.consume(gst);                    }
+        @Override public void onCourse(NmeaVtg vtg)              { blackhole.consume(vtg);                    }
+        @Override public void onEpoch(GpsFix fix)                { blackhole.consume(fix.getLongitude());     }
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * NmeaParser decoding the fields of a minute of data into the Nmea records, for every sentence
+ * type and for the ones an epoch is assembled from.
+ *
+ */
+@State(Scope.Thread)
+public class NmeaDecodingBenchmark {
+
+    private Blackhole blackhole; // the current benchmark method's
+    private NmeaParser parser;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        parser = new NmeaParser(new NmeaParser.Listener() {
+            @Override public void onGga(NmeaGga gga)                { blackhole.consume(gga.getAltitude());       }
+            @Override public void onRmc(NmeaRmc rmc)                { blackhole.consume(rmc.getCourse());         }
+            @Override public void onGsa(NmeaGsa gsa)                { blackhole.consume(gsa);                     }
+            @Override public void onGsv(NmeaGsv gsv)                { blackhole.consume(gsv.getSatelliteCount()); }
+            @Override public void onGst(NmeaGst gst)                { blackhole.consume(gst);                     }
+            @Override public void onVtg(NmeaVtg vtg)                { blackhole.consume(vtg);                     }
+            @Override public void onOtherSentence(NmeaSentence s)   { blackhole.consume(s.length());              }
+        });
+    }
+
+    @Benchmark
+    public long decodeAll(SimulatedStream stream, Blackhole blackhole) {
+        return decode(stream, blackhole, NmeaParser.TYPE_ALL);
+    }
+
+    @Benchmark
+    public long decodeEpochTypes(SimulatedStream stream, Blackhole blackhole) {
+        return decode(stream, blackhole, GpsEpochAssembler.EPOCH_TYPES);
+    }
+
+    private long decode(SimulatedStream stream, Blackhole blackhole, int types) {
+        this.blackhole = blackhole;
+        parser.setEnabledTypes(types);
+        parser.reset();
+        stream.parseInChunks(parser);
+        return parser.getSentenceCount();
+    }
+}
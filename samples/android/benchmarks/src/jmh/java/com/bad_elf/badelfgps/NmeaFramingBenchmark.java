@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * NmeaParser finding the sentences in a minute of data and checking their checksums, without
+ * decoding any of them. Compare with NmeaDecodingBenchmark for the cost of the decoding.
+ *
+ */
+@State(Scope.Thread)
+public class NmeaFramingBenchmark {
+
+    private NmeaParser parser;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        parser = new NmeaParser(new NmeaParser.ListenerAdapter());
+        parser.setEnabledTypes(0);
+    }
+
+    @Benchmark
+    public long frame(SimulatedStream stream) {
+        parser.reset();
+        stream.parseInChunks(parser);
+        return parser.getSentenceCount();
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Recording a minute of data with GpsSessionRecorder, one record per received chunk, and
+ * replaying the recording with GpsSessionLog, both reading the records and feeding them to a
+ * parser as fast as possible. Recording includes closing the log, which writes it out.
+ *
+ * The replay benchmarks also count the recorded seconds they replay, so their recordedSeconds
+ * rate is the replay speed as a multiple of real time. replayToObservers replays through a
+ * GpsFixDispatcher to fix observers, as a session replaying a log does, and is the one that
+ * should stay well above 100.
+ *
+ */
+@State(Scope.Thread)
+public class SessionLogBenchmark {
+
+    private static final String REPLAY_SESSION = "replay";
+
+    private File directory;
+    private int recordings;
+    private GpsSessionLog log;
+    private final byte[] buffer = new byte[64 * 1024];
+    private NmeaParser parser;
+    private Blackhole blackhole; // the current benchmark method's
+    private GpsFixDispatcher dispatcher;
+
+    /**
+     * The recorded time replayed, summed over an iteration
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ReplaySpeed {
+        public long recordedSeconds;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            recordedSeconds = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(SimulatedStream stream) throws IOException {
+        directory = File.createTempFile("badelfgps", ".bench");
+        if (!directory.delete() || !directory.mkdir()) throw new IOException("Can't create " + directory);
+        GpsSessionRecorder recorder = new GpsSessionRecorder(directory, REPLAY_SESSION);
+        recordStream(recorder, stream);
+        recorder.close();
+        log = new GpsSessionLog(directory, REPLAY_SESSION);
+        parser = new NmeaParser(new NmeaParser.ListenerAdapter());
+        parser.setEnabledTypes(GpsEpochAssembler.EPOCH_TYPES);
+        dispatcher = new GpsFixDispatcher();
+        dispatcher.addObserver(new BadElfGpsFixAdapter() {
+            @Override
+            public void onFix(NmeaGga gga) {
+                blackhole.consume(gga.getLatitude());
+            }
+
+            @Override
+            public void onNavigation(NmeaRmc rmc) {
+                blackhole.consume(rmc.getSpeedKnots());
+            }
+
+            @Override
+            public void onEpoch(GpsFix fix) {
+                blackhole.consume(fix.getLongitude());
+            }
+        }, NmeaParser.TYPE_ALL | BadElfGpsFixObserver.TYPE_EPOCH);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteRecordings() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.getName().startsWith(REPLAY_SESSION)) file.delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Record the stream in chunks, with receive times spread evenly over its minute
+     */
+    private static void recordStream(GpsSessionRecorder recorder, SimulatedStream stream) throws IOException {
+        byte[] data = stream.data;
+        for (int offset = 0; offset < data.length; offset += stream.chunkSize) {
+            long nanos = SimulatedStream.SECONDS * 1000000000L * offset / data.length;
+            recorder.record(data, offset, Math.min(stream.chunkSize, data.length - offset), nanos);
+        }
+    }
+
+    @Benchmark
+    public long record(SimulatedStream stream) throws IOException {
+        GpsSessionRecorder recorder = new GpsSessionRecorder(directory, "record" + recordings++);
+        recordStream(recorder, stream);
+        recorder.close();
+        return recorder.getBytesRecorded();
+    }
+
+    @Benchmark
+    public long readRecords() throws IOException {
+        log.rewind();
+        long sum = 0;
+        while (log.next()) {
+            int length = log.getLength();
+            log.copyTo(0, buffer, 0, length);
+            sum += buffer[length - 1];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long replay(ReplaySpeed speed) throws IOException {
+        log.rewind();
+        parser.reset();
+        log.replay(new GpsStreamReader.Listener() {
+            @Override
+            public void onDataReceived(GpsDataChunk chunk) {
+                parser.parse(chunk);
+            }
+        }, 0);
+        speed.recordedSeconds += SimulatedStream.SECONDS;
+        return parser.getSentenceCount();
+    }
+
+    @Benchmark
+    public long replayToObservers(ReplaySpeed speed, Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        log.rewind();
+        dispatcher.reset();
+        log.replay(new GpsStreamReader.Listener() {
+            @Override
+            public void onDataReceived(GpsDataChunk chunk) {
+                dispatcher.parse(chunk);
+            }
+        }, 0);
+        dispatcher.flush();
+        speed.recordedSeconds += SimulatedStream.SECONDS;
+        return dispatcher.getParser().getSentenceCount();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * GpsTrackSimplifier thinning ten minutes of 10 Hz fixes, walking and driving, at several
+ * tolerances. Besides the time, the inputFixes and outputFixes counters are reported: the
+ * compression ratio is inputFixes / outputFixes.
+ *
+ */
+@State(Scope.Thread)
+public class SimplificationBenchmark {
+
+    private static final int FIXES = 6000;
+
+    @Param({"1", "5", "20"})
+    public double toleranceMeters;
+
+    @Param({"1.4", "15"})
+    public double speedMs;
+
+    private GpsFix[] fixes;
+    private final BadElfGpsFixAdapter discard = new BadElfGpsFixAdapter() {};
+
+    /**
+     * The fixes in and out, summed over an iteration
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Compression {
+        public long inputFixes;
+        public long outputFixes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            inputFixes = 0;
+            outputFixes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generate() {
+        GpsSimulator simulator = new GpsSimulator(1, 1464698096000L, 37.3349, -122.0090, 30,
+                GpsSimulator.randomWalk(speedMs, 2));
+        simulator.setRate(10);
+        simulator.setIncludeSatellites(false);
+        final List<GpsFix> decoded = new ArrayList<GpsFix>(FIXES);
+        NmeaParser parser = new NmeaParser(new GpsEpochAssembler(new GpsEpochAssembler.Listener() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                GpsFix copy = new GpsFix();
+                copy.copyFrom(fix);
+                decoded.add(copy);
+            }
+        }));
+        parser.setEnabledTypes(GpsEpochAssembler.EPOCH_TYPES);
+        while (decoded.size() < FIXES) {
+            byte[] epoch = simulator.nextEpoch();
+            parser.parse(epoch, 0, epoch.length);
+        }
+        fixes = decoded.subList(0, FIXES).toArray(new GpsFix[FIXES]);
+    }
+
+    @Benchmark
+    public long simplify(Compression compression) {
+        GpsTrackSimplifier simplifier = new GpsTrackSimplifier(toleranceMeters, discard);
+        for (GpsFix fix : fixes) {
+            simplifier.add(fix);
+        }
+        simplifier.flush();
+        compression.inputFixes += simplifier.getInputCount();
+        compression.outputFixes += simplifier.getOutputCount();
+        return simplifier.getOutputCount();
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * The received data the benchmarks work on: one minute of GpsSimulator output at the rate and
+ * with the satellite sentences of the parameters, including the acknowledgements of a
+ * configuration request sent every ten seconds, as a session receives them.
+ *
+ * The data is delivered in pieces of chunkSize bytes, which is how much one read of the link
+ * returns. One benchmark operation processes the whole minute.
+ *
+ */
+@State(Scope.Thread)
+public class SimulatedStream {
+
+    public static final int SECONDS = 60;
+    private static final int REQUEST_INTERVAL_SECONDS = 10;
+
+    @Param({"1", "5", "10"})
+    public int rate;
+
+    @Param({"false", "true"})
+    public boolean satellites;
+
+    @Param({"64", "256", "1024"})
+    public int chunkSize;
+
+    /** The received bytes */
+    public byte[] data;
+    /** The number of epochs in data */
+    public long epochCount;
+    /** The number of NMEA sentences in data */
+    public long sentenceCount;
+    /** The number of Bad Elf packets in data */
+    public long packetCount;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        // Always the same walk, so that every run measures the same bytes
+        GpsSimulator simulator = new GpsSimulator(1, 1262304000000L, 37.7749, -122.4194, 16,
+                GpsSimulator.randomWalk(1.5, 1));
+        simulator.setRate(rate);
+        simulator.setIncludeSatellites(satellites);
+        BadElfPacketEncoder encoder = new BadElfPacketEncoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int epochs = SECONDS * rate;
+        for (int i = 0; i < epochs; i++) {
+            if (i % (REQUEST_INTERVAL_SECONDS * rate) == 0) {
+                int length = encoder.encodeConfiguration(i & 0xff, rate, BadElfPacket.OPTIONS_DEFAULT, satellites);
+                simulator.onHostData(encoder.getBuffer(), 0, length);
+                write(out, simulator.takeResponses());
+                packetCount++;
+            }
+            write(out, simulator.nextEpoch());
+        }
+        data = out.toByteArray();
+        epochCount = simulator.getEpochCount();
+        sentenceCount = simulator.getSentenceCount();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Get a transport that returns data in reads of at most chunkSize bytes, then the end of
+     * the stream
+     *
+     * @return the transport, ready to read
+     */
+    public GpsTransport newTransport() {
+        return new GpsTransport() {
+            private int position;
+
+            @Override
+            public void open() throws IOException {
+                position = 0;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (position == data.length) return -1;
+                int n = Math.min(Math.min(length, chunkSize), data.length - position);
+                System.arraycopy(data, position, buffer, offset, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public String toString() {
+                return "Simulated stream";
+            }
+        };
+    }
+
+    /**
+     * Parse data in pieces of chunkSize bytes
+     *
+     * @param parser the parser
+     */
+    public void parseInChunks(NmeaParser parser) {
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            parser.parse(data, offset, Math.min(chunkSize, data.length - offset));
+        }
+    }
+}
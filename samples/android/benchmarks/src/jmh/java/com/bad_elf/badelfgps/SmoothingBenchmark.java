@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * GpsKalmanFilter smoothing a minute of 50 Hz fixes, the fastest rate GpsSimulator sends. At 50
+ * Hz a fix has 20 ms, so the score per fix is the share of that the filter takes.
+ *
+ */
+@State(Scope.Thread)
+public class SmoothingBenchmark {
+
+    private static final int RATE = GpsSimulator.MAX_RATE;
+    private static final int FIXES = 60 * RATE;
+
+    private GpsFix[] fixes;
+    private final GpsKalmanFilter filter = new GpsKalmanFilter();
+    private final GpsFix smoothed = new GpsFix();
+
+    @Setup(Level.Trial)
+    public void generate() {
+        GpsSimulator simulator = new GpsSimulator(1, 1464698096000L, 37.3349, -122.0090, 30,
+                GpsSimulator.randomWalk(5, 2));
+        simulator.setRate(RATE);
+        simulator.setIncludeSatellites(false);
+        final List<GpsFix> decoded = new ArrayList<GpsFix>(FIXES);
+        NmeaParser parser = new NmeaParser(new GpsEpochAssembler(new GpsEpochAssembler.Listener() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                GpsFix copy = new GpsFix();
+                copy.copyFrom(fix);
+                decoded.add(copy);
+            }
+        }));
+        parser.setEnabledTypes(GpsEpochAssembler.EPOCH_TYPES);
+        while (decoded.size() < FIXES) {
+            byte[] epoch = simulator.nextEpoch();
+            parser.parse(epoch, 0, epoch.length);
+        }
+        fixes = decoded.subList(0, FIXES).toArray(new GpsFix[FIXES]);
+    }
+
+    @Benchmark
+    public double smooth() {
+        filter.reset();
+        double sum = 0;
+        for (GpsFix fix : fixes) {
+            if (filter.filter(fix, smoothed)) sum += smoothed.getLatitude();
+        }
+        return sum;
+    }
+}
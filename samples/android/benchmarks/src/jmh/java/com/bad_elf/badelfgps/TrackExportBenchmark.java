@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * GpsTrackExporter formatting ten minutes of 10 Hz fixes in each format, to a channel that
+ * discards what it is given.
+ *
+ */
+@State(Scope.Thread)
+public class TrackExportBenchmark {
+
+    private static final int FIXES = 6000;
+
+    @Param({"GPX", "KML", "GEOJSON", "CSV"})
+    public GpsTrackExporter.Format format;
+
+    private GpsFix[] fixes;
+    private long bytesWritten;
+
+    private final WritableByteChannel discard = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer source) {
+            int count = source.remaining();
+            source.position(source.limit());
+            bytesWritten += count;
+            return count;
+        }
+
+        @Override public boolean isOpen() { return true; }
+        @Override public void close()     {}
+    };
+
+    @Setup(Level.Trial)
+    public void generate() {
+        GpsSimulator simulator = new GpsSimulator(1, 1464698096000L, 37.3349, -122.0090, 30,
+                GpsSimulator.randomWalk(5, 2));
+        simulator.setRate(10);
+        simulator.setIncludeSatellites(false);
+        final List<GpsFix> decoded = new ArrayList<GpsFix>(FIXES);
+        NmeaParser parser = new NmeaParser(new GpsEpochAssembler(new GpsEpochAssembler.Listener() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                GpsFix copy = new GpsFix();
+                copy.copyFrom(fix);
+                decoded.add(copy);
+            }
+        }));
+        parser.setEnabledTypes(GpsEpochAssembler.EPOCH_TYPES);
+        while (decoded.size() < FIXES) {
+            byte[] epoch = simulator.nextEpoch();
+            parser.parse(epoch, 0, epoch.length);
+        }
+        fixes = decoded.subList(0, FIXES).toArray(new GpsFix[FIXES]);
+    }
+
+    @Benchmark
+    public long export() throws IOException {
+        bytesWritten = 0;
+        GpsTrackExporter exporter = GpsTrackExporter.create(format, discard);
+        for (GpsFix fix : fixes) {
+            exporter.onEpoch(fix);
+        }
+        exporter.finish();
+        return bytesWritten;
+    }
+}
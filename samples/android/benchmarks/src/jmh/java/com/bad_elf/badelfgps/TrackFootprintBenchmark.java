@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2016 Bad Elf, LLC. All Rights Reserved.
+ * See LICENSE.txt for this sample's licensing information
+ *
+ */
+
+package com.bad_elf.badelfgps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A GpsTrack of a million 10 Hz fixes, about 28 hours of walking, against the same fixes as
+ * GpsFix objects in an ArrayList: the memory each takes, and the time to scan it.
+ *
+ * The memory is reported next to the scan times as counters, in bytes per fix:
+ * trackHeapBytes and listHeapBytes are how much the heap grew, after a full collection, when
+ * the container was built, and trackFootprintBytes is GpsTrack.getMemoryFootprint. They are
+ * measured once per trial.
+ *
+ */
+@State(Scope.Thread)
+public class TrackFootprintBenchmark {
+
+    private static final int FIXES = 1000000;
+
+    private GpsTrack track;
+    private List<GpsFix> list;
+    private double trackHeapBytes;
+    private double trackFootprintBytes;
+    private double listHeapBytes;
+
+    /**
+     * The bytes per fix of each container
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public double trackHeapBytes;
+        public double trackFootprintBytes;
+        public double listHeapBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void build() {
+        long heap = usedHeap();
+        final GpsTrack track = new GpsTrack();
+        simulateFixes(new GpsEpochAssembler.Listener() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                track.append(fix);
+            }
+        });
+        this.track = track;
+        long trackHeap = usedHeap();
+
+        final List<GpsFix> list = new ArrayList<GpsFix>();
+        simulateFixes(new GpsEpochAssembler.Listener() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                GpsFix copy = new GpsFix();
+                copy.copyFrom(fix);
+                list.add(copy);
+            }
+        });
+        this.list = list;
+        long listHeap = usedHeap();
+
+        trackHeapBytes = (double) (trackHeap - heap) / FIXES;
+        trackFootprintBytes = (double) track.getMemoryFootprint() / FIXES;
+        listHeapBytes = (double) (listHeap - trackHeap) / FIXES;
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        track = null;
+        list = null;
+    }
+
+    /**
+     * Pass the first FIXES epochs of a simulated walk, as decoded by the library, to a listener
+     */
+    private static void simulateFixes(final GpsEpochAssembler.Listener listener) {
+        GpsSimulator simulator = new GpsSimulator(1, 1464698096000L, 37.3349, -122.0090, 30,
+                GpsSimulator.randomWalk(1.4, 2));
+        simulator.setRate(10);
+        simulator.setIncludeSatellites(false);
+        final int[] count = new int[1];
+        NmeaParser parser = new NmeaParser(new GpsEpochAssembler(new GpsEpochAssembler.Listener() {
+            @Override
+            public void onEpoch(GpsFix fix) {
+                if (count[0]++ < FIXES) listener.onEpoch(fix);
+            }
+        }));
+        parser.setEnabledTypes(GpsEpochAssembler.EPOCH_TYPES);
+        while (count[0] < FIXES) {
+            byte[] epoch = simulator.nextEpoch();
+            parser.parse(epoch, 0, epoch.length);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void report(Footprint footprint) {
+        footprint.trackHeapBytes = trackHeapBytes;
+        footprint.trackFootprintBytes = trackFootprintBytes;
+        footprint.listHeapBytes = listHeapBytes;
+    }
+
+    @Benchmark
+    public double scanTrack(Footprint footprint) {
+        report(footprint);
+        GpsTrack.Cursor cursor = track.cursor();
+        double sum = 0;
+        while (cursor.next()) {
+            sum += cursor.getLatitude();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double scanList(Footprint footprint) {
+        report(footprint);
+        double sum = 0;
+        for (GpsFix fix : list) {
+            sum += fix.getLatitude();
+        }
+        return sum;
+    }
+}